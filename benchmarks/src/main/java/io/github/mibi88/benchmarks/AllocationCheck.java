@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.*;
+import io.github.mibi88.mibiflightsimulator.MibiFlightSimulator;
+import io.github.mibi88.mibiflightsimulator.Plane;
+import io.github.mibi88.mibiflightsimulator.Terrain;
+import io.github.mibi88.mibiflightsimulator.TerrainStreamer;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the frame loop of the game with the real engine in a hidden window
+ * and checks that the thread of the window does not allocate anything once
+ * it is warmed up: the plane movement over the terrain, the streaming of the
+ * chunks, the culling, the render queue, the draws and the post processing.
+ * The camera circles over the corner of four chunks, so the chunks it needs
+ * are all loaded during the warm up: uploading a chunk creates its model and
+ * its entities. Some dynamic trees move on each frame. It needs a display,
+ * on a machine without a screen it runs with xvfb-run. It exits with a status
+ * of 1 if something got allocated.
+ *
+ * @author mibi88
+ */
+public class AllocationCheck {
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    static final int DYNAMIC_ENTITIES = 100;
+    static final int WARMUP_FRAMES = 600;
+    static final int FRAMES = 1200;
+
+    // The circle the camera flies on, in world units, and the time it takes
+    // to fly around it, in frames
+    static final float CIRCLE_RADIUS = 300f;
+    static final int CIRCLE_FRAMES = 600;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean thread_bean =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        if(!thread_bean.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation measurement is not supported " +
+                    "by this JVM!");
+            System.exit(2);
+        }
+        thread_bean.setThreadAllocatedMemoryEnabled(true);
+        try {
+            long allocated = run(thread_bean);
+            System.out.printf("%d frames, %d bytes allocated\n", FRAMES,
+                    allocated);
+            if(allocated > 0) {
+                System.out.println("The frame loop allocated memory!");
+                System.exit(1);
+            }
+        } catch(Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    static long run(com.sun.management.ThreadMXBean thread_bean)
+            throws Exception {
+        Terrain terrain = new Terrain(MibiFlightSimulator.TERRAIN_SEED,
+                MibiFlightSimulator.TERRAIN_STEP,
+                MibiFlightSimulator.TERRAIN_CHUNK_QUADS, 32, 64, 6, 32);
+        TerrainStreamer streamer = new TerrainStreamer(terrain,
+                ForkJoinPool.commonPool(),
+                MibiFlightSimulator.TERRAIN_LOAD_RADIUS,
+                MibiFlightSimulator.TERRAIN_RETENTION_RADIUS);
+
+        Window window = new Window(WIDTH, HEIGHT, "AllocationCheck", 0,
+                false);
+        window.set_vsync(false);
+        Engine engine = new Engine(0.8f, 1f, 1f, 0.7f, 1.5f, 0.0025f, true,
+                new Timeline(), window);
+
+        TexturedModel tree = load_model("models/tree");
+        TexturedModel street_lamp = load_model("models/street_lamp");
+        engine.create_impostor(tree);
+        engine.create_impostor(street_lamp);
+        ImageData grass = ImageData.load("models/grass.png");
+        TexturedModel terrain_material = new TexturedModel(new Mesh(
+                new float[0], new int[0], new float[0], new float[0]), grass,
+                Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT, 4, 1);
+        grass.free();
+
+        // At night, so that the lights of the lamps are clustered too
+        streamer.set_scene(engine, terrain_material, street_lamp, tree);
+        streamer.set_lamp_light(MibiFlightSimulator.LAMP_COLOR[0],
+                MibiFlightSimulator.LAMP_COLOR[1],
+                MibiFlightSimulator.LAMP_COLOR[2],
+                MibiFlightSimulator.LAMP_ATTENUATION);
+        streamer.set_lamp_lights(true);
+        streamer.load_all(0f, 0f);
+        engine.set_height_field(terrain, MibiFlightSimulator.TERRAIN_STEP);
+        Light sun_light = new Light(0f, 64f, 0f, 0.1f, 0.1f, 0.1f);
+        engine.add_light(sun_light);
+
+        Random random = new Random(0);
+        TexturedModelEntity[] dynamic =
+                new TexturedModelEntity[DYNAMIC_ENTITIES];
+        for(int i=0;i<DYNAMIC_ENTITIES;i++) {
+            float x = (random.nextFloat()-0.5f)*CIRCLE_RADIUS*2f;
+            float z = (random.nextFloat()-0.5f)*CIRCLE_RADIUS*2f;
+            dynamic[i] = engine.create_entity(tree, x,
+                    terrain.get_height(x, z), z, 0f, 0f, 0f, 1f, 0);
+            engine.add_entity(dynamic[i]);
+        }
+
+        Camera camera = engine.get_camera();
+        Plane plane = new Plane(camera, terrain);
+        plane.set_tick_time(1f/MibiFlightSimulator.TICK_RATE);
+
+        for(int i=0;i<WARMUP_FRAMES;i++) {
+            frame(engine, window, terrain, streamer, plane, sun_light,
+                    dynamic, i);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = thread_bean.getThreadAllocatedBytes(thread);
+        for(int i=0;i<FRAMES;i++) {
+            frame(engine, window, terrain, streamer, plane, sun_light,
+                    dynamic, i);
+        }
+        long allocated = thread_bean.getThreadAllocatedBytes(thread)-before;
+
+        streamer.free();
+        tree.free();
+        street_lamp.free();
+        terrain_material.free();
+        engine.destroy();
+        return allocated;
+    }
+
+    /**
+     * Load a model of the scene with its levels of detail
+     *
+     * @param file The path to the model in the resources, without the
+     * extension of the OBJ file and of the PNG texture
+     * @return The model
+     * @throws Exception If the model could not be loaded
+     */
+    static TexturedModel load_model(String file) throws Exception {
+        ImageData image = ImageData.load(file + ".png");
+        Mesh mesh = Mesh.load(file + ".obj", 0);
+        TexturedModel model = new TexturedModel(mesh, image,
+                Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT, 4f, 1);
+        image.free();
+        model.set_lods(MeshSimplifier.simplify(mesh.vertices,
+                mesh.texture_coords, mesh.indices,
+                MibiFlightSimulator.LOD_RATIOS),
+                MibiFlightSimulator.LOD_SCREEN_SIZES);
+        return model;
+    }
+
+    /**
+     * Run a frame of the game loop
+     *
+     * @param engine The engine
+     * @param window The hidden window
+     * @param terrain The terrain
+     * @param streamer The streamer of the chunks of the terrain
+     * @param plane The plane, that looks for the ground under the camera
+     * @param sun_light The light that follows the camera
+     * @param dynamic The entities that move on each frame
+     * @param frame The number of the frame
+     * @throws Exception If a variant of the shaders could not be compiled
+     */
+    static void frame(Engine engine, Window window, Terrain terrain,
+            TerrainStreamer streamer, Plane plane, Light sun_light,
+            TexturedModelEntity[] dynamic, int frame) throws Exception {
+        window.poll_events();
+        // The plane moves and checks the ground, then the camera is put back
+        // on the circle so that it stays over the same chunks
+        Camera camera = engine.get_camera();
+        plane.speed_up();
+        plane.move();
+        float angle = (float)(frame*2*Math.PI/CIRCLE_FRAMES);
+        camera.x = (float)Math.cos(angle)*CIRCLE_RADIUS;
+        camera.z = (float)Math.sin(angle)*CIRCLE_RADIUS;
+        camera.y = terrain.get_height(camera.x, camera.z)+50f;
+        camera.rx = 10f;
+        camera.ry = (float)Math.toDegrees(angle);
+        camera.rz = 0f;
+        streamer.update(camera.x, camera.z);
+
+        sun_light.x = camera.x;
+        sun_light.z = camera.z;
+        for(int i=0;i<dynamic.length;i++) {
+            dynamic[i].x += (float)Math.sin(frame*0.05f+i)*0.5f;
+            dynamic[i].ry = frame;
+        }
+
+        engine.init();
+        engine.render_scene();
+        engine.show();
+        window.update();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures adding an entity to the engine and removing it, in a scene that
+ * already contains other entities of the same model. The engine needs an
+ * OpenGL context, so it is created in a hidden window.
+ *
+ * @author mibi88
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+    static final float MAP_SIZE = 1024f*8f;
+
+    @Param({"1000", "10000"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean is_static;
+
+    Engine engine;
+    TexturedModel model;
+    TexturedModelEntity entity;
+
+    @Setup
+    public void setup() throws Exception {
+        Window window = new Window(640, 480, "EngineBenchmark", 0, false);
+        engine = new Engine(0.8f, 1f, 1f, 0.7f, 1.5f, 0.0025f, true,
+                new Timeline(), window);
+        ImageData image = ImageData.load("models/tree.png");
+        model = new TexturedModel(Mesh.load("models/tree.obj", 0), image,
+                Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT, 4f, 1);
+        image.free();
+
+        Random random = new Random(-77);
+        for(int i=0;i<entities;i++) {
+            TexturedModelEntity other = engine.create_entity(model,
+                    random.nextFloat()*MAP_SIZE, 0f,
+                    -random.nextFloat()*MAP_SIZE, 0f, 0f, 0f, 1f, 0);
+            other.is_static = is_static;
+            engine.add_entity(other);
+        }
+        entity = engine.create_entity(model, MAP_SIZE/2f, 0f, -MAP_SIZE/2f,
+                0f, 0f, 0f, 1f, 0);
+        entity.is_static = is_static;
+    }
+
+    @TearDown
+    public void tear_down() {
+        model.free();
+        engine.destroy();
+    }
+
+    @Benchmark
+    public boolean add_remove() {
+        engine.add_entity(entity);
+        return engine.remove_entity(entity);
+    }
+}
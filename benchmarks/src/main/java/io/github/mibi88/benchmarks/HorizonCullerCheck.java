@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.HeightField;
+import io.github.mibi88.Mibi3D.HorizonCuller;
+import java.util.Random;
+import org.lwjgl.stb.STBPerlin;
+
+/**
+ * Checks the HorizonCuller without an OpenGL context. It first tests a few
+ * spheres around a wall, and then culls random spheres over hills made like
+ * the ones of Terrain. Each sphere that is culled over the hills is checked
+ * by marching rays from the camera to points of the sphere: if one of them
+ * is not hidden by the terrain, the culling was wrong. It exits with a status
+ * of 1 if a check failed.
+ *
+ * @author mibi88
+ */
+public class HorizonCullerCheck {
+    static final int SIZE = 1025;
+    static final float STEP = 8f;
+    static final int SPHERES = 20000;
+
+    static float[] heights;
+    static int failures = 0;
+
+    public static void main(String[] args) {
+        check_wall();
+        check_hills();
+        if(failures > 0) {
+            System.out.printf("%d checks failed\n", failures);
+            System.exit(1);
+        }
+        System.out.println("All the checks passed");
+    }
+
+    static void check(String name, boolean value, boolean expected) {
+        if(value != expected) {
+            System.out.printf("FAILED: %s\n", name);
+            failures++;
+        }
+    }
+
+    /**
+     * A wall 50 units high from z = 100 to z = 110, for x between -50 and 50
+     */
+    static void check_wall() {
+        HeightField wall = (x, z) -> {
+            if(x < -500f || x > 500f || z < -500f || z > 500f) {
+                return Float.NaN;
+            }
+            return z >= 100f && z <= 110f && x > -50f && x < 50f ? 50f : 0f;
+        };
+        HorizonCuller culler = new HorizonCuller(wall, 256, 125, 4f);
+        culler.update(0f, 10f, 0f);
+        check("behind the wall", culler.is_occluded(0f, 5f, 200f, 5f),
+                true);
+        check("above the wall", culler.is_occluded(0f, 200f, 200f, 5f),
+                false);
+        check("in front of the wall", culler.is_occluded(0f, 5f, 50f, 5f),
+                false);
+        check("beside the wall", culler.is_occluded(300f, 5f, 200f, 5f),
+                false);
+        check("around the edge of the wall",
+                culler.is_occluded(90f, 5f, 200f, 20f), false);
+        check("behind the wall, outside of the terrain",
+                culler.is_occluded(0f, 5f, 900f, 5f), true);
+        check("box behind the wall",
+                culler.is_occluded(-5f, 0f, 195f, 5f, 10f, 205f), true);
+        culler.update(0f, 10f, 0f, (float)Math.PI, 0.5f);
+        check("not swept", culler.is_occluded(0f, 5f, 200f, 5f), false);
+        culler.update(0f, 10f, 0f, 0f, 0.5f);
+        check("behind the wall, swept in front",
+                culler.is_occluded(0f, 5f, 200f, 5f), true);
+        culler.update(0f, 100f, 0f);
+        check("seen from above the wall",
+                culler.is_occluded(0f, 5f, 200f, 5f), false);
+    }
+
+    static float get_height(float x, float z) {
+        float grid_x = x/STEP, grid_y = z/STEP;
+        int int_x = (int)Math.floor(grid_x), int_y = (int)Math.floor(grid_y);
+        if(int_x < 0 || int_y < 0 || int_x >= SIZE-1 || int_y >= SIZE-1) {
+            return Float.NaN;
+        }
+        float x_pos = grid_x-int_x, y_pos = grid_y-int_y;
+        float h00 = heights[int_y*SIZE+int_x];
+        float h10 = heights[int_y*SIZE+int_x+1];
+        float h01 = heights[(int_y+1)*SIZE+int_x];
+        if(x_pos+y_pos <= 1f) {
+            return h00+(h10-h00)*x_pos+(h01-h00)*y_pos;
+        }
+        float h11 = heights[(int_y+1)*SIZE+int_x+1];
+        return h11+(h01-h11)*(1f-x_pos)+(h10-h11)*(1f-y_pos);
+    }
+
+    /**
+     * Check if a point can be seen from the camera, by marching along the
+     * ray between them
+     */
+    static boolean is_visible(float cx, float cy, float cz, float x, float y,
+            float z) {
+        float dx = x-cx, dz = z-cz;
+        int steps = (int)(Math.sqrt(dx*dx+dz*dz)/(STEP/4f));
+        for(int i=1;i<steps;i++) {
+            float t = (float)i/steps;
+            float height = get_height(cx+dx*t, cz+dz*t);
+            if(!Float.isNaN(height) && height > cy+(y-cy)*t) return false;
+        }
+        return true;
+    }
+
+    static void check_hills() {
+        heights = new float[SIZE*SIZE];
+        for(int y=0;y<SIZE;y++) {
+            for(int x=0;x<SIZE;x++) {
+                heights[y*SIZE+x] = STBPerlin.stb_perlin_noise3_seed(x*0.1f,
+                        y*0.1f, 0, 0, 0, 0, -77)*64f;
+            }
+        }
+        HorizonCuller culler = new HorizonCuller(
+                HorizonCullerCheck::get_height, 256, 125, STEP);
+        Random random = new Random(-77);
+        float center = SIZE*STEP/2f;
+        int frames = 200;
+        int occluded = 0, wrong = 0, tested = 0;
+        long time = 0, front_time = 0;
+        for(int frame=0;frame<frames;frame++) {
+            float cx = center+(random.nextFloat()-0.5f)*2000f;
+            float cz = center+(random.nextFloat()-0.5f)*2000f;
+            // Fly low over the hills
+            float cy = get_height(cx, cz)+10f+random.nextFloat()*30f;
+            long start = System.nanoTime();
+            culler.update(cx, cy, cz);
+            time += System.nanoTime()-start;
+            // Like the engine, that only sweeps the sectors in the view
+            start = System.nanoTime();
+            culler.update(cx, cy, cz, random.nextFloat()*6f, 0.95f);
+            front_time += System.nanoTime()-start;
+            culler.update(cx, cy, cz);
+            for(int i=0;i<SPHERES/frames;i++) {
+                float x = cx+(random.nextFloat()-0.5f)*2000f;
+                float z = cz+(random.nextFloat()-0.5f)*2000f;
+                float height = get_height(x, z);
+                if(Float.isNaN(height)) continue;
+                float radius = 2f+random.nextFloat()*6f;
+                float y = height+radius;
+                tested++;
+                if(!culler.is_occluded(x, y, z, radius)) continue;
+                occluded++;
+                // The top, the center and the sides of the sphere
+                if(is_visible(cx, cy, cz, x, y+radius, z) ||
+                        is_visible(cx, cy, cz, x, y, z) ||
+                        is_visible(cx, cy, cz, x+radius, y, z) ||
+                        is_visible(cx, cy, cz, x-radius, y, z) ||
+                        is_visible(cx, cy, cz, x, y, z+radius) ||
+                        is_visible(cx, cy, cz, x, y, z-radius)) {
+                    wrong++;
+                }
+            }
+        }
+        System.out.printf("Hills: %d/%d spheres occluded (%.1f%%), %d " +
+                "wrongly, %.3f ms per update, %.3f ms in front of the " +
+                "camera\n", occluded, tested, occluded*100f/tested, wrong,
+                time/1e6/frames, front_time/1e6/frames);
+        check("no visible sphere is culled", wrong == 0, true);
+        check("some spheres are culled", occluded > 0, true);
+    }
+}
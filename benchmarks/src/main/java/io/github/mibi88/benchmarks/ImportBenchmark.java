@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Mesh;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the import of the models with Assimp. It is the part of
+ * Model(String, int) that runs before the mesh is sent to the GPU.
+ *
+ * @author mibi88
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ImportBenchmark {
+    @Param({"models/plane.obj", "models/tree.obj",
+        "models/street_lamp.obj"})
+    public String file;
+
+    @Benchmark
+    public Mesh load() throws Exception {
+        return Mesh.load(file, 0);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Mesh;
+import io.github.mibi88.Mibi3D.MeshSimplifier;
+import io.github.mibi88.mibiflightsimulator.MibiFlightSimulator;
+
+/**
+ * Prints the amount of triangles of each level of detail generated for the
+ * models of the default scene, with the same ratios as MibiFlightSimulator.
+ * It does not need an OpenGL context.
+ * 
+ * @author mibi88
+ */
+public class LODReport {
+    static final String[] MODELS = {
+        "models/tree.obj", "models/street_lamp.obj", "models/sun.obj"
+    };
+    
+    public static void main(String[] args) throws Exception {
+        System.out.println("model, radius, LOD 0, LOD 1, LOD 2, LOD 3, " +
+                "time (ms)");
+        for(String file : MODELS) {
+            Mesh mesh = Mesh.load(file, 0);
+            long start = System.nanoTime();
+            int[][] lods = MeshSimplifier.simplify(mesh.vertices,
+                    mesh.texture_coords, mesh.indices,
+                    MibiFlightSimulator.LOD_RATIOS);
+            double time = (System.nanoTime()-start)/1e6;
+            System.out.printf("%s, %.2f, %d", file, radius(mesh.vertices),
+                    mesh.indices.length/3);
+            for(int i=0;i<lods.length;i++) {
+                System.out.printf(", %d", lods[i].length/3);
+            }
+            System.out.printf(", %.1f\n", time);
+        }
+    }
+    
+    static float radius(float[] vertices) {
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for(int i=0;i<vertices.length;i++) {
+            min[i%3] = Math.min(min[i%3], vertices[i]);
+            max[i%3] = Math.max(max[i%3], vertices[i]);
+        }
+        float radius = 0f;
+        for(int i=0;i+2<vertices.length;i+=3) {
+            float x = vertices[i]-(min[0]+max[0])/2f;
+            float y = vertices[i+1]-(min[1]+max[1])/2f;
+            float z = vertices[i+2]-(min[2]+max[2])/2f;
+            radius = Math.max(radius, (float)Math.sqrt(x*x+y*y+z*z));
+        }
+        return radius;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Camera;
+import io.github.mibi88.Mibi3D.Light;
+import io.github.mibi88.Mibi3D.LightClusters;
+import io.github.mibi88.Mibi3D.Maths;
+import io.github.mibi88.mibiflightsimulator.MibiFlightSimulator;
+import java.util.ArrayList;
+import java.util.Random;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Checks the LightClusters without an OpenGL context. Street lamps are placed
+ * like the ones of Terrain, and random points of the view frustum are put in
+ * a cluster the same way as in the 3D fragment shader. Each lamp that reaches
+ * a point has to be in the list of lights of its cluster. It exits with a
+ * status of 1 if a check failed.
+ *
+ * @author mibi88
+ */
+public class LightClustersCheck {
+    static final float NEAR = 0.1f, FAR = 1000f;
+    static final int POINTS = 100000;
+    static final int UPDATES = 100;
+
+    static int failures = 0;
+
+    public static void main(String[] args) {
+        Random random = new Random(-77);
+        // The sun is not attenuated, it reaches all the clusters
+        Light sun = new Light(0f, 64f, 0f, 2f, 2f, 2f);
+        ArrayList<Light> lights = new ArrayList<>();
+        lights.add(sun);
+        for(int z=-16;z<16;z++) {
+            for(int x=-16;x<16;x++) {
+                Light lamp = new Light(x*64f+32f+random.nextFloat()*32f,
+                        7f, z*64f+32f+random.nextFloat()*32f,
+                        MibiFlightSimulator.LAMP_COLOR[0],
+                        MibiFlightSimulator.LAMP_COLOR[1],
+                        MibiFlightSimulator.LAMP_COLOR[2]);
+                lamp.exponential_attenuation =
+                        MibiFlightSimulator.LAMP_ATTENUATION;
+                // Only keep the lamps the engine would select
+                if(Math.sqrt(lamp.x*lamp.x+lamp.z*lamp.z) <
+                        FAR+lamp.get_radius()) {
+                    lights.add(lamp);
+                }
+            }
+        }
+        System.out.printf("%d lights, lamp radius: %.1f\n", lights.size(),
+                lights.get(1).get_radius());
+
+        Camera camera = new Camera(0f, 20f, 0f, 10f, 30f, 0f);
+        Matrix4f view_matrix = new Matrix4f();
+        Maths.create_view_matrix(camera, view_matrix);
+        Matrix4f projection_matrix = Maths.create_projection_matrix(70f,
+                NEAR, FAR, 16f/9f, new Matrix4f());
+        LightClusters clusters = new LightClusters(16, 9, 24);
+
+        long start = System.nanoTime();
+        for(int i=0;i<UPDATES;i++) {
+            clusters.update(view_matrix, projection_matrix, NEAR, FAR,
+                    lights);
+        }
+        double time = (System.nanoTime()-start)/1e6/UPDATES;
+
+        int max_lights = 0, used_clusters = 0;
+        for(int i=0;i<clusters.get_clusters_amount();i++) {
+            int amount = clusters.get_cluster_lights_amount(i);
+            max_lights = Math.max(max_lights, amount);
+            if(amount > 1) used_clusters++;
+        }
+        System.out.printf("%.3f ms per update, %d indices, %.1f lights " +
+                "per cluster on average, %d at most, %d/%d clusters with " +
+                "a lamp\n", time, clusters.get_indices_amount(),
+                (float)clusters.get_indices_amount()/
+                clusters.get_clusters_amount(), max_lights, used_clusters,
+                clusters.get_clusters_amount());
+
+        Matrix4f inverse_view = new Matrix4f(view_matrix).invert();
+        Vector3f point = new Vector3f();
+        int missing = 0, lit = 0;
+        for(int i=0;i<POINTS;i++) {
+            // A random position on the screen and a random depth, with more
+            // points close to the camera like on the screen
+            float screen_x = random.nextFloat(), screen_y = random.nextFloat();
+            float depth = NEAR*(float)Math.pow(FAR/NEAR, random.nextFloat());
+            point.set((screen_x*2f-1f)*depth/projection_matrix.m00(),
+                    (screen_y*2f-1f)*depth/projection_matrix.m11(), -depth);
+            inverse_view.transformPosition(point);
+            int cluster = clusters.get_cluster(
+                    Math.min((int)(screen_x*clusters.get_size_x()),
+                    clusters.get_size_x()-1),
+                    Math.min((int)(screen_y*clusters.get_size_y()),
+                    clusters.get_size_y()-1),
+                    clusters.get_slice(depth));
+            for(int l=0;l<lights.size();l++) {
+                Light light = lights.get(l);
+                if(point.distance(light.x, light.y, light.z) >=
+                        light.get_radius()) {
+                    continue;
+                }
+                if(l > 0) lit++;
+                if(!contains(clusters, cluster, l)) missing++;
+            }
+        }
+        System.out.printf("%d times a point was reached by a lamp, %d " +
+                "lights missing from a cluster\n", lit, missing);
+        check("no light is missing", missing == 0, true);
+        check("some points are lit by a lamp", lit > 0, true);
+        if(failures > 0) {
+            System.out.printf("%d checks failed\n", failures);
+            System.exit(1);
+        }
+        System.out.println("All the checks passed");
+    }
+
+    static boolean contains(LightClusters clusters, int cluster, int light) {
+        int offset = clusters.get_cluster_offset(cluster);
+        int amount = clusters.get_cluster_lights_amount(cluster);
+        int[] indices = clusters.get_indices();
+        for(int i=0;i<amount;i++) {
+            if(indices[offset+i] == light) return true;
+        }
+        return false;
+    }
+
+    static void check(String name, boolean value, boolean expected) {
+        if(value != expected) {
+            System.out.printf("FAILED: %s\n", name);
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Camera;
+import io.github.mibi88.Mibi3D.Maths;
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the matrices computed for each entity and each frame, both the
+ * versions that allocate their result and the ones that reuse a matrix
+ *
+ * @author mibi88
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MathsBenchmark {
+    float x = 12f, y = 34f, z = -56f;
+    float rx = 10f, ry = 45f, rz = 5f;
+    float scale = 1.5f;
+    Vector3f translation;
+    Camera camera;
+    Matrix4f dest;
+
+    @Setup
+    public void setup() {
+        translation = new Vector3f(x, y, z);
+        camera = new Camera(x, y, z, rx, ry, rz);
+        dest = new Matrix4f();
+    }
+
+    @Benchmark
+    public Matrix4f transformation_matrix() {
+        return Maths.create_transformation_matrix(translation, rx, ry, rz,
+                scale);
+    }
+
+    @Benchmark
+    public Matrix4f transformation_matrix_dest() {
+        return Maths.create_transformation_matrix(x, y, z, rx, ry, rz, scale,
+                dest);
+    }
+
+    @Benchmark
+    public Matrix4f view_matrix() {
+        return Maths.create_view_matrix(camera);
+    }
+
+    @Benchmark
+    public Matrix4f view_matrix_dest() {
+        return Maths.create_view_matrix(camera, dest);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Camera;
+import io.github.mibi88.mibiflightsimulator.Plane;
+import io.github.mibi88.mibiflightsimulator.Terrain;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a tick of the flight simulation, over the default terrain
+ *
+ * @author mibi88
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlaneBenchmark {
+    // The plane goes back to the start after this amount of ticks, so that
+    // it keeps flying over the same chunks
+    static final int TICKS = 600;
+
+    Camera camera;
+    Camera start;
+    Plane plane;
+    int tick = 0;
+
+    @Setup
+    public void setup() {
+        Terrain terrain = new Terrain(-77, 8f, 64, 32, 64, 6, 32);
+        for(int z=-2;z<2;z++) {
+            for(int x=-2;x<2;x++) terrain.generate_chunk(x, z);
+        }
+        start = new Camera(0f, 64f, 0f, 0f, 0f, 0f);
+        camera = new Camera(0f, 64f, 0f, 0f, 0f, 0f);
+        plane = new Plane(camera, terrain);
+    }
+
+    @Benchmark
+    public Camera move() {
+        if(++tick == TICKS) {
+            tick = 0;
+            camera.set(start);
+        }
+        plane.speed_up();
+        if(tick < TICKS/2) plane.rotate_left();
+        else plane.rotate_right();
+        plane.move();
+        return camera;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Frustum;
+import io.github.mibi88.Mibi3D.SpatialGrid;
+import java.util.ArrayList;
+import java.util.Random;
+import org.joml.Matrix4f;
+
+/**
+ * Measures the cost of the queries of SpatialGrid with 10k, 100k and 1M
+ * entities scattered on a map as big as the default terrain. It does not need
+ * an OpenGL context.
+ * 
+ * @author mibi88
+ */
+public class SpatialGridBenchmark {
+    static final float MAP_SIZE = 1024f*8f;
+    static final int QUERIES = 2000;
+    
+    static float[] positions;
+    static SpatialGrid<Integer> grid;
+    
+    public static void main(String[] args) {
+        int[] amounts = {10000, 100000, 1000000};
+        System.out.println("entities, insert (ms), region (us), " +
+                "radius (us), frustum (us), linear scan (us), " +
+                "move (ns), visible");
+        for(int amount : amounts) {
+            run(amount);
+        }
+    }
+    
+    static void run(int amount) {
+        Random random = new Random(-77);
+        positions = new float[amount*2];
+        for(int i=0;i<amount*2;i++) {
+            positions[i] = random.nextFloat()*MAP_SIZE;
+        }
+        
+        long start = System.nanoTime();
+        grid = new SpatialGrid<>(64f);
+        for(int i=0;i<amount;i++) {
+            grid.insert(i, positions[i*2], 0f, positions[i*2+1], 4f);
+        }
+        double insert_ms = (System.nanoTime()-start)/1e6;
+        
+        ArrayList<Integer> out = new ArrayList<>();
+        float[] query = new float[QUERIES*2];
+        for(int i=0;i<QUERIES*2;i++) {
+            query[i] = random.nextFloat()*MAP_SIZE;
+        }
+        
+        // Run everything once before measuring to warm up the JIT
+        for(int pass=0;pass<2;pass++) {
+            start = System.nanoTime();
+            for(int i=0;i<QUERIES;i++) {
+                out.clear();
+                grid.query_region(query[i*2], query[i*2+1],
+                        query[i*2]+256f, query[i*2+1]+256f, out);
+            }
+            double region_us = (System.nanoTime()-start)/1e3/QUERIES;
+            
+            start = System.nanoTime();
+            for(int i=0;i<QUERIES;i++) {
+                out.clear();
+                grid.query_radius(query[i*2], query[i*2+1], 128f, out);
+            }
+            double radius_us = (System.nanoTime()-start)/1e3/QUERIES;
+            
+            Frustum frustum = new Frustum();
+            Matrix4f projection = new Matrix4f().perspective(
+                    (float)Math.toRadians(70f), 4f/3f, 0.1f, 1000f);
+            Matrix4f view = new Matrix4f();
+            int visible = 0;
+            start = System.nanoTime();
+            for(int i=0;i<QUERIES;i++) {
+                float x = query[i*2], z = query[i*2+1];
+                view.identity().rotateY(i*0.1f).translate(-x, -64f, -z);
+                frustum.update(projection, view);
+                out.clear();
+                grid.query_frustum(frustum, x, z, 1000f, out);
+                visible += out.size();
+            }
+            double frustum_us = (System.nanoTime()-start)/1e3/QUERIES;
+            
+            // The same frustum test on every entity, as done without the grid
+            int linear_queries = Math.max(QUERIES/100, 4);
+            int linear_visible = 0;
+            start = System.nanoTime();
+            for(int i=0;i<linear_queries;i++) {
+                float x = query[i*2], z = query[i*2+1];
+                view.identity().rotateY(i*0.1f).translate(-x, -64f, -z);
+                frustum.update(projection, view);
+                for(int n=0;n<amount;n++) {
+                    if(frustum.test_sphere(positions[n*2], 0f,
+                            positions[n*2+1], 4f)) {
+                        linear_visible++;
+                    }
+                }
+            }
+            double linear_us = (System.nanoTime()-start)/1e3/linear_queries;
+            
+            start = System.nanoTime();
+            for(int i=0;i<amount;i++) {
+                positions[i*2] += 1f;
+                grid.update(i, positions[i*2], 0f, positions[i*2+1], 4f);
+            }
+            double move_ns = (double)(System.nanoTime()-start)/amount;
+            
+            if(pass == 1) {
+                System.out.printf("%d, %.1f, %.2f, %.2f, %.2f, %.2f, " +
+                        "%.1f, %d\n", amount, insert_ms, region_us,
+                        radius_us, frustum_us, linear_us, move_ns,
+                        visible/QUERIES);
+            }
+        }
+    }
+}
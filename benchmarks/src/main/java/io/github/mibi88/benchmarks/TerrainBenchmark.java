@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.benchmarks;
+
+import io.github.mibi88.Mibi3D.Mesh;
+import io.github.mibi88.mibiflightsimulator.Terrain;
+import io.github.mibi88.mibiflightsimulator.TerrainChunk;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the generation of a chunk of the terrain, without sending it to
+ * the GPU, and the height lookups the plane does on each tick, in generated
+ * chunks and from the noise. The generation is compared with the per vertex
+ * sampling of the noise it replaced, which sampled the noise again for the
+ * normals.
+ *
+ * @author mibi88
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerrainBenchmark {
+    static final int SEED = -77;
+    static final float STEP = 8f;
+    static final int CHUNK_QUADS = 64;
+    static final int MIN_LAMP_SPACING = 32, MAX_LAMP_SPACING = 64;
+    static final int MIN_TREE_SPACING = 6, MAX_TREE_SPACING = 32;
+
+    static Terrain create_terrain() {
+        return new Terrain(SEED, STEP, CHUNK_QUADS, MIN_LAMP_SPACING,
+                MAX_LAMP_SPACING, MIN_TREE_SPACING, MAX_TREE_SPACING);
+    }
+
+    @State(Scope.Thread)
+    public static class Generation {
+        // If the rows of the chunk are split across the common fork join
+        // pool, otherwise they are generated on the calling thread
+        @Param({"true", "false"})
+        public boolean parallel;
+
+        Terrain terrain;
+        int chunk = 0;
+
+        @Setup
+        public void setup() {
+            terrain = create_terrain();
+            terrain.set_pool(parallel ? ForkJoinPool.commonPool() : null);
+        }
+    }
+
+    // The generation as it was before the heights were sampled once in a
+    // grid, it always runs on the calling thread
+    @State(Scope.Thread)
+    public static class Baseline {
+        Terrain terrain;
+        int chunk = 0;
+
+        @Setup
+        public void setup() {
+            terrain = create_terrain();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lookup {
+        static final int POSITIONS = 4096;
+        static final int CHUNKS = 4;
+
+        // If the chunks the positions are in were generated, otherwise the
+        // heights come from the noise
+        @Param({"true", "false"})
+        public boolean generated;
+
+        Terrain terrain;
+        float[] positions;
+        int next = 0;
+
+        @Setup
+        public void setup() {
+            terrain = create_terrain();
+            if(generated) {
+                for(int z=0;z<CHUNKS;z++) {
+                    for(int x=0;x<CHUNKS;x++) terrain.generate_chunk(x, z);
+                }
+            }
+            float size = CHUNKS*terrain.chunk_size;
+            Random random = new Random(SEED);
+            positions = new float[POSITIONS*2];
+            for(int i=0;i<POSITIONS*2;i++) {
+                positions[i] = random.nextFloat()*size;
+            }
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TerrainChunk generate_chunk(Generation state) {
+        // A different chunk each time, the same ones on each run
+        int chunk = state.chunk++%64;
+        TerrainChunk generated = state.terrain.generate_chunk(chunk%8,
+                chunk/8);
+        state.terrain.forget_chunk(generated.x, generated.z);
+        return generated;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public float get_height(Lookup state) {
+        int i = state.next;
+        state.next = (i+1)%Lookup.POSITIONS;
+        return state.terrain.get_height(state.positions[i*2],
+                state.positions[i*2+1]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PerVertexChunk generate_chunk_per_vertex(Baseline state) {
+        int chunk = state.chunk++%64;
+        return generate_per_vertex(state.terrain, chunk%8, chunk/8);
+    }
+
+    /**
+     * A chunk generated like the terrain did before the heights were sampled
+     * once in a grid
+     */
+    public static class PerVertexChunk {
+        public float[] heights;
+        public Mesh mesh;
+        public float[] lamps;
+        public float[] trees;
+    }
+
+    /**
+     * Generate a whole chunk on the calling thread by sampling the noise once
+     * for each vertex and four more times for its normal, as the terrain did
+     * before the heights were sampled once in a grid. The mesh, the heights
+     * and the entities are the same as the ones of Terrain.generate_chunk.
+     *
+     * @param terrain The terrain to sample
+     * @param chunk_x The X coordinate of the chunk
+     * @param chunk_z The Z coordinate of the chunk
+     * @return The chunk
+     */
+    static PerVertexChunk generate_per_vertex(Terrain terrain, int chunk_x,
+            int chunk_z) {
+        int quads = terrain.chunk_quads;
+        int w = quads+1;
+        int grid_x = chunk_x*quads;
+        int grid_z = chunk_z*quads;
+        float[] vertices = new float[w*w*3];
+        float[] heights = new float[w*w];
+        float[] texture_coords = new float[w*w*2];
+        float[] normals = new float[w*w*3];
+        int[] indices = new int[quads*quads*6];
+        for(int z=0;z<w;z++) {
+            for(int x=0;x<w;x++) {
+                int i = z*w+x;
+                int gx = grid_x+x;
+                int gz = grid_z+z;
+                float height = terrain.get_grid_height(gx, gz);
+                heights[i] = height;
+                vertices[i*3] = x*terrain.step;
+                vertices[i*3+1] = height;
+                vertices[i*3+2] = z*terrain.step;
+                float normal_x = terrain.get_grid_height(gx-1, gz)-
+                        terrain.get_grid_height(gx+1, gz);
+                float normal_y = 2f*terrain.step;
+                float normal_z = terrain.get_grid_height(gx, gz-1)-
+                        terrain.get_grid_height(gx, gz+1);
+                float scale = 1f/(float)Math.sqrt(normal_x*normal_x+
+                        normal_y*normal_y+normal_z*normal_z);
+                normals[i*3] = normal_x*scale;
+                normals[i*3+1] = normal_y*scale;
+                normals[i*3+2] = normal_z*scale;
+                texture_coords[i*2] = (float)x;
+                texture_coords[i*2+1] = (float)z;
+            }
+        }
+        int indices_pos = 0;
+        for(int z=0;z<quads;z++) {
+            for(int x=0;x<quads;x++) {
+                int indice = z*w+x;
+                indices[indices_pos++] = indice;
+                indices[indices_pos++] = indice+w;
+                indices[indices_pos++] = indice+1;
+
+                indices[indices_pos++] = indice+1;
+                indices[indices_pos++] = indice+w;
+                indices[indices_pos++] = indice+w+1;
+            }
+        }
+        PerVertexChunk chunk = new PerVertexChunk();
+        chunk.heights = heights;
+        chunk.mesh = new Mesh(vertices, indices, normals, texture_coords);
+
+        Random random = new Random(SEED ^ Terrain.get_key(chunk_x, chunk_z)*
+                0x9E3779B97F4A7C15L);
+        chunk.lamps = scatter(terrain, chunk_x, chunk_z, heights, random,
+                MIN_LAMP_SPACING, MAX_LAMP_SPACING);
+        chunk.trees = scatter(terrain, chunk_x, chunk_z, heights, random,
+                MIN_TREE_SPACING, MAX_TREE_SPACING);
+        return chunk;
+    }
+
+    /**
+     * Place entities on a chunk like Terrain does, with the heights of the
+     * chunk
+     */
+    static float[] scatter(Terrain terrain, int chunk_x, int chunk_z,
+            float[] heights, Random random, int min_spacing,
+            int max_spacing) {
+        int amount = (int)(terrain.chunk_size/max_spacing);
+        float[] positions = new float[amount*amount*3];
+        int pointer = 0;
+        for(int int_z=0;int_z<amount;int_z++) {
+            for(int int_x=0;int_x<amount;int_x++) {
+                float x = chunk_x*terrain.chunk_size + min_spacing +
+                        random.nextFloat()*(max_spacing-min_spacing) +
+                        int_x*max_spacing;
+                float z = chunk_z*terrain.chunk_size + min_spacing +
+                        random.nextFloat()*(max_spacing-min_spacing) +
+                        int_z*max_spacing;
+                positions[pointer++] = x;
+                positions[pointer++] = get_height(terrain, chunk_x, chunk_z,
+                        heights, x, z);
+                positions[pointer++] = z;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Get the height of a position in a chunk from its heights, with the
+     * same triangles as Terrain.get_height
+     */
+    static float get_height(Terrain terrain, int chunk_x, int chunk_z,
+            float[] heights, float x, float z) {
+        float grid_x = x/terrain.step, grid_z = z/terrain.step;
+        int int_x = (int)Math.floor(grid_x), int_z = (int)Math.floor(grid_z);
+        float x_pos = grid_x-int_x, z_pos = grid_z-int_z;
+        int w = terrain.chunk_quads+1;
+        int i = (int_z-chunk_z*terrain.chunk_quads)*w+int_x-
+                chunk_x*terrain.chunk_quads;
+        float h00 = heights[i];
+        float h10 = heights[i+1];
+        float h01 = heights[i+w];
+        float h11 = heights[i+w+1];
+        if(x_pos+z_pos <= 1f) {
+            return h00+(h10-h00)*x_pos+(h01-h00)*z_pos;
+        }
+        return h11+(h01-h11)*(1f-x_pos)+(h10-h11)*(1f-z_pos);
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import org.joml.Vector2f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL30;
+
+/**
+ * Makes the bright parts of the scene glow. The colors above a threshold are
+ * downsampled into a chain of render targets of half, quarter... of the size
+ * of the scene, blurred with a dual filter on the way down and up, and added
+ * back in the biggest target, that the framebuffer shader adds to the scene.
+ * Each pass only takes a few taps on a small target, the quality presets set
+ * how many targets are used and so how wide the glow is.
+ *
+ * @author mibi88
+ */
+public class Bloom {
+    public static final int QUALITY_OFF = 0;
+    public static final int QUALITY_LOW = 1;
+    public static final int QUALITY_MEDIUM = 2;
+    public static final int QUALITY_HIGH = 3;
+
+    // The amount of targets of each quality preset
+    private final int[] QUALITY_LEVELS = {0, 3, 5, 7};
+
+    // The bit of the variant of the downsample shader that applies the
+    // threshold, for the first pass
+    private final int FEATURE_THRESHOLD = 1;
+
+    private final Shaders downsample_shaders;
+    private final Shaders upsample_shaders;
+    private int downsample_texel_size_location;
+    private int threshold_location;
+    private int uv_scale_location;
+    private int uv_max_location;
+    private int upsample_texel_size_location;
+
+    private int quality;
+    private float threshold;
+    private float intensity;
+
+    // The targets, from the biggest to the smallest
+    private int[] frame_buffers;
+    private int[] textures;
+    private int[] widths;
+    private int[] heights;
+    private int levels_amount;
+    private int source_width, source_height;
+
+    private final Vector2f texel_size;
+    private final Vector2f uv_scale;
+    private final Vector2f uv_max;
+    private final IntBuffer viewport;
+
+    /**
+     * Send the shaders of the bloom passes to the driver. Call finish_init
+     * before rendering.
+     *
+     * @param program_cache The cache to load the programs from and to store
+     * them in, or null to always compile them
+     * @throws Exception If the shaders could not be loaded
+     */
+    public Bloom(ProgramCache program_cache) throws Exception {
+        downsample_shaders = new Shaders(
+                "shaders/framebuffer_shader.vert",
+                "shaders/bloom_downsample.frag",
+                new String[]{"THRESHOLD"}, program_cache
+        );
+        downsample_shaders.bind_attribute(0, "position");
+        downsample_shaders.bind_attribute(1, "texture_coords");
+        downsample_shaders.add_variant(FEATURE_THRESHOLD);
+        downsample_shaders.submit_init();
+
+        upsample_shaders = new Shaders(
+                "shaders/framebuffer_shader.vert",
+                "shaders/bloom_upsample.frag",
+                new String[0], program_cache
+        );
+        upsample_shaders.bind_attribute(0, "position");
+        upsample_shaders.bind_attribute(1, "texture_coords");
+        upsample_shaders.submit_init();
+
+        quality = QUALITY_MEDIUM;
+        threshold = 0.7f;
+        intensity = 1f;
+
+        frame_buffers = new int[0];
+        textures = new int[0];
+        widths = new int[0];
+        heights = new int[0];
+
+        texel_size = new Vector2f();
+        uv_scale = new Vector2f();
+        uv_max = new Vector2f();
+        viewport = BufferUtils.createIntBuffer(4);
+    }
+
+    /**
+     * Check that the shaders were compiled
+     *
+     * @throws Exception If a shader could not be compiled
+     */
+    public void finish_init() throws Exception {
+        downsample_shaders.finish_init();
+        upsample_shaders.finish_init();
+        downsample_texel_size_location =
+                downsample_shaders.get_uniform_location("texel_size");
+        threshold_location = downsample_shaders.get_uniform_location(
+                "threshold");
+        uv_scale_location = downsample_shaders.get_uniform_location(
+                "uv_scale");
+        uv_max_location = downsample_shaders.get_uniform_location("uv_max");
+        upsample_texel_size_location =
+                upsample_shaders.get_uniform_location("texel_size");
+    }
+
+    /**
+     * Set the quality preset
+     *
+     * @param quality One of the QUALITY constants of this class
+     */
+    public void set_quality(int quality) {
+        this.quality = Math.max(QUALITY_OFF, Math.min(quality,
+                QUALITY_HIGH));
+    }
+
+    /**
+     * Get the quality preset
+     *
+     * @return One of the QUALITY constants of this class
+     */
+    public int get_quality() {
+        return quality;
+    }
+
+    /**
+     * Check if the bloom passes are run
+     *
+     * @return false if the quality is QUALITY_OFF
+     */
+    public boolean is_enabled() {
+        return quality != QUALITY_OFF;
+    }
+
+    /**
+     * Set the brightness above which the colors glow
+     *
+     * @param threshold The threshold, for each color component
+     */
+    public void set_threshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Set how much the glow is added to the scene
+     *
+     * @param intensity The intensity, 1 to add it as it is
+     */
+    public void set_intensity(float intensity) {
+        this.intensity = intensity;
+    }
+
+    /**
+     * Get the factor the result has to be multiplied by when it is added to
+     * the scene. Each target adds its glow to the result, so it is divided by
+     * the amount of targets to keep the same brightness with all the presets.
+     *
+     * @return The factor
+     */
+    public float get_composite_intensity() {
+        return levels_amount > 0 ? intensity/levels_amount : 0f;
+    }
+
+    /**
+     * Get the amount of targets used in the last frame
+     *
+     * @return The amount of targets
+     */
+    public int get_levels_amount() {
+        return levels_amount;
+    }
+
+    /**
+     * Run the bloom passes on the scene
+     *
+     * @param source The framebuffer the scene was rendered to
+     * @throws Exception If a target could not be created
+     */
+    public void render(Framebuffer source) throws Exception {
+        render(source, source.get_width(), source.get_height());
+    }
+
+    /**
+     * Run the bloom passes on the scene, that was rendered to the bottom left
+     * part of the framebuffer. The targets keep the size of the framebuffer,
+     * so they do not need to be created again when the part changes.
+     *
+     * @param source The framebuffer the scene was rendered to
+     * @param render_width The width of the part the scene was rendered to
+     * @param render_height The height of the part the scene was rendered to
+     * @throws Exception If a target could not be created
+     */
+    public void render(Framebuffer source, int render_width,
+            int render_height) throws Exception {
+        if(quality == QUALITY_OFF) return;
+        update_targets(source.get_width(), source.get_height());
+        if(levels_amount == 0) return;
+
+        GL30.glGetIntegerv(GL30.GL_VIEWPORT, viewport);
+        GL30.glDisable(GL30.GL_DEPTH_TEST);
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+
+        // Go down the chain, the first pass keeps only the bright colors
+        int source_texture = source.get_color_texture();
+        int width = source.get_width(), height = source.get_height();
+        for(int i=0;i<levels_amount;i++) {
+            downsample_shaders.select_variant(i == 0 ? FEATURE_THRESHOLD : 0);
+            downsample_shaders.start();
+            if(i == 0) {
+                downsample_shaders.load_in_uniform_var(threshold_location,
+                        threshold);
+                uv_scale.set((float)render_width/width,
+                        (float)render_height/height);
+                downsample_shaders.load_in_uniform_var(uv_scale_location,
+                        uv_scale);
+                downsample_shaders.load_in_uniform_var(uv_max_location,
+                        uv_max.set(uv_scale.x-0.5f/width,
+                                uv_scale.y-0.5f/height));
+            }
+            downsample_shaders.load_in_uniform_var(
+                    downsample_texel_size_location,
+                    texel_size.set(1f/width, 1f/height));
+            draw_to_level(source, i, source_texture);
+            source_texture = textures[i];
+            width = widths[i];
+            height = heights[i];
+        }
+
+        // Go back up, adding each blurred target to the bigger one
+        upsample_shaders.start();
+        GL30.glEnable(GL30.GL_BLEND);
+        GL30.glBlendFunc(GL30.GL_ONE, GL30.GL_ONE);
+        for(int i=levels_amount-2;i>=0;i--) {
+            upsample_shaders.load_in_uniform_var(upsample_texel_size_location,
+                    texel_size.set(1f/widths[i+1], 1f/heights[i+1]));
+            draw_to_level(source, i, textures[i+1]);
+        }
+        GL30.glDisable(GL30.GL_BLEND);
+        GL30.glBlendFunc(GL30.GL_SRC_ALPHA, GL30.GL_ONE_MINUS_SRC_ALPHA);
+        upsample_shaders.stop();
+
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GL30.glViewport(viewport.get(0), viewport.get(1), viewport.get(2),
+                viewport.get(3));
+        GL30.glEnable(GL30.GL_DEPTH_TEST);
+    }
+
+    /**
+     * Draw a texture to a target with the shaders that are used
+     *
+     * @param quad The framebuffer to take the quad from
+     * @param level The number of the target
+     * @param texture The texture to read from
+     */
+    private void draw_to_level(Framebuffer quad, int level, int texture) {
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frame_buffers[level]);
+        GL30.glViewport(0, 0, widths[level], heights[level]);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, texture);
+        quad.draw_quad();
+    }
+
+    /**
+     * Bind the result to a texture unit, for the framebuffer shader
+     *
+     * @param unit The texture unit, starting from 0
+     */
+    public void bind_result(int unit) {
+        GL30.glActiveTexture(GL30.GL_TEXTURE0+unit);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, levels_amount > 0 ?
+                textures[0] : 0);
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+    }
+
+    /**
+     * Create the targets again if the size of the scene or the quality
+     * changed
+     *
+     * @param width The width of the scene
+     * @param height The height of the scene
+     * @throws Exception If a target could not be created
+     */
+    private void update_targets(int width, int height) throws Exception {
+        // Stop before the targets get smaller than 2 pixels
+        int levels = 0;
+        int level_width = width, level_height = height;
+        while(levels < QUALITY_LEVELS[quality] && level_width >= 4 &&
+                level_height >= 4) {
+            level_width /= 2;
+            level_height /= 2;
+            levels++;
+        }
+        if(levels == levels_amount && width == source_width &&
+                height == source_height) return;
+        free_targets();
+        source_width = width;
+        source_height = height;
+        frame_buffers = new int[levels];
+        textures = new int[levels];
+        widths = new int[levels];
+        heights = new int[levels];
+        level_width = width;
+        level_height = height;
+        for(int i=0;i<levels;i++) {
+            level_width /= 2;
+            level_height /= 2;
+            widths[i] = level_width;
+            heights[i] = level_height;
+            textures[i] = GL30.glGenTextures();
+            GL30.glBindTexture(GL30.GL_TEXTURE_2D, textures[i]);
+            GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0, GL30.GL_RGB16F,
+                    level_width, level_height, 0, GL30.GL_RGB,
+                    GL30.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
+                    GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
+                    GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
+                    GL30.GL_TEXTURE_WRAP_S, GL30.GL_CLAMP_TO_EDGE);
+            GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
+                    GL30.GL_TEXTURE_WRAP_T, GL30.GL_CLAMP_TO_EDGE);
+            frame_buffers[i] = GL30.glGenFramebuffers();
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frame_buffers[i]);
+            GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER,
+                    GL30.GL_COLOR_ATTACHMENT0, GL30.GL_TEXTURE_2D,
+                    textures[i], 0);
+            GL30.glDrawBuffer(GL30.GL_COLOR_ATTACHMENT0);
+            if(GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER) !=
+                    GL30.GL_FRAMEBUFFER_COMPLETE) {
+                throw new Exception("Failed to create the bloom targets!");
+            }
+        }
+        levels_amount = levels;
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+    }
+
+    private void free_targets() {
+        for(int i=0;i<levels_amount;i++) {
+            GL30.glDeleteFramebuffers(frame_buffers[i]);
+            GL30.glDeleteTextures(textures[i]);
+        }
+        levels_amount = 0;
+    }
+
+    /**
+     * Delete the targets and the shaders
+     */
+    public void free() {
+        free_targets();
+        downsample_shaders.free();
+        upsample_shaders.free();
+    }
+}
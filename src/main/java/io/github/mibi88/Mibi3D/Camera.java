@@ -45,6 +45,20 @@ public class Camera {
         this.rz = rz;
     }
     
+    /**
+     * Copy the position and the rotation of another camera
+     * 
+     * @param camera The camera to copy
+     */
+    public void set(Camera camera) {
+        x = camera.x;
+        y = camera.y;
+        z = camera.z;
+        rx = camera.rx;
+        ry = camera.ry;
+        rz = camera.rz;
+    }
+    
     /**
      * Move the camera in the 3D scene
      * 
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * Chooses the scale of the resolution the scene is rendered at to keep the
+ * time the GPU takes to draw a frame close to a target. The cost of a frame
+ * mostly grows with the amount of pixels, so with the square of the scale.
+ * The scale only changes when the time goes out of a band below the target,
+ * and waits for a few results at the new scale before changing again, so
+ * that it does not go back and forth.
+ *
+ * @author mibi88
+ */
+public class DynamicResolution {
+    // How much of a new time goes into the average
+    private final float SMOOTHING = 0.2f;
+
+    // The amount of times to get at a scale before changing it again, the
+    // timer queries give their results a few frames late
+    private final int SETTLE_FRAMES = 10;
+
+    // The scale goes up when the time is below this part of the target
+    private final float LOWER_BOUND = 0.8f;
+
+    // The scale is rounded to this step
+    private final float STEP = 1f/32f;
+
+    private boolean enabled;
+    private float target_frame_time;
+    private float min_scale, max_scale;
+    private float scale;
+
+    private float average_time;
+    private int frames;
+
+    /**
+     * Create a new controller, that is disabled until enable is called
+     *
+     * @param target_frame_time The time a frame should take on the GPU, in
+     * milliseconds
+     */
+    public DynamicResolution(float target_frame_time) {
+        this.target_frame_time = target_frame_time;
+        min_scale = 0.5f;
+        max_scale = 1f;
+        scale = 1f;
+        enabled = false;
+    }
+
+    /**
+     * Enable or disable the controller. When it is disabled the scale stays
+     * where it is, or where set_scale puts it.
+     *
+     * @param enabled true to adjust the scale
+     */
+    public void set_enabled(boolean enabled) {
+        this.enabled = enabled;
+        average_time = 0f;
+        frames = 0;
+    }
+
+    /**
+     * Check if the controller adjusts the scale
+     *
+     * @return true if it is enabled
+     */
+    public boolean is_enabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the time a frame should take on the GPU
+     *
+     * @param target_frame_time The time in milliseconds
+     */
+    public void set_target_frame_time(float target_frame_time) {
+        this.target_frame_time = target_frame_time;
+    }
+
+    /**
+     * Get the time a frame should take on the GPU
+     *
+     * @return The time in milliseconds
+     */
+    public float get_target_frame_time() {
+        return target_frame_time;
+    }
+
+    /**
+     * Set the range the scale stays in
+     *
+     * @param min_scale The smallest scale, above 0
+     * @param max_scale The biggest scale, 1 to render at the size of the
+     * window at most
+     */
+    public void set_scale_range(float min_scale, float max_scale) {
+        this.min_scale = min_scale;
+        this.max_scale = max_scale;
+        scale = clamp(scale);
+    }
+
+    /**
+     * Set the scale, for example when the controller is disabled
+     *
+     * @param scale The scale, it is kept in the range of the controller
+     */
+    public void set_scale(float scale) {
+        this.scale = clamp(scale);
+        frames = 0;
+    }
+
+    /**
+     * Get the scale the scene should be rendered at
+     *
+     * @return The scale of the width and of the height of the window
+     */
+    public float get_scale() {
+        return scale;
+    }
+
+    /**
+     * Give the time the last frame took on the GPU to the controller
+     *
+     * @param frame_time The time in milliseconds
+     * @return true if the scale changed
+     */
+    public boolean update(float frame_time) {
+        if(!enabled || frame_time <= 0f) return false;
+        average_time = average_time == 0f ? frame_time :
+                average_time+(frame_time-average_time)*SMOOTHING;
+        if(++frames < SETTLE_FRAMES) return false;
+        if(average_time <= target_frame_time &&
+                average_time >= target_frame_time*LOWER_BOUND) return false;
+        // Go halfway to the scale that would take the target time
+        float ideal = scale*(float)Math.sqrt(target_frame_time/average_time);
+        float new_scale = Math.round((scale+(ideal-scale)*0.5f)/STEP)*STEP;
+        // Move by at least one step, the rounding could keep the scale
+        if(average_time > target_frame_time) {
+            new_scale = Math.min(new_scale, scale-STEP);
+        } else {
+            new_scale = Math.max(new_scale, scale+STEP);
+        }
+        new_scale = clamp(new_scale);
+        if(new_scale == scale) return false;
+        scale = new_scale;
+        frames = 0;
+        // The times at the old scale do not say anything about the new one
+        average_time = 0f;
+        return true;
+    }
+
+    private float clamp(float value) {
+        return Math.max(min_scale, Math.min(value, max_scale));
+    }
+}
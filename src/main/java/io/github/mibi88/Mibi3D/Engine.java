@@ -18,9 +18,12 @@
 package io.github.mibi88.Mibi3D;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL30;
 
 /**
@@ -35,51 +38,178 @@ public class Engine {
     private final Shaders shaders_3D;
     private final Shaders shaders_2D;
     private final Shaders shaders_framebuffer;
+    private final Shaders shaders_impostor;
+    private final Shaders shaders_impostor_bake;
     
     private final Renderer renderer;
     
     private final Framebuffer framebuffer;
     
-    private TexturedModel used_model;
-    private Image used_image;
+    private final Bloom bloom;
+    
+    // Measures each phase of the frame on the CPU and on the GPU
+    private final Profiler profiler;
+    private final int PHASE_SCENE, PHASE_2D, PHASE_BLOOM, PHASE_COMPOSITE;
+    
+    // The amount of frames the profiler keeps the times of
+    private final int PROFILER_HISTORY = 3600;
+    
+    // The scene is rendered to a part of the framebuffer, that is scaled to
+    // keep the time the GPU takes close to a target, and is upsampled to the
+    // window by the framebuffer shader
+    private final DynamicResolution dynamic_resolution;
+    private int gpu_frames_amount;
+    private int render_width, render_height;
+    private final Vector2f uv_scale;
+    private final Vector2f uv_max;
     
     private final LinkedHashMap<TexturedModel, ArrayList<TexturedModelEntity>>
             textured_model_entities;
     private final LinkedHashMap<Image, ArrayList<ImageEntity>> image_entities;
     
-    private final int MAX_LIGHTS = 16;
+    // The keys of the maps above, in the same order, to iterate over them
+    // without allocating an iterator on each frame
+    private final ArrayList<TexturedModel> models;
+    private final ArrayList<Image> images;
+    
+    private final Frustum frustum;
+    private final Matrix4f bounds_matrix;
+    private final Vector3f bounds_center;
+    
+    private final float GRID_CELL_SIZE = 64f;
+    
+    private final SpatialGrid<TexturedModelEntity> entity_grid;
+    private final ArrayList<TexturedModelEntity> dynamic_entities;
+    private final ArrayList<TexturedModelEntity> query_result;
+    
+    // The shader programs, as stored in the keys of the render queue
+    private final int SHADER_3D = 0;
+    private final int SHADER_2D = 1;
+    private final int SHADER_IMPOSTOR = 2;
+    // The 3D shaders, for the models that use a texture atlas
+    private final int SHADER_3D_ATLAS = 3;
+    
+    // The features the variants of the 3D shaders are compiled with
+    private final String[] FEATURES_3D = {
+        "FOG", "ATLAS", "INSTANCED", "LIGHTS"
+    };
+    private final int FEATURE_FOG = 1;
+    private final int FEATURE_ATLAS = 2;
+    private final int FEATURE_INSTANCED = 4;
+    private final int FEATURE_LIGHTS = 8;
+    
+    private final RenderQueue render_queue;
+    private final ArrayList<TexturedModelEntity> run_entities;
+    
+    // The draws of the render queue that use the same state. The first
+    // command of each run in the geometry arena is stored in run_commands.
+    private int[] run_ends;
+    private int[] run_commands;
+    private int runs_amount;
+    private int draw_calls;
+    
+    private final GeometryArena arena;
+    private boolean use_arena;
+    
+    private final float STATIC_CHUNK_SIZE = 256f;
+    
+    private final StaticBatcher static_batcher;
+    private boolean static_batching;
+    
+    // The renders of each model are made from 8 angles, in 128x128 cells
+    private final int IMPOSTOR_VIEWS = 8;
+    private final int IMPOSTOR_CELL_SIZE = 128;
+    
+    private final ArrayList<Impostor> impostors;
+    private boolean use_impostors;
+    private float impostor_distance;
+    private float impostor_fade_distance;
+    
+    private final SpatialGrid<Light> light_grid;
+    private final ArrayList<Light> selected_lights;
+    
+    // The view frustum is divided in 16x9 tiles and 24 depth slices
+    private final int CLUSTERS_X = 16, CLUSTERS_Y = 9, CLUSTERS_Z = 24;
+    
+    // The texture units the 3D shaders read the lights from
+    private final int LIGHTS_UNIT = 1;
+    private final int CLUSTERS_UNIT = 2;
+    private final int LIGHT_INDICES_UNIT = 3;
+    
+    // The texture unit the framebuffer shader reads the bloom from
+    private final int BLOOM_UNIT = 4;
+    
+    private final int FEATURE_BLOOM = 1;
+    
+    private final LightClusters light_clusters;
+    private final TextureBuffer light_buffer;
+    private final TextureBuffer cluster_buffer;
+    private final TextureBuffer light_index_buffer;
+    
+    private final Matrix4f view_matrix;
+    private int model_groups_amount;
+    private int frame_uniform_calls;
+    private int saved_uniform_calls;
+    private int uniform_calls;
+    
+    private boolean culling;
+    private boolean lod;
+    private int triangles;
+    private int full_detail_triangles;
+    private int entities_amount;
+    private int visible_entities_amount;
+    private int culled_entities_amount;
+    private int occluded_entities_amount;
+    
+    // The horizon is sampled in 256 sectors around the camera
+    private final int HORIZON_SECTORS = 256;
+    
+    private HorizonCuller horizon_culler;
     
     private ArrayList<Light> lights;
     
-    int transformation_matrix_location;
-    int projection_matrix_location;
-    int view_matrix_location;
+    // The uniform blocks shared by the shader programs
+    public static final int CAMERA_BLOCK = 0;
+    public static final int SCENE_BLOCK = 1;
+    
+    private final int CAMERA_BLOCK_SIZE = 2*64+16;
+    private final int SCENE_BLOCK_SIZE = 64;
+    
+    private final UniformBuffer uniform_buffer;
     
-    int[] light_position_location;
-    int[] light_color_location;
+    // The linked shader programs are stored there to start faster
+    private final String PROGRAM_CACHE_DIRECTORY =
+            System.getProperty("user.home") + "/.cache/Mibi3D/programs";
     
-    int[] attenuation_location;
+    private final ProgramCache program_cache;
+    
+    // If the driver compiles the shaders on multiple threads
+    private final boolean parallel_compile;
+    
+    private final Timeline timeline;
+    
+    int transformation_matrix_location;
     
     int shine_damper_location;
     int reflectivity_location;
-    int ambient_lighting_location;
-    
-    int fog_gradient_location;
-    int fog_density_location;
-    int fog_location;
-    int sky_color_location;
     
     int texture_x_location;
     int texture_y_location;
     int cell_size_location;
     
+    int fade_location;
+    
+    int impostor_views_location;
+    
     int transformation_matrix_location_2D;
     
     int texture_x_location_2D;
     int texture_y_location_2D;
     int cell_size_location_2D;
     
-    int framebuffer_size_location;
+    int bloom_intensity_location;
+    int uv_scale_location;
+    int uv_max_location;
     
     float r;
     float g;
@@ -92,6 +222,13 @@ public class Engine {
     
     boolean fog;
     
+    private final boolean instancing_supported;
+    private boolean instancing;
+    
+    // The initial size of the geometry arena
+    private final int ARENA_VERTICES = 1 << 18;
+    private final int ARENA_INDICES = 1 << 20;
+    
     /**
      * Initializes the 3D engine
      * 
@@ -108,6 +245,53 @@ public class Engine {
     public Engine(float r, float g, float b, float ambient_lighting,
             float fog_gradient, float fog_density, boolean fog)
             throws Exception {
+        this(r, g, b, ambient_lighting, fog_gradient, fog_density, fog,
+                new Timeline());
+    }
+    
+    /**
+     * Initializes the 3D engine, and record the phases of its initialization
+     * in a timeline, so that they can be compared with the work the game
+     * does on other threads at the same time
+     * 
+     * @param r The sky color red component, a float between 0 and 1
+     * @param g The sky color green component, a float between 0 and 1
+     * @param b The sky color blue component, a float between 0 and 1
+     * @param ambient_lighting The amount of ambient lighting, a float between
+     * 0 and 1
+     * @param fog_gradient The size of the gradient of the fog
+     * @param fog_density The density of the fog
+     * @param fog A boolean to enable or disable fog
+     * @param timeline The timeline the phases are added to
+     * @throws Exception
+     */
+    public Engine(float r, float g, float b, float ambient_lighting,
+            float fog_gradient, float fog_density, boolean fog,
+            Timeline timeline) throws Exception {
+        this(r, g, b, ambient_lighting, fog_gradient, fog_density, fog,
+                timeline, null);
+    }
+    
+    /**
+     * Initializes the 3D engine in a window that was already created, for
+     * example a hidden window to render offscreen
+     * 
+     * @param r The sky color red component, a float between 0 and 1
+     * @param g The sky color green component, a float between 0 and 1
+     * @param b The sky color blue component, a float between 0 and 1
+     * @param ambient_lighting The amount of ambient lighting, a float between
+     * 0 and 1
+     * @param fog_gradient The size of the gradient of the fog
+     * @param fog_density The density of the fog
+     * @param fog A boolean to enable or disable fog
+     * @param timeline The timeline the phases are added to
+     * @param window The window to render to, or null to open the default
+     * window
+     * @throws Exception
+     */
+    public Engine(float r, float g, float b, float ambient_lighting,
+            float fog_gradient, float fog_density, boolean fog,
+            Timeline timeline, Window window) throws Exception {
         this.r = r;
         this.g = g;
         this.b = b;
@@ -119,55 +303,197 @@ public class Engine {
         
         this.fog = fog;
         
-        window = new Window(640, 480, "MibiFlightSimulator",
-                0);
+        this.timeline = timeline;
+        
+        int phase;
+        if(window == null) {
+            phase = timeline.begin("window");
+            window = new Window(640, 480, "MibiFlightSimulator",
+                    0);
+            timeline.end(phase);
+        }
+        this.window = window;
+        
+        // All the shaders are sent to the driver first, and are checked once
+        // the rest of the engine is set up, so that the driver compiles them
+        // in the meantime
+        phase = timeline.begin("submit shaders");
+        long shaders_start = System.nanoTime();
+        parallel_compile = Shaders.enable_parallel_compile();
+        program_cache = ProgramCache.is_supported() ?
+                new ProgramCache(PROGRAM_CACHE_DIRECTORY) : null;
+        
+        instancing_supported = GL.getCapabilities().OpenGL33;
+        instancing = instancing_supported;
+        if(!instancing_supported) {
+            System.err.println("Instanced rendering is not supported!");
+        }
             
         shaders_3D = new Shaders(
                 "shaders/3D_vertex_shader.vert",
-                "shaders/3D_fragment_shader.frag"
+                "shaders/3D_fragment_shader.frag",
+                FEATURES_3D, program_cache
         );
         
         shaders_3D.bind_attribute(0, "position");
         shaders_3D.bind_attribute(1, "texture_coords");
         shaders_3D.bind_attribute(2, "normal");
+        // The instance matrix takes the attributes 3 to 6
+        shaders_3D.bind_attribute(3, "instance_matrix");
+        shaders_3D.bind_attribute(7, "instance_atlas");
+        
+        // Compile the variants the first frames will need with the others
+        int base_features = (fog ? FEATURE_FOG : 0) |
+                (instancing ? FEATURE_INSTANCED : 0);
+        shaders_3D.add_variant(base_features);
+        shaders_3D.add_variant(base_features | FEATURE_ATLAS);
+        shaders_3D.add_variant(base_features | FEATURE_LIGHTS);
+        shaders_3D.add_variant(base_features | FEATURE_ATLAS |
+                FEATURE_LIGHTS);
+        
+        shaders_3D.submit_init();
+        
+        shaders_2D = new Shaders(
+                "shaders/2D_vertex_shader.vert",
+                "shaders/2D_fragment_shader.frag",
+                new String[0], program_cache
+        );
+        
+        shaders_2D.bind_attribute(0, "position");
+        shaders_2D.bind_attribute(1, "texture_coords");
+        
+        shaders_2D.submit_init();
+        
+        // Framebuffer shader
+        shaders_framebuffer = new Shaders(
+                "shaders/framebuffer_shader.vert",
+                "shaders/framebuffer_shader.frag",
+                new String[]{"BLOOM"}, program_cache
+        );
+        
+        shaders_framebuffer.bind_attribute(0, "position");
+        shaders_framebuffer.bind_attribute(1,
+                "texture_coords");
+        shaders_framebuffer.add_variant(FEATURE_BLOOM);
+        
+        shaders_framebuffer.submit_init();
+        
+        bloom = new Bloom(program_cache);
+        
+        // Impostor shaders
+        shaders_impostor = new Shaders(
+                "shaders/impostor_shader.vert",
+                "shaders/impostor_shader.frag",
+                new String[0], program_cache
+        );
+        
+        shaders_impostor.bind_attribute(0, "position");
+        shaders_impostor.bind_attribute(1, "instance_center");
+        shaders_impostor.bind_attribute(2, "instance_params");
+        
+        shaders_impostor.submit_init();
+        
+        shaders_impostor_bake = new Shaders(
+                "shaders/impostor_bake_shader.vert",
+                "shaders/impostor_bake_shader.frag",
+                new String[0], program_cache
+        );
+        
+        shaders_impostor_bake.bind_attribute(0, "position");
+        shaders_impostor_bake.bind_attribute(1, "texture_coords");
+        shaders_impostor_bake.bind_attribute(2, "normal");
+        
+        shaders_impostor_bake.submit_init();
+        timeline.end(phase);
+        
+        phase = timeline.begin("engine setup");
+        uniform_buffer = new UniformBuffer(new int[]{
+            CAMERA_BLOCK_SIZE, SCENE_BLOCK_SIZE
+        });
+        
+        // The arena uses the instanced path of the shaders
+        arena = instancing_supported ?
+                new GeometryArena(ARENA_VERTICES, ARENA_INDICES) : null;
+        use_arena = arena != null;
+        
+        renderer = new Renderer(window);
 
+        camera = new Camera(0f, 0f, 0f, 0f,  0f, 0f);
+        
+        GL30.glBlendFunc(GL30.GL_SRC_ALPHA,
+                GL30.GL_ONE_MINUS_SRC_ALPHA);
+        
+        textured_model_entities = new LinkedHashMap<>();
+        image_entities = new LinkedHashMap<>();
+        models = new ArrayList<>();
+        images = new ArrayList<>();
+        
+        frustum = new Frustum();
+        view_matrix = new Matrix4f();
+        bounds_matrix = new Matrix4f();
+        bounds_center = new Vector3f();
+        culling = true;
+        lod = true;
+        
+        entity_grid = new SpatialGrid<>(GRID_CELL_SIZE);
+        dynamic_entities = new ArrayList<>();
+        query_result = new ArrayList<>();
+        
+        static_batcher = new StaticBatcher(STATIC_CHUNK_SIZE);
+        static_batching = true;
+        
+        impostors = new ArrayList<>();
+        use_impostors = true;
+        impostor_distance = 400f;
+        impostor_fade_distance = 50f;
+        
+        render_queue = new RenderQueue(1024);
+        run_entities = new ArrayList<>();
+        run_ends = new int[256];
+        run_commands = new int[256];
+        
+        light_grid = new SpatialGrid<>(GRID_CELL_SIZE);
+        selected_lights = new ArrayList<>();
+        
+        light_clusters = new LightClusters(CLUSTERS_X, CLUSTERS_Y,
+                CLUSTERS_Z);
+        light_buffer = new TextureBuffer(GL30.GL_RGBA32F);
+        cluster_buffer = new TextureBuffer(GL30.GL_RG32UI);
+        light_index_buffer = new TextureBuffer(GL30.GL_R32UI);
+        
+        lights = new ArrayList<>();
+        
+        framebuffer = new Framebuffer(window);
+        
+        window.set_framebuffer(framebuffer);
+        
+        profiler = new Profiler(PROFILER_HISTORY);
+        PHASE_SCENE = profiler.add_phase("scene");
+        PHASE_2D = profiler.add_phase("2D");
+        PHASE_BLOOM = profiler.add_phase("bloom");
+        PHASE_COMPOSITE = profiler.add_phase("composite");
+        // The time of a frame at 60 FPS, with some margin for the CPU
+        dynamic_resolution = new DynamicResolution(14f);
+        uv_scale = new Vector2f();
+        uv_max = new Vector2f();
+        timeline.end(phase);
+        
+        phase = timeline.begin("finish shaders");
         shaders_3D.finish_init();
-
+        
         transformation_matrix_location = shaders_3D.get_uniform_location(
                 "transformation_matrix");
-        projection_matrix_location = shaders_3D.get_uniform_location(
-                "projection_matrix");
-        view_matrix_location = shaders_3D.get_uniform_location(
-                "view_matrix");
-
-        light_position_location = new int[MAX_LIGHTS];
-        light_color_location = new int[MAX_LIGHTS];
-        attenuation_location = new int[MAX_LIGHTS];
-        
-        for(int i=0;i<MAX_LIGHTS;i++) {
-            light_position_location[i] = shaders_3D.get_uniform_location(
-                    "light_position["+i+"]");
-            light_color_location[i] = shaders_3D.get_uniform_location(
-                    "light_color["+i+"]");
-            attenuation_location[i] = shaders_3D.get_uniform_location(
-                    "attenuation["+i+"]");
-        }
+        
+        bind_uniform_blocks(shaders_3D);
+        
+        shaders_3D.set_texture_unit("light_data", LIGHTS_UNIT);
+        shaders_3D.set_texture_unit("light_clusters", CLUSTERS_UNIT);
+        shaders_3D.set_texture_unit("light_indices", LIGHT_INDICES_UNIT);
 
         shine_damper_location = shaders_3D.get_uniform_location(
                 "shine_damper");
         reflectivity_location = shaders_3D.get_uniform_location(
                 "reflectivity");
-        ambient_lighting_location = shaders_3D.get_uniform_location(
-                "ambient_lighting");
-        
-        fog_gradient_location = shaders_3D.get_uniform_location(
-                "fog_gradient");
-        fog_density_location = shaders_3D.get_uniform_location(
-                "fog_density");
-        fog_location = shaders_3D.get_uniform_location(
-                "fog");
-        sky_color_location = shaders_3D.get_uniform_location(
-                "sky_color");
         
         texture_x_location = shaders_3D.get_uniform_location(
                 "texture_x");
@@ -176,13 +502,7 @@ public class Engine {
         cell_size_location = shaders_3D.get_uniform_location(
                 "cell_size");
         
-        shaders_2D = new Shaders(
-                "shaders/2D_vertex_shader.vert",
-                "shaders/2D_fragment_shader.frag"
-        );
-        
-        shaders_2D.bind_attribute(0, "position");
-        shaders_2D.bind_attribute(1, "texture_coords");
+        fade_location = shaders_3D.get_uniform_location("fade");
         
         shaders_2D.finish_init();
         
@@ -196,36 +516,53 @@ public class Engine {
         cell_size_location_2D = shaders_2D.get_uniform_location(
                 "cell_size");
         
-        // Framebuffer shader
-        shaders_framebuffer = new Shaders(
-                "shaders/framebuffer_shader.vert",
-                "shaders/framebuffer_shader.frag"
-        );
-        
-        shaders_framebuffer.bind_attribute(0, "position");
-        shaders_framebuffer.bind_attribute(1,
-                "texture_coords");
-        
         shaders_framebuffer.finish_init();
         
-        framebuffer_size_location = shaders_framebuffer.get_uniform_location(
-                "tex_size");
+        bloom_intensity_location = shaders_framebuffer.get_uniform_location(
+                "bloom_intensity");
+        shaders_framebuffer.set_texture_unit("bloom_sampler", BLOOM_UNIT);
+        uv_scale_location = shaders_framebuffer.get_uniform_location(
+                "uv_scale");
+        uv_max_location = shaders_framebuffer.get_uniform_location("uv_max");
         
-        renderer = new Renderer(window);
-
-        camera = new Camera(0f, 0f, 0f, 0f,  0f, 0f);
+        bloom.finish_init();
         
-        GL30.glBlendFunc(GL30.GL_SRC_ALPHA,
-                GL30.GL_ONE_MINUS_SRC_ALPHA);
-        
-        textured_model_entities = new LinkedHashMap<>();
-        image_entities = new LinkedHashMap<>();
+        shaders_impostor.finish_init();
+        bind_uniform_blocks(shaders_impostor);
         
-        lights = new ArrayList<>();
+        impostor_views_location = shaders_impostor.get_uniform_location(
+                "views");
         
-        framebuffer = new Framebuffer(window);
+        shaders_impostor_bake.finish_init();
+        timeline.end(phase);
         
-        window.set_framebuffer(framebuffer);
+        String compile_mode = parallel_compile ? "in parallel" :
+                "sequentially";
+        if(program_cache != null) {
+            System.out.printf("Shader programs ready in %.1f ms: %d loaded " +
+                    "from the cache, %d compiled %s and stored, %d " +
+                    "rejected\n",
+                    (System.nanoTime()-shaders_start)/1e6,
+                    program_cache.get_loaded_amount(),
+                    program_cache.get_stored_amount(), compile_mode,
+                    program_cache.get_rejected_amount());
+        } else {
+            System.out.printf("Shader programs compiled %s in %.1f ms, " +
+                    "program binaries are not supported\n", compile_mode,
+                    (System.nanoTime()-shaders_start)/1e6);
+        }
+    }
+    
+    /**
+     * Make a shader program use the uniform blocks that contain the camera
+     * and the settings of the scene. They are updated once per
+     * frame for all the programs.
+     * 
+     * @param shaders The shader program, after finish_init was called
+     */
+    public void bind_uniform_blocks(Shaders shaders) {
+        shaders.bind_uniform_block("Camera", CAMERA_BLOCK);
+        shaders.bind_uniform_block("Scene", SCENE_BLOCK);
     }
     
     /**
@@ -237,6 +574,25 @@ public class Engine {
         return camera;
     }
     
+    /**
+     * Get the timeline the initialization of the engine was recorded in
+     * 
+     * @return The timeline
+     */
+    public Timeline get_timeline() {
+        return timeline;
+    }
+    
+    /**
+     * Get the cache the shader programs are stored in
+     * 
+     * @return The program cache, or null if the driver does not support
+     * program binaries
+     */
+    public ProgramCache get_program_cache() {
+        return program_cache;
+    }
+    
     /**
      * Get the Window object used by the engine
      * 
@@ -276,14 +632,251 @@ public class Engine {
         this.fog = fog;
     }
     
+    /**
+     * Change the color of the sky
+     * 
+     * @param r The red component, a float between 0 and 1
+     * @param g The green component, a float between 0 and 1
+     * @param b The blue component, a float between 0 and 1
+     */
+    public void set_sky_color(float r, float g, float b) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+    }
+    
+    /**
+     * Change the amount of ambient lighting
+     * 
+     * @param ambient_lighting The amount of ambient lighting, a float between
+     * 0 and 1
+     */
+    public void set_ambient_lighting(float ambient_lighting) {
+        this.ambient_lighting = ambient_lighting;
+    }
+    
+    /**
+     * Enable or disable instanced rendering. When it is disabled, each entity
+     * is rendered with its own draw call.
+     * 
+     * @param instancing Sets if instanced rendering should be used. It stays
+     * disabled if it is not supported.
+     */
+    public void set_instancing(boolean instancing) {
+        this.instancing = instancing && instancing_supported;
+    }
+    
+    /**
+     * Check if instanced rendering is used
+     * 
+     * @return true if the entities of a model are drawn with a single draw
+     * call
+     */
+    public boolean get_instancing() {
+        return instancing;
+    }
+    
+    /**
+     * Enable or disable the geometry arena. When it is enabled, the models
+     * of the entities that are added after are stored in the shared buffers
+     * of the arena and the models that use the same texture are drawn
+     * together.
+     * 
+     * @param use_arena Sets if the arena should be used. It stays disabled if
+     * instanced rendering is not supported.
+     */
+    public void set_geometry_arena(boolean use_arena) {
+        this.use_arena = use_arena && arena != null;
+    }
+    
+    /**
+     * Get the geometry arena used to store the models
+     * 
+     * @return The arena, or null if it is not supported
+     */
+    public GeometryArena get_geometry_arena() {
+        return arena;
+    }
+    
+    /**
+     * Enable or disable static batching. When it is enabled, the static
+     * entities that are added after are baked in a single mesh per model and
+     * per chunk of the terrain.
+     * 
+     * @param static_batching Sets if static entities should be batched
+     */
+    public void set_static_batching(boolean static_batching) {
+        this.static_batching = static_batching;
+    }
+    
+    /**
+     * Render a model from several angles to draw its far entities as
+     * billboards. The entities that are added after also get their
+     * billboard when they are in a static batch.
+     * 
+     * @param model The model to create the impostor of
+     * @throws Exception
+     */
+    public void create_impostor(TexturedModel model) throws Exception {
+        if(!instancing_supported) {
+            throw new Exception("Impostors need instanced rendering!");
+        }
+        if(model.impostor != null) return;
+        model.impostor = new Impostor(model, shaders_impostor_bake,
+                IMPOSTOR_VIEWS, IMPOSTOR_CELL_SIZE);
+        impostors.add(model.impostor);
+    }
+    
+    /**
+     * Enable or disable the impostors
+     * 
+     * @param use_impostors Sets if the far entities of the models that have
+     * an impostor should be drawn as billboards
+     */
+    public void set_impostors(boolean use_impostors) {
+        this.use_impostors = use_impostors;
+    }
+    
+    /**
+     * Set the distance after which the entities are drawn as billboards
+     * 
+     * @param distance The distance where the billboards replace the meshes
+     * @param fade_distance The distance before it over which the meshes fade
+     * into the billboards
+     */
+    public void set_impostor_distance(float distance, float fade_distance) {
+        impostor_distance = distance;
+        impostor_fade_distance = Math.max(fade_distance, 0.001f);
+    }
+    
+    /**
+     * Get the amount of draw calls that were made to draw the last frame
+     * 
+     * @return The amount of draw calls
+     */
+    public int get_draw_calls() {
+        return draw_calls;
+    }
+    
+    /**
+     * Enable or disable view frustum culling
+     * 
+     * @param culling Sets if the entities that are outside of the view of the
+     * camera should be skipped
+     */
+    public void set_culling(boolean culling) {
+        this.culling = culling;
+    }
+    
+    /**
+     * Enable or disable the levels of detail
+     * 
+     * @param lod Sets if the models that have lower levels of detail should
+     * use them when they are small on the screen
+     */
+    public void set_lod(boolean lod) {
+        this.lod = lod;
+    }
+    
+    /**
+     * Get the amount of triangles that were submitted in the last frame
+     * 
+     * @return The amount of triangles drawn
+     */
+    public int get_triangles() {
+        return triangles;
+    }
+    
+    /**
+     * Get the amount of triangles that would have been submitted in the last
+     * frame if all the models were drawn with their full mesh
+     * 
+     * @return The amount of triangles without the levels of detail
+     */
+    public int get_full_detail_triangles() {
+        return full_detail_triangles;
+    }
+    
+    /**
+     * Get the amount of entities that were drawn in the last frame
+     * 
+     * @return The amount of visible entities
+     */
+    public int get_visible_entities_amount() {
+        return visible_entities_amount;
+    }
+    
+    /**
+     * Get the amount of entities that were skipped in the last frame because
+     * they were outside of the view of the camera
+     * 
+     * @return The amount of culled entities
+     */
+    public int get_culled_entities_amount() {
+        return culled_entities_amount;
+    }
+    
+    /**
+     * Get the amount of entities that were inside of the view of the camera
+     * but were skipped in the last frame because they were hidden by the
+     * terrain. They are also counted as culled entities.
+     * 
+     * @return The amount of occluded entities
+     */
+    public int get_occluded_entities_amount() {
+        return occluded_entities_amount;
+    }
+    
+    /**
+     * Set the terrain used to skip the entities that are hidden behind it
+     * 
+     * @param height_field The terrain, or null to disable occlusion culling
+     * @param sample_step The distance between the samples of the terrain, it
+     * should be about the size of a cell of the terrain
+     */
+    public void set_height_field(HeightField height_field,
+            float sample_step) {
+        if(height_field == null) {
+            horizon_culler = null;
+            return;
+        }
+        horizon_culler = new HorizonCuller(height_field, HORIZON_SECTORS,
+                (int)Math.ceil(renderer.get_far_plane()/sample_step),
+                sample_step);
+    }
+    
+    /**
+     * Get the amount of glUniform calls that were made in the last frame
+     * 
+     * @return The amount of uniform variables that were loaded
+     */
+    public int get_uniform_calls() {
+        return uniform_calls;
+    }
+    
+    /**
+     * Get the amount of glUniform calls that were saved in the last frame,
+     * compared to loading the settings of the scene for each model and every
+     * uniform variable even when its value did not change. The settings of
+     * the scene are all uploaded with the uniform buffer, so each of them
+     * saves a call per model.
+     * 
+     * @return The amount of glUniform calls that were avoided
+     */
+    public int get_saved_uniform_calls() {
+        return saved_uniform_calls;
+    }
+    
     /**
      * Add a light to the scene
      * 
      * @param light The light to add
      */
     public void add_light(Light light) {
-        if(!lights.contains(light) && lights.size() < MAX_LIGHTS-1) {
+        if(!light_grid.contains(light)) {
             lights.add(light);
+            light_grid.insert(light, light.x, light.y, light.z,
+                    light.get_radius());
         }
     }
     
@@ -293,8 +886,9 @@ public class Engine {
      * @param light The light to remove
      */
     public void remove_light(Light light) {
-        if(lights.contains(light)) {
+        if(light_grid.contains(light)) {
             lights.remove(light);
+            light_grid.remove(light);
         }
     }
     
@@ -303,6 +897,32 @@ public class Engine {
      */
     public void remove_all_lights() {
         lights.clear();
+        light_grid.clear();
+    }
+    
+    /**
+     * Select the lights that reach the area around the camera that is closer
+     * than the far plane. They are then assigned to the light clusters, so
+     * there is no limit on their amount.
+     */
+    private void select_lights() {
+        selected_lights.clear();
+        for(int i=0;i<lights.size();i++) {
+            Light light = lights.get(i);
+            light_grid.update(light, light.x, light.y, light.z,
+                    light.get_radius());
+        }
+        light_grid.query_radius(camera.x, camera.z, renderer.get_far_plane(),
+                selected_lights);
+    }
+    
+    /**
+     * Get the amount of lights that were selected for the last frame
+     * 
+     * @return The amount of lights
+     */
+    public int get_selected_lights_amount() {
+        return selected_lights.size();
     }
     
     /**
@@ -355,47 +975,206 @@ public class Engine {
      * Prepare the engine to render a frame
      */
     public void init() throws Exception {
-        renderer.init(window, r, g, b, framebuffer);
+        uniform_calls = shaders_3D.get_uniform_calls()+
+                shaders_2D.get_uniform_calls();
+        saved_uniform_calls = shaders_3D.get_skipped_uniform_calls()+
+                shaders_2D.get_skipped_uniform_calls()+
+                frame_uniform_calls*model_groups_amount;
+        shaders_3D.reset_uniform_stats();
+        shaders_2D.reset_uniform_stats();
+        
+        profiler.begin_frame();
+        float scale = dynamic_resolution.get_scale();
+        render_width = Math.max(1, Math.round(framebuffer.get_width()*scale));
+        render_height = Math.max(1, Math.round(framebuffer.get_height()*
+                scale));
+        renderer.init(window, r, g, b, framebuffer, render_width,
+                render_height);
     }
     
-    public void show() {
+    public void show() throws Exception {
         boolean in_wireframe = window.wireframe;
-        int[] size = window.get_window_size();
-        shaders_framebuffer.start();
-        framebuffer.unbind_frame_buffer();
         if(in_wireframe){
             window.toggle_wireframe();
         }
-        shaders_framebuffer.load_in_uniform_var(
-                framebuffer_size_location, new Vector2f(size[0],
-                        size[1]));
+        profiler.begin(PHASE_BLOOM);
+        bloom.render(framebuffer, render_width, render_height);
+        profiler.begin(PHASE_COMPOSITE);
+        boolean use_bloom = bloom.is_enabled() &&
+                bloom.get_levels_amount() > 0;
+        shaders_framebuffer.select_variant(use_bloom ? FEATURE_BLOOM : 0);
+        shaders_framebuffer.start();
+        framebuffer.unbind_frame_buffer();
+        int[] size = window.get_framebuffer_size();
+        GL30.glViewport(0, 0, size[0], size[1]);
+        int width = framebuffer.get_width(), height = framebuffer.get_height();
+        uv_scale.set((float)render_width/width, (float)render_height/height);
+        shaders_framebuffer.load_in_uniform_var(uv_scale_location, uv_scale);
+        shaders_framebuffer.load_in_uniform_var(uv_max_location,
+                uv_max.set(uv_scale.x-0.5f/width, uv_scale.y-0.5f/height));
+        if(use_bloom) {
+            bloom.bind_result(BLOOM_UNIT);
+            shaders_framebuffer.load_in_uniform_var(bloom_intensity_location,
+                    bloom.get_composite_intensity());
+        }
         framebuffer.render_with_shaders(shaders_framebuffer);
+        profiler.end_frame();
         if(in_wireframe){
             window.toggle_wireframe();
         }
         //framebuffer.render();
+        
+        // Give each new measure of the frame to the resolution controller
+        int frames = profiler.get_gpu_frames_amount();
+        if(frames != gpu_frames_amount) {
+            gpu_frames_amount = frames;
+            dynamic_resolution.update(profiler.get_last_gpu_frame_time());
+        }
+    }
+    
+    /**
+     * Get the controller of the resolution the scene is rendered at. It is
+     * disabled by default.
+     * 
+     * @return The controller
+     */
+    public DynamicResolution get_dynamic_resolution() {
+        return dynamic_resolution;
+    }
+    
+    /**
+     * Get the width the scene was rendered at in the last frame
+     * 
+     * @return The width in pixels
+     */
+    public int get_render_width() {
+        return render_width;
+    }
+    
+    /**
+     * Get the height the scene was rendered at in the last frame
+     * 
+     * @return The height in pixels
+     */
+    public int get_render_height() {
+        return render_height;
+    }
+    
+    /**
+     * Get the time the GPU takes to render the scene, without the post
+     * processing, measured with timer queries a few frames late
+     * 
+     * @return The average time in milliseconds, or 0 if timer queries are
+     * not supported
+     */
+    public float get_scene_time() {
+        return profiler.get_average_gpu_time(PHASE_SCENE)+
+                profiler.get_average_gpu_time(PHASE_2D);
+    }
+    
+    /**
+     * Get the bloom passes, to change their quality and their settings
+     * 
+     * @return The bloom
+     */
+    public Bloom get_bloom() {
+        return bloom;
+    }
+    
+    /**
+     * Get the time the GPU takes to run the bloom passes and the framebuffer
+     * shader, measured with timer queries a few frames late
+     * 
+     * @return The average time in milliseconds, or 0 if timer queries are
+     * not supported
+     */
+    public float get_post_process_time() {
+        return profiler.get_average_gpu_time(PHASE_BLOOM)+
+                profiler.get_average_gpu_time(PHASE_COMPOSITE);
+    }
+    
+    /**
+     * Get the profiler that measures the scene, the 2D images, the bloom and
+     * the framebuffer shader, to show its summary or to write its times to a
+     * file
+     * 
+     * @return The profiler
+     */
+    public Profiler get_profiler() {
+        return profiler;
     }
     
     /**
      * Clear the list of entities
      */
     public void clear_entity_list() {
+        ArrayList<StaticBatcher.Batch> batches = static_batcher.get_batches();
+        for(int i=0;i<batches.size();i++) {
+            if(batches.get(i).model != null) batches.get(i).model.free();
+        }
+        static_batcher.clear();
         textured_model_entities.clear();
         image_entities.clear();
+        models.clear();
+        images.clear();
+        entity_grid.clear();
+        dynamic_entities.clear();
+        entities_amount = 0;
     }
     
     /**
-     * Add an entity to the entities list
+     * Add an entity to the entities list. If static batching is enabled and
+     * the entity is static, it is baked in the mesh of its chunk instead.
      * 
      * @param entity The entity to add
      */
     public void add_entity(TexturedModelEntity entity) {
+        if(static_batching && entity.is_static) {
+            static_batcher.add(entity);
+            return;
+        }
+        add_to_scene(entity);
+    }
+    
+    /**
+     * Add a static entity that is drawn on its own instead of being baked in
+     * the mesh of its chunk, for big meshes that are not repeated, like a
+     * part of the terrain. It is removed with remove_entity.
+     * 
+     * @param entity The entity to add
+     */
+    public void add_unbatched_entity(TexturedModelEntity entity) {
+        entity.is_static = true;
+        add_to_scene(entity);
+    }
+    
+    /**
+     * Add an entity to the lists of entities that are drawn
+     * 
+     * @param entity The entity to add
+     */
+    private void add_to_scene(TexturedModelEntity entity) {
+        if(use_arena && entity.model.get_arena() == null) {
+            entity.model.move_to_arena(arena);
+        }
+        if(instancing_supported) {
+            entity.model.enable_instancing();
+        }
         if(textured_model_entities.get(entity.model) != null) {
             textured_model_entities.get(entity.model).add(entity);
         } else {
             ArrayList<TexturedModelEntity> entities = new ArrayList<>();
             entities.add(entity);
             textured_model_entities.put(entity.model, entities);
+            models.add(entity.model);
+        }
+        entities_amount++;
+        float radius = entity.get_bounding_sphere(bounds_matrix,
+                bounds_center);
+        entity_grid.insert(entity, bounds_center.x, bounds_center.y,
+                bounds_center.z, radius);
+        if(!entity.is_static) {
+            dynamic_entities.add(entity);
         }
     }
     
@@ -411,6 +1190,7 @@ public class Engine {
             ArrayList<ImageEntity> entities = new ArrayList<>();
             entities.add(entity);
             image_entities.put(entity.image, entities);
+            images.add(entity.image);
         }
     }
     
@@ -421,12 +1201,30 @@ public class Engine {
      * @return False on success, or true on failure
      */
     public boolean remove_entity(TexturedModelEntity entity) {
+        if(!static_batcher.remove(entity)) return false;
+        return remove_from_scene(entity);
+    }
+    
+    /**
+     * Remove an entity from the lists of entities that are drawn
+     * 
+     * @param entity The entity to remove
+     * @return False on success, or true on failure
+     */
+    private boolean remove_from_scene(TexturedModelEntity entity) {
         if(textured_model_entities.containsKey(entity.model)) {
             ArrayList<TexturedModelEntity> entities =
                     textured_model_entities.get(entity.model);
-            entities.remove(entity);
+            if(entities.remove(entity)) {
+                entities_amount--;
+            }
             if(entities.size() < 1) {
                 textured_model_entities.remove(entity.model);
+                models.remove(entity.model);
+            }
+            entity_grid.remove(entity);
+            if(!entity.is_static) {
+                dynamic_entities.remove(entity);
             }
             return false;
         }
@@ -446,6 +1244,7 @@ public class Engine {
             entities.remove(entity);
             if(entities.size() < 1) {
                 image_entities.remove(entity.image);
+                images.remove(entity.image);
             }
             return false;
         }
@@ -453,109 +1252,534 @@ public class Engine {
     }
     
     /**
-     * Render all textured models
+     * Build again the static batches that changed since the last frame
      */
-    private void render_textured_models() {
-        for(TexturedModel model : textured_model_entities.keySet()) {
-            ArrayList<TexturedModelEntity> list =
-                    textured_model_entities.get(model);
-            start_using_model(model);
-            for(TexturedModelEntity entity : list) {
-                render_entity(entity);
+    private void update_static_batches() {
+        ArrayList<StaticBatcher.Batch> batches =
+                static_batcher.get_dirty_batches();
+        for(int i=0;i<batches.size();i++) {
+            StaticBatcher.Batch batch = batches.get(i);
+            if(batch.entity != null) {
+                remove_from_scene(batch.entity);
+                batch.model.free();
+                batch.entity = null;
+            }
+            batch.model = static_batcher.build_model(batch);
+            if(batch.model != null) {
+                batch.entity = create_entity(batch.model, 0f, 0f, 0f, 0f,
+                        0f, 0f, 1f, 0);
+                batch.entity.is_static = true;
+                batch.entity.baked_entities = batch.get_entities();
+                add_to_scene(batch.entity);
+            } else {
+                // All its entities were removed, e.g. with their chunk
+                static_batcher.delete(batch);
             }
-            stop_using_model();
         }
+        static_batcher.clear_dirty_batches();
     }
     
     /**
-     * Render all the images of the scene
+     * Add the entities that are visible and the images to the render queue
      */
-    private void render_images() {
-        for(Image image : image_entities.keySet()) {
+    private void fill_render_queue() {
+        render_queue.clear();
+        triangles = 0;
+        full_detail_triangles = 0;
+        for(int i=0;i<impostors.size();i++) {
+            impostors.get(i).begin();
+        }
+        if(culling) {
+            find_visible_entities();
+            for(int i=0;i<query_result.size();i++) {
+                add_to_render_queue(query_result.get(i));
+            }
+        } else {
+            visible_entities_amount = entities_amount;
+            culled_entities_amount = 0;
+            for(int i=0;i<models.size();i++) {
+                ArrayList<TexturedModelEntity> list =
+                        textured_model_entities.get(models.get(i));
+                for(int n=0;n<list.size();n++) {
+                    add_to_render_queue(list.get(n));
+                }
+            }
+        }
+        for(int i=0;i<impostors.size();i++) {
+            Impostor impostor = impostors.get(i);
+            if(impostor.get_instances_amount() > 0) {
+                render_queue.add(RenderQueue.make_key(
+                        RenderQueue.PASS_IMPOSTOR, SHADER_IMPOSTOR,
+                        impostor.get_texture_id(), impostor.get_vao(), 0, 0),
+                        impostor);
+            }
+        }
+        // The images keep the order in which they were added
+        int order = 0;
+        for(int i=0;i<images.size();i++) {
+            Image image = images.get(i);
             ArrayList<ImageEntity> list = image_entities.get(image);
-            start_using_image(image);
-            for(ImageEntity entity : list) {
-                render_entity(entity);
+            for(int n=0;n<list.size();n++) {
+                render_queue.add(RenderQueue.make_key(RenderQueue.PASS_2D,
+                        SHADER_2D, image.texture_id, image.get_vao(), 0,
+                        order++), list.get(n));
+            }
+        }
+        render_queue.sort();
+    }
+    
+    /**
+     * Add an entity to the render queue, with its depth to draw it front to
+     * back and the level of detail it is drawn with. The far entities are
+     * given to their impostor instead.
+     * 
+     * @param entity The entity to add
+     */
+    private void add_to_render_queue(TexturedModelEntity entity) {
+        TexturedModel model = entity.model;
+        // The Z coordinate of the center of the entity in view space. The
+        // rotation is ignored, it is only used to sort the draws.
+        float x = entity.x+model.bounding_center.x*entity.scale;
+        float y = entity.y+model.bounding_center.y*entity.scale;
+        float z = entity.z+model.bounding_center.z*entity.scale;
+        float depth = -(view_matrix.m02()*x+view_matrix.m12()*y+
+                view_matrix.m22()*z+view_matrix.m32());
+        full_detail_triangles += model.get_lod_indices_amount(0)/3;
+        entity.fade = 0f;
+        if(use_impostors && model.impostor != null) {
+            // The static batches are measured from their closest side
+            float distance = depth-(model.bounding_radius-model.lod_radius)*
+                    Math.abs(entity.scale);
+            float start = impostor_distance-impostor_fade_distance;
+            if(distance > start) {
+                entity.fade = Math.min((distance-start)/
+                        impostor_fade_distance, 1f);
+                add_impostors(entity);
+                if(entity.fade >= 1f) return;
+            }
+        }
+        int level = 0;
+        if(lod) level = renderer.select_lod(entity, depth);
+        else entity.lod = 0;
+        triangles += model.get_lod_indices_amount(level)/3;
+        render_queue.add(RenderQueue.make_key(RenderQueue.PASS_OPAQUE,
+                model.texture_atlas_size > 1 ? SHADER_3D_ATLAS : SHADER_3D,
+                model.texture_id, model.get_vao(), level,
+                RenderQueue.quantise_depth(depth, renderer.get_far_plane())),
+                entity);
+    }
+    
+    /**
+     * Draw an entity, or the entities baked in it, with the impostor of its
+     * model on this frame
+     * 
+     * @param entity The entity to draw as a billboard
+     */
+    private void add_impostors(TexturedModelEntity entity) {
+        Impostor impostor = entity.model.impostor;
+        ArrayList<TexturedModelEntity> baked = entity.baked_entities;
+        if(baked == null) {
+            impostor.add(entity, entity.fade);
+            triangles += 2;
+            return;
+        }
+        for(int i=0;i<baked.size();i++) {
+            impostor.add(baked.get(i), entity.fade);
+        }
+        triangles += baked.size()*2;
+    }
+    
+    /**
+     * Split the render queue in runs of draws that use the same state and
+     * the same model or image
+     */
+    private void find_runs() {
+        runs_amount = 0;
+        int size = render_queue.size();
+        for(int i=0;i<size;) {
+            long state = RenderQueue.get_state(render_queue.get_key(i));
+            Object item = render_queue.get_item(i);
+            int end = i+1;
+            while(end < size && RenderQueue.get_state(
+                    render_queue.get_key(end)) == state &&
+                    same_source(item, render_queue.get_item(end))) {
+                end++;
             }
-            stop_using_image();
+            if(runs_amount >= run_ends.length) {
+                run_ends = Arrays.copyOf(run_ends, run_ends.length*2);
+                run_commands = Arrays.copyOf(run_commands,
+                        run_commands.length*2);
+            }
+            run_ends[runs_amount] = end;
+            run_commands[runs_amount] = -1;
+            runs_amount++;
+            i = end;
+        }
+    }
+    
+    /**
+     * Check if two items of the render queue use the same model or image,
+     * and the same level of detail
+     */
+    private boolean same_source(Object a, Object b) {
+        if(a instanceof TexturedModelEntity) {
+            return b instanceof TexturedModelEntity &&
+                    ((TexturedModelEntity)a).model ==
+                    ((TexturedModelEntity)b).model &&
+                    ((TexturedModelEntity)a).lod ==
+                    ((TexturedModelEntity)b).lod;
+        }
+        if(a instanceof ImageEntity) {
+            return b instanceof ImageEntity &&
+                    ((ImageEntity)a).image == ((ImageEntity)b).image;
         }
+        return a == b;
     }
     
     /**
-     * Render the scene
+     * Get the model of a run if it is drawn from the geometry arena
+     * 
+     * @param run The number of the run
+     * @return The model, or null if the run is not drawn from the arena
+     */
+    private TexturedModel get_arena_model(int run) {
+        int start = run > 0 ? run_ends[run-1] : 0;
+        Object item = render_queue.get_item(start);
+        if(!(item instanceof TexturedModelEntity)) return null;
+        TexturedModel model = ((TexturedModelEntity)item).model;
+        return model.get_arena() == arena ? model : null;
+    }
+    
+    /**
+     * Store the instances of all the runs drawn from the geometry arena and
+     * their draw commands, and upload them at once
      */
-    public void render_scene() {
-        render_textured_models();
-        render_images();
+    private void prepare_arena_draws() {
+        arena.begin();
+        for(int r=0;r<runs_amount;r++) {
+            TexturedModel model = get_arena_model(r);
+            if(model == null) continue;
+            int start = r > 0 ? run_ends[r-1] : 0;
+            int end = run_ends[r];
+            run_commands[r] = arena.get_commands_amount();
+            int first = arena.add_command(model,
+                    ((TexturedModelEntity)render_queue.get_item(start)).lod,
+                    end-start);
+            for(int n=start;n<end;n++) {
+                renderer.store_instance(arena.get_instance_data(),
+                        first+n-start,
+                        (TexturedModelEntity)render_queue.get_item(n));
+            }
+        }
+        arena.upload();
     }
     
     /**
-     * Prepare a model to be rendered
+     * Draw the content of the render queue. The GL state is only changed
+     * when it is not the same as for the previous draw. The runs of models
+     * of the geometry arena that use the same texture and material are drawn
+     * with a single multi draw.
      * 
-     * @param model
+     * @throws Exception If a variant of the shaders could not be compiled
      */
-    private void start_using_model(TexturedModel model) {
-        renderer.start_using_model(model, shine_damper_location,
-                reflectivity_location, shaders_3D);
-        used_model = model;
-        shaders_3D.start();
+    private void draw_render_queue() throws Exception {
+        find_runs();
+        boolean arena_draws = arena != null && instancing;
+        if(arena_draws) prepare_arena_draws();
         
-        renderer.load_shine_and_reflectivity(shine_damper_location,
-                reflectivity_location,
-                model.shine_damper,
-                model.reflectivity,
-                shaders_3D
-        );
-        shaders_3D.load_in_uniform_var(sky_color_location,
-                new Vector3f(r, g, b));
-        renderer.load_scene_settings(window, camera, ambient_lighting,
-                ambient_lighting_location, view_matrix_location,
-                shaders_3D);
-        for(int i=0;i<MAX_LIGHTS;i++) {
-            if(i<lights.size()) {
-                renderer.load_light(light_position_location[i],
-                        light_color_location[i], attenuation_location[i],
-                        lights.get(i), shaders_3D);
+        int shader = -1;
+        int vao = -1;
+        int texture = -1;
+        model_groups_amount = 0;
+        draw_calls = 0;
+        for(int r=0;r<runs_amount;) {
+            int i = r > 0 ? run_ends[r-1] : 0;
+            long key = render_queue.get_key(i);
+            Object item = render_queue.get_item(i);
+            int pass = RenderQueue.get_pass(key);
+            int item_shader = RenderQueue.get_shader(key);
+            if(pass == RenderQueue.PASS_2D) item_shader = SHADER_2D;
+            else if(pass == RenderQueue.PASS_IMPOSTOR) {
+                item_shader = SHADER_IMPOSTOR;
+            }
+            if(item_shader != shader) {
+                if(item_shader == SHADER_2D) profiler.begin(PHASE_2D);
+                start_shader(item_shader, shader);
+                shader = item_shader;
+            }
+            
+            int last = r;
+            if(shader == SHADER_3D || shader == SHADER_3D_ATLAS) {
+                TexturedModel model = ((TexturedModelEntity)item).model;
+                if(model.get_vao() != vao) {
+                    vao = model.get_vao();
+                    renderer.bind_vao(model, 3);
+                }
+                if(model.texture_id != texture) {
+                    texture = model.texture_id;
+                    renderer.bind_texture(texture);
+                }
+                renderer.load_shine_and_reflectivity(shine_damper_location,
+                        reflectivity_location, model.shine_damper,
+                        model.reflectivity, shaders_3D);
+                if(arena_draws && run_commands[r] >= 0) {
+                    // The next runs can be drawn with the same call if they
+                    // only use another mesh of the arena
+                    while(last+1 < runs_amount &&
+                            can_merge(model, get_arena_model(last+1))) {
+                        last++;
+                    }
+                    renderer.set_instance_attributes(true);
+                    arena.draw(run_commands[r], last-r+1);
+                    renderer.set_instance_attributes(false);
+                } else {
+                    draw_entities(model, i, run_ends[r]);
+                }
+            } else if(shader == SHADER_IMPOSTOR) {
+                Impostor impostor = (Impostor)item;
+                shaders_impostor.load_in_uniform_var(impostor_views_location,
+                        (float)impostor.get_views());
+                impostor.draw();
+                vao = impostor.get_vao();
+                texture = impostor.get_texture_id();
+                draw_calls++;
             } else {
-                shaders_3D.load_in_uniform_var(attenuation_location[i],
-                        new Vector3f(
-                                1,
-                                0,
-                                0
-                        )
-                );
+                Image image = ((ImageEntity)item).image;
+                if(image.get_vao() != vao) {
+                    vao = image.get_vao();
+                    renderer.bind_vao(image, 2);
+                }
+                if(image.texture_id != texture) {
+                    texture = image.texture_id;
+                    renderer.bind_texture(texture);
+                }
+                for(int n=i;n<run_ends[r];n++) {
+                    render_entity((ImageEntity)render_queue.get_item(n));
+                }
+                draw_calls += run_ends[r]-i;
+            }
+            model_groups_amount += last-r+1;
+            r = last+1;
+        }
+        if(shader == SHADER_2D) renderer.stop_2D();
+        renderer.unbind();
+        if(arena != null) draw_calls += arena.get_draw_calls();
+    }
+    
+    /**
+     * Check if the run of a model of the arena can be drawn with the same
+     * multi draw as the run of another model
+     * 
+     * @param model The model of the first run
+     * @param next The model of the next run, or null if it is not in the
+     * arena
+     * @return true if both use the same state
+     */
+    private boolean can_merge(TexturedModel model, TexturedModel next) {
+        return next != null && next.texture_id == model.texture_id &&
+                (next.texture_atlas_size > 1) ==
+                (model.texture_atlas_size > 1) &&
+                next.shine_damper == model.shine_damper &&
+                next.reflectivity == model.reflectivity;
+    }
+    
+    /**
+     * Start using a shader program while drawing the render queue
+     * 
+     * @param shader The shader program to use
+     * @param previous The shader program that was used before, or -1
+     * @throws Exception If a variant of the shaders could not be compiled
+     */
+    private void start_shader(int shader, int previous) throws Exception {
+        if(previous == SHADER_2D) renderer.stop_2D();
+        if(shader == SHADER_3D || shader == SHADER_3D_ATLAS) {
+            // Only the settings of this frame and of the model are compiled
+            // in the shaders, instead of branching on them at runtime
+            int features = 0;
+            if(fog) features |= FEATURE_FOG;
+            if(shader == SHADER_3D_ATLAS) features |= FEATURE_ATLAS;
+            if(instancing) features |= FEATURE_INSTANCED;
+            if(!selected_lights.isEmpty()) features |= FEATURE_LIGHTS;
+            shaders_3D.select_variant(features);
+            shaders_3D.start();
+        } else if(shader == SHADER_IMPOSTOR) {
+            shaders_impostor.start();
+        } else {
+            shaders_2D.start();
+            renderer.start_2D();
+        }
+    }
+    
+    /**
+     * Draw entities of the render queue that all use the same model
+     * 
+     * @param model The model of the entities
+     * @param start The position of the first entity in the queue
+     * @param end The position after the last entity in the queue
+     */
+    private void draw_entities(TexturedModel model, int start, int end) {
+        if(instancing) {
+            run_entities.clear();
+            for(int n=start;n<end;n++) {
+                run_entities.add(
+                        (TexturedModelEntity)render_queue.get_item(n));
             }
+            renderer.render_entities_instanced(model, run_entities);
+            run_entities.clear();
+            draw_calls++;
+        } else {
+            for(int n=start;n<end;n++) {
+                render_entity((TexturedModelEntity)render_queue.get_item(n));
+            }
+            draw_calls += end-start;
+        }
+    }
+    
+    /**
+     * Find the entities that are inside of the view frustum and put them in
+     * query_result
+     */
+    private void find_visible_entities() {
+        for(int i=0;i<dynamic_entities.size();i++) {
+            TexturedModelEntity entity = dynamic_entities.get(i);
+            float radius = entity.get_bounding_sphere(bounds_matrix,
+                    bounds_center);
+            entity_grid.update(entity, bounds_center.x, bounds_center.y,
+                    bounds_center.z, radius);
+        }
+        
+        frustum.update(renderer.get_projection_matrix(), view_matrix);
+        
+        query_result.clear();
+        entity_grid.query_frustum(frustum, camera.x, camera.z,
+                renderer.get_far_plane(), query_result);
+        
+        occluded_entities_amount = 0;
+        if(horizon_culler != null) {
+            update_horizon();
+            int visible = 0;
+            for(int i=0;i<query_result.size();i++) {
+                TexturedModelEntity entity = query_result.get(i);
+                float radius = entity.get_bounding_sphere(bounds_matrix,
+                        bounds_center);
+                if(!horizon_culler.is_occluded(bounds_center.x,
+                        bounds_center.y, bounds_center.z, radius)) {
+                    query_result.set(visible++, entity);
+                }
+            }
+            occluded_entities_amount = query_result.size()-visible;
+            while(query_result.size() > visible) {
+                query_result.remove(query_result.size()-1);
+            }
+        }
+        
+        visible_entities_amount = query_result.size();
+        culled_entities_amount = entities_amount-visible_entities_amount;
+    }
+    
+    /**
+     * Sweep the horizon in the directions the camera can see
+     */
+    private void update_horizon() {
+        // The camera looks towards -Z in view space
+        float forward_x = -view_matrix.m02();
+        float forward_y = -view_matrix.m12();
+        float forward_z = -view_matrix.m22();
+        Matrix4f projection = renderer.get_projection_matrix();
+        // The corners of the view go the furthest from its direction when
+        // the camera is rolled
+        float half_angle = (float)Math.atan(Math.sqrt(
+                1f/(projection.m00()*projection.m00())+
+                1f/(projection.m11()*projection.m11())))+0.1f;
+        if(Math.abs(forward_y) > 0.7f) {
+            // When looking up or down the view covers all the directions
+            half_angle = (float)Math.PI;
         }
-        renderer.load_fog(fog_gradient, fog_density, fog,
-                fog_gradient_location,
-                fog_density_location, fog_location,
-                shaders_3D);
-        renderer.load_projection_matrix(projection_matrix_location);
+        horizon_culler.update(camera.x, camera.y, camera.z,
+                (float)Math.atan2(forward_x, forward_z), half_angle);
     }
     
     /**
-     * Prepare an image to be rendered
+     * Find the entities that are around a position, for example to check
+     * for collisions
      * 
-     * @param image
+     * @param x
+     * @param z
+     * @param radius The distance from the position on the XZ plane
+     * @param out The list the entities are added to
      */
-    private void start_using_image(Image image) {
-        renderer.start_using_image(image, shaders_2D);
-        used_image = image;
-        shaders_2D.start();
+    public void get_entities_near(float x, float z, float radius,
+            ArrayList<TexturedModelEntity> out) {
+        entity_grid.query_radius(x, z, radius, out);
     }
     
     /**
-     * Stop rendering this model
+     * Find the entities that are in a region of the XZ plane
+     * 
+     * @param min_x
+     * @param min_z
+     * @param max_x
+     * @param max_z
+     * @param out The list the entities are added to
      */
-    private void stop_using_model() {
-        renderer.stop_using_model(used_model);
+    public void get_entities_in_region(float min_x, float min_z, float max_x,
+            float max_z, ArrayList<TexturedModelEntity> out) {
+        entity_grid.query_region(min_x, min_z, max_x, max_z, out);
     }
     
     /**
-     * Stop rendering this image
+     * Render the scene. The visible entities and the images are put in a
+     * render queue that is sorted to draw them with as few state changes as
+     * possible. The phases of the profiler only measure the time spent in
+     * this method, and not the code of the game that runs before and after.
+     * 
+     * @throws Exception If a variant of the shaders could not be compiled
      */
-    private void stop_using_image() {
-        renderer.stop_using_image(used_image);
+    public void render_scene() throws Exception {
+        profiler.begin(PHASE_SCENE);
+        update_static_batches();
+        select_lights();
+        start_frame();
+        fill_render_queue();
+        draw_render_queue();
+        // Stop the scene or the 2D phase
+        profiler.end();
+    }
+    
+    /**
+     * Load the uniform variables that stay the same during the whole frame.
+     * They stay loaded in the shader program when drawing each model.
+     */
+    private void start_frame() {
+        Maths.create_view_matrix(camera, view_matrix);
+        // The matrix is only created again when the window was resized
+        renderer.update_projection_matrix(window);
+        
+        renderer.load_camera(uniform_buffer,
+                uniform_buffer.get_offset(CAMERA_BLOCK), view_matrix, camera);
+        renderer.load_scene_settings(uniform_buffer,
+                uniform_buffer.get_offset(SCENE_BLOCK), r, g, b,
+                ambient_lighting, fog_gradient, fog_density, fog);
+        
+        light_clusters.update(view_matrix, renderer.get_projection_matrix(),
+                renderer.get_near_plane(), renderer.get_far_plane(),
+                selected_lights);
+        renderer.load_lights(light_buffer, selected_lights);
+        // The clusters are found from the pixel position in the scaled scene
+        renderer.load_clusters(uniform_buffer,
+                uniform_buffer.get_offset(SCENE_BLOCK), light_clusters,
+                cluster_buffer, light_index_buffer, render_width,
+                render_height);
+        uniform_buffer.upload();
+        
+        light_buffer.bind(LIGHTS_UNIT);
+        cluster_buffer.bind(CLUSTERS_UNIT);
+        light_index_buffer.bind(LIGHT_INDICES_UNIT);
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        
+        // The values that were loaded once in the buffer instead of for
+        // each model
+        frame_uniform_calls = uniform_buffer.get_uploaded_values_amount();
     }
     
     /**
@@ -564,6 +1788,7 @@ public class Engine {
      * @param entity The entity to render
      */
     private void render_entity(TexturedModelEntity entity) {
+        shaders_3D.load_in_uniform_var(fade_location, entity.fade);
         renderer.render_entity(entity);
     }
     
@@ -577,13 +1802,41 @@ public class Engine {
     }
     
     /**
-     * Free memory etc. after using the engine
+     * Free memory etc. after using the engine. The models loaded outside of
+     * the engine need to be freed before, as the window and its GL context
+     * are destroyed here.
      */
     public void destroy() {
-        window.destroy();
-        
         shaders_3D.free();
         
         shaders_2D.free();
+        
+        shaders_framebuffer.free();
+        
+        bloom.free();
+        profiler.free();
+        
+        shaders_impostor.free();
+        
+        shaders_impostor_bake.free();
+        
+        for(int i=0;i<impostors.size();i++) {
+            impostors.get(i).free();
+        }
+        
+        uniform_buffer.free();
+        
+        light_buffer.free();
+        cluster_buffer.free();
+        light_index_buffer.free();
+        
+        if(arena != null) arena.free();
+        
+        clear_entity_list();
+        framebuffer.free();
+        
+        // The GL context goes away with the window, so it is destroyed once
+        // everything else is freed
+        window.destroy();
     }
 }
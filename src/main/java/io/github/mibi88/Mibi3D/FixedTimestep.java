@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * Splits the real time between the frames into simulation ticks of a fixed
+ * length, so that the simulation behaves the same at any frame rate. The time
+ * left after the last tick is kept for the next frame, and is given as an
+ * interpolation factor between the last two states of the simulation.
+ *
+ * @author mibi88
+ */
+public class FixedTimestep {
+    // A frame longer than this (a breakpoint, a moved window) only runs this
+    // much simulation time, instead of catching up for seconds
+    private final float MAX_FRAME_TIME = 0.25f;
+
+    private float tick_time;
+    private float accumulator;
+    private long last_time;
+
+    /**
+     * Create a new fixed timestep
+     *
+     * @param tick_rate The amount of simulation ticks per second
+     */
+    public FixedTimestep(float tick_rate) {
+        set_tick_rate(tick_rate);
+        reset();
+    }
+
+    /**
+     * Set the amount of simulation ticks per second
+     *
+     * @param tick_rate The amount of ticks per second
+     */
+    public void set_tick_rate(float tick_rate) {
+        tick_time = 1f/tick_rate;
+        if(accumulator >= tick_time) accumulator %= tick_time;
+    }
+
+    /**
+     * Get the duration of a simulation tick
+     *
+     * @return The duration in seconds
+     */
+    public float get_tick_time() {
+        return tick_time;
+    }
+
+    /**
+     * Start measuring the time from now and drop the time that was not
+     * simulated, for example after loading
+     */
+    public void reset() {
+        accumulator = 0f;
+        last_time = System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since the last call, and get the amount of ticks
+     * that should be simulated for this frame. It is called once per frame.
+     *
+     * @return The amount of ticks to simulate, it can be 0 when the frames
+     * are shorter than a tick
+     */
+    public int advance() {
+        long time = System.nanoTime();
+        float frame_time = (time-last_time)/1e9f;
+        last_time = time;
+        return advance(frame_time);
+    }
+
+    /**
+     * Add the time of a frame measured by the caller, and get the amount of
+     * ticks that should be simulated for this frame. It does not read the
+     * clock.
+     *
+     * @param frame_time The duration of the frame in seconds
+     * @return The amount of ticks to simulate
+     */
+    public int advance(float frame_time) {
+        accumulator += Math.min(Math.max(frame_time, 0f), MAX_FRAME_TIME);
+        int ticks = (int)(accumulator/tick_time);
+        accumulator -= ticks*tick_time;
+        return ticks;
+    }
+
+    /**
+     * Get how far the time of the frame is between the last two simulated
+     * states
+     *
+     * @return 0 at the previous state, 1 at the current state
+     */
+    public float get_alpha() {
+        return Math.min(accumulator/tick_time, 1f);
+    }
+
+    /**
+     * Interpolate linearly between two values
+     *
+     * @param previous The previous value
+     * @param current The current value
+     * @param alpha The interpolation factor, from get_alpha
+     * @return The interpolated value
+     */
+    public static float lerp(float previous, float current, float alpha) {
+        return previous+(current-previous)*alpha;
+    }
+
+    /**
+     * Interpolate between two angles along the shortest way, so that an
+     * angle that wrapped around between the two states does not spin
+     *
+     * @param previous The previous angle in degrees
+     * @param current The current angle in degrees
+     * @param alpha The interpolation factor, from get_alpha
+     * @return The interpolated angle in degrees
+     */
+    public static float lerp_angle(float previous, float current,
+            float alpha) {
+        float difference = (current-previous)%360f;
+        if(difference > 180f) difference -= 360f;
+        if(difference < -180f) difference += 360f;
+        return previous+difference*alpha;
+    }
+
+    /**
+     * Interpolate the position and the rotation of a camera
+     *
+     * @param previous The previous state
+     * @param current The current state
+     * @param alpha The interpolation factor, from get_alpha
+     * @param dest The camera to set
+     */
+    public static void lerp(Camera previous, Camera current, float alpha,
+            Camera dest) {
+        dest.x = lerp(previous.x, current.x, alpha);
+        dest.y = lerp(previous.y, current.y, alpha);
+        dest.z = lerp(previous.z, current.z, alpha);
+        dest.rx = lerp_angle(previous.rx, current.rx, alpha);
+        dest.ry = lerp_angle(previous.ry, current.ry, alpha);
+        dest.rz = lerp_angle(previous.rz, current.rz, alpha);
+    }
+}
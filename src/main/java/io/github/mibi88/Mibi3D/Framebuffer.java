@@ -32,6 +32,7 @@ public class Framebuffer extends VAO {
     protected int color_texture_id, depth_texture_id;
     protected int width, height;
     private int FORMAT = GL30.GL_RGB16F;
+    private int pixel_format = GL30.GL_RGB;
     
     public Framebuffer(Window window)
             throws Exception {
@@ -42,6 +43,29 @@ public class Framebuffer extends VAO {
         unbind_vao();
     }
     
+    /**
+     * Create a framebuffer that does not follow the size of the window, to
+     * render to a texture. The color texture has an alpha channel.
+     * 
+     * @param width The width of the textures
+     * @param height The height of the textures
+     * @throws Exception
+     */
+    public Framebuffer(int width, int height) throws Exception {
+        FORMAT = GL30.GL_RGBA8;
+        pixel_format = GL30.GL_RGBA;
+        frame_buffer = GL30.glGenFramebuffers();
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER,
+                frame_buffer);
+        GL30.glDrawBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        create_textures(width, height);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        unbind_frame_buffer();
+        
+        load_quad();
+        unbind_vao();
+    }
+    
     private void create_frame_buffer(Window window) throws Exception {
         frame_buffer = GL30.glGenFramebuffers();
         GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER,
@@ -65,16 +89,20 @@ public class Framebuffer extends VAO {
     }
     
     private void create_textures(Window window) {
+        int[] framebuffer_size = window.get_framebuffer_size();
+        create_textures(framebuffer_size[0], framebuffer_size[1]);
+    }
+    
+    private void create_textures(int width, int height) {
         color_texture_id = GL30.glGenTextures();
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, color_texture_id);
         
-        int[] window_size = window.get_window_size();
-        width = window_size[0];
-        height = window_size[1];
+        this.width = width;
+        this.height = height;
         
         GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0,
                 FORMAT, width, height,
-                0, GL30.GL_RGB, GL30.GL_UNSIGNED_BYTE,
+                0, pixel_format, GL30.GL_UNSIGNED_BYTE,
                 (ByteBuffer)null);
         
         GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
@@ -103,42 +131,34 @@ public class Framebuffer extends VAO {
                 GL30.GL_DEPTH_STENCIL_ATTACHMENT,
                 GL30.GL_TEXTURE_2D, depth_texture_id, 0);
     }
+    /**
+     * Allocate the textures again with the size of the framebuffer of the
+     * window. The textures stay attached to the framebuffer, only their size
+     * changes.
+     * 
+     * @param window The window to take the size from
+     */
     public void update_textures(Window window) {
-        GL30.glBindTexture(GL30.GL_TEXTURE_2D, color_texture_id);
-        
-        int[] window_size = window.get_window_size();
-        width = window_size[0];
-        height = window_size[1];
+        int[] framebuffer_size = window.get_framebuffer_size();
+        if(framebuffer_size[0] == width && framebuffer_size[1] == height) {
+            return;
+        }
+        width = framebuffer_size[0];
+        height = framebuffer_size[1];
         
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, color_texture_id);
         GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0,
                 FORMAT, width, height,
-                0, GL30.GL_RGB, GL30.GL_UNSIGNED_BYTE,
+                0, pixel_format, GL30.GL_UNSIGNED_BYTE,
                 (ByteBuffer)null);
         
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
-                GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
-                GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
-        
-        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER,
-                GL30.GL_COLOR_ATTACHMENT0, GL30.GL_TEXTURE_2D,
-                color_texture_id, 0);
-        
         GL30.glBindTexture(GL30.GL_TEXTURE_2D, depth_texture_id);
-        
         GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0,
                 GL30.GL_DEPTH24_STENCIL8, width,
                 height, 0, GL30.GL_DEPTH_STENCIL,
                 GL30.GL_UNSIGNED_INT_24_8, (ByteBuffer)null);
         
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
-                GL30.GL_TEXTURE_MIN_FILTER, GL30.GL_LINEAR);
-        GL30.glTexParameteri(GL30.GL_TEXTURE_2D,
-                GL30.GL_TEXTURE_MAG_FILTER, GL30.GL_LINEAR);
-        
-        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER,
-                GL30.GL_DEPTH_STENCIL_ATTACHMENT,
-                GL30.GL_TEXTURE_2D, depth_texture_id, 0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
     }
     
     public void render() {
@@ -173,6 +193,21 @@ public class Framebuffer extends VAO {
         GL30.glEnable(GL30.GL_DEPTH_TEST);
     }
     
+    /**
+     * Draw the quad that covers the whole viewport, with the shaders, the
+     * textures and the framebuffer that are bound
+     */
+    public void draw_quad() {
+        GL30.glBindVertexArray(this.get_vao());
+        GL30.glEnableVertexAttribArray(0);
+        GL30.glEnableVertexAttribArray(1);
+        GL30.glDrawElements(GL30.GL_TRIANGLES,
+                6, GL30.GL_UNSIGNED_INT,
+                0);
+        GL30.glDisableVertexAttribArray(0);
+        GL30.glDisableVertexAttribArray(1);
+    }
+    
     // For rendering with shaders
     private void load_quad() {
         float[] vertices = {
@@ -231,6 +266,42 @@ public class Framebuffer extends VAO {
         unbind_vbo(GL30.GL_ARRAY_BUFFER);
     }
     
+    /**
+     * Get the texture the colors are rendered to
+     * 
+     * @return The id of the color texture
+     */
+    public int get_color_texture() {
+        return color_texture_id;
+    }
+    
+    /**
+     * Get the width of the textures
+     * 
+     * @return The width in pixels
+     */
+    public int get_width() {
+        return width;
+    }
+    
+    /**
+     * Get the height of the textures
+     * 
+     * @return The height in pixels
+     */
+    public int get_height() {
+        return height;
+    }
+    
+    /**
+     * Get the texture the depth and the stencil are rendered to
+     * 
+     * @return The id of the depth texture
+     */
+    public int get_depth_texture() {
+        return depth_texture_id;
+    }
+    
     public void free() {
         GL30.glDeleteFramebuffers(frame_buffer);
     }
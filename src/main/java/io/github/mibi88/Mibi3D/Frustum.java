@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import org.joml.Matrix4f;
+
+/**
+ * The view frustum of the camera, used to skip what is not on the screen
+ * 
+ * @author mibi88
+ */
+public class Frustum {
+    private final int PLANES = 6;
+    
+    // Each plane is stored as (a, b, c, d) with a*x+b*y+c*z+d >= 0 inside
+    private final float[] planes;
+    
+    private final Matrix4f combined;
+    
+    /**
+     * Create a new frustum. Call update before using it.
+     */
+    public Frustum() {
+        planes = new float[PLANES*4];
+        combined = new Matrix4f();
+    }
+    
+    /**
+     * Extract the planes of the frustum from the matrices used to render the
+     * scene
+     * 
+     * @param projection_matrix The projection matrix
+     * @param view_matrix The view matrix
+     */
+    public void update(Matrix4f projection_matrix, Matrix4f view_matrix) {
+        projection_matrix.mul(view_matrix, combined);
+        Matrix4f m = combined;
+        // Left, right, bottom, top, near and far planes
+        set_plane(0, m.m03()+m.m00(), m.m13()+m.m10(), m.m23()+m.m20(),
+                m.m33()+m.m30());
+        set_plane(1, m.m03()-m.m00(), m.m13()-m.m10(), m.m23()-m.m20(),
+                m.m33()-m.m30());
+        set_plane(2, m.m03()+m.m01(), m.m13()+m.m11(), m.m23()+m.m21(),
+                m.m33()+m.m31());
+        set_plane(3, m.m03()-m.m01(), m.m13()-m.m11(), m.m23()-m.m21(),
+                m.m33()-m.m31());
+        set_plane(4, m.m03()+m.m02(), m.m13()+m.m12(), m.m23()+m.m22(),
+                m.m33()+m.m32());
+        set_plane(5, m.m03()-m.m02(), m.m13()-m.m12(), m.m23()-m.m22(),
+                m.m33()-m.m32());
+    }
+    
+    /**
+     * Store a normalized plane
+     */
+    private void set_plane(int n, float a, float b, float c, float d) {
+        float length = (float)Math.sqrt(a*a+b*b+c*c);
+        planes[n*4] = a/length;
+        planes[n*4+1] = b/length;
+        planes[n*4+2] = c/length;
+        planes[n*4+3] = d/length;
+    }
+    
+    /**
+     * Check if a sphere is at least partially inside of the frustum
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param radius The radius of the sphere
+     * @return true if the sphere may be visible
+     */
+    public boolean test_sphere(float x, float y, float z, float radius) {
+        for(int i=0;i<PLANES*4;i+=4) {
+            if(planes[i]*x+planes[i+1]*y+planes[i+2]*z+planes[i+3] <
+                    -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Check if an axis aligned box is at least partially inside of the
+     * frustum
+     * 
+     * @param min_x
+     * @param min_y
+     * @param min_z
+     * @param max_x
+     * @param max_y
+     * @param max_z
+     * @return true if the box may be visible
+     */
+    public boolean test_aabb(float min_x, float min_y, float min_z,
+            float max_x, float max_y, float max_z) {
+        for(int i=0;i<PLANES*4;i+=4) {
+            // Only test the corner that is the furthest along the normal
+            float x = planes[i] >= 0 ? max_x : min_x;
+            float y = planes[i+1] >= 0 ? max_y : min_y;
+            float z = planes[i+2] >= 0 ? max_z : min_z;
+            if(planes[i]*x+planes[i+1]*y+planes[i+2]*z+planes[i+3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GL40;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.opengl.GL43;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Stores the meshes of many models in a single VAO, with one vertex buffer,
+ * one index buffer and one instance buffer. Each model gets a range of
+ * vertices and a range of indices, and is drawn with a base vertex. All the
+ * draws of a frame are stored as indirect draw commands so that the models
+ * that use the same texture can be drawn with a single call to
+ * glMultiDrawElementsIndirect when the context supports it.
+ *
+ * The vertices are interleaved: the position (3 floats), the texture
+ * coordinates (2 floats) and the normal (3 floats).
+ *
+ * @author mibi88
+ */
+public class GeometryArena {
+    private final int VERTEX_SIZE = 3+2+3;
+    private final int COMMAND_SIZE = 5;
+
+    private final int vao;
+    private int vertex_vbo, index_vbo;
+    private final int instance_vbo;
+    private int indirect_buffer;
+
+    private final RangeAllocator vertex_allocator;
+    private final RangeAllocator index_allocator;
+
+    private final ArrayList<Model> models;
+
+    private FloatBuffer instance_data;
+    private int instances_amount;
+    private int instance_capacity;
+
+    private IntBuffer commands;
+    private int commands_amount;
+    private int commands_capacity;
+
+    private final boolean multi_draw_indirect;
+    private final boolean base_instance;
+
+    private int draw_calls;
+
+    /**
+     * Create an empty arena
+     *
+     * @param vertex_capacity The amount of vertices it can contain before it
+     * needs to grow
+     * @param index_capacity The amount of indices it can contain before it
+     * needs to grow
+     */
+    public GeometryArena(int vertex_capacity, int index_capacity) {
+        GLCapabilities capabilities = GL.getCapabilities();
+        multi_draw_indirect = capabilities.OpenGL43;
+        base_instance = capabilities.OpenGL42;
+
+        vertex_allocator = new RangeAllocator(vertex_capacity);
+        index_allocator = new RangeAllocator(index_capacity);
+        models = new ArrayList<>();
+
+        vao = GL30.glGenVertexArrays();
+
+        vertex_vbo = GL30.glGenBuffers();
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vertex_vbo);
+        GL30.glBufferData(GL30.GL_ARRAY_BUFFER,
+                (long)vertex_capacity*VERTEX_SIZE*4, GL30.GL_STATIC_DRAW);
+        index_vbo = GL30.glGenBuffers();
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, index_vbo);
+        GL30.glBufferData(GL30.GL_ARRAY_BUFFER, (long)index_capacity*4,
+                GL30.GL_STATIC_DRAW);
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+
+        instance_vbo = GL30.glGenBuffers();
+        instance_data = BufferUtils.createFloatBuffer(
+                256*Model.INSTANCE_DATA_SIZE);
+        commands = BufferUtils.createIntBuffer(64*COMMAND_SIZE);
+        if(multi_draw_indirect) {
+            indirect_buffer = GL30.glGenBuffers();
+        }
+
+        setup_vao();
+    }
+
+    /**
+     * Point the attributes of the VAO to the current buffers
+     */
+    private void setup_vao() {
+        GL30.glBindVertexArray(vao);
+
+        int stride = VERTEX_SIZE*4;
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vertex_vbo);
+        GL30.glVertexAttribPointer(0, 3, GL30.GL_FLOAT, false, stride, 0);
+        GL30.glVertexAttribPointer(1, 2, GL30.GL_FLOAT, false, stride, 3*4);
+        GL30.glVertexAttribPointer(2, 3, GL30.GL_FLOAT, false, stride, 5*4);
+
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instance_vbo);
+        set_instance_pointers(0);
+        for(int i=3;i<=7;i++) {
+            GL33.glVertexAttribDivisor(i, 1);
+        }
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+
+        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, index_vbo);
+        GL30.glBindVertexArray(0);
+        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Point the instance attributes to an instance of the instance buffer.
+     * The VAO and the instance buffer need to be bound.
+     *
+     * @param first_instance The number of the first instance to use
+     */
+    private void set_instance_pointers(int first_instance) {
+        int stride = Model.INSTANCE_DATA_SIZE*4;
+        long offset = (long)first_instance*stride;
+        for(int i=0;i<4;i++) {
+            GL30.glVertexAttribPointer(3+i, 4, GL30.GL_FLOAT, false,
+                    stride, offset+i*4*4);
+        }
+        GL30.glVertexAttribPointer(7, 4, GL30.GL_FLOAT, false,
+                stride, offset+16*4);
+    }
+
+    /**
+     * Get the VAO that contains all the models of the arena
+     *
+     * @return The id of the VAO
+     */
+    public int get_vao() {
+        return vao;
+    }
+
+    /**
+     * Check if the draws are submitted with glMultiDrawElementsIndirect
+     *
+     * @return true if the context supports multi draw indirect
+     */
+    public boolean has_multi_draw_indirect() {
+        return multi_draw_indirect;
+    }
+
+    /**
+     * Store the mesh of a model in the arena. The buffers grow if it does not
+     * fit.
+     *
+     * @param model The model to store
+     * @param vertices The vertices of the model
+     * @param texture_coords The texture coordinates of the model
+     * @param normals The normals of the model
+     * @param indices The indices of the model, with all its levels of detail
+     */
+    public void add(Model model, float[] vertices, float[] texture_coords,
+            float[] normals, int[] indices) {
+        int vertex_count = vertices.length/3;
+        int index_count = indices.length;
+
+        reserve(vertex_count, index_count);
+        int vertex_offset = vertex_allocator.allocate(vertex_count);
+        int index_offset = index_allocator.allocate(index_count);
+
+        FloatBuffer vertex_data = BufferUtils.createFloatBuffer(
+                vertex_count*VERTEX_SIZE);
+        for(int i=0;i<vertex_count;i++) {
+            vertex_data.put(vertices[i*3]);
+            vertex_data.put(vertices[i*3+1]);
+            vertex_data.put(vertices[i*3+2]);
+            vertex_data.put(i*2+1 < texture_coords.length ?
+                    texture_coords[i*2] : 0f);
+            vertex_data.put(i*2+1 < texture_coords.length ?
+                    texture_coords[i*2+1] : 0f);
+            vertex_data.put(i*3+2 < normals.length ? normals[i*3] : 0f);
+            vertex_data.put(i*3+2 < normals.length ? normals[i*3+1] : 1f);
+            vertex_data.put(i*3+2 < normals.length ? normals[i*3+2] : 0f);
+        }
+        vertex_data.flip();
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, vertex_vbo);
+        GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER,
+                (long)vertex_offset*VERTEX_SIZE*4, vertex_data);
+
+        IntBuffer index_data = BufferUtils.createIntBuffer(index_count);
+        index_data.put(indices);
+        index_data.flip();
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, index_vbo);
+        GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, (long)index_offset*4,
+                index_data);
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+
+        model.set_arena_range(this, vertex_offset, vertex_count,
+                index_offset);
+        models.add(model);
+    }
+
+    /**
+     * Free the ranges used by a model
+     *
+     * @param model The model to remove
+     */
+    public void remove(Model model) {
+        if(!models.remove(model)) return;
+        vertex_allocator.free(model.get_base_vertex(),
+                model.get_arena_vertices_amount());
+        index_allocator.free(model.get_first_index(),
+                model.get_indices_amount());
+    }
+
+    /**
+     * Make sure that a model fits in the buffers, by moving all the models
+     * to the start of the buffers and by growing them if needed
+     *
+     * @param vertex_count The amount of vertices of the model
+     * @param index_count The amount of indices of the model
+     */
+    private void reserve(int vertex_count, int index_count) {
+        if(vertex_allocator.get_largest_free_range() >= vertex_count &&
+                index_allocator.get_largest_free_range() >= index_count) {
+            return;
+        }
+        int vertex_capacity = vertex_allocator.get_capacity();
+        if(vertex_allocator.get_free() < vertex_count) {
+            vertex_capacity = Math.max(vertex_capacity*2,
+                    vertex_allocator.get_used()+vertex_count);
+        }
+        int index_capacity = index_allocator.get_capacity();
+        if(index_allocator.get_free() < index_count) {
+            index_capacity = Math.max(index_capacity*2,
+                    index_allocator.get_used()+index_count);
+        }
+        compact(vertex_capacity, index_capacity);
+    }
+
+    /**
+     * Move all the models to the start of the buffers, so that all the free
+     * space is in a single range at the end
+     */
+    public void defragment() {
+        compact(vertex_allocator.get_capacity(),
+                index_allocator.get_capacity());
+    }
+
+    /**
+     * Copy the ranges of all the models next to each other in new buffers.
+     * The indices are relative to the base vertex of their model, so they
+     * can be copied without changing them.
+     *
+     * @param vertex_capacity The amount of vertices of the new vertex buffer
+     * @param index_capacity The amount of indices of the new index buffer
+     */
+    private void compact(int vertex_capacity, int index_capacity) {
+        int new_vertex_vbo = GL30.glGenBuffers();
+        GL30.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, new_vertex_vbo);
+        GL30.glBufferData(GL31.GL_COPY_WRITE_BUFFER,
+                (long)vertex_capacity*VERTEX_SIZE*4, GL30.GL_STATIC_DRAW);
+        GL30.glBindBuffer(GL31.GL_COPY_READ_BUFFER, vertex_vbo);
+        int vertex_offset = 0;
+        for(int i=0;i<models.size();i++) {
+            Model model = models.get(i);
+            int count = model.get_arena_vertices_amount();
+            GL31.glCopyBufferSubData(GL31.GL_COPY_READ_BUFFER,
+                    GL31.GL_COPY_WRITE_BUFFER,
+                    (long)model.get_base_vertex()*VERTEX_SIZE*4,
+                    (long)vertex_offset*VERTEX_SIZE*4,
+                    (long)count*VERTEX_SIZE*4);
+            vertex_offset += count;
+        }
+
+        int new_index_vbo = GL30.glGenBuffers();
+        GL30.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, new_index_vbo);
+        GL30.glBufferData(GL31.GL_COPY_WRITE_BUFFER, (long)index_capacity*4,
+                GL30.GL_STATIC_DRAW);
+        GL30.glBindBuffer(GL31.GL_COPY_READ_BUFFER, index_vbo);
+        int index_offset = 0;
+        vertex_offset = 0;
+        for(int i=0;i<models.size();i++) {
+            Model model = models.get(i);
+            int count = model.get_indices_amount();
+            GL31.glCopyBufferSubData(GL31.GL_COPY_READ_BUFFER,
+                    GL31.GL_COPY_WRITE_BUFFER,
+                    (long)model.get_first_index()*4, (long)index_offset*4,
+                    (long)count*4);
+            model.set_arena_range(this, vertex_offset,
+                    model.get_arena_vertices_amount(), index_offset);
+            vertex_offset += model.get_arena_vertices_amount();
+            index_offset += count;
+        }
+        GL30.glBindBuffer(GL31.GL_COPY_READ_BUFFER, 0);
+        GL30.glBindBuffer(GL31.GL_COPY_WRITE_BUFFER, 0);
+
+        GL30.glDeleteBuffers(vertex_vbo);
+        GL30.glDeleteBuffers(index_vbo);
+        vertex_vbo = new_vertex_vbo;
+        index_vbo = new_index_vbo;
+        vertex_allocator.reset(vertex_capacity, vertex_offset);
+        index_allocator.reset(index_capacity, index_offset);
+
+        setup_vao();
+    }
+
+    /**
+     * Remove all the draw commands and the instances of the last frame
+     */
+    public void begin() {
+        instances_amount = 0;
+        commands_amount = 0;
+        instance_data.clear();
+        commands.clear();
+    }
+
+    /**
+     * Add a draw command for instances of a model. The data of the instances
+     * has to be written in the buffer returned by get_instance_data, starting
+     * at the instance returned by this method.
+     *
+     * @param model The model to draw
+     * @param lod The level of detail of the model to draw
+     * @param amount The amount of instances
+     * @return The number of the first instance of the command
+     */
+    public int add_command(Model model, int lod, int amount) {
+        int first_instance = instances_amount;
+        instances_amount += amount;
+        int size = instances_amount*Model.INSTANCE_DATA_SIZE;
+        if(instance_data.capacity() < size) {
+            FloatBuffer new_data = BufferUtils.createFloatBuffer(size*2);
+            instance_data.clear();
+            new_data.put(instance_data);
+            instance_data = new_data;
+        }
+        if(commands.capacity() < (commands_amount+1)*COMMAND_SIZE) {
+            IntBuffer new_commands = BufferUtils.createIntBuffer(
+                    commands.capacity()*2);
+            commands.clear();
+            new_commands.put(commands);
+            commands = new_commands;
+        }
+        int pos = commands_amount*COMMAND_SIZE;
+        commands.put(pos, model.get_lod_indices_amount(lod));
+        commands.put(pos+1, amount);
+        commands.put(pos+2, model.get_lod_first_index(lod));
+        commands.put(pos+3, model.get_base_vertex());
+        commands.put(pos+4, first_instance);
+        commands_amount++;
+        return first_instance;
+    }
+
+    /**
+     * Get the buffer the data of the instances is written to
+     *
+     * @return The instance buffer, use absolute puts
+     */
+    public FloatBuffer get_instance_data() {
+        return instance_data;
+    }
+
+    /**
+     * Get the amount of commands added since begin was called
+     *
+     * @return The amount of commands
+     */
+    public int get_commands_amount() {
+        return commands_amount;
+    }
+
+    /**
+     * Upload the instances and the commands that were added. It needs to be
+     * done before calling draw.
+     */
+    public void upload() {
+        instance_data.limit(instances_amount*Model.INSTANCE_DATA_SIZE);
+        instance_data.position(0);
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instance_vbo);
+        if(instance_data.remaining() > instance_capacity) {
+            instance_capacity = instance_data.remaining();
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER, instance_data,
+                    GL30.GL_STREAM_DRAW);
+        } else {
+            // Orphan the old storage to avoid waiting for the previous frame
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER,
+                    (long)instance_capacity*4, GL30.GL_STREAM_DRAW);
+            GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, 0, instance_data);
+        }
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+        instance_data.clear();
+
+        if(multi_draw_indirect) {
+            commands.limit(commands_amount*COMMAND_SIZE);
+            commands.position(0);
+            GL30.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, indirect_buffer);
+            if(commands.remaining() > commands_capacity) {
+                commands_capacity = commands.remaining();
+                GL30.glBufferData(GL40.GL_DRAW_INDIRECT_BUFFER, commands,
+                        GL30.GL_STREAM_DRAW);
+            } else {
+                GL30.glBufferData(GL40.GL_DRAW_INDIRECT_BUFFER,
+                        (long)commands_capacity*4, GL30.GL_STREAM_DRAW);
+                GL30.glBufferSubData(GL40.GL_DRAW_INDIRECT_BUFFER, 0,
+                        commands);
+            }
+            GL30.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, 0);
+            commands.clear();
+        }
+    }
+
+    /**
+     * Draw commands that were uploaded. The VAO of the arena needs to be
+     * bound and the instance attributes enabled.
+     *
+     * @param first The number of the first command to draw
+     * @param amount The amount of commands to draw
+     */
+    public void draw(int first, int amount) {
+        if(amount < 1) return;
+        if(multi_draw_indirect) {
+            GL30.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, indirect_buffer);
+            GL43.glMultiDrawElementsIndirect(GL30.GL_TRIANGLES,
+                    GL30.GL_UNSIGNED_INT, (long)first*COMMAND_SIZE*4, amount,
+                    0);
+            GL30.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, 0);
+            draw_calls++;
+            return;
+        }
+        if(!base_instance) {
+            GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instance_vbo);
+        }
+        for(int i=first;i<first+amount;i++) {
+            int pos = i*COMMAND_SIZE;
+            if(base_instance) {
+                GL42.glDrawElementsInstancedBaseVertexBaseInstance(
+                        GL30.GL_TRIANGLES, commands.get(pos),
+                        GL30.GL_UNSIGNED_INT, (long)commands.get(pos+2)*4,
+                        commands.get(pos+1), commands.get(pos+3),
+                        commands.get(pos+4));
+            } else {
+                // Without base instances the attributes are moved to the
+                // first instance of the command
+                set_instance_pointers(commands.get(pos+4));
+                GL32.glDrawElementsInstancedBaseVertex(GL30.GL_TRIANGLES,
+                        commands.get(pos), GL30.GL_UNSIGNED_INT,
+                        (long)commands.get(pos+2)*4, commands.get(pos+1),
+                        commands.get(pos+3));
+            }
+            draw_calls++;
+        }
+        if(!base_instance) {
+            set_instance_pointers(0);
+            GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Get the amount of draw calls made since the last call of this method
+     *
+     * @return The amount of draw calls
+     */
+    public int get_draw_calls() {
+        int calls = draw_calls;
+        draw_calls = 0;
+        return calls;
+    }
+
+    /**
+     * Get the amount of vertices stored in the arena
+     *
+     * @return The amount of vertices
+     */
+    public int get_used_vertices() {
+        return vertex_allocator.get_used();
+    }
+
+    /**
+     * Get the amount of free ranges in the vertex and index buffers, to know
+     * if they are fragmented
+     *
+     * @return The amount of free ranges
+     */
+    public int get_free_ranges_amount() {
+        return vertex_allocator.get_free_ranges_amount()+
+                index_allocator.get_free_ranges_amount();
+    }
+
+    /**
+     * Delete the buffers and the VAO
+     */
+    public void free() {
+        GL30.glDeleteVertexArrays(vao);
+        GL30.glDeleteBuffers(vertex_vbo);
+        GL30.glDeleteBuffers(index_vbo);
+        GL30.glDeleteBuffers(instance_vbo);
+        if(multi_draw_indirect) GL30.glDeleteBuffers(indirect_buffer);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * A terrain that has a single height at each position of the XZ plane
+ *
+ * @author mibi88
+ */
+public interface HeightField {
+    /**
+     * Get the height of the terrain at a position in world space
+     *
+     * @param x
+     * @param z
+     * @return The height, or NaN if the position is outside of the terrain
+     */
+    float get_height(float x, float z);
+}
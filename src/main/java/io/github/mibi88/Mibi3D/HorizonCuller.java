@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * Finds the objects that are hidden behind the terrain. The space around the
+ * camera is split in sectors on the XZ plane, and the heightfield is sampled
+ * along rings that go outward from the camera. For each sector and each ring
+ * it keeps the highest slope of the terrain seen from the camera up to that
+ * ring: this is the horizon. An object is hidden if it is below the horizon
+ * of the terrain that is closer than it in all the sectors it covers.
+ *
+ * The slope of a sector is the lowest one of its two edges and of its
+ * middle, so that a gap in a ridge is not hidden. Only the sectors in front
+ * of the camera can be swept, the objects in the other ones are never
+ * hidden. It does not use OpenGL.
+ *
+ * @author mibi88
+ */
+public class HorizonCuller {
+    // Keeps the objects that just touch the horizon visible
+    private final float BIAS = 0.001f;
+
+    private final HeightField height_field;
+    private final int sectors;
+    private final int rings;
+    private final float ring_step;
+
+    // The horizon of each sector at each ring, ring after ring
+    private final float[] horizons;
+    // The slope at the edges of the sectors on the current ring
+    private final float[] edge_slopes;
+    private final float[] edge_sin, edge_cos;
+    private final float[] middle_sin, middle_cos;
+    private final boolean[] swept;
+
+    private float camera_x, camera_y, camera_z;
+    private boolean updated;
+
+    /**
+     * Create a new horizon culler
+     *
+     * @param height_field The terrain
+     * @param sectors The amount of sectors around the camera
+     * @param rings The amount of rings
+     * @param ring_step The distance between two rings, it should be about the
+     * size of a cell of the terrain
+     */
+    public HorizonCuller(HeightField height_field, int sectors, int rings,
+            float ring_step) {
+        this.height_field = height_field;
+        this.sectors = sectors;
+        this.rings = rings;
+        this.ring_step = ring_step;
+        horizons = new float[(rings+1)*sectors];
+        edge_slopes = new float[sectors+1];
+        swept = new boolean[sectors];
+        edge_sin = new float[sectors];
+        edge_cos = new float[sectors];
+        middle_sin = new float[sectors];
+        middle_cos = new float[sectors];
+        for(int i=0;i<sectors;i++) {
+            double angle = i*2.0*Math.PI/sectors;
+            edge_sin[i] = (float)Math.sin(angle);
+            edge_cos[i] = (float)Math.cos(angle);
+            angle += Math.PI/sectors;
+            middle_sin[i] = (float)Math.sin(angle);
+            middle_cos[i] = (float)Math.cos(angle);
+        }
+        updated = false;
+    }
+
+    /**
+     * Sweep the horizon all around a new camera position. It needs to be
+     * called each frame before testing the objects.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void update(float x, float y, float z) {
+        update(x, y, z, 0f, (float)Math.PI);
+    }
+
+    /**
+     * Sweep the horizon in some directions from a new camera position. It
+     * needs to be called each frame before testing the objects.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param angle The direction to sweep, in radians from the Z axis
+     * towards the X axis
+     * @param half_angle Half of the angle to sweep around the direction
+     */
+    public void update(float x, float y, float z, float angle,
+            float half_angle) {
+        camera_x = x;
+        camera_y = y;
+        camera_z = z;
+        float sector_size = (float)(2.0*Math.PI/sectors);
+        int first = 0;
+        int amount = sectors;
+        if(half_angle < Math.PI) {
+            first = (int)Math.floor((angle-half_angle)/sector_size);
+            amount = Math.min((int)Math.floor((angle+half_angle)/
+                    sector_size)-first+1, sectors);
+        }
+        for(int i=0;i<sectors;i++) {
+            swept[i] = false;
+        }
+        for(int n=0;n<amount;n++) {
+            int sector = Math.floorMod(first+n, sectors);
+            swept[sector] = true;
+            // Nothing hides the objects that are closer than the first ring
+            horizons[sector] = Float.NEGATIVE_INFINITY;
+        }
+        for(int r=1;r<=rings;r++) {
+            float distance = r*ring_step;
+            for(int n=0;n<=amount;n++) {
+                int edge = Math.floorMod(first+n, sectors);
+                edge_slopes[n] = get_slope(edge_sin[edge], edge_cos[edge],
+                        distance);
+            }
+            int previous = (r-1)*sectors;
+            int current = r*sectors;
+            for(int n=0;n<amount;n++) {
+                int sector = Math.floorMod(first+n, sectors);
+                float slope = Math.min(edge_slopes[n], edge_slopes[n+1]);
+                slope = Math.min(slope, get_slope(middle_sin[sector],
+                        middle_cos[sector], distance));
+                horizons[current+sector] = Math.max(horizons[previous+sector],
+                        slope);
+            }
+        }
+        updated = true;
+    }
+
+    /**
+     * Get the slope of the terrain seen from the camera in a direction
+     */
+    private float get_slope(float sin, float cos, float distance) {
+        float height = height_field.get_height(camera_x+sin*distance,
+                camera_z+cos*distance);
+        // Nothing hides the objects outside of the terrain
+        if(Float.isNaN(height)) return Float.NEGATIVE_INFINITY;
+        return (height-camera_y)/distance;
+    }
+
+    /**
+     * Check if a sphere is hidden by the terrain
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param radius The radius of the sphere
+     * @return true if the whole sphere is below the horizon
+     */
+    public boolean is_occluded(float x, float y, float z, float radius) {
+        if(!updated) return false;
+        float dx = x-camera_x, dz = z-camera_z;
+        float distance = (float)Math.sqrt(dx*dx+dz*dz);
+        float near_distance = distance-radius;
+        int ring = (int)(near_distance/ring_step);
+        if(ring < 1) return false;
+        if(ring > rings) ring = rings;
+
+        // The highest slope of the sphere seen from the camera
+        float top = y+radius-camera_y;
+        float slope = top > 0f ? top/near_distance : top/(distance+radius);
+
+        float half_angle = (float)Math.asin(radius/distance);
+        float angle = (float)Math.atan2(dx, dz);
+        float sector_size = (float)(2.0*Math.PI/sectors);
+        int first = (int)Math.floor((angle-half_angle)/sector_size);
+        int last = (int)Math.floor((angle+half_angle)/sector_size);
+        int offset = ring*sectors;
+        for(int i=first;i<=last;i++) {
+            int sector = Math.floorMod(i, sectors);
+            if(!swept[sector]) return false;
+            if(slope >= horizons[offset+sector]-BIAS) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if a box is hidden by the terrain, for example a terrain chunk
+     *
+     * @param min_x
+     * @param min_y
+     * @param min_z
+     * @param max_x
+     * @param max_y
+     * @param max_z
+     * @return true if the whole box is below the horizon
+     */
+    public boolean is_occluded(float min_x, float min_y, float min_z,
+            float max_x, float max_y, float max_z) {
+        float size_x = max_x-min_x, size_y = max_y-min_y,
+                size_z = max_z-min_z;
+        return is_occluded((min_x+max_x)/2f, (min_y+max_y)/2f,
+                (min_z+max_z)/2f, (float)Math.sqrt(size_x*size_x+
+                size_y*size_y+size_z*size_z)/2f);
+    }
+
+    /**
+     * Get the horizon of a sector
+     *
+     * @param ring The ring, the horizon contains the terrain up to it
+     * @param sector The sector, starting at the Z axis and turning towards
+     * the X axis
+     * @return The slope of the horizon seen from the camera
+     */
+    public float get_horizon(int ring, int sector) {
+        return horizons[ring*sectors+sector];
+    }
+
+    /**
+     * Get the distance covered by the rings
+     *
+     * @return The distance of the last ring
+     */
+    public float get_distance() {
+        return rings*ring_step;
+    }
+}
@@ -45,6 +45,33 @@ public class Image extends VAO {
         unbind_vao();
     }
     
+    /**
+     * Create an image from an image that was decoded before, for example on
+     * another thread. The decoded image can be freed after.
+     * 
+     * @param image The decoded image
+     * @param texture_filter The filter of the texture (final integers that
+     * start with FILTER, in the Texture class)
+     * @param texture_wrap The way to wrap the texture (final integers that
+     * start with WRAP, in the Texture class)
+     * @param texture_atlas_size The size of the texture atlas
+     * @throws Exception
+     */
+    public Image(ImageData image, int texture_filter,
+            int texture_wrap, int texture_atlas_size) throws Exception {
+        this.texture_atlas_size = texture_atlas_size;
+        
+        texture_list = new ArrayList<>();
+        Texture texture = new Texture();
+        texture_id = texture.load_texture(image,
+                texture_filter, texture_wrap, 0,
+                texture_list);
+        size = texture.get_size();
+        
+        load_quad();
+        unbind_vao();
+    }
+    
     private void load_quad() {
         float[] vertices = {
             0f, 0f, // v0
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.stb.STBImage;
+
+/**
+ * The pixels of an image decoded from a file of the resources. It does not
+ * use OpenGL, so images can be decoded on other threads while the textures
+ * are created on the thread of the window.
+ *
+ * @author mibi88
+ */
+public class ImageData {
+    private ByteBuffer pixels;
+    private final int width;
+    private final int height;
+    private final int channels;
+
+    private ImageData(ByteBuffer pixels, int width, int height,
+            int channels) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+    }
+
+    /**
+     * Decode an image to RGBA pixels
+     *
+     * @param file_name The path to the image in the resources
+     * @return The decoded image
+     * @throws Exception If the image could not be found or decoded
+     */
+    public static ImageData load(String file_name) throws Exception {
+        InputStream stream = ImageData.class.getClassLoader()
+                .getResourceAsStream(file_name);
+        if(stream == null) {
+            throw new Exception("Could not find image " + file_name + "!");
+        }
+        byte[] image_data_bytes = stream.readAllBytes();
+        stream.close();
+        ByteBuffer image_data = BufferUtils.createByteBuffer(
+                image_data_bytes.length
+        );
+        image_data.put(image_data_bytes);
+        image_data.flip();
+
+        IntBuffer width = BufferUtils.createIntBuffer(1);
+        IntBuffer height = BufferUtils.createIntBuffer(1);
+        IntBuffer channels = BufferUtils.createIntBuffer(1);
+
+        ByteBuffer image = STBImage.stbi_load_from_memory(image_data,
+                width, height, channels, 4);
+        if(image == null) {
+            throw new Exception("Failed to load image " + file_name + "!");
+        }
+        return new ImageData(image, width.get(0), height.get(0),
+                channels.get(0));
+    }
+
+    /**
+     * Get the pixels of the image, with 4 bytes per pixel
+     *
+     * @return The pixels, or null if the image was freed
+     */
+    public ByteBuffer get_pixels() {
+        return pixels;
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return The width in pixels
+     */
+    public int get_width() {
+        return width;
+    }
+
+    /**
+     * Get the height of the image
+     *
+     * @return The height in pixels
+     */
+    public int get_height() {
+        return height;
+    }
+
+    /**
+     * Get the amount of channels of the image file, the pixels always have 4
+     *
+     * @return The amount of channels
+     */
+    public int get_channels() {
+        return channels;
+    }
+
+    /**
+     * Free the pixels once they were loaded to a texture
+     */
+    public void free() {
+        if(pixels == null) return;
+        STBImage.stbi_image_free(pixels);
+        pixels = null;
+    }
+}
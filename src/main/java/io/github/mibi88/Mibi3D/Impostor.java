@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+
+/**
+ * A billboard that replaces the entities of a model when they are far away.
+ * The model is rendered once from several angles around the Y axis into a
+ * row of cells of a texture. The far entities are then drawn as quads that
+ * face the camera, all at once with instanced rendering, and each quad shows
+ * the cell that was rendered from the closest angle.
+ *
+ * The data of an instance is the center of the entity and its radius
+ * (4 floats), its rotation on the Y axis in radians and its fade (2 floats).
+ *
+ * @author mibi88
+ */
+public class Impostor extends VAO {
+    private final int INSTANCE_SIZE = 4+2;
+
+    private final int views;
+    private final int texture_id;
+    private final int instance_vbo;
+
+    private final TexturedModel model;
+
+    private FloatBuffer instance_data;
+    private int instances_amount;
+    private int instance_capacity;
+
+    /**
+     * Render a model into a new impostor texture
+     *
+     * @param model The model to render
+     * @param bake_shaders The shaders used to render the model into the
+     * texture, loaded from the impostor bake shader files
+     * @param views The amount of angles the model is rendered from
+     * @param cell_size The size of the cell of each angle, in pixels
+     * @throws Exception
+     */
+    public Impostor(TexturedModel model, Shaders bake_shaders, int views,
+            int cell_size) throws Exception {
+        super();
+        this.model = model;
+        this.views = views;
+
+        load_quad();
+        instance_vbo = create_vbo(GL30.GL_ARRAY_BUFFER);
+        int stride = INSTANCE_SIZE*4;
+        GL30.glVertexAttribPointer(1, 4, GL30.GL_FLOAT, false, stride, 0);
+        GL30.glVertexAttribPointer(2, 2, GL30.GL_FLOAT, false, stride, 4*4);
+        GL33.glVertexAttribDivisor(1, 1);
+        GL33.glVertexAttribDivisor(2, 1);
+        unbind_vbo(GL30.GL_ARRAY_BUFFER);
+        unbind_vao();
+
+        instance_data = BufferUtils.createFloatBuffer(256*INSTANCE_SIZE);
+
+        texture_id = bake(bake_shaders, cell_size);
+    }
+
+    /**
+     * Load the quad the billboards are made of, from -1 to 1 on both axes
+     */
+    private void load_quad() {
+        create_vbo(GL30.GL_ARRAY_BUFFER);
+        load_in_vbo(0, GL30.GL_ARRAY_BUFFER, 2, new float[]{
+            -1f, -1f,
+            1f, -1f,
+            1f, 1f,
+            -1f, 1f
+        }, true);
+        unbind_vbo(GL30.GL_ARRAY_BUFFER);
+
+        create_vbo(GL30.GL_ELEMENT_ARRAY_BUFFER);
+        load_in_vbo(0, GL30.GL_ELEMENT_ARRAY_BUFFER, 3, new int[]{
+            0, 1, 2,
+            2, 3, 0
+        }, false);
+    }
+
+    /**
+     * Render the model from all the angles
+     *
+     * @param shaders The bake shaders
+     * @param cell_size The size of a cell in pixels
+     * @return The id of the texture that contains the cells
+     * @throws Exception
+     */
+    private int bake(Shaders shaders, int cell_size) throws Exception {
+        Framebuffer framebuffer = new Framebuffer(cell_size*views,
+                cell_size);
+        framebuffer.bind_frame_buffer();
+
+        IntBuffer viewport = BufferUtils.createIntBuffer(4);
+        GL30.glGetIntegerv(GL30.GL_VIEWPORT, viewport);
+        GL30.glClearColor(0f, 0f, 0f, 0f);
+        GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT);
+
+        shaders.start();
+        int projection_location = shaders.get_uniform_location(
+                "projection_matrix");
+        int view_location = shaders.get_uniform_location("view_matrix");
+        int cell_size_location = shaders.get_uniform_location("cell_size");
+
+        float radius = Math.max(model.bounding_radius, 0.001f);
+        Vector3f center = model.bounding_center;
+        Matrix4f projection = new Matrix4f().setOrtho(-radius, radius,
+                -radius, radius, radius, radius*3f);
+        Matrix4f view = new Matrix4f();
+        shaders.load_in_uniform_var(projection_location, projection);
+        // Only the first cell of the texture atlas is used
+        shaders.load_in_uniform_var(cell_size_location,
+                model.texture_atlas_size > 1 ?
+                1f/(float)model.texture_atlas_size : 1f);
+
+        // The mesh is drawn from its own buffers or from its arena
+        GL30.glBindVertexArray(model.get_vao());
+        for(int i=0;i<3;i++) {
+            GL30.glEnableVertexAttribArray(i);
+        }
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, model.texture_id);
+
+        for(int i=0;i<views;i++) {
+            double angle = i*2.0*Math.PI/views;
+            float x = (float)Math.sin(angle)*radius*2f;
+            float z = (float)Math.cos(angle)*radius*2f;
+            view.setLookAt(center.x+x, center.y, center.z+z, center.x,
+                    center.y, center.z, 0f, 1f, 0f);
+            shaders.load_in_uniform_var(view_location, view);
+            GL30.glViewport(i*cell_size, 0, cell_size, cell_size);
+            GL32.glDrawElementsBaseVertex(GL30.GL_TRIANGLES,
+                    model.get_lod_indices_amount(0), GL30.GL_UNSIGNED_INT,
+                    (long)model.get_lod_first_index(0)*4,
+                    model.get_base_vertex());
+        }
+
+        for(int i=0;i<3;i++) {
+            GL30.glDisableVertexAttribArray(i);
+        }
+        GL30.glBindVertexArray(0);
+        shaders.stop();
+        framebuffer.unbind_frame_buffer();
+        GL30.glViewport(viewport.get(0), viewport.get(1), viewport.get(2),
+                viewport.get(3));
+
+        int texture = framebuffer.get_color_texture();
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, texture);
+        GL30.glGenerateMipmap(GL30.GL_TEXTURE_2D);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_MIN_FILTER,
+                GL30.GL_LINEAR_MIPMAP_LINEAR);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_S,
+                GL30.GL_CLAMP_TO_EDGE);
+        GL30.glTexParameteri(GL30.GL_TEXTURE_2D, GL30.GL_TEXTURE_WRAP_T,
+                GL30.GL_CLAMP_TO_EDGE);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+
+        // Only the color texture is kept
+        GL30.glDeleteTextures(framebuffer.get_depth_texture());
+        framebuffer.free();
+        return texture;
+    }
+
+    /**
+     * Remove the instances of the last frame
+     */
+    public void begin() {
+        instances_amount = 0;
+    }
+
+    /**
+     * Draw an entity as a billboard on this frame
+     *
+     * @param entity The entity, it needs to use the model of this impostor
+     * @param fade How much of the billboard is drawn, between 0 and 1. The
+     * mesh of the entity is drawn on the other pixels.
+     */
+    public void add(TexturedModelEntity entity, float fade) {
+        int pos = instances_amount*INSTANCE_SIZE;
+        if(instance_data.capacity() < pos+INSTANCE_SIZE) {
+            FloatBuffer new_data = BufferUtils.createFloatBuffer(
+                    instance_data.capacity()*2);
+            instance_data.clear();
+            new_data.put(instance_data);
+            instance_data = new_data;
+        }
+        float scale = entity.scale;
+        instance_data.put(pos, entity.x+model.bounding_center.x*scale);
+        instance_data.put(pos+1, entity.y+model.bounding_center.y*scale);
+        instance_data.put(pos+2, entity.z+model.bounding_center.z*scale);
+        instance_data.put(pos+3, model.bounding_radius*Math.abs(scale));
+        instance_data.put(pos+4, (float)Math.toRadians(entity.ry));
+        instance_data.put(pos+5, fade);
+        instances_amount++;
+    }
+
+    /**
+     * Get the amount of billboards added since begin was called
+     *
+     * @return The amount of billboards
+     */
+    public int get_instances_amount() {
+        return instances_amount;
+    }
+
+    /**
+     * Draw all the billboards with a single draw call. The impostor shaders
+     * need to be in use.
+     */
+    public void draw() {
+        if(instances_amount < 1) return;
+        instance_data.limit(instances_amount*INSTANCE_SIZE);
+        instance_data.position(0);
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instance_vbo);
+        if(instance_data.remaining() > instance_capacity) {
+            instance_capacity = instance_data.remaining();
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER, instance_data,
+                    GL30.GL_STREAM_DRAW);
+        } else {
+            // Orphan the old storage to avoid waiting for the previous frame
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER,
+                    (long)instance_capacity*4, GL30.GL_STREAM_DRAW);
+            GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, 0, instance_data);
+        }
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, 0);
+        instance_data.clear();
+
+        GL30.glBindVertexArray(vao);
+        for(int i=0;i<3;i++) {
+            GL30.glEnableVertexAttribArray(i);
+        }
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, texture_id);
+        GL31.glDrawElementsInstanced(GL30.GL_TRIANGLES, 6,
+                GL30.GL_UNSIGNED_INT, 0, instances_amount);
+        for(int i=0;i<3;i++) {
+            GL30.glDisableVertexAttribArray(i);
+        }
+    }
+
+    /**
+     * Get the amount of angles the model was rendered from
+     *
+     * @return The amount of cells in the texture
+     */
+    public int get_views() {
+        return views;
+    }
+
+    /**
+     * Get the texture that contains the renders of the model
+     *
+     * @return The id of the texture
+     */
+    public int get_texture_id() {
+        return texture_id;
+    }
+
+    /**
+     * Delete the texture, the VAO and the VBOs
+     */
+    @Override
+    public void free() {
+        super.free();
+        GL30.glDeleteTextures(texture_id);
+    }
+}
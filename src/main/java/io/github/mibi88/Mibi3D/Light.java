@@ -53,4 +53,25 @@ public class Light {
         linear_attenuation = 0f;
         exponential_attenuation = 0f;
     }
+    
+    /**
+     * Get the distance after which the light is too dim to be visible, when
+     * it is attenuated to less than 1/256 of its color
+     * 
+     * @return The radius of the light, or Float.POSITIVE_INFINITY if it is
+     * not attenuated with the distance
+     */
+    public float get_radius() {
+        float brightness = Math.max(r, Math.max(g, b))*256f;
+        float c = constant_attenuation-brightness;
+        if(c >= 0) return 0f;
+        if(exponential_attenuation > 0) {
+            return (float)((-linear_attenuation+Math.sqrt(
+                    linear_attenuation*linear_attenuation-
+                    4*exponential_attenuation*c))/
+                    (2*exponential_attenuation));
+        }
+        if(linear_attenuation > 0) return -c/linear_attenuation;
+        return Float.POSITIVE_INFINITY;
+    }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.ArrayList;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Divides the view frustum in clusters, with tiles of the screen and slices
+ * of the depth that get exponentially thicker with the distance, and finds
+ * the lights that reach each cluster from their radius. The lights of a
+ * cluster are stored next to each other in a single list of indices, so that
+ * a fragment only has to look at the lights of its cluster. It does not know
+ * anything about OpenGL.
+ *
+ * @author mibi88
+ */
+public class LightClusters {
+    private final int size_x, size_y, size_z;
+
+    private float near, far;
+    private float log_ratio;
+
+    // The first index and the amount of lights of each cluster
+    private final int[] clusters;
+    private int[] indices;
+    private int indices_amount;
+
+    // The range of clusters of each light: x, y and z, first and last
+    private int[] light_ranges;
+
+    private final float[] planes_x, planes_y;
+    private final Vector3f position;
+
+    /**
+     * Create a new cluster grid
+     *
+     * @param size_x The amount of tiles across the width of the screen
+     * @param size_y The amount of tiles across the height of the screen
+     * @param size_z The amount of depth slices
+     */
+    public LightClusters(int size_x, int size_y, int size_z) {
+        this.size_x = size_x;
+        this.size_y = size_y;
+        this.size_z = size_z;
+        clusters = new int[size_x*size_y*size_z*2];
+        indices = new int[1024];
+        light_ranges = new int[64*6];
+        planes_x = new float[size_x+1];
+        planes_y = new float[size_y+1];
+        position = new Vector3f();
+    }
+
+    /**
+     * Assign the lights to the clusters they reach. The lights that are not
+     * attenuated with the distance reach all the clusters.
+     *
+     * @param view_matrix The view matrix of the camera
+     * @param projection_matrix The perspective projection matrix
+     * @param near The distance of the near plane
+     * @param far The distance of the far plane
+     * @param lights The lights, the clusters refer to them by their position
+     * in this list
+     */
+    public void update(Matrix4f view_matrix, Matrix4f projection_matrix,
+            float near, float far, ArrayList<Light> lights) {
+        this.near = near;
+        this.far = far;
+        log_ratio = (float)Math.log(far/near);
+        // The tangent of the side planes of the tiles
+        float tan_x = 1f/projection_matrix.m00();
+        float tan_y = 1f/projection_matrix.m11();
+        for(int i=0;i<=size_x;i++) {
+            planes_x[i] = tan_x*(2f*i/size_x-1f);
+        }
+        for(int i=0;i<=size_y;i++) {
+            planes_y[i] = tan_y*(2f*i/size_y-1f);
+        }
+
+        if(light_ranges.length < lights.size()*6) {
+            light_ranges = new int[lights.size()*6*2];
+        }
+        for(int i=0;i<clusters.length;i++) {
+            clusters[i] = 0;
+        }
+
+        // Count the lights of each cluster
+        for(int i=0;i<lights.size();i++) {
+            int range = i*6;
+            if(!find_range(view_matrix, lights.get(i), range)) {
+                light_ranges[range] = -1;
+                continue;
+            }
+            for(int z=light_ranges[range+4];z<=light_ranges[range+5];z++) {
+                for(int y=light_ranges[range+2];y<=light_ranges[range+3];
+                        y++) {
+                    for(int x=light_ranges[range];x<=light_ranges[range+1];
+                            x++) {
+                        clusters[get_cluster(x, y, z)*2+1]++;
+                    }
+                }
+            }
+        }
+
+        // Give each cluster its place in the list of indices
+        int offset = 0;
+        for(int i=0;i<clusters.length;i+=2) {
+            clusters[i] = offset;
+            offset += clusters[i+1];
+            clusters[i+1] = 0;
+        }
+        indices_amount = offset;
+        if(indices.length < indices_amount) {
+            indices = new int[indices_amount*2];
+        }
+
+        for(int i=0;i<lights.size();i++) {
+            int range = i*6;
+            if(light_ranges[range] < 0) continue;
+            for(int z=light_ranges[range+4];z<=light_ranges[range+5];z++) {
+                for(int y=light_ranges[range+2];y<=light_ranges[range+3];
+                        y++) {
+                    for(int x=light_ranges[range];x<=light_ranges[range+1];
+                            x++) {
+                        int cluster = get_cluster(x, y, z)*2;
+                        indices[clusters[cluster]+clusters[cluster+1]] = i;
+                        clusters[cluster+1]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the clusters a light reaches
+     *
+     * @param view_matrix The view matrix of the camera
+     * @param light The light
+     * @param range The position of the range of the light in light_ranges
+     * @return false if the light does not reach the view frustum
+     */
+    private boolean find_range(Matrix4f view_matrix, Light light, int range) {
+        float radius = light.get_radius();
+        if(Float.isInfinite(radius)) {
+            light_ranges[range] = 0;
+            light_ranges[range+1] = size_x-1;
+            light_ranges[range+2] = 0;
+            light_ranges[range+3] = size_y-1;
+            light_ranges[range+4] = 0;
+            light_ranges[range+5] = size_z-1;
+            return true;
+        }
+        if(radius <= 0) return false;
+        view_matrix.transformPosition(position.set(light.x, light.y,
+                light.z));
+        float depth = -position.z;
+        if(depth+radius < near || depth-radius > far) return false;
+        light_ranges[range+4] = get_slice(Math.max(depth-radius, near));
+        light_ranges[range+5] = get_slice(Math.min(depth+radius, far));
+        return find_tiles(planes_x, position.x, depth, radius, range) &&
+                find_tiles(planes_y, position.y, depth, radius, range+2);
+    }
+
+    /**
+     * Find the tiles a sphere touches along one axis of the screen. The side
+     * planes of the tiles go through the camera, so the sphere is tested
+     * against the planes and not against the tiles of a single slice.
+     *
+     * @param planes The tangent of the side planes of the tiles
+     * @param x The position of the sphere along the axis, in view space
+     * @param depth The distance of the sphere in front of the camera
+     * @param radius The radius of the sphere
+     * @param range The position of the first and the last tile in
+     * light_ranges
+     * @return false if the sphere does not touch any tile
+     */
+    private boolean find_tiles(float[] planes, float x, float depth,
+            float radius, int range) {
+        int first = -1, last = -1;
+        for(int i=0;i<planes.length-1;i++) {
+            // The distance of the sphere to the planes on each side of the
+            // tile, positive on the side of the next tiles
+            float start = (x-planes[i]*depth)/
+                    (float)Math.sqrt(1+planes[i]*planes[i]);
+            float end = (x-planes[i+1]*depth)/
+                    (float)Math.sqrt(1+planes[i+1]*planes[i+1]);
+            if(start >= -radius && end <= radius) {
+                if(first < 0) first = i;
+                last = i;
+            }
+        }
+        if(first < 0) return false;
+        light_ranges[range] = first;
+        light_ranges[range+1] = last;
+        return true;
+    }
+
+    /**
+     * Get the depth slice that contains a distance
+     *
+     * @param depth The distance in front of the camera, between the near and
+     * the far plane
+     * @return The number of the slice
+     */
+    public int get_slice(float depth) {
+        int slice = (int)(Math.log(depth/near)/log_ratio*size_z);
+        return Math.max(0, Math.min(size_z-1, slice));
+    }
+
+    /**
+     * Get the number of a cluster
+     *
+     * @param x The tile from the left of the screen
+     * @param y The tile from the bottom of the screen
+     * @param z The depth slice
+     * @return The number of the cluster
+     */
+    public int get_cluster(int x, int y, int z) {
+        return (z*size_y+y)*size_x+x;
+    }
+
+    /**
+     * Get the position of the first light of a cluster in the list of
+     * indices
+     *
+     * @param cluster The number of the cluster
+     * @return The position in the list returned by get_indices
+     */
+    public int get_cluster_offset(int cluster) {
+        return clusters[cluster*2];
+    }
+
+    /**
+     * Get the amount of lights that reach a cluster
+     *
+     * @param cluster The number of the cluster
+     * @return The amount of lights
+     */
+    public int get_cluster_lights_amount(int cluster) {
+        return clusters[cluster*2+1];
+    }
+
+    /**
+     * Get the first index and the amount of lights of each cluster, next to
+     * each other
+     *
+     * @return The data of the clusters, it should not be modified
+     */
+    public int[] get_clusters() {
+        return clusters;
+    }
+
+    /**
+     * Get the amount of clusters
+     *
+     * @return The amount of clusters
+     */
+    public int get_clusters_amount() {
+        return size_x*size_y*size_z;
+    }
+
+    /**
+     * Get the lights of all the clusters, as indices in the list of lights
+     * given to update
+     *
+     * @return The indices, only the first get_indices_amount are used
+     */
+    public int[] get_indices() {
+        return indices;
+    }
+
+    /**
+     * Get the amount of light indices of all the clusters
+     *
+     * @return The amount of indices
+     */
+    public int get_indices_amount() {
+        return indices_amount;
+    }
+
+    /**
+     * Get the amount of tiles across the width of the screen
+     *
+     * @return The amount of tiles
+     */
+    public int get_size_x() {
+        return size_x;
+    }
+
+    /**
+     * Get the amount of tiles across the height of the screen
+     *
+     * @return The amount of tiles
+     */
+    public int get_size_y() {
+        return size_y;
+    }
+
+    /**
+     * Get the amount of depth slices
+     *
+     * @return The amount of slices
+     */
+    public int get_size_z() {
+        return size_z;
+    }
+
+    /**
+     * Get the distance of the near plane used by the last update
+     *
+     * @return The distance of the near plane
+     */
+    public float get_near() {
+        return near;
+    }
+
+    /**
+     * Get the logarithm of the ratio between the far and the near plane, the
+     * shaders use it to find the depth slice of a fragment
+     *
+     * @return log(far/near)
+     */
+    public float get_log_ratio() {
+        return log_ratio;
+    }
+}
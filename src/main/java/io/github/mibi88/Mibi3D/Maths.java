@@ -40,16 +40,31 @@ public class Maths {
      */
     public static Matrix4f create_transformation_matrix(Vector3f translation,
             float rx, float ry, float rz, float scale) {
-        Matrix4f matrix = new Matrix4f()
-                .translate(translation)
-                .rotate((float)Math.toRadians(rx),
-                        new Vector3f(1, 0, 0))
-                .rotate((float)Math.toRadians(ry),
-                        new Vector3f(0, 1, 0))
-                .rotate((float)Math.toRadians(rz),
-                        new Vector3f(0, 0, 1))
+        return create_transformation_matrix(translation.x, translation.y,
+                translation.z, rx, ry, rz, scale, new Matrix4f());
+    }
+    
+    /**
+     * Create a transformation matrix without allocating anything
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param rx The rotation on the X axis
+     * @param ry The rotation on the Y axis
+     * @param rz The rotation on the Z axis
+     * @param scale The scale
+     * @param dest The matrix the result is stored in
+     * @return dest
+     */
+    public static Matrix4f create_transformation_matrix(float x, float y,
+            float z, float rx, float ry, float rz, float scale,
+            Matrix4f dest) {
+        return dest.translation(x, y, z)
+                .rotateX((float)Math.toRadians(rx))
+                .rotateY((float)Math.toRadians(ry))
+                .rotateZ((float)Math.toRadians(rz))
                 .scale(scale);
-        return matrix;
     }
     
     /**
@@ -63,12 +78,26 @@ public class Maths {
      */
     public static Matrix4f create_transformation_matrix(Vector2f translation,
             float rot, float scale_x, float scale_y) {
-        Matrix4f matrix = new Matrix4f()
-                .translate(new Vector3f(translation.x, translation.y, 0f))
-                .rotate((float)Math.toRadians(rot),
-                        new Vector3f(0, 0, 1))
+        return create_transformation_matrix(translation.x, translation.y, rot,
+                scale_x, scale_y, new Matrix4f());
+    }
+    
+    /**
+     * Create a 2D transformation matrix without allocating anything
+     * 
+     * @param x
+     * @param y
+     * @param rot The rotation of the image
+     * @param scale_x The scale on the X axis
+     * @param scale_y The scale on the Y axis
+     * @param dest The matrix the result is stored in
+     * @return dest
+     */
+    public static Matrix4f create_transformation_matrix(float x, float y,
+            float rot, float scale_x, float scale_y, Matrix4f dest) {
+        return dest.translation(x, y, 0f)
+                .rotateZ((float)Math.toRadians(rot))
                 .scaleXY(scale_x, scale_y);
-        return matrix;
     }
     
     /**
@@ -85,12 +114,24 @@ public class Maths {
         int[] window_size = window.get_window_size();
         float aspect_ratio = (float)window_size[0]/(float)window_size[1];
         
-        Matrix4f projection_matrix = new Matrix4f()
-                .perspective((float)Math.toRadians(fov),
-                        aspect_ratio, near_plane,
-                        far_plane);
-        
-        return projection_matrix;
+        return create_projection_matrix(fov, near_plane, far_plane,
+                aspect_ratio, new Matrix4f());
+    }
+    
+    /**
+     * Create a perspective projection matrix without allocating anything
+     * 
+     * @param fov The field of view
+     * @param near_plane The distance of the near plane
+     * @param far_plane The distance of the far plane
+     * @param aspect_ratio The width of the screen divided by its height
+     * @param dest The matrix the result is stored in
+     * @return dest
+     */
+    public static Matrix4f create_projection_matrix(float fov, float near_plane,
+            float far_plane, float aspect_ratio, Matrix4f dest) {
+        return dest.setPerspective((float)Math.toRadians(fov),
+                aspect_ratio, near_plane, far_plane);
     }
     
     /**
@@ -100,15 +141,20 @@ public class Maths {
      * @return The view matrix, a Matrix4f
      */
     public static Matrix4f create_view_matrix(Camera camera) {
-        Vector3f translation = new Vector3f(-camera.x, -camera.y, -camera.z);
-        Matrix4f matrix = new Matrix4f()
-                .rotate((float)Math.toRadians(camera.rx),
-                        new Vector3f(1, 0, 0))
-                .rotate((float)Math.toRadians(camera.ry),
-                        new Vector3f(0, 1, 0))
-                .rotate((float)Math.toRadians(camera.rz),
-                        new Vector3f(0, 0, 1))
-                .translate(translation);
-        return matrix;
+        return create_view_matrix(camera, new Matrix4f());
+    }
+    
+    /**
+     * Create a view matrix from a Camera object without allocating anything
+     * 
+     * @param camera The Camera object
+     * @param dest The matrix the result is stored in
+     * @return dest
+     */
+    public static Matrix4f create_view_matrix(Camera camera, Matrix4f dest) {
+        return dest.rotationX((float)Math.toRadians(camera.rx))
+                .rotateY((float)Math.toRadians(camera.ry))
+                .rotateZ((float)Math.toRadians(camera.rz))
+                .translate(-camera.x, -camera.y, -camera.z);
     }
 }
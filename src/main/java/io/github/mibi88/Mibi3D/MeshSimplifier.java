@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Simplifies meshes with quadric error metrics (Garland and Heckbert). Edges
+ * are collapsed into one of their vertices, so the simplified meshes only
+ * use vertices of the original mesh and can share its vertex buffer: only
+ * the indices change. The vertices that have the same position and texture
+ * coordinates are merged first, as the meshes loaded by Assimp have separate
+ * vertices for each face. The edges that are then only used by one triangle
+ * (borders and texture seams) are kept in place by extra planes along them.
+ *
+ * @author mibi88
+ */
+public class MeshSimplifier {
+    private static final float BORDER_WEIGHT = 1000f;
+    // A collapse is refused if it turns a triangle by more than ~80 degrees
+    private static final float MIN_NORMAL_DOT = 0.2f;
+
+    private final float[] vertices;
+    private final int[] triangles;
+    private final boolean[] removed;
+    private int triangles_amount;
+
+    // The 10 unique coefficients of the symmetric 4x4 quadric of each vertex
+    private final double[] quadrics;
+    private final int[] collapsed_to;
+    private final int[] versions;
+    private final ArrayList<ArrayList<Integer>> vertex_triangles;
+
+    private static class Collapse implements Comparable<Collapse> {
+        int from, to;
+        int from_version, to_version;
+        double cost;
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    private final PriorityQueue<Collapse> queue;
+
+    private MeshSimplifier(float[] vertices, float[] texture_coords,
+            int[] indices) {
+        this.vertices = vertices;
+        int vertex_count = vertices.length/3;
+        triangles = weld(vertices, texture_coords, indices);
+        triangles_amount = indices.length/3;
+        removed = new boolean[triangles_amount];
+        // Welding can make some triangles degenerate
+        for(int t=0;t<removed.length;t++) {
+            int a = triangles[t*3], b = triangles[t*3+1], c = triangles[t*3+2];
+            if(a == b || b == c || a == c) {
+                removed[t] = true;
+                triangles_amount--;
+            }
+        }
+        quadrics = new double[vertex_count*10];
+        collapsed_to = new int[vertex_count];
+        versions = new int[vertex_count];
+        vertex_triangles = new ArrayList<>(vertex_count);
+        for(int i=0;i<vertex_count;i++) {
+            collapsed_to[i] = i;
+            vertex_triangles.add(new ArrayList<>());
+        }
+        queue = new PriorityQueue<>();
+    }
+
+    /**
+     * Create simplified versions of a mesh
+     *
+     * @param vertices The vertices of the mesh (x, y, z for each vertex)
+     * @param texture_coords The texture coordinates of the mesh
+     * @param indices The indices of the triangles of the mesh
+     * @param ratios The amount of triangles to keep for each level, as a
+     * fraction of the amount of triangles of the mesh. They need to be
+     * decreasing.
+     * @return The indices of each level. A level can have more triangles than
+     * asked for if the mesh could not be simplified more without changing
+     * its shape too much.
+     */
+    public static int[][] simplify(float[] vertices, float[] texture_coords,
+            int[] indices, float[] ratios) {
+        MeshSimplifier simplifier = new MeshSimplifier(vertices,
+                texture_coords, indices);
+        simplifier.compute_quadrics();
+        simplifier.fill_queue();
+        int[][] levels = new int[ratios.length][];
+        int triangles = indices.length/3;
+        for(int i=0;i<ratios.length;i++) {
+            simplifier.collapse_until(Math.max((int)(triangles*ratios[i]), 1));
+            levels[i] = simplifier.get_indices();
+        }
+        return levels;
+    }
+
+    /**
+     * Make the triangles use a single vertex for all the vertices that have
+     * the same position and texture coordinates
+     *
+     * @return The new indices
+     */
+    private static int[] weld(float[] vertices, float[] texture_coords,
+            int[] indices) {
+        HashMap<String, Integer> unique = new HashMap<>();
+        int vertex_count = vertices.length/3;
+        int[] welded = new int[vertex_count];
+        for(int i=0;i<vertex_count;i++) {
+            float u = i*2+1 < texture_coords.length ? texture_coords[i*2] : 0f;
+            float v = i*2+1 < texture_coords.length ?
+                    texture_coords[i*2+1] : 0f;
+            String key = vertices[i*3]+" "+vertices[i*3+1]+" "+
+                    vertices[i*3+2]+" "+u+" "+v;
+            Integer first = unique.putIfAbsent(key, i);
+            welded[i] = first == null ? i : first;
+        }
+        int[] triangles = new int[indices.length];
+        for(int i=0;i<indices.length;i++) {
+            triangles[i] = welded[indices[i]];
+        }
+        return triangles;
+    }
+
+    private void compute_quadrics() {
+        // Count how many triangles use each edge to find the borders
+        HashMap<Long, Integer> edge_uses = new HashMap<>();
+        for(int t=0;t<removed.length;t++) {
+            if(removed[t]) continue;
+            for(int e=0;e<3;e++) {
+                int a = triangles[t*3+e], b = triangles[t*3+(e+1)%3];
+                edge_uses.merge(edge_key(a, b), 1, Integer::sum);
+            }
+        }
+        double[] plane = new double[4];
+        for(int t=0;t<removed.length;t++) {
+            if(removed[t]) continue;
+            int a = triangles[t*3], b = triangles[t*3+1], c = triangles[t*3+2];
+            for(int e=0;e<3;e++) {
+                vertex_triangles.get(triangles[t*3+e]).add(t);
+            }
+            if(!triangle_plane(a, b, c, plane)) {
+                continue;
+            }
+            add_plane(a, plane, 1.0);
+            add_plane(b, plane, 1.0);
+            add_plane(c, plane, 1.0);
+            // Border edges get a plane perpendicular to the triangle
+            for(int e=0;e<3;e++) {
+                int v0 = triangles[t*3+e], v1 = triangles[t*3+(e+1)%3];
+                if(edge_uses.get(edge_key(v0, v1)) != 1) continue;
+                double ex = vertices[v1*3]-vertices[v0*3];
+                double ey = vertices[v1*3+1]-vertices[v0*3+1];
+                double ez = vertices[v1*3+2]-vertices[v0*3+2];
+                // Cross product of the edge and the normal of the triangle
+                double nx = ey*plane[2]-ez*plane[1];
+                double ny = ez*plane[0]-ex*plane[2];
+                double nz = ex*plane[1]-ey*plane[0];
+                double length = Math.sqrt(nx*nx+ny*ny+nz*nz);
+                if(length < 1e-12) continue;
+                nx /= length;
+                ny /= length;
+                nz /= length;
+                double[] border = {nx, ny, nz, -(nx*vertices[v0*3]+
+                        ny*vertices[v0*3+1]+nz*vertices[v0*3+2])};
+                add_plane(v0, border, BORDER_WEIGHT);
+                add_plane(v1, border, BORDER_WEIGHT);
+            }
+        }
+    }
+
+    private long edge_key(int a, int b) {
+        int min = Math.min(a, b), max = Math.max(a, b);
+        return ((long)min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Compute the normalised plane of a triangle
+     *
+     * @return false if the triangle has no area
+     */
+    private boolean triangle_plane(int a, int b, int c, double[] plane) {
+        double abx = vertices[b*3]-vertices[a*3];
+        double aby = vertices[b*3+1]-vertices[a*3+1];
+        double abz = vertices[b*3+2]-vertices[a*3+2];
+        double acx = vertices[c*3]-vertices[a*3];
+        double acy = vertices[c*3+1]-vertices[a*3+1];
+        double acz = vertices[c*3+2]-vertices[a*3+2];
+        double nx = aby*acz-abz*acy;
+        double ny = abz*acx-abx*acz;
+        double nz = abx*acy-aby*acx;
+        double length = Math.sqrt(nx*nx+ny*ny+nz*nz);
+        if(length < 1e-12) return false;
+        plane[0] = nx/length;
+        plane[1] = ny/length;
+        plane[2] = nz/length;
+        plane[3] = -(plane[0]*vertices[a*3]+plane[1]*vertices[a*3+1]+
+                plane[2]*vertices[a*3+2]);
+        return true;
+    }
+
+    private void add_plane(int vertex, double[] p, double weight) {
+        int q = vertex*10;
+        quadrics[q] += weight*p[0]*p[0];
+        quadrics[q+1] += weight*p[0]*p[1];
+        quadrics[q+2] += weight*p[0]*p[2];
+        quadrics[q+3] += weight*p[0]*p[3];
+        quadrics[q+4] += weight*p[1]*p[1];
+        quadrics[q+5] += weight*p[1]*p[2];
+        quadrics[q+6] += weight*p[1]*p[3];
+        quadrics[q+7] += weight*p[2]*p[2];
+        quadrics[q+8] += weight*p[2]*p[3];
+        quadrics[q+9] += weight*p[3]*p[3];
+    }
+
+    /**
+     * Get the error of moving the vertices a and b to the position of the
+     * vertex target
+     */
+    private double error(int a, int b, int target) {
+        double x = vertices[target*3];
+        double y = vertices[target*3+1];
+        double z = vertices[target*3+2];
+        double error = 0;
+        for(int n=0;n<2;n++) {
+            int q = (n == 0 ? a : b)*10;
+            error += quadrics[q]*x*x+2*quadrics[q+1]*x*y+
+                    2*quadrics[q+2]*x*z+2*quadrics[q+3]*x+
+                    quadrics[q+4]*y*y+2*quadrics[q+5]*y*z+
+                    2*quadrics[q+6]*y+quadrics[q+7]*z*z+
+                    2*quadrics[q+8]*z+quadrics[q+9];
+        }
+        return error;
+    }
+
+    private void fill_queue() {
+        for(int t=0;t<removed.length;t++) {
+            if(removed[t]) continue;
+            for(int e=0;e<3;e++) {
+                int a = triangles[t*3+e], b = triangles[t*3+(e+1)%3];
+                // The edges shared by two triangles are added twice, the
+                // second collapse is then skipped as it is outdated
+                push_edge(a, b);
+            }
+        }
+    }
+
+    private void push_edge(int a, int b) {
+        Collapse collapse = new Collapse();
+        double to_b = error(a, b, b);
+        double to_a = error(a, b, a);
+        if(to_b <= to_a) {
+            collapse.from = a;
+            collapse.to = b;
+            collapse.cost = to_b;
+        } else {
+            collapse.from = b;
+            collapse.to = a;
+            collapse.cost = to_a;
+        }
+        collapse.from_version = versions[collapse.from];
+        collapse.to_version = versions[collapse.to];
+        queue.add(collapse);
+    }
+
+    private int find(int vertex) {
+        while(collapsed_to[vertex] != vertex) {
+            collapsed_to[vertex] = collapsed_to[collapsed_to[vertex]];
+            vertex = collapsed_to[vertex];
+        }
+        return vertex;
+    }
+
+    private void collapse_until(int target) {
+        while(triangles_amount > target && !queue.isEmpty()) {
+            Collapse collapse = queue.poll();
+            int from = collapse.from, to = collapse.to;
+            // The edge changed since it was added to the queue
+            if(find(from) != from || find(to) != to ||
+                    versions[from] != collapse.from_version ||
+                    versions[to] != collapse.to_version) {
+                continue;
+            }
+            if(flips(from, to)) continue;
+            apply(from, to);
+        }
+    }
+
+    /**
+     * Check if moving a vertex to another one would flip one of its
+     * triangles
+     */
+    private boolean flips(int from, int to) {
+        double[] before = new double[4];
+        double[] after = new double[4];
+        ArrayList<Integer> list = vertex_triangles.get(from);
+        for(int i=0;i<list.size();i++) {
+            int t = list.get(i);
+            if(removed[t]) continue;
+            int a = find(triangles[t*3]), b = find(triangles[t*3+1]);
+            int c = find(triangles[t*3+2]);
+            if(a == to || b == to || c == to) continue;
+            if(!triangle_plane(a, b, c, before)) continue;
+            int na = a == from ? to : a;
+            int nb = b == from ? to : b;
+            int nc = c == from ? to : c;
+            if(!triangle_plane(na, nb, nc, after)) return true;
+            if(before[0]*after[0]+before[1]*after[1]+before[2]*after[2] <
+                    MIN_NORMAL_DOT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void apply(int from, int to) {
+        collapsed_to[from] = to;
+        int qf = from*10, qt = to*10;
+        for(int i=0;i<10;i++) {
+            quadrics[qt+i] += quadrics[qf+i];
+        }
+        versions[to]++;
+        ArrayList<Integer> from_list = vertex_triangles.get(from);
+        ArrayList<Integer> to_list = vertex_triangles.get(to);
+        for(int i=0;i<from_list.size();i++) {
+            int t = from_list.get(i);
+            if(removed[t]) continue;
+            int a = find(triangles[t*3]), b = find(triangles[t*3+1]);
+            int c = find(triangles[t*3+2]);
+            if(a == b || b == c || a == c) {
+                removed[t] = true;
+                triangles_amount--;
+            } else {
+                to_list.add(t);
+            }
+        }
+        from_list.clear();
+        // Update the costs of the edges around the vertex
+        for(int i=0;i<to_list.size();i++) {
+            int t = to_list.get(i);
+            if(removed[t]) continue;
+            for(int e=0;e<3;e++) {
+                int v = find(triangles[t*3+e]);
+                if(v != to) push_edge(to, v);
+            }
+        }
+    }
+
+    private int[] get_indices() {
+        int[] indices = new int[triangles_amount*3];
+        int pos = 0;
+        for(int t=0;t<removed.length;t++) {
+            if(removed[t]) continue;
+            indices[pos++] = find(triangles[t*3]);
+            indices[pos++] = find(triangles[t*3+1]);
+            indices[pos++] = find(triangles[t*3+2]);
+        }
+        return indices;
+    }
+}
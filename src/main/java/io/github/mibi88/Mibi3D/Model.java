@@ -17,20 +17,13 @@
  */
 package io.github.mibi88.Mibi3D;
 
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
 
-import java.nio.IntBuffer;
-import java.util.ArrayList;
+import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
-import org.lwjgl.PointerBuffer;
-import org.lwjgl.assimp.AIMesh;
-import org.lwjgl.assimp.AIScene;
-import org.lwjgl.assimp.Assimp;
-import static org.lwjgl.assimp.Assimp.aiProcess_Triangulate;
-import org.lwjgl.assimp.AIVector3D;
-import org.lwjgl.assimp.AIFace;
 
 /**
  * A 3D model
@@ -38,8 +31,57 @@ import org.lwjgl.assimp.AIFace;
  * @author mibi88
  */
 public class Model extends VAO {
+    /**
+     * The amount of floats stored per instance in the instance VBO: a 4x4
+     * transformation matrix followed by the texture atlas offset (x, y), the
+     * cell size and the fade towards the impostor
+     */
+    public static final int INSTANCE_DATA_SIZE = 16+4;
+    
     public float shine_damper = 10f, reflectivity = 0f;
     
+    /**
+     * The axis aligned bounding box of the model, in model space
+     */
+    public final Vector3f aabb_min = new Vector3f(),
+            aabb_max = new Vector3f();
+    
+    /**
+     * The bounding sphere of the model, in model space
+     */
+    public final Vector3f bounding_center = new Vector3f();
+    public float bounding_radius;
+    
+    /**
+     * The radius used to measure the size of the model on the screen when
+     * selecting its level of detail. It is the bounding radius, except for
+     * meshes made of several smaller objects.
+     */
+    public float lod_radius;
+    
+    private int instance_vbo = 0;
+    private int instance_capacity = 0;
+    
+    // The mesh is kept to be able to move it to a GeometryArena later
+    private float[] mesh_vertices, mesh_normals, mesh_texture_coords;
+    private int[] mesh_indices;
+    
+    // The position of the mesh in the buffers of the VAO
+    private GeometryArena arena = null;
+    private int base_vertex = 0, first_index = 0;
+    private int arena_vertices_amount = 0;
+    
+    // The levels of detail. The indices of all the levels are stored one
+    // after the other in the index buffer, the level 0 is the full mesh.
+    private int[] lod_indices;
+    private int[] lod_offsets = {0};
+    private int[] lod_counts;
+    private float[] lod_screen_sizes = {0f};
+    
+    // How far the screen size has to go past a threshold before the level
+    // changes, to avoid switching back and forth on it
+    private final float LOD_HYSTERESIS = 0.15f;
+    
     /**
      * Load a model
      * 
@@ -62,106 +104,17 @@ public class Model extends VAO {
      * @throws Exception
      */
     public Model(String obj_file, int mesh_num) throws Exception {
+        this(Mesh.load(obj_file, mesh_num));
+    }
+    
+    /**
+     * Load a model from a mesh that was loaded before
+     * 
+     * @param mesh The mesh to load
+     */
+    public Model(Mesh mesh) {
         super();
-        InputStream stream = getClass().getClassLoader().getResourceAsStream(
-                obj_file
-        );
-        byte[] file_bytes = stream.readAllBytes();
-        ByteBuffer file_data = BufferUtils.createByteBuffer(
-                file_bytes.length
-        );
-        file_data.put(file_bytes);
-        file_data.flip();
-        AIScene ai_scene = Assimp.aiImportFileFromMemory(file_data,
-                aiProcess_Triangulate, "");
-        if (ai_scene == null) {
-            throw new Exception("Error when loading model!");
-        }
-        int mesh_amount = ai_scene.mNumMeshes();
-        if(mesh_num < 0 || mesh_num >= mesh_amount) {
-            throw new Exception("Bad mesh number!");
-        }
-        PointerBuffer ai_meshes = ai_scene.mMeshes();
-        if(ai_meshes == null) {
-            throw new Exception("ai_meshes is null");
-        }
-        AIMesh mesh = AIMesh.create(ai_meshes.get(mesh_num));
-        
-        ArrayList<Float> vertices_array = new ArrayList<>();
-        ArrayList<Float> texture_coords_array = new ArrayList<>();
-        ArrayList<Float> normals_array = new ArrayList<>();
-        ArrayList<Integer> indices_array = new ArrayList<>();
-        
-        // Vertices
-        AIVector3D.Buffer vertices_buffer = mesh.mVertices();
-        
-        for(int i=0;i<vertices_buffer.limit();i++) {
-            AIVector3D vector = vertices_buffer.get(i);
-            
-            vertices_array.add(vector.x());
-            vertices_array.add(vector.y());
-            vertices_array.add(vector.z());
-        }
-        
-        // Texture coordinates
-        AIVector3D.Buffer texture_coords_buffer = mesh.mTextureCoords(0);
-        if(texture_coords_buffer == null) {
-            throw new Exception("Texture coordinates buffer is null");
-        }
-        
-        for(int i=0;i<texture_coords_buffer.limit();i++) {
-            AIVector3D vector = texture_coords_buffer.get(i);
-            
-            texture_coords_array.add(vector.x());
-            texture_coords_array.add(1-vector.y());
-        }
-        
-        // Normals
-        AIVector3D.Buffer normals_buffer = mesh.mNormals();
-        if(normals_buffer == null) {
-            throw new Exception("Normals buffer is null");
-        }
-        
-        for(int i=0;i<normals_buffer.limit();i++) {
-            AIVector3D vector = normals_buffer.get(i);
-            
-            normals_array.add(vector.x());
-            normals_array.add(vector.y());
-            normals_array.add(vector.z());
-        }
-        // Indices
-        int faces_amount = mesh.mNumFaces();
-        AIFace.Buffer facesBuffer = mesh.mFaces();
-        for(int i=0;i<faces_amount;i++) {
-            AIFace face = facesBuffer.get(i);
-            if(face.mNumIndices() != 3) {
-                throw new Exception("Three indices required!");
-            }
-            IntBuffer indices = face.mIndices();
-            indices_array.add(indices.get(0));
-            indices_array.add(indices.get(1));
-            indices_array.add(indices.get(2));
-        }
-        
-        // Convert all ArrayLists to arrays
-        float[] vertices = new float[vertices_array.size()];
-        float[] texture_coords = new float[texture_coords_array.size()];
-        float[] normals = new float[normals_array.size()];
-        int[] indices = new int[indices_array.size()];
-        
-        for(int i=0;i<vertices.length;i++) {
-            vertices[i] = vertices_array.get(i);
-        }
-        for(int i=0;i<texture_coords.length;i++) {
-            texture_coords[i] = texture_coords_array.get(i);
-        }
-        for(int i=0;i<normals.length;i++) {
-            normals[i] = normals_array.get(i);
-        }
-        for(int i=0;i<indices.length;i++) {
-            indices[i] = indices_array.get(i);
-        }
-        init(vertices, indices, normals, texture_coords);
+        init(mesh.vertices, mesh.indices, mesh.normals, mesh.texture_coords);
     }
     
     /**
@@ -176,6 +129,16 @@ public class Model extends VAO {
             float[] texture_coords) {
         vertices_amount = indices.length;
         
+        mesh_vertices = vertices;
+        mesh_indices = indices;
+        mesh_normals = normals;
+        mesh_texture_coords = texture_coords;
+        
+        lod_indices = indices;
+        lod_counts = new int[]{indices.length};
+        
+        compute_bounds(vertices);
+        
         // Load the vertices into a VBO
         load_vertices(vertices);
         
@@ -192,6 +155,43 @@ public class Model extends VAO {
         unbind_vao();
     }
     
+    /**
+     * Compute the bounding box and the bounding sphere of the model
+     * 
+     * @param vertices The array of vertices
+     */
+    private void compute_bounds(float[] vertices) {
+        if(vertices.length < 3) {
+            aabb_min.set(0f);
+            aabb_max.set(0f);
+            bounding_center.set(0f);
+            bounding_radius = 0f;
+            lod_radius = 0f;
+            return;
+        }
+        aabb_min.set(Float.POSITIVE_INFINITY);
+        aabb_max.set(Float.NEGATIVE_INFINITY);
+        for(int i=0;i+2<vertices.length;i+=3) {
+            aabb_min.x = Math.min(aabb_min.x, vertices[i]);
+            aabb_min.y = Math.min(aabb_min.y, vertices[i+1]);
+            aabb_min.z = Math.min(aabb_min.z, vertices[i+2]);
+            aabb_max.x = Math.max(aabb_max.x, vertices[i]);
+            aabb_max.y = Math.max(aabb_max.y, vertices[i+1]);
+            aabb_max.z = Math.max(aabb_max.z, vertices[i+2]);
+        }
+        // The sphere is centered on the box, so that it is never bigger than
+        // the box itself
+        aabb_min.add(aabb_max, bounding_center).mul(0.5f);
+        float max_distance = 0f;
+        for(int i=0;i+2<vertices.length;i+=3) {
+            float distance = bounding_center.distanceSquared(vertices[i],
+                    vertices[i+1], vertices[i+2]);
+            if(distance > max_distance) max_distance = distance;
+        }
+        bounding_radius = (float)Math.sqrt(max_distance);
+        lod_radius = bounding_radius;
+    }
+    
     /**
      * Load the vertices in a VBO
      * 
@@ -256,6 +256,337 @@ public class Model extends VAO {
                 3, indices, false);
     }
     
+    /**
+     * Create the VBO that contains the per instance data used when rendering
+     * multiple entities of this model with a single draw call. The matrix
+     * takes the attributes 3 to 6 and the texture atlas data the attribute 7.
+     */
+    public void enable_instancing() {
+        // The arena has its own instance VBO
+        if(instance_vbo != 0 || arena != null) return;
+        
+        GL30.glBindVertexArray(vao);
+        instance_vbo = create_vbo(GL30.GL_ARRAY_BUFFER);
+        
+        int stride = INSTANCE_DATA_SIZE*4;
+        // A mat4 attribute takes 4 vec4 attributes
+        for(int i=0;i<4;i++) {
+            GL30.glVertexAttribPointer(3+i, 4, GL30.GL_FLOAT, false,
+                    stride, i*4*4);
+            GL33.glVertexAttribDivisor(3+i, 1);
+        }
+        GL30.glVertexAttribPointer(7, 4, GL30.GL_FLOAT, false,
+                stride, 16*4);
+        GL33.glVertexAttribDivisor(7, 1);
+        
+        unbind_vbo(GL30.GL_ARRAY_BUFFER);
+        unbind_vao();
+    }
+    
+    /**
+     * Check if the instance VBO of this model was created
+     * 
+     * @return true if enable_instancing was called
+     */
+    public boolean has_instancing() {
+        return instance_vbo != 0 || arena != null;
+    }
+    
+    /**
+     * Load the per instance data in the instance VBO
+     * 
+     * @param data The data to load, from its position to its limit
+     */
+    public void load_instances(FloatBuffer data) {
+        GL30.glBindBuffer(GL30.GL_ARRAY_BUFFER, instance_vbo);
+        if(data.remaining() > instance_capacity) {
+            instance_capacity = data.remaining();
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER, data,
+                    GL30.GL_STREAM_DRAW);
+        } else {
+            // Orphan the old storage to avoid waiting for the previous draw
+            GL30.glBufferData(GL30.GL_ARRAY_BUFFER,
+                    (long)instance_capacity*4, GL30.GL_STREAM_DRAW);
+            GL30.glBufferSubData(GL30.GL_ARRAY_BUFFER, 0, data);
+        }
+        unbind_vbo(GL30.GL_ARRAY_BUFFER);
+    }
+    
+    /**
+     * Generate lower levels of detail of the mesh with quadric error metrics.
+     * It needs to be done before the model is moved to a geometry arena.
+     * 
+     * @param ratios The amount of triangles of each level, relative to the
+     * full mesh, for example 0.5f for half of the triangles
+     * @param screen_sizes The size of the model on the screen, as a fraction
+     * of the height of the screen, below which each level is used
+     * @throws Exception
+     */
+    public void generate_lods(float[] ratios, float[] screen_sizes)
+            throws Exception {
+        set_lods(MeshSimplifier.simplify(mesh_vertices, mesh_texture_coords,
+                mesh_indices, ratios), screen_sizes);
+    }
+    
+    /**
+     * Set the lower levels of detail of the mesh. They use the vertices of
+     * the full mesh, only their indices are different.
+     * 
+     * @param lods The indices of each level, from the most to the least
+     * detailed
+     * @param screen_sizes The size of the model on the screen, as a fraction
+     * of the height of the screen, below which each level is used
+     * @throws Exception
+     */
+    public void set_lods(int[][] lods, float[] screen_sizes) throws Exception {
+        if(arena != null) {
+            throw new Exception("The levels of detail need to be set before "
+                    + "the model is moved to an arena!");
+        }
+        if(lods.length != screen_sizes.length) {
+            throw new Exception("There needs to be a screen size for each "
+                    + "level of detail!");
+        }
+        load_lods(lods, screen_sizes);
+    }
+    
+    /**
+     * Store the levels of detail and load them in the index VBO, without
+     * checking them
+     * 
+     * @param lods The indices of each level, from the most to the least
+     * detailed
+     * @param screen_sizes The screen size below which each level is used
+     */
+    void load_lods(int[][] lods, float[] screen_sizes) {
+        int size = mesh_indices.length;
+        for(int i=0;i<lods.length;i++) {
+            size += lods[i].length;
+        }
+        lod_indices = new int[size];
+        lod_offsets = new int[lods.length+1];
+        lod_counts = new int[lods.length+1];
+        lod_screen_sizes = new float[lods.length+1];
+        System.arraycopy(mesh_indices, 0, lod_indices, 0,
+                mesh_indices.length);
+        lod_counts[0] = mesh_indices.length;
+        int offset = mesh_indices.length;
+        for(int i=0;i<lods.length;i++) {
+            System.arraycopy(lods[i], 0, lod_indices, offset, lods[i].length);
+            lod_offsets[i+1] = offset;
+            lod_counts[i+1] = lods[i].length;
+            lod_screen_sizes[i+1] = screen_sizes[i];
+            offset += lods[i].length;
+        }
+        
+        // Load the indices of all the levels in the index VBO
+        GL30.glBindVertexArray(vao);
+        GL30.glBindBuffer(GL30.GL_ELEMENT_ARRAY_BUFFER, get_vbo(1));
+        load_in_vbo(0, GL30.GL_ELEMENT_ARRAY_BUFFER, 3, lod_indices, false);
+        unbind_vao();
+    }
+    
+    /**
+     * Select the level of detail to draw the model with
+     * 
+     * @param screen_size The size of the model on the screen, as a fraction
+     * of the height of the screen
+     * @param current The level used on the previous frame
+     * @return The level of detail to use
+     */
+    public int select_lod(float screen_size, int current) {
+        int lod = Math.min(Math.max(current, 0), lod_counts.length-1);
+        while(lod+1 < lod_counts.length && screen_size <
+                lod_screen_sizes[lod+1]*(1f-LOD_HYSTERESIS)) {
+            lod++;
+        }
+        while(lod > 0 && screen_size >
+                lod_screen_sizes[lod]*(1f+LOD_HYSTERESIS)) {
+            lod--;
+        }
+        return lod;
+    }
+    
+    /**
+     * Get the amount of levels of detail, including the full mesh
+     * 
+     * @return The amount of levels
+     */
+    public int get_lods_amount() {
+        return lod_counts.length;
+    }
+    
+    /**
+     * Get the position of the first index of a level of detail in the index
+     * VBO
+     * 
+     * @param lod The level of detail
+     * @return The position of the first index
+     */
+    public int get_lod_first_index(int lod) {
+        return first_index+lod_offsets[lod];
+    }
+    
+    /**
+     * Get the amount of indices of a level of detail
+     * 
+     * @param lod The level of detail
+     * @return The amount of indices
+     */
+    public int get_lod_indices_amount(int lod) {
+        return lod_counts[lod];
+    }
+    
+    /**
+     * Get the indices of a level of detail
+     * 
+     * @param lod The level of detail
+     * @return A copy of the indices of this level
+     */
+    public int[] get_lod_indices(int lod) {
+        return Arrays.copyOfRange(lod_indices, lod_offsets[lod],
+                lod_offsets[lod]+lod_counts[lod]);
+    }
+    
+    /**
+     * Get the screen sizes below which each lower level of detail is used
+     * 
+     * @return The screen sizes of the levels 1 and up
+     */
+    public float[] get_lod_screen_sizes() {
+        return Arrays.copyOfRange(lod_screen_sizes, 1,
+                lod_screen_sizes.length);
+    }
+    
+    /**
+     * Get the amount of indices of all the levels of detail
+     * 
+     * @return The amount of indices stored in the index VBO
+     */
+    public int get_indices_amount() {
+        return lod_indices.length;
+    }
+    
+    /**
+     * Move the mesh of this model to a geometry arena. The VAO and the VBOs
+     * of the model are deleted and the model is then drawn from the VAO of
+     * the arena.
+     * 
+     * @param arena The arena to store the mesh in
+     */
+    public void move_to_arena(GeometryArena arena) {
+        if(this.arena != null) return;
+        arena.add(this, mesh_vertices, mesh_texture_coords, mesh_normals,
+                lod_indices);
+        super.free();
+        vbo_list.clear();
+        instance_vbo = 0;
+        instance_capacity = 0;
+        vao = arena.get_vao();
+    }
+    
+    /**
+     * Set the position of the mesh in a geometry arena. It is called by the
+     * arena when the mesh is stored or moved.
+     * 
+     * @param arena The arena that contains the mesh
+     * @param base_vertex The position of the first vertex of the mesh
+     * @param vertices_amount The amount of vertices of the mesh
+     * @param first_index The position of the first index of the mesh
+     */
+    void set_arena_range(GeometryArena arena, int base_vertex,
+            int vertices_amount, int first_index) {
+        this.arena = arena;
+        this.base_vertex = base_vertex;
+        this.arena_vertices_amount = vertices_amount;
+        this.first_index = first_index;
+    }
+    
+    /**
+     * Get the arena that contains the mesh of this model
+     * 
+     * @return The arena, or null if the model has its own VAO
+     */
+    public GeometryArena get_arena() {
+        return arena;
+    }
+    
+    /**
+     * Get the value added to the indices when drawing this model
+     * 
+     * @return The position of the first vertex of the model in its VBO
+     */
+    public int get_base_vertex() {
+        return base_vertex;
+    }
+    
+    /**
+     * Get the position of the first index of this model in its index VBO
+     * 
+     * @return The position of the first index
+     */
+    public int get_first_index() {
+        return first_index;
+    }
+    
+    /**
+     * Get the amount of vertices stored in the arena for this model
+     * 
+     * @return The amount of vertices, without the indices
+     */
+    int get_arena_vertices_amount() {
+        return arena_vertices_amount;
+    }
+    
+    /**
+     * Get the vertices of the mesh
+     * 
+     * @return The array of vertices
+     */
+    public float[] get_mesh_vertices() {
+        return mesh_vertices;
+    }
+    
+    /**
+     * Get the indices of the mesh
+     * 
+     * @return The array of indices
+     */
+    public int[] get_mesh_indices() {
+        return mesh_indices;
+    }
+    
+    /**
+     * Get the normals of the mesh
+     * 
+     * @return The array of normals
+     */
+    public float[] get_mesh_normals() {
+        return mesh_normals;
+    }
+    
+    /**
+     * Get the texture coordinates of the mesh
+     * 
+     * @return The array of texture coordinates
+     */
+    public float[] get_mesh_texture_coords() {
+        return mesh_texture_coords;
+    }
+    
+    /**
+     * Delete the VAO and the VBOs, or free the ranges of the mesh if it is
+     * in an arena
+     */
+    @Override
+    public void free() {
+        if(arena != null) {
+            arena.remove(this);
+            return;
+        }
+        super.free();
+    }
+    
     /**
      * Get the amount of vertices in this model
      * 
@@ -29,6 +29,12 @@ public abstract class ModelEntity {
     public Shaders shaders;
     public int transformation_matrix_location;
     
+    /**
+     * Set it to true before adding the entity to the engine if it will never
+     * move, so that its position does not need to be checked on every frame
+     */
+    public boolean is_static = false;
+    
     /**
      * Create a new entity of a 3D object
      * 
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Measures the time each phase of a frame takes on the CPU and on the GPU.
+ * The GPU time of each phase is measured with a GL_TIME_ELAPSED query, from
+ * a ring of queries for a few frames, so that the results are read once they
+ * are available and the CPU never waits for the GPU. When the GPU is more
+ * than that amount of frames late, the GPU times of the frame are skipped.
+ * The times of the last frames are kept, to show a rolling average or to
+ * write them to a CSV or a JSON file.
+ * The phases can not be nested, starting a phase ends the one that runs.
+ *
+ * @author mibi88
+ */
+public class Profiler {
+    // The amount of frames that can wait for their GPU times
+    private final int QUERY_FRAMES = 4;
+
+    private final int MAX_PHASES = 16;
+
+    // The amount of frames the rolling averages are computed on
+    private final int SUMMARY_FRAMES = 60;
+
+    private final boolean gpu_supported;
+    private final ArrayList<String> phase_names;
+
+    // The queries of each phase for each frame of the ring
+    private final int[][] queries;
+    private final boolean[][] query_used;
+    private final long[] slot_frames;
+    private final boolean[] slot_pending;
+    private boolean slot_usable;
+    private int slot;
+
+    // The times of the last frames, NaN when a phase did not run or its GPU
+    // time was skipped
+    private final int history_size;
+    private final long[] frame_numbers;
+    private final float[] frame_cpu_times;
+    private final float[][] cpu_times;
+    private final float[][] gpu_times;
+
+    private long frame;
+    private long frame_start;
+    private int active_phase;
+    private long phase_start;
+    private boolean phase_query;
+
+    private float last_gpu_frame_time;
+    private int gpu_frames_amount;
+
+    /**
+     * Create a new profiler
+     *
+     * @param history_size The amount of frames to keep the times of
+     */
+    public Profiler(int history_size) {
+        gpu_supported = GL.getCapabilities().OpenGL33 ||
+                GL.getCapabilities().GL_ARB_timer_query;
+        phase_names = new ArrayList<>();
+        queries = new int[QUERY_FRAMES][MAX_PHASES];
+        query_used = new boolean[QUERY_FRAMES][MAX_PHASES];
+        slot_frames = new long[QUERY_FRAMES];
+        slot_pending = new boolean[QUERY_FRAMES];
+        if(gpu_supported) {
+            for(int i=0;i<QUERY_FRAMES;i++) {
+                GL15.glGenQueries(queries[i]);
+            }
+        }
+
+        this.history_size = history_size;
+        frame_numbers = new long[history_size];
+        Arrays.fill(frame_numbers, -1);
+        frame_cpu_times = new float[history_size];
+        cpu_times = new float[history_size][MAX_PHASES];
+        gpu_times = new float[history_size][MAX_PHASES];
+
+        frame = -1;
+        active_phase = -1;
+    }
+
+    /**
+     * Add a phase to measure
+     *
+     * @param name The name of the phase, used in the summary and the files
+     * @return The number of the phase
+     * @throws Exception If there are too many phases
+     */
+    public int add_phase(String name) throws Exception {
+        if(phase_names.size() >= MAX_PHASES) {
+            throw new Exception("Too many profiler phases!");
+        }
+        phase_names.add(name);
+        return phase_names.size()-1;
+    }
+
+    /**
+     * Get the amount of phases
+     *
+     * @return The amount of phases
+     */
+    public int get_phases_amount() {
+        return phase_names.size();
+    }
+
+    /**
+     * Get the name of a phase
+     *
+     * @param phase The number of the phase
+     * @return The name
+     */
+    public String get_phase_name(int phase) {
+        return phase_names.get(phase);
+    }
+
+    /**
+     * Start a new frame. The GPU times of the previous frames that are
+     * available are read.
+     */
+    public void begin_frame() {
+        if(active_phase >= 0) end_frame();
+        collect();
+        frame++;
+        slot = (int)(frame%QUERY_FRAMES);
+        // The GPU did not finish the frame that used these queries yet
+        slot_usable = gpu_supported && !slot_pending[slot];
+        if(slot_usable) Arrays.fill(query_used[slot], false);
+
+        int row = (int)(frame%history_size);
+        frame_numbers[row] = frame;
+        frame_cpu_times[row] = Float.NaN;
+        Arrays.fill(cpu_times[row], Float.NaN);
+        Arrays.fill(gpu_times[row], Float.NaN);
+        frame_start = System.nanoTime();
+    }
+
+    /**
+     * Start measuring a phase, and stop the one that runs. The GPU time is
+     * only measured the first time a phase runs in a frame.
+     *
+     * @param phase The number of the phase
+     */
+    public void begin(int phase) {
+        if(frame < 0) return;
+        if(active_phase >= 0) end(active_phase);
+        active_phase = phase;
+        phase_start = System.nanoTime();
+        phase_query = slot_usable && !query_used[slot][phase];
+        if(phase_query) {
+            GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, queries[slot][phase]);
+            query_used[slot][phase] = true;
+        }
+    }
+
+    /**
+     * Stop measuring a phase
+     *
+     * @param phase The number of the phase
+     */
+    public void end(int phase) {
+        if(phase != active_phase) return;
+        if(phase_query) GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+        float time = (System.nanoTime()-phase_start)/1e6f;
+        float[] row = cpu_times[(int)(frame%history_size)];
+        row[phase] = Float.isNaN(row[phase]) ? time : row[phase]+time;
+        active_phase = -1;
+    }
+
+    /**
+     * Stop measuring the phase that runs, if there is one
+     */
+    public void end() {
+        if(active_phase >= 0) end(active_phase);
+    }
+
+    /**
+     * End the frame and the phase that runs
+     */
+    public void end_frame() {
+        if(frame < 0) return;
+        if(active_phase >= 0) end(active_phase);
+        frame_cpu_times[(int)(frame%history_size)] =
+                (System.nanoTime()-frame_start)/1e6f;
+        if(slot_usable) {
+            slot_frames[slot] = frame;
+            for(int i=0;i<phase_names.size();i++) {
+                if(query_used[slot][i]) slot_pending[slot] = true;
+            }
+        }
+    }
+
+    /**
+     * Read the GPU times of the frames that are finished
+     */
+    private void collect() {
+        if(!gpu_supported) return;
+        // Go from the oldest frame to the newest one
+        for(int n=1;n<=QUERY_FRAMES;n++) {
+            int s = (int)((frame+n)%QUERY_FRAMES);
+            if(!slot_pending[s]) continue;
+            boolean available = true;
+            for(int i=0;i<phase_names.size()&&available;i++) {
+                if(query_used[s][i]) {
+                    available = GL15.glGetQueryObjecti(queries[s][i],
+                            GL15.GL_QUERY_RESULT_AVAILABLE) != GL15.GL_FALSE;
+                }
+            }
+            if(!available) break;
+            long slot_frame = slot_frames[s];
+            int row = (int)(slot_frame%history_size);
+            boolean in_history = frame_numbers[row] == slot_frame;
+            float total = 0f;
+            for(int i=0;i<phase_names.size();i++) {
+                if(!query_used[s][i]) continue;
+                float time = GL33.glGetQueryObjecti64(queries[s][i],
+                        GL15.GL_QUERY_RESULT)/1e6f;
+                if(in_history) gpu_times[row][i] = time;
+                total += time;
+            }
+            slot_pending[s] = false;
+            last_gpu_frame_time = total;
+            gpu_frames_amount++;
+        }
+    }
+
+    /**
+     * Get the GPU time of all the phases of the last frame that has its
+     * results
+     *
+     * @return The time in milliseconds
+     */
+    public float get_last_gpu_frame_time() {
+        return last_gpu_frame_time;
+    }
+
+    /**
+     * Get the amount of frames the GPU times were read for, to know when a
+     * new one is available
+     *
+     * @return The amount of frames
+     */
+    public int get_gpu_frames_amount() {
+        return gpu_frames_amount;
+    }
+
+    /**
+     * Check if the GPU times are measured
+     *
+     * @return true if the driver supports timer queries
+     */
+    public boolean is_gpu_supported() {
+        return gpu_supported;
+    }
+
+    /**
+     * Get the average CPU time of a phase over the last frames
+     *
+     * @param phase The number of the phase
+     * @return The time in milliseconds, or 0 if it was not measured
+     */
+    public float get_average_cpu_time(int phase) {
+        return average(cpu_times, phase);
+    }
+
+    /**
+     * Get the average GPU time of a phase over the last frames that have
+     * their results
+     *
+     * @param phase The number of the phase
+     * @return The time in milliseconds, or 0 if it was not measured
+     */
+    public float get_average_gpu_time(int phase) {
+        return average(gpu_times, phase);
+    }
+
+    private float average(float[][] times, int phase) {
+        float sum = 0f;
+        int amount = 0;
+        int frames = (int)Math.min(SUMMARY_FRAMES, Math.min(frame+1,
+                history_size));
+        for(int i=0;i<frames;i++) {
+            float time = times[(int)((frame-i)%history_size)][phase];
+            if(Float.isNaN(time)) continue;
+            sum += time;
+            amount++;
+        }
+        return amount > 0 ? sum/amount : 0f;
+    }
+
+    /**
+     * Get a line with the average CPU and GPU time of each phase over the
+     * last frames, to show it on the screen
+     *
+     * @return The summary
+     */
+    public String get_summary() {
+        StringBuilder summary = new StringBuilder();
+        for(int i=0;i<phase_names.size();i++) {
+            if(i > 0) summary.append(" | ");
+            summary.append(String.format("%s %.2f/%.2f", phase_names.get(i),
+                    get_average_cpu_time(i), get_average_gpu_time(i)));
+        }
+        summary.append(" ms (CPU/GPU)");
+        return summary.toString();
+    }
+
+    /**
+     * Write the times of the frames that were kept to a CSV file, with a
+     * line per frame and a CPU and a GPU column per phase. The times that
+     * were not measured are left empty.
+     *
+     * @param file_name The path of the file
+     * @throws Exception If the file could not be written
+     */
+    public void write_csv(String file_name) throws Exception {
+        StringBuilder csv = new StringBuilder("frame,frame_cpu_ms");
+        for(int i=0;i<phase_names.size();i++) {
+            csv.append(',').append(phase_names.get(i)).append("_cpu_ms,")
+                    .append(phase_names.get(i)).append("_gpu_ms");
+        }
+        csv.append('\n');
+        for(int row : get_history_rows()) {
+            csv.append(frame_numbers[row]).append(',')
+                    .append(format_time(frame_cpu_times[row], ""));
+            for(int i=0;i<phase_names.size();i++) {
+                csv.append(',').append(format_time(cpu_times[row][i], ""))
+                        .append(',')
+                        .append(format_time(gpu_times[row][i], ""));
+            }
+            csv.append('\n');
+        }
+        Files.write(Paths.get(file_name),
+                csv.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write the times of the frames that were kept to a JSON file. The times
+     * that were not measured are null.
+     *
+     * @param file_name The path of the file
+     * @throws Exception If the file could not be written
+     */
+    public void write_json(String file_name) throws Exception {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": [");
+        for(int i=0;i<phase_names.size();i++) {
+            if(i > 0) json.append(", ");
+            json.append('"').append(phase_names.get(i)).append('"');
+        }
+        json.append("],\n  \"frames\": [");
+        boolean first = true;
+        for(int row : get_history_rows()) {
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    {\"frame\": ").append(frame_numbers[row])
+                    .append(", \"cpu_ms\": ")
+                    .append(format_time(frame_cpu_times[row], "null"))
+                    .append(", \"phases\": {");
+            for(int i=0;i<phase_names.size();i++) {
+                if(i > 0) json.append(", ");
+                json.append('"').append(phase_names.get(i))
+                        .append("\": {\"cpu_ms\": ")
+                        .append(format_time(cpu_times[row][i], "null"))
+                        .append(", \"gpu_ms\": ")
+                        .append(format_time(gpu_times[row][i], "null"))
+                        .append('}');
+            }
+            json.append("}}");
+        }
+        json.append("\n  ]\n}\n");
+        Files.write(Paths.get(file_name),
+                json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the rows of the history that contain a frame, from the oldest to
+     * the newest. The frames that still wait for their GPU times are
+     * included.
+     *
+     * @return The rows
+     */
+    private int[] get_history_rows() {
+        int frames = (int)Math.min(frame+1, history_size);
+        int[] rows = new int[frames];
+        for(int i=0;i<frames;i++) {
+            rows[i] = (int)((frame-frames+1+i)%history_size);
+        }
+        return rows;
+    }
+
+    private String format_time(float time, String missing) {
+        if(Float.isNaN(time)) return missing;
+        return String.format(Locale.ROOT, "%.4f", time);
+    }
+
+    /**
+     * Delete the queries
+     */
+    public void free() {
+        if(!gpu_supported) return;
+        for(int i=0;i<QUERY_FRAMES;i++) {
+            GL15.glDeleteQueries(queries[i]);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL41;
+
+/**
+ * Stores the linked shader programs in a directory with glGetProgramBinary,
+ * so that they can be loaded with glProgramBinary on the next launch instead
+ * of being compiled again. A program is found from a hash of its sources,
+ * of its attribute bindings and of the GL vendor, renderer and version, as a
+ * binary only works with the driver that created it. If the driver rejects a
+ * binary, the program has to be compiled from its sources.
+ *
+ * @author mibi88
+ */
+public class ProgramCache {
+    private final Path directory;
+    private final String driver;
+
+    private int loaded_amount;
+    private int stored_amount;
+    private int rejected_amount;
+
+    /**
+     * Create a new program cache. It needs an OpenGL context.
+     *
+     * @param directory The directory the programs are stored in, it is
+     * created when the first program is stored
+     */
+    public ProgramCache(String directory) {
+        this.directory = Paths.get(directory);
+        driver = GL30.glGetString(GL30.GL_VENDOR) + "\n" +
+                GL30.glGetString(GL30.GL_RENDERER) + "\n" +
+                GL30.glGetString(GL30.GL_VERSION);
+    }
+
+    /**
+     * Check if the driver can give and load program binaries
+     *
+     * @return true if a ProgramCache can be used
+     */
+    public static boolean is_supported() {
+        if(!GL.getCapabilities().OpenGL41 &&
+                !GL.getCapabilities().GL_ARB_get_program_binary) {
+            return false;
+        }
+        return GL30.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    /**
+     * Get the key a program is stored with
+     *
+     * @param vertex_shader_source The source of the vertex shader, with the
+     * defines of the variant
+     * @param fragment_shader_source The source of the fragment shader, with
+     * the defines of the variant
+     * @param attributes The attribute bindings of the program
+     * @return The SHA-256 hash of everything the binary depends on, in
+     * hexadecimal
+     * @throws Exception If SHA-256 is not available
+     */
+    public String get_key(String vertex_shader_source,
+            String fragment_shader_source, Map<String, Integer> attributes)
+            throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        StringBuilder content = new StringBuilder(driver);
+        content.append('\0').append(vertex_shader_source);
+        content.append('\0').append(fragment_shader_source);
+        for(Map.Entry<String, Integer> attribute : attributes.entrySet()) {
+            content.append('\0').append(attribute.getKey()).append('=')
+                    .append(attribute.getValue());
+        }
+        byte[] hash = digest.digest(content.toString().getBytes(
+                StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for(int i=0;i<hash.length;i++) {
+            key.append(String.format("%02x", hash[i]));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Load a program from the cache
+     *
+     * @param program_id The program to load the binary to, it should not be
+     * linked
+     * @param key The key of the program
+     * @return true if the program was loaded and linked, or false if it has
+     * to be compiled from its sources
+     */
+    public boolean load(int program_id, String key) {
+        Path file = directory.resolve(key + ".bin");
+        if(!Files.isRegularFile(file)) return false;
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch(IOException exception) {
+            return false;
+        }
+        if(content.length <= 4) return false;
+        ByteBuffer binary = BufferUtils.createByteBuffer(content.length);
+        binary.put(content).flip();
+        int format = binary.getInt();
+        GL41.glProgramBinary(program_id, format, binary);
+        if(GL30.glGetProgrami(program_id, GL30.GL_LINK_STATUS) ==
+                GL30.GL_FALSE) {
+            // The driver was probably updated, the file will be replaced
+            rejected_amount++;
+            return false;
+        }
+        loaded_amount++;
+        return true;
+    }
+
+    /**
+     * Mark a program that will be linked to be stored in the cache. Call it
+     * before linking the program.
+     *
+     * @param program_id The program
+     */
+    public void prepare(int program_id) {
+        GL41.glProgramParameteri(program_id,
+                GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL30.GL_TRUE);
+    }
+
+    /**
+     * Store a linked program in the cache. If it could not be written the
+     * program will just be compiled again on the next launch.
+     *
+     * @param program_id The program
+     * @param key The key of the program
+     */
+    public void store(int program_id, String key) {
+        int length = GL30.glGetProgrami(program_id,
+                GL41.GL_PROGRAM_BINARY_LENGTH);
+        if(length <= 0) return;
+        ByteBuffer binary = BufferUtils.createByteBuffer(length);
+        IntBuffer written = BufferUtils.createIntBuffer(1);
+        IntBuffer format = BufferUtils.createIntBuffer(1);
+        GL41.glGetProgramBinary(program_id, written, format, binary);
+        binary.limit(written.get(0));
+        byte[] content = new byte[4+written.get(0)];
+        // The format is read back from a direct buffer, in the native order
+        ByteBuffer.wrap(content).order(ByteOrder.nativeOrder())
+                .putInt(format.get(0)).put(binary);
+        try {
+            Files.createDirectories(directory);
+            // Write to another file first so that a program is never loaded
+            // from a file that was not fully written
+            Path file = directory.resolve(key + ".bin");
+            Path temporary = directory.resolve(key + ".tmp");
+            Files.write(temporary, content);
+            Files.move(temporary, file,
+                    StandardCopyOption.REPLACE_EXISTING);
+            stored_amount++;
+        } catch(IOException exception) {
+            System.err.println("Could not store a shader program in the " +
+                    "cache: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Get the amount of programs that were loaded from the cache
+     *
+     * @return The amount of programs
+     */
+    public int get_loaded_amount() {
+        return loaded_amount;
+    }
+
+    /**
+     * Get the amount of programs that were compiled and stored in the cache
+     *
+     * @return The amount of programs
+     */
+    public int get_stored_amount() {
+        return stored_amount;
+    }
+
+    /**
+     * Get the amount of binaries that the driver did not accept
+     *
+     * @return The amount of binaries
+     */
+    public int get_rejected_amount() {
+        return rejected_amount;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * Hands out ranges of a buffer with a first fit free list. The free ranges
+ * are kept sorted by offset and the neighbouring ones are merged when a range
+ * is freed. It does not know anything about OpenGL, the sizes are in any unit
+ * the caller uses (vertices, indices...).
+ *
+ * @author mibi88
+ */
+public class RangeAllocator {
+    private int capacity;
+    private int used;
+
+    private int[] free_offsets;
+    private int[] free_sizes;
+    private int free_amount;
+
+    /**
+     * Create an allocator where everything is free
+     *
+     * @param capacity The size of the buffer
+     */
+    public RangeAllocator(int capacity) {
+        free_offsets = new int[16];
+        free_sizes = new int[16];
+        reset(capacity, 0);
+    }
+
+    /**
+     * Forget all the allocations, and consider the start of the buffer as
+     * used. It is used after compacting the buffer.
+     *
+     * @param capacity The new size of the buffer
+     * @param used The size of the used range at the start of the buffer
+     */
+    public void reset(int capacity, int used) {
+        this.capacity = capacity;
+        this.used = used;
+        free_amount = 0;
+        if(used < capacity) {
+            free_offsets[0] = used;
+            free_sizes[0] = capacity-used;
+            free_amount = 1;
+        }
+    }
+
+    /**
+     * Allocate a range
+     *
+     * @param size The size of the range
+     * @return The offset of the range, or -1 if there is no free range that
+     * is big enough
+     */
+    public int allocate(int size) {
+        if(size < 1) return -1;
+        for(int i=0;i<free_amount;i++) {
+            if(free_sizes[i] >= size) {
+                int offset = free_offsets[i];
+                free_offsets[i] += size;
+                free_sizes[i] -= size;
+                if(free_sizes[i] == 0) remove_free_range(i);
+                used += size;
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Free a range that was allocated
+     *
+     * @param offset The offset of the range
+     * @param size The size of the range
+     */
+    public void free(int offset, int size) {
+        if(size < 1) return;
+        used -= size;
+        // Find the first free range after this one
+        int i = 0;
+        while(i < free_amount && free_offsets[i] < offset) i++;
+        boolean merge_previous = i > 0 &&
+                free_offsets[i-1]+free_sizes[i-1] == offset;
+        boolean merge_next = i < free_amount &&
+                offset+size == free_offsets[i];
+        if(merge_previous && merge_next) {
+            free_sizes[i-1] += size+free_sizes[i];
+            remove_free_range(i);
+        } else if(merge_previous) {
+            free_sizes[i-1] += size;
+        } else if(merge_next) {
+            free_offsets[i] = offset;
+            free_sizes[i] += size;
+        } else {
+            insert_free_range(i, offset, size);
+        }
+    }
+
+    /**
+     * Get the size of the buffer
+     *
+     * @return The size of the buffer
+     */
+    public int get_capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the size of all the allocated ranges
+     *
+     * @return The used size
+     */
+    public int get_used() {
+        return used;
+    }
+
+    /**
+     * Get the size that is not allocated
+     *
+     * @return The free size
+     */
+    public int get_free() {
+        return capacity-used;
+    }
+
+    /**
+     * Get the size of the biggest range that can be allocated
+     *
+     * @return The size of the biggest free range
+     */
+    public int get_largest_free_range() {
+        int largest = 0;
+        for(int i=0;i<free_amount;i++) {
+            largest = Math.max(largest, free_sizes[i]);
+        }
+        return largest;
+    }
+
+    /**
+     * Get the amount of free ranges. When there are a lot of them the buffer
+     * is fragmented.
+     *
+     * @return The amount of free ranges
+     */
+    public int get_free_ranges_amount() {
+        return free_amount;
+    }
+
+    private void remove_free_range(int i) {
+        System.arraycopy(free_offsets, i+1, free_offsets, i, free_amount-i-1);
+        System.arraycopy(free_sizes, i+1, free_sizes, i, free_amount-i-1);
+        free_amount--;
+    }
+
+    private void insert_free_range(int i, int offset, int size) {
+        if(free_amount >= free_offsets.length) {
+            int[] new_offsets = new int[free_offsets.length*2];
+            int[] new_sizes = new int[free_sizes.length*2];
+            System.arraycopy(free_offsets, 0, new_offsets, 0, free_amount);
+            System.arraycopy(free_sizes, 0, new_sizes, 0, free_amount);
+            free_offsets = new_offsets;
+            free_sizes = new_sizes;
+        }
+        System.arraycopy(free_offsets, i, free_offsets, i+1, free_amount-i);
+        System.arraycopy(free_sizes, i, free_sizes, i+1, free_amount-i);
+        free_offsets[i] = offset;
+        free_sizes[i] = size;
+        free_amount++;
+    }
+}
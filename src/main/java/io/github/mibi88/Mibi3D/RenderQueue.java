@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+/**
+ * A list of draws that is sorted with a 64 bit key for each draw. From the
+ * most to the least significant bits, a key contains the pass (4 bits), the
+ * shader (4 bits), the texture (16 bits), the VAO (12 bits), the level of
+ * detail (4 bits) and the depth (24 bits). Sorting the keys groups the draws
+ * that use the same GL state together, and orders the draws of each group by
+ * depth.
+ *
+ * @author mibi88
+ */
+public class RenderQueue {
+    public static final int PASS_OPAQUE = 0;
+    public static final int PASS_IMPOSTOR = 1;
+    public static final int PASS_2D = 15;
+
+    public static final int DEPTH_BITS = 24;
+    public static final long MAX_DEPTH = (1L << DEPTH_BITS)-1;
+
+    private static final int LOD_SHIFT = DEPTH_BITS;
+    private static final int VAO_SHIFT = LOD_SHIFT+4;
+    private static final int TEXTURE_SHIFT = VAO_SHIFT+12;
+    private static final int SHADER_SHIFT = TEXTURE_SHIFT+16;
+    private static final int PASS_SHIFT = SHADER_SHIFT+4;
+
+    private long[] keys;
+    private Object[] items;
+    private int size;
+
+    // Used by the radix sort
+    private long[] sorted_keys;
+    private Object[] sorted_items;
+    private final int[] counts;
+
+    /**
+     * Create a new empty render queue
+     *
+     * @param capacity The amount of draws the queue can contain before it
+     * needs to grow
+     */
+    public RenderQueue(int capacity) {
+        if(capacity < 1) capacity = 1;
+        keys = new long[capacity];
+        items = new Object[capacity];
+        sorted_keys = new long[capacity];
+        sorted_items = new Object[capacity];
+        counts = new int[256];
+    }
+
+    /**
+     * Create the key of a draw
+     *
+     * @param pass The pass, between 0 and 15. The passes are drawn in order
+     * @param shader The number of the shader program, between 0 and 15
+     * @param texture The texture id
+     * @param vao The VAO id
+     * @param lod The level of detail, between 0 and 15
+     * @param depth The quantised depth, between 0 and MAX_DEPTH
+     * @return The key
+     */
+    public static long make_key(int pass, int shader, int texture, int vao,
+            int lod, long depth) {
+        return ((long)(pass & 0xF) << PASS_SHIFT) |
+                ((long)(shader & 0xF) << SHADER_SHIFT) |
+                ((long)(texture & 0xFFFF) << TEXTURE_SHIFT) |
+                ((long)(vao & 0xFFF) << VAO_SHIFT) |
+                ((long)(lod & 0xF) << LOD_SHIFT) |
+                (depth & MAX_DEPTH);
+    }
+
+    /**
+     * Quantise a distance to be stored in a key
+     *
+     * @param distance The distance from the camera
+     * @param far_plane The distance of the far plane
+     * @return The quantised depth, between 0 and MAX_DEPTH
+     */
+    public static long quantise_depth(float distance, float far_plane) {
+        float depth = distance/far_plane;
+        if(depth <= 0f) return 0;
+        if(depth >= 1f) return MAX_DEPTH;
+        return (long)(depth*MAX_DEPTH);
+    }
+
+    /**
+     * Get the pass stored in a key
+     *
+     * @param key The key
+     * @return The pass
+     */
+    public static int get_pass(long key) {
+        return (int)(key >>> PASS_SHIFT) & 0xF;
+    }
+
+    /**
+     * Get the shader program stored in a key
+     *
+     * @param key The key
+     * @return The number of the shader program
+     */
+    public static int get_shader(long key) {
+        return (int)(key >>> SHADER_SHIFT) & 0xF;
+    }
+
+    /**
+     * Get the part of a key that contains the GL state, without the depth.
+     * Two draws with the same state can be drawn without changing anything
+     * between them.
+     *
+     * @param key The key
+     * @return The state bits of the key
+     */
+    public static long get_state(long key) {
+        return key >>> DEPTH_BITS;
+    }
+
+    /**
+     * Add a draw to the queue
+     *
+     * @param key The key of the draw
+     * @param item The thing to draw
+     */
+    public void add(long key, Object item) {
+        if(size >= keys.length) grow(keys.length*2);
+        keys[size] = key;
+        items[size] = item;
+        size++;
+    }
+
+    /**
+     * Remove all the draws. The memory is kept to be reused on the next frame.
+     */
+    public void clear() {
+        for(int i=0;i<size;i++) {
+            items[i] = null;
+            sorted_items[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Get the amount of draws in the queue
+     *
+     * @return The amount of draws
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the key of a draw
+     *
+     * @param i The position of the draw in the queue
+     * @return The key
+     */
+    public long get_key(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Get the thing to draw
+     *
+     * @param i The position of the draw in the queue
+     * @return The item that was added with the key
+     */
+    public Object get_item(int i) {
+        return items[i];
+    }
+
+    /**
+     * Sort the draws by key with a least significant digit radix sort. It is
+     * stable, so draws with the same key stay in the order they were added.
+     * The bytes that are the same in all the keys are skipped.
+     */
+    public void sort() {
+        if(size < 2) return;
+        long same_bits = ~0L;
+        long first = keys[0];
+        for(int i=1;i<size;i++) {
+            same_bits &= ~(keys[i] ^ first);
+        }
+        for(int shift=0;shift<64;shift+=8) {
+            if(((same_bits >>> shift) & 0xFF) == 0xFF) continue;
+            for(int i=0;i<256;i++) {
+                counts[i] = 0;
+            }
+            for(int i=0;i<size;i++) {
+                counts[(int)(keys[i] >>> shift) & 0xFF]++;
+            }
+            int offset = 0;
+            for(int i=0;i<256;i++) {
+                int count = counts[i];
+                counts[i] = offset;
+                offset += count;
+            }
+            for(int i=0;i<size;i++) {
+                int pos = counts[(int)(keys[i] >>> shift) & 0xFF]++;
+                sorted_keys[pos] = keys[i];
+                sorted_items[pos] = items[i];
+            }
+            long[] tmp_keys = keys;
+            keys = sorted_keys;
+            sorted_keys = tmp_keys;
+            Object[] tmp_items = items;
+            items = sorted_items;
+            sorted_items = tmp_items;
+        }
+    }
+
+    private void grow(int capacity) {
+        long[] new_keys = new long[capacity];
+        Object[] new_items = new Object[capacity];
+        System.arraycopy(keys, 0, new_keys, 0, size);
+        System.arraycopy(items, 0, new_items, 0, size);
+        keys = new_keys;
+        items = new_items;
+        sorted_keys = new long[capacity];
+        sorted_items = new Object[capacity];
+    }
+}
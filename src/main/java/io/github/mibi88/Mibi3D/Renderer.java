@@ -17,10 +17,13 @@
  */
 package io.github.mibi88.Mibi3D;
 
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
 
 /**
  * A class that is used to render the 3D scene
@@ -31,9 +34,14 @@ public class Renderer {
     private final float FOV = 70f;
     private final float NEAR_PLANE = 0.1f, FAR_PLANE = 1000f;
     
-    private int projection_matrix_location;
-    
     Matrix4f projection_matrix;
+    private int projection_width, projection_height;
+    
+    private FloatBuffer instance_data;
+    private float[] light_data;
+    
+    // Reused on each draw to avoid allocating anything while rendering
+    private final Matrix4f transformation_matrix = new Matrix4f();
     
     /**
      * Initializes the renderer by creating the projection matrix used when
@@ -42,52 +50,157 @@ public class Renderer {
      * @param window
      */
     public Renderer(Window window) {
-        projection_matrix = Maths.create_projection_matrix(
-                FOV,
-                NEAR_PLANE, FAR_PLANE,
-                window
-        );
+        instance_data = BufferUtils.createFloatBuffer(
+                256*Model.INSTANCE_DATA_SIZE);
+        light_data = new float[64*12];
+        update_projection_matrix(window);
     }
     
     /**
-     * Load the projection matrix to a uniform variable to be accessed by the
-     * shader.
+     * Get the distance of the near plane
      * 
-     * This method needs to be called after loading the shaders.
+     * @return The distance before which nothing is drawn
+     */
+    public float get_near_plane() {
+        return NEAR_PLANE;
+    }
+    
+    /**
+     * Get the distance of the far plane
      * 
-     * @param projection_matrix_location The location of the uniform variable.
-     * Get it by using the Shaders.get_uniform_location method.
+     * @return The distance after which nothing is drawn
      */
-    public void load_projection_matrix(int projection_matrix_location) {
-        this.projection_matrix_location = projection_matrix_location;
+    public float get_far_plane() {
+        return FAR_PLANE;
     }
     
     /**
-     * Set the light used when rendering the 3D scene
+     * Create the projection matrix again if the size of the window changed
      * 
-     * @param light_position_location The location of the uniform variable that
-     * will contain the position of the light
-     * @param light_color_location The location of the uniform variable that
-     * will contain the color of the light
-     * @param attenuation_location
-     * @param light The Light object
-     * @param shaders The Shaders object to load the light to
+     * @param window The window the scene will be rendered on
+     * @return true if the projection matrix changed
      */
-    public void load_light(int light_position_location,
-            int light_color_location, int attenuation_location, Light light,
-            Shaders shaders) {
-        shaders.load_in_uniform_var(light_position_location,
-                new Vector3f(light.x, light.y, light.z));
-        shaders.load_in_uniform_var(light_color_location,
-                new Vector3f(light.r, light.g, light.b));
-        
-        shaders.load_in_uniform_var(attenuation_location,
-                new Vector3f(
-                        light.constant_attenuation,
-                        light.linear_attenuation,
-                        light.exponential_attenuation
-                )
-        );
+    public boolean update_projection_matrix(Window window) {
+        int[] window_size = window.get_window_size();
+        if(projection_matrix != null && window_size[0] == projection_width &&
+                window_size[1] == projection_height) {
+            return false;
+        }
+        projection_width = window_size[0];
+        projection_height = window_size[1];
+        if(projection_matrix == null) projection_matrix = new Matrix4f();
+        Maths.create_projection_matrix(FOV, NEAR_PLANE, FAR_PLANE,
+                (float)projection_width/(float)projection_height,
+                projection_matrix);
+        return true;
+    }
+    
+    /**
+     * Get the projection matrix used when rendering the 3D scene
+     * 
+     * @return The projection matrix
+     */
+    public Matrix4f get_projection_matrix() {
+        return projection_matrix;
+    }
+    
+    /**
+     * Select the level of detail an entity is drawn with, from the size of
+     * its model on the screen. The level of the entity is updated.
+     * 
+     * @param entity The entity to draw
+     * @param depth The distance of the center of the entity along the view
+     * direction
+     * @return The level of detail to use
+     */
+    public int select_lod(TexturedModelEntity entity, float depth) {
+        TexturedModel model = entity.model;
+        if(model.get_lods_amount() < 2) return entity.lod = 0;
+        float scale = Math.abs(entity.scale);
+        // Measure the size at the side of the bounding sphere that is the
+        // closest to the camera, for models made of smaller objects
+        float distance = Math.max(depth-(model.bounding_radius-
+                model.lod_radius)*scale, NEAR_PLANE);
+        float screen_size = model.lod_radius*scale*projection_matrix.m11()/
+                distance;
+        entity.lod = model.select_lod(screen_size, entity.lod);
+        return entity.lod;
+    }
+    
+    /**
+     * Store the view and projection matrices and the position of the camera
+     * in the Camera uniform block
+     * 
+     * @param buffer The UniformBuffer that contains the block
+     * @param offset The offset of the block in the buffer
+     * @param view_matrix The view matrix, created from the camera
+     * @param camera The camera
+     */
+    public void load_camera(UniformBuffer buffer, int offset,
+            Matrix4f view_matrix, Camera camera) {
+        buffer.put_matrix(offset, projection_matrix);
+        buffer.put_matrix(offset+64, view_matrix);
+        buffer.put_vec4(offset+128, camera.x, camera.y, camera.z, 1f);
+    }
+    
+    /**
+     * Upload the lights used when rendering the 3D scene to a texture buffer,
+     * with three RGBA texels per light: the position, the color and the
+     * attenuation
+     * 
+     * @param buffer The RGBA32F texture buffer the 3D shaders read the lights
+     * from
+     * @param lights The lights to use, in the order used by the clusters
+     */
+    public void load_lights(TextureBuffer buffer, ArrayList<Light> lights) {
+        if(light_data.length < lights.size()*12) {
+            light_data = new float[lights.size()*12*2];
+        }
+        for(int i=0;i<lights.size();i++) {
+            Light light = lights.get(i);
+            int n = i*12;
+            light_data[n] = light.x;
+            light_data[n+1] = light.y;
+            light_data[n+2] = light.z;
+            light_data[n+3] = 1f;
+            light_data[n+4] = light.r;
+            light_data[n+5] = light.g;
+            light_data[n+6] = light.b;
+            light_data[n+7] = 1f;
+            light_data[n+8] = light.constant_attenuation;
+            light_data[n+9] = light.linear_attenuation;
+            light_data[n+10] = light.exponential_attenuation;
+            light_data[n+11] = 0f;
+        }
+        buffer.upload(light_data, lights.size()*12);
+    }
+    
+    /**
+     * Upload the light clusters to texture buffers and store their size in
+     * the Scene uniform block, after the settings of the scene
+     * 
+     * @param buffer The UniformBuffer that contains the block
+     * @param offset The offset of the Scene block in the buffer
+     * @param clusters The clusters the lights were assigned to
+     * @param cluster_buffer The RG32UI texture buffer that contains the first
+     * index and the amount of lights of each cluster
+     * @param index_buffer The R32UI texture buffer that contains the lights of
+     * the clusters
+     * @param width The width of the framebuffer the scene is rendered to
+     * @param height The height of the framebuffer the scene is rendered to
+     */
+    public void load_clusters(UniformBuffer buffer, int offset,
+            LightClusters clusters, TextureBuffer cluster_buffer,
+            TextureBuffer index_buffer, int width, int height) {
+        cluster_buffer.upload(clusters.get_clusters(),
+                clusters.get_clusters_amount()*2);
+        index_buffer.upload(clusters.get_indices(),
+                clusters.get_indices_amount());
+        buffer.put_int(offset+32, clusters.get_size_x());
+        buffer.put_int(offset+36, clusters.get_size_y());
+        buffer.put_int(offset+40, clusters.get_size_z());
+        buffer.put_vec4(offset+48, clusters.get_near(),
+                clusters.get_log_ratio(), width, height);
     }
     
     /**
@@ -111,25 +224,26 @@ public class Renderer {
     }
     
     /**
-     * Load up data about the fog in the 3D scene
+     * Store the settings of the scene in the Scene uniform block
      * 
+     * @param buffer The UniformBuffer that contains the block
+     * @param offset The offset of the block in the buffer
+     * @param r The red component of the sky color
+     * @param g The green component of the sky color
+     * @param b The blue component of the sky color
+     * @param ambient_lighting The amount of ambient lighting, a float between 0
+     * and 1
      * @param gradient The gradient of the fog
      * @param density The density of the fog
      * @param fog If fog should be enabled or not
-     * @param gradient_location The location of the gradient uniform variable
-     * @param density_location The location of the density uniform variable
-     * @param fog_location The location of the boolean to enable or disable fog
-     * @param shaders The Shaders object to load the data to
      */
-    public void load_fog(float gradient, float density, boolean fog,
-            int gradient_location, int density_location, int fog_location,
-            Shaders shaders) {
-        shaders.load_in_uniform_var(gradient_location,
-                gradient);
-        shaders.load_in_uniform_var(density_location,
-                density);
-        shaders.load_in_uniform_var(fog_location,
-                fog);
+    public void load_scene_settings(UniformBuffer buffer, int offset,
+            float r, float g, float b, float ambient_lighting, float gradient,
+            float density, boolean fog) {
+        buffer.put_vec4(offset, r, g, b, ambient_lighting);
+        buffer.put_float(offset+16, gradient);
+        buffer.put_float(offset+20, density);
+        buffer.put_int(offset+24, fog ? 1 : 0);
     }
     
     /**
@@ -146,42 +260,28 @@ public class Renderer {
      */
     public void init(Window window, float r, float g, float b,
             Framebuffer framebuffer) throws Exception {
-        framebuffer.bind_frame_buffer();
-        GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT);
-        GL30.glClearColor(r, g, b, 1f);
+        init(window, r, g, b, framebuffer, framebuffer.get_width(),
+                framebuffer.get_height());
     }
     
     /**
-     *
-     * @param window The window the scene will be rendered on.
-     * @param camera The camera object to create the view matrix from.
-     * @param ambient_lighting The amount of ambient lighting, a float between 0
-     * and 1
-     * @param ambient_lighting_location The location of the ambient lighting
-     * uniform variable
-     * @param view_matrix_location The location of the uniform variable that
-     * will contain the view matrix.
-     * @param shaders The shader object that will be used to load the view
-     * matrix as a uniform variable to the shaders with the
-     * Shaders.get_uniform_location method.
+     * Call this method before rendering to prepare the Renderer, to render
+     * to a part of the framebuffer, starting from its bottom left corner.
+     * 
+     * @param window The window to use the renderer on.
+     * @param r The red component of the sky color
+     * @param g The green component of the sky color
+     * @param b The blue component of the sky color
+     * @param framebuffer The framebuffer to use for rendering
+     * @param width The width of the part that is rendered to
+     * @param height The height of the part that is rendered to
      */
-    public void load_scene_settings(Window window, Camera camera,
-            float ambient_lighting, int ambient_lighting_location,
-            int view_matrix_location, Shaders shaders) {
-        Matrix4f view_matrix = Maths.create_view_matrix(camera);
-        shaders.load_in_uniform_var(view_matrix_location,
-                view_matrix);
-        shaders.load_in_uniform_var(ambient_lighting_location,
-                ambient_lighting);
-        projection_matrix = Maths.create_projection_matrix(
-                FOV,
-                NEAR_PLANE, FAR_PLANE,
-                window
-        );
-        shaders.load_in_uniform_var(
-                projection_matrix_location, 
-                projection_matrix
-        );
+    public void init(Window window, float r, float g, float b,
+            Framebuffer framebuffer, int width, int height) throws Exception {
+        framebuffer.bind_frame_buffer();
+        GL30.glViewport(0, 0, width, height);
+        GL30.glClear(GL30.GL_COLOR_BUFFER_BIT | GL30.GL_DEPTH_BUFFER_BIT);
+        GL30.glClearColor(r, g, b, 1f);
     }
     
     /**
@@ -271,6 +371,53 @@ public class Renderer {
         GL30.glDisable(GL30.GL_BLEND);
     }
     
+    /**
+     * Bind a VAO and enable its first attributes
+     * 
+     * @param vao The VAO to bind
+     * @param attributes The amount of attributes to enable
+     */
+    public void bind_vao(VAO vao, int attributes) {
+        GL30.glBindVertexArray(vao.get_vao());
+        for(int i=0;i<attributes;i++) {
+            GL30.glEnableVertexAttribArray(i);
+        }
+    }
+    
+    /**
+     * Bind a texture to the first texture unit
+     * 
+     * @param texture_id The id of the texture
+     */
+    public void bind_texture(int texture_id) {
+        GL30.glActiveTexture(GL30.GL_TEXTURE0);
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, texture_id);
+    }
+    
+    /**
+     * Unbind the VAO and the texture that were bound
+     */
+    public void unbind() {
+        GL30.glBindTexture(GL30.GL_TEXTURE_2D, 0);
+        GL30.glBindVertexArray(0);
+    }
+    
+    /**
+     * Set the GL state to draw images over the 3D scene
+     */
+    public void start_2D() {
+        GL30.glDisable(GL30.GL_DEPTH_TEST);
+        GL30.glEnable(GL30.GL_BLEND);
+    }
+    
+    /**
+     * Set the GL state back to draw 3D models
+     */
+    public void stop_2D() {
+        GL30.glEnable(GL30.GL_DEPTH_TEST);
+        GL30.glDisable(GL30.GL_BLEND);
+    }
+    
     /**
      * Render a 3D model in the 3D scene
      * 
@@ -278,12 +425,13 @@ public class Renderer {
      */
     public void render_entity(TexturedModelEntity entity) {
         TexturedModel model = entity.model;
-        Matrix4f transformation_matrix = Maths.create_transformation_matrix(
-                new Vector3f(entity.x, entity.y, entity.z),
+        Maths.create_transformation_matrix(
+                entity.x, entity.y, entity.z,
                 entity.rx,
                 entity.ry,
                 entity.rz,
-                entity.scale
+                entity.scale,
+                transformation_matrix
         );
         
         entity.shaders.load_in_uniform_var(
@@ -306,9 +454,102 @@ public class Renderer {
             );
         }
         
-        GL30.glDrawElements(GL30.GL_TRIANGLES,
-                model.get_vertices_amount(), GL30.GL_UNSIGNED_INT,
-                0);
+        GL32.glDrawElementsBaseVertex(GL30.GL_TRIANGLES,
+                model.get_lod_indices_amount(entity.lod),
+                GL30.GL_UNSIGNED_INT,
+                (long)model.get_lod_first_index(entity.lod)*4,
+                model.get_base_vertex());
+    }
+    
+    /**
+     * Store the data of an instance in an instance buffer
+     * 
+     * @param buffer The buffer to write to
+     * @param instance The number of the instance in the buffer
+     * @param entity The entity drawn by this instance
+     */
+    public void store_instance(FloatBuffer buffer, int instance,
+            TexturedModelEntity entity) {
+        Maths.create_transformation_matrix(
+                entity.x, entity.y, entity.z,
+                entity.rx,
+                entity.ry,
+                entity.rz,
+                entity.scale,
+                transformation_matrix
+        );
+        int pos = instance*Model.INSTANCE_DATA_SIZE;
+        transformation_matrix.get(pos, buffer);
+        buffer.put(pos+16, entity.texture_x);
+        buffer.put(pos+17, entity.texture_y);
+        buffer.put(pos+18, entity.cell_size);
+        buffer.put(pos+19, entity.fade);
+    }
+    
+    /**
+     * Enable or disable the instance attributes of the bound VAO
+     * 
+     * @param enabled true to enable them
+     */
+    public void set_instance_attributes(boolean enabled) {
+        for(int i=3;i<=7;i++) {
+            if(enabled) GL30.glEnableVertexAttribArray(i);
+            else GL30.glDisableVertexAttribArray(i);
+        }
+    }
+    
+    /**
+     * Render all the entities of a model with a single draw call. The model
+     * needs to be in use and enable_instancing needs to have been called on
+     * it. If the model is in a geometry arena, the draw commands of the arena
+     * are replaced, so it must not be called while the commands of a frame
+     * are being drawn. All the entities are drawn with the level of detail of
+     * the first one.
+     * 
+     * @param model The model of the entities
+     * @param entities The entities to draw on screen.
+     */
+    public void render_entities_instanced(TexturedModel model,
+            ArrayList<TexturedModelEntity> entities) {
+        int amount = entities.size();
+        if(amount < 1) return;
+        int lod = entities.get(0).lod;
+        
+        GeometryArena arena = model.get_arena();
+        if(arena != null) {
+            arena.begin();
+            int first = arena.add_command(model, lod, amount);
+            for(int i=0;i<amount;i++) {
+                store_instance(arena.get_instance_data(), first+i,
+                        entities.get(i));
+            }
+            arena.upload();
+            set_instance_attributes(true);
+            arena.draw(0, 1);
+            set_instance_attributes(false);
+            return;
+        }
+        
+        int size = amount*Model.INSTANCE_DATA_SIZE;
+        if(instance_data.capacity() < size) {
+            instance_data = BufferUtils.createFloatBuffer(size*2);
+        }
+        instance_data.clear();
+        
+        for(int i=0;i<amount;i++) {
+            store_instance(instance_data, i, entities.get(i));
+        }
+        instance_data.limit(size);
+        
+        model.load_instances(instance_data);
+        
+        set_instance_attributes(true);
+        
+        GL31.glDrawElementsInstanced(GL30.GL_TRIANGLES,
+                model.get_lod_indices_amount(lod), GL30.GL_UNSIGNED_INT,
+                (long)model.get_lod_first_index(lod)*4, amount);
+        
+        set_instance_attributes(false);
     }
     
     /**
@@ -320,15 +561,13 @@ public class Renderer {
     public void render_entity(Window window, ImageEntity entity) {
         Image image = entity.image;
         
-        System.out.println(window.max_width);
-        System.out.println(window.max_height);
-        
-        Matrix4f transformation_matrix = Maths.create_transformation_matrix(
-                new Vector2f(entity.x*window.max_width,
-                        entity.y*window.max_height),
+        Maths.create_transformation_matrix(
+                entity.x*window.max_width,
+                entity.y*window.max_height,
                 entity.rot,
                 entity.x_scale,
-                entity.y_scale
+                entity.y_scale,
+                transformation_matrix
         );
         
         entity.shaders.load_in_uniform_var(
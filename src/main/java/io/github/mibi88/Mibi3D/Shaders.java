@@ -21,23 +21,94 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
 
 /**
- * A class that manages the vertex and fragment shaders
+ * A class that manages the vertex and fragment shaders. The same sources can
+ * be compiled in multiple variants, each with a set of features enabled with
+ * a #define, so that the shaders do not need to branch at runtime on
+ * settings that stay the same for a lot of draws. The variants are compiled
+ * the first time they are selected, and the uniform locations returned by
+ * get_uniform_location can be used with all of them. When a ProgramCache is
+ * given, the linked programs are loaded from it instead of being compiled
+ * when it contains them.
+ * The compilation is split in two steps: submit_init sends the sources to the
+ * driver without waiting for them, and finish_init checks the results. Other
+ * work can be done between them while the driver compiles the shaders, in
+ * parallel when enable_parallel_compile was called.
  * 
  * @author mibi88
  */
 public class Shaders {
-    protected final int program_id, vertex_shader_id, fragment_shader_id;
+    /**
+     * A shader program compiled with a set of features
+     */
+    private static class Variant {
+        final int features;
+        
+        // The shaders are 0 when the program was loaded from the cache
+        int program_id, vertex_shader_id, fragment_shader_id;
+        
+        // The key of the program in the program cache
+        String key;
+        
+        // If the program was sent to the driver, and if it was checked and
+        // set up after being linked
+        boolean submitted, ready;
+        
+        // The location of each uniform variable in this program
+        int[] locations = new int[0];
+        
+        // The last values loaded at each uniform location, to skip the
+        // glUniform calls that would not change anything. Each location takes
+        // 16 floats.
+        float[] uniform_cache;
+        boolean[] uniform_cached;
+        
+        Variant(int features) {
+            this.features = features;
+        }
+    }
+    
+    private final int CACHE_STRIDE = 16;
+    
+    private final String vertex_shader_source, fragment_shader_source;
+    private final String[] features;
+    private final ProgramCache program_cache;
+    
+    private final HashMap<Integer, Variant> variants;
+    private Variant variant;
+    private int variant_features;
+    private boolean submitted;
+    
+    // Everything that has to be set up again in each variant
+    private final LinkedHashMap<String, Integer> attributes;
+    private final LinkedHashMap<String, Integer> uniform_blocks;
+    private final LinkedHashMap<String, Integer> texture_units;
+    private final ArrayList<String> uniform_names;
     
     private final FloatBuffer matrix4f;
+    private final float[] matrix_values;
+    
+    private int uniform_calls;
+    private int skipped_uniform_calls;
     
     /**
      * Load the vertex and the fragment shader
@@ -50,34 +121,439 @@ public class Shaders {
      */
     public Shaders(String vertex_shader_resource,
             String fragment_shader_resource) throws Exception {
+        this(vertex_shader_resource, fragment_shader_resource, new String[0]);
+    }
+    
+    /**
+     * Load the vertex and the fragment shader, that can be compiled with
+     * some features enabled. The variant without any feature is used until
+     * another one is selected.
+     * 
+     * @param vertex_shader_resource The path to the vertex shader file in the
+     * resources
+     * @param fragment_shader_resource The path to the fragment shader file in
+     * the resources
+     * @param features The name of the macro that is defined for each feature.
+     * The feature n is enabled by the bit n of the features of a variant.
+     * @throws Exception
+     */
+    public Shaders(String vertex_shader_resource,
+            String fragment_shader_resource, String[] features)
+            throws Exception {
+        this(vertex_shader_resource, fragment_shader_resource, features,
+                null);
+    }
+    
+    /**
+     * Load the vertex and the fragment shader, that can be compiled with
+     * some features enabled, and that are stored in a program cache once
+     * linked
+     * 
+     * @param vertex_shader_resource The path to the vertex shader file in the
+     * resources
+     * @param fragment_shader_resource The path to the fragment shader file in
+     * the resources
+     * @param features The name of the macro that is defined for each feature.
+     * The feature n is enabled by the bit n of the features of a variant.
+     * @param program_cache The cache to load the programs from and to store
+     * them in, or null to always compile them
+     * @throws Exception
+     */
+    public Shaders(String vertex_shader_resource,
+            String fragment_shader_resource, String[] features,
+            ProgramCache program_cache) throws Exception {
         matrix4f = BufferUtils.createFloatBuffer(16);
+        matrix_values = new float[16];
         
-        vertex_shader_id = load_shader_file(vertex_shader_resource,
-                GL30.GL_VERTEX_SHADER);
-        fragment_shader_id = load_shader_file(fragment_shader_resource,
-                GL30.GL_FRAGMENT_SHADER);
+        this.features = features;
+        this.program_cache = program_cache;
+        variants = new HashMap<>();
+        attributes = new LinkedHashMap<>();
+        uniform_blocks = new LinkedHashMap<>();
+        texture_units = new LinkedHashMap<>();
+        uniform_names = new ArrayList<>();
+        
+        vertex_shader_source = load_shader_file(vertex_shader_resource);
+        fragment_shader_source = load_shader_file(fragment_shader_resource);
         
-        program_id = GL30.glCreateProgram();
-        GL30.glAttachShader(program_id, vertex_shader_id);
-        GL30.glAttachShader(program_id, fragment_shader_id);
+        variant = create_variant(0);
+        variant_features = 0;
+        variants.put(0, variant);
+    }
+    
+    /**
+     * Tell the driver to start compiling and linking the variants that were
+     * added, after calling bind_attribute for each VBO, without waiting for
+     * the result. Call finish_init later to use them.
+     * 
+     * @throws Exception If the key of a program could not be computed
+     */
+    public void submit_init() throws Exception {
+        submitted = true;
+        for(Variant new_variant : variants.values()) {
+            if(!new_variant.submitted) submit_variant(new_variant);
+        }
+    }
+    
+    /**
+     * Finish loading the shaders after calling bind_attribute for each VBO.
+     * The variants that were added are compiled and linked, or loaded from
+     * the program cache, if submit_init was not called, and the result of
+     * their compilation is checked.
+     * 
+     * @throws Exception If a shader could not be compiled
+     */
+    public void finish_init() throws Exception {
+        submit_init();
+        for(Variant new_variant : variants.values()) {
+            if(!new_variant.ready) complete_variant(new_variant);
+        }
+    }
+    
+    /**
+     * Enable the compilation of the shaders by multiple threads of the
+     * driver, if it supports it. glCompileShader and glLinkProgram then
+     * return before the compilation is finished.
+     * 
+     * @return true if the shaders will be compiled in parallel
+     */
+    public static boolean enable_parallel_compile() {
+        GLCapabilities capabilities = GL.getCapabilities();
+        // 0xFFFFFFFF lets the driver choose the amount of threads
+        if(capabilities.GL_KHR_parallel_shader_compile) {
+            KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+            return true;
+        }
+        if(capabilities.GL_ARB_parallel_shader_compile) {
+            ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Add a variant that will be compiled with the other ones by submit_init
+     * and finish_init, so that it is ready when it is selected. It is
+     * submitted directly if submit_init was already called.
+     * 
+     * @param features The features to enable, the bit n enables the feature n
+     * @throws Exception If the key of the program could not be computed
+     */
+    public void add_variant(int features) throws Exception {
+        if(variants.containsKey(features)) return;
+        Variant new_variant = create_variant(features);
+        variants.put(features, new_variant);
+        if(submitted) submit_variant(new_variant);
+    }
+    
+    /**
+     * Use the variant of the shaders that has some features enabled. It is
+     * compiled if it was never used before. Call start after selecting it.
+     * 
+     * @param features The features to enable, the bit n enables the feature n
+     * @throws Exception If the variant could not be compiled
+     */
+    public void select_variant(int features) throws Exception {
+        if(features == variant_features) return;
+        Variant next = variants.get(features);
+        if(next == null) {
+            next = create_variant(features);
+            variants.put(features, next);
+        }
+        if(submitted && !next.ready) {
+            if(!next.submitted) submit_variant(next);
+            complete_variant(next);
+        }
+        variant = next;
+        variant_features = features;
+    }
+    
+    /**
+     * Get the features of the selected variant
+     * 
+     * @return The features, the bit n is set if the feature n is enabled
+     */
+    public int get_variant_features() {
+        return variant_features;
     }
     
     /**
-     * Finish loading the shaders after calling bind_attribute for each VBO
+     * Get the amount of variants that were compiled
+     * 
+     * @return The amount of variants
      */
-    public void finish_init() {
+    public int get_variants_amount() {
+        return variants.size();
+    }
+    
+    /**
+     * Create a variant of the shaders, that is compiled when it is linked
+     * 
+     * @param features The features to enable
+     * @return The variant
+     */
+    private Variant create_variant(int features) {
+        Variant new_variant = new Variant(features);
+        new_variant.uniform_cache = new float[64*CACHE_STRIDE];
+        new_variant.uniform_cached = new boolean[64];
+        return new_variant;
+    }
+    
+    /**
+     * Load a variant from the program cache, or send its shaders to the
+     * driver to be compiled and linked without waiting for the result
+     * 
+     * @param submit_variant The variant to submit
+     * @throws Exception If the key of the program could not be computed
+     */
+    private void submit_variant(Variant submit_variant) throws Exception {
+        String vertex_shader = add_defines(vertex_shader_source,
+                submit_variant.features);
+        String fragment_shader = add_defines(fragment_shader_source,
+                submit_variant.features);
+        int program_id = GL30.glCreateProgram();
+        submit_variant.program_id = program_id;
+        submit_variant.submitted = true;
+        
+        if(program_cache != null) {
+            submit_variant.key = program_cache.get_key(vertex_shader,
+                    fragment_shader, attributes);
+            if(program_cache.load(program_id, submit_variant.key)) return;
+        }
+        submit_variant.vertex_shader_id = submit_shader(vertex_shader,
+                GL30.GL_VERTEX_SHADER);
+        submit_variant.fragment_shader_id = submit_shader(fragment_shader,
+                GL30.GL_FRAGMENT_SHADER);
+        GL30.glAttachShader(program_id, submit_variant.vertex_shader_id);
+        GL30.glAttachShader(program_id, submit_variant.fragment_shader_id);
+        for(Map.Entry<String, Integer> attribute : attributes.entrySet()) {
+            GL30.glBindAttribLocation(program_id, attribute.getValue(),
+                    attribute.getKey());
+        }
+        if(program_cache != null) program_cache.prepare(program_id);
         GL30.glLinkProgram(program_id);
+    }
+    
+    /**
+     * Wait for a submitted variant to be linked, check that it was compiled,
+     * store it in the program cache, and set up its uniform blocks, its
+     * texture units and the locations of its uniform variables
+     * 
+     * @param complete_variant The variant to complete
+     * @throws Exception If a shader could not be compiled
+     */
+    private void complete_variant(Variant complete_variant) throws Exception {
+        int program_id = complete_variant.program_id;
+        if(complete_variant.vertex_shader_id != 0) {
+            check_shader(complete_variant.vertex_shader_id);
+            check_shader(complete_variant.fragment_shader_id);
+            if(GL30.glGetProgrami(program_id, GL30.GL_LINK_STATUS) ==
+                    GL30.GL_FALSE) {
+                String logs = GL30.glGetProgramInfoLog(program_id);
+                throw new Exception(String.format(
+                        "Could not link shader program!\nLogs:\n%s", logs));
+            }
+            if(program_cache != null) {
+                program_cache.store(program_id, complete_variant.key);
+            }
+        }
         GL30.glValidateProgram(program_id);
+        
+        for(Map.Entry<String, Integer> block : uniform_blocks.entrySet()) {
+            int index = GL31.glGetUniformBlockIndex(program_id,
+                    block.getKey());
+            if(index != GL31.GL_INVALID_INDEX) {
+                GL31.glUniformBlockBinding(program_id, index,
+                        block.getValue());
+            }
+        }
+        complete_variant.locations = new int[uniform_names.size()];
+        for(int i=0;i<uniform_names.size();i++) {
+            complete_variant.locations[i] = GL30.glGetUniformLocation(
+                    program_id, uniform_names.get(i));
+        }
+        if(!texture_units.isEmpty()) {
+            int previous = GL30.glGetInteger(GL20.GL_CURRENT_PROGRAM);
+            GL30.glUseProgram(program_id);
+            for(Map.Entry<String, Integer> unit : texture_units.entrySet()) {
+                GL30.glUniform1i(GL30.glGetUniformLocation(program_id,
+                        unit.getKey()), unit.getValue());
+            }
+            GL30.glUseProgram(previous);
+        }
+        complete_variant.ready = true;
+    }
+    
+    /**
+     * Add the #define of each enabled feature after the #version line
+     * 
+     * @param source The source of a shader
+     * @param features The enabled features
+     * @return The source with the defines
+     */
+    private String add_defines(String source, int features) {
+        StringBuilder defines = new StringBuilder();
+        for(int i=0;i<this.features.length;i++) {
+            if((features & (1 << i)) != 0) {
+                defines.append("#define ").append(this.features[i])
+                        .append('\n');
+            }
+        }
+        int version = source.indexOf("#version");
+        int line_end = version < 0 ? -1 : source.indexOf('\n', version);
+        return source.substring(0, line_end+1)+defines+
+                source.substring(line_end+1);
+    }
+    
+    /**
+     * Use a uniform block of this shader program with the data of a block of
+     * an UniformBuffer. It can be called at any time.
+     * 
+     * @param name The name of the uniform block in the shaders
+     * @param binding The number of the block in the UniformBuffer
+     */
+    public void bind_uniform_block(String name, int binding) {
+        uniform_blocks.put(name, binding);
+        for(Variant linked_variant : variants.values()) {
+            if(!linked_variant.ready) continue;
+            int index = GL31.glGetUniformBlockIndex(linked_variant.program_id,
+                    name);
+            if(index != GL31.GL_INVALID_INDEX) {
+                GL31.glUniformBlockBinding(linked_variant.program_id, index,
+                        binding);
+            }
+        }
+    }
+    
+    /**
+     * Make a sampler uniform variable read from a texture unit in all the
+     * variants. Call it while the program is not in use.
+     * 
+     * @param name The name of the sampler
+     * @param unit The texture unit, starting from 0
+     */
+    public void set_texture_unit(String name, int unit) {
+        texture_units.put(name, unit);
+        boolean used = false;
+        for(Variant linked_variant : variants.values()) {
+            if(!linked_variant.ready) continue;
+            GL30.glUseProgram(linked_variant.program_id);
+            GL30.glUniform1i(GL30.glGetUniformLocation(
+                    linked_variant.program_id, name), unit);
+            used = true;
+        }
+        if(used) GL30.glUseProgram(0);
     }
     
     /**
      * Get the location of a uniform variable
      * 
      * @param name The name of the uniform variable
-     * @return The location of the uniform variable
+     * @return The location of the uniform variable, that can be used with all
+     * the variants
      */
     public int get_uniform_location(String name) {
-        return GL30.glGetUniformLocation(program_id, name);
+        int location = uniform_names.indexOf(name);
+        if(location >= 0) return location;
+        location = uniform_names.size();
+        uniform_names.add(name);
+        for(Variant linked_variant : variants.values()) {
+            if(!linked_variant.ready) continue;
+            linked_variant.locations = Arrays.copyOf(linked_variant.locations,
+                    location+1);
+            linked_variant.locations[location] = GL30.glGetUniformLocation(
+                    linked_variant.program_id, name);
+        }
+        return location;
+    }
+    
+    /**
+     * Check if a value is already loaded at a location of the selected
+     * variant and store it in the cache if it is not
+     * 
+     * @param location The location of the uniform variable
+     * @param values The values to compare
+     * @param amount The amount of values
+     * @return true if the glUniform call can be skipped
+     */
+    private boolean is_cached(int location, float[] values, int amount) {
+        if(location < 0 || variant.locations[location] < 0) {
+            // The uniform variable does not exist, nothing needs to be loaded
+            return true;
+        }
+        if(location >= variant.uniform_cached.length) {
+            int size = Math.max(location+1, variant.uniform_cached.length*2);
+            variant.uniform_cached = Arrays.copyOf(variant.uniform_cached,
+                    size);
+            variant.uniform_cache = Arrays.copyOf(variant.uniform_cache,
+                    size*CACHE_STRIDE);
+        }
+        float[] uniform_cache = variant.uniform_cache;
+        int pos = location*CACHE_STRIDE;
+        if(variant.uniform_cached[location]) {
+            boolean same = true;
+            for(int i=0;i<amount;i++) {
+                if(uniform_cache[pos+i] != values[i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if(same) {
+                skipped_uniform_calls++;
+                return true;
+            }
+        }
+        System.arraycopy(values, 0, uniform_cache, pos, amount);
+        variant.uniform_cached[location] = true;
+        uniform_calls++;
+        return false;
+    }
+    
+    private boolean is_cached(int location, float x, float y, float z,
+            float w, int amount) {
+        matrix_values[0] = x;
+        matrix_values[1] = y;
+        matrix_values[2] = z;
+        matrix_values[3] = w;
+        return is_cached(location, matrix_values, amount);
+    }
+    
+    /**
+     * Forget the values that were loaded to the uniform variables, so that
+     * they are all loaded again
+     */
+    public void reset_uniform_cache() {
+        for(Variant cached_variant : variants.values()) {
+            Arrays.fill(cached_variant.uniform_cached, false);
+        }
+    }
+    
+    /**
+     * Get the amount of glUniform calls since the last call to
+     * reset_uniform_stats
+     * 
+     * @return The amount of uniform variables that were loaded
+     */
+    public int get_uniform_calls() {
+        return uniform_calls;
+    }
+    
+    /**
+     * Get the amount of glUniform calls that were skipped since the last call
+     * to reset_uniform_stats because the value did not change
+     * 
+     * @return The amount of skipped glUniform calls
+     */
+    public int get_skipped_uniform_calls() {
+        return skipped_uniform_calls;
+    }
+    
+    /**
+     * Reset the counters of glUniform calls
+     */
+    public void reset_uniform_stats() {
+        uniform_calls = 0;
+        skipped_uniform_calls = 0;
     }
     
     /**
@@ -88,7 +564,8 @@ public class Shaders {
      * @param item The float to load to the uniform variable
      */
     public void load_in_uniform_var(int location, float item) {
-        GL30.glUniform1f(location, item);
+        if(is_cached(location, item, 0f, 0f, 0f, 1)) return;
+        GL30.glUniform1f(variant.locations[location], item);
     }
     
     /**
@@ -99,7 +576,8 @@ public class Shaders {
      * @param item The Vector2f to load to the uniform variable
      */
     public void load_in_uniform_var(int location, Vector2f item) {
-        GL30.glUniform2f(location, item.x, item.y);
+        if(is_cached(location, item.x, item.y, 0f, 0f, 2)) return;
+        GL30.glUniform2f(variant.locations[location], item.x, item.y);
     }
     
     /**
@@ -110,7 +588,22 @@ public class Shaders {
      * @param item The Vector3f to load to the uniform variable
      */
     public void load_in_uniform_var(int location, Vector3f item) {
-        GL30.glUniform3f(location, item.x, item.y, item.z);
+        if(is_cached(location, item.x, item.y, item.z, 0f, 3)) return;
+        GL30.glUniform3f(variant.locations[location], item.x, item.y, item.z);
+    }
+    
+    /**
+     * Load a value in an uniform variable
+     * 
+     * @param location The location of the uniform variable (get it using
+     * get_uniform_location)
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void load_in_uniform_var(int location, float x, float y, float z) {
+        if(is_cached(location, x, y, z, 0f, 3)) return;
+        GL30.glUniform3f(variant.locations[location], x, y, z);
     }
     
     /**
@@ -121,7 +614,9 @@ public class Shaders {
      * @param item The Vector4f to load to the uniform variable
      */
     public void load_in_uniform_var(int location, Vector4f item) {
-        GL30.glUniform4f(location, item.x, item.y, item.z, item.w);
+        if(is_cached(location, item.x, item.y, item.z, item.w, 4)) return;
+        GL30.glUniform4f(variant.locations[location], item.x, item.y, item.z,
+                item.w);
     }
     
     /**
@@ -132,7 +627,7 @@ public class Shaders {
      * @param item The boolean to load to the uniform variable
      */
     public void load_in_uniform_var(int location, boolean item) {
-        GL30.glUniform1i(location, item ? 1 : 0);
+        load_in_uniform_var(location, item ? 1 : 0);
     }
     
     /**
@@ -143,7 +638,10 @@ public class Shaders {
      * @param item The integer to load to the uniform variable
      */
     public void load_in_uniform_var(int location, int item) {
-        GL30.glUniform1i(location, item);
+        // The integers are stored as floats in the cache, all the values that
+        // are used fit without rounding
+        if(is_cached(location, (float)item, 0f, 0f, 0f, 1)) return;
+        GL30.glUniform1i(variant.locations[location], item);
     }
     
     /**
@@ -154,32 +652,52 @@ public class Shaders {
      * @param item The Matrix4f to load to the uniform variable
      */
     public void load_in_uniform_var(int location, Matrix4f item) {
+        item.get(matrix_values);
+        if(is_cached(location, matrix_values, 16)) return;
         item.get(matrix4f);
-        GL30.glUniformMatrix4fv(location, false, matrix4f);
+        GL30.glUniformMatrix4fv(variant.locations[location], false, matrix4f);
     }
     
     /**
      * Load a shader file
      * 
      * @param file_name The shader file in the resources
-     * @param shader_type The shader type (vertex shader, fragment shader etc.)
-     * @return The id of the shader
-     * @throws Exception 
+     * @return The source of the shader
+     * @throws Exception If the file does not exist
      */
-    private int load_shader_file(String file_name, int shader_type)
-            throws Exception {
+    private String load_shader_file(String file_name) throws Exception {
         InputStream file = getClass().getClassLoader().getResourceAsStream(
                 file_name
         );
-        String content = new BufferedReader(
+        if(file == null) {
+            throw new Exception("Could not find shader " + file_name + "!");
+        }
+        return new BufferedReader(
                 new InputStreamReader(file)
         ).lines().collect(Collectors.joining("\n"));
-        
+    }
+    
+    /**
+     * Start compiling a shader
+     * 
+     * @param content The source of the shader
+     * @param shader_type The shader type (vertex shader, fragment shader etc.)
+     * @return The id of the shader
+     */
+    private int submit_shader(String content, int shader_type) {
         int shader_id = GL30.glCreateShader(shader_type);
         GL30.glShaderSource(shader_id, content);
         GL30.glCompileShader(shader_id);
-        
-        // Check if the shader was compiled
+        return shader_id;
+    }
+    
+    /**
+     * Check if a shader was compiled, waiting for it if needed
+     * 
+     * @param shader_id The id of the shader
+     * @throws Exception If the shader could not be compiled
+     */
+    private void check_shader(int shader_id) throws Exception {
         int compile_status = GL30.glGetShaderi(shader_id,
                 GL30.GL_COMPILE_STATUS);
         if(compile_status == GL30.GL_FALSE) {
@@ -190,8 +708,6 @@ public class Shaders {
             );
             throw new Exception(message);
         }
-        
-        return shader_id;
     }
     
     /**
@@ -201,15 +717,14 @@ public class Shaders {
      * @param input_var_name The input variable that it will be bound to
      */
     public void bind_attribute(int vbo_n, String input_var_name) {
-        GL30.glBindAttribLocation(program_id, vbo_n,
-                input_var_name);
+        attributes.put(input_var_name, vbo_n);
     }
     
     /**
-     * Start using this shader program
+     * Start using this shader program, with the selected variant
      */
     public void start() {
-        GL30.glUseProgram(program_id);
+        GL30.glUseProgram(variant.program_id);
     }
     
     /**
@@ -220,17 +735,24 @@ public class Shaders {
     }
     
     /**
-     * Delete this shader program and the shaders
+     * Delete all the variants of this shader program and the shaders
      */
     public void free() {
         stop();
         
-        GL30.glDetachShader(program_id, vertex_shader_id);
-        GL30.glDetachShader(program_id, fragment_shader_id);
-        
-        GL30.glDeleteShader(vertex_shader_id);
-        GL30.glDeleteShader(fragment_shader_id);
-        
-        GL30.glDeleteProgram(program_id);
+        for(Variant freed_variant : variants.values()) {
+            if(freed_variant.vertex_shader_id != 0) {
+                GL30.glDetachShader(freed_variant.program_id,
+                        freed_variant.vertex_shader_id);
+                GL30.glDetachShader(freed_variant.program_id,
+                        freed_variant.fragment_shader_id);
+                
+                GL30.glDeleteShader(freed_variant.vertex_shader_id);
+                GL30.glDeleteShader(freed_variant.fragment_shader_id);
+            }
+            
+            GL30.glDeleteProgram(freed_variant.program_id);
+        }
+        variants.clear();
     }
 }
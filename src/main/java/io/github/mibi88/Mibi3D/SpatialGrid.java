@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A loose uniform grid on the XZ plane to quickly find the items that are in
+ * a region of the world.
+ *
+ * Each item is a sphere that is stored in the cell that contains its center.
+ * As the radius of the items of a cell is at most the size of a cell, a query
+ * only needs to look at the cells that it touches and at their direct
+ * neighbours. Items that are bigger than a cell, like the terrain, are kept in
+ * a separate list that is always checked.
+ *
+ * @author mibi88
+ * @param <T> The type of the items
+ */
+public class SpatialGrid<T> {
+    /**
+     * An item stored in the grid
+     */
+    private static class Entry<T> {
+        T item;
+        float x, y, z, radius;
+        Cell<T> cell;
+        int index;
+    }
+
+    /**
+     * A cell of the grid. Its vertical bounds only grow, they are reset when
+     * the cell gets empty.
+     */
+    private static class Cell<T> {
+        int cell_x, cell_z;
+        long key;
+        int index;
+        final ArrayList<Entry<T>> entries = new ArrayList<>();
+        float min_y = Float.POSITIVE_INFINITY;
+        float max_y = Float.NEGATIVE_INFINITY;
+    }
+
+    private final float cell_size;
+
+    // The cells are stored in an open addressing hash table with linear
+    // probing, to avoid boxing their keys, and in a list to iterate over them
+    private long[] cell_keys;
+    private Cell<T>[] cell_table;
+    private final ArrayList<Cell<T>> cells;
+    // Emptied cells are kept to be reused, so that moving items around does
+    // not allocate
+    private final ArrayList<Cell<T>> free_cells;
+    private final HashMap<T, Entry<T>> entries;
+    private final Cell<T> large_entries;
+
+    /**
+     * Create a new empty grid
+     *
+     * @param cell_size The size of a cell, in world units. It should be a bit
+     * bigger than most of the items.
+     */
+    public SpatialGrid(float cell_size) {
+        this.cell_size = cell_size;
+        cells = new ArrayList<>();
+        free_cells = new ArrayList<>();
+        allocate_table(64);
+        entries = new HashMap<>();
+        large_entries = new Cell<>();
+    }
+
+    /**
+     * Get the size of a cell
+     *
+     * @return The size of a cell, in world units
+     */
+    public float get_cell_size() {
+        return cell_size;
+    }
+
+    /**
+     * Get the amount of items in the grid
+     *
+     * @return The amount of items
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Check if an item is in the grid
+     *
+     * @param item The item to look for
+     * @return true if the item was inserted
+     */
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * Add an item to the grid. If it is already in it, it is moved.
+     *
+     * @param item The item to add
+     * @param x
+     * @param y
+     * @param z
+     * @param radius The radius of the bounding sphere of the item
+     */
+    public void insert(T item, float x, float y, float z, float radius) {
+        Entry<T> entry = entries.get(item);
+        if(entry != null) {
+            update(item, x, y, z, radius);
+            return;
+        }
+        entry = new Entry<>();
+        entry.item = item;
+        entry.x = x;
+        entry.y = y;
+        entry.z = z;
+        entry.radius = radius;
+        entries.put(item, entry);
+        add_to_cell(entry, get_cell(entry, true));
+    }
+
+    /**
+     * Move an item. It only changes cell if its center moved to another one,
+     * so it is cheap to call on every frame for moving items.
+     *
+     * @param item The item to move
+     * @param x
+     * @param y
+     * @param z
+     * @param radius The radius of the bounding sphere of the item
+     * @return false if the item was moved, or true if it is not in the grid
+     */
+    public boolean update(T item, float x, float y, float z, float radius) {
+        Entry<T> entry = entries.get(item);
+        if(entry == null) return true;
+        entry.x = x;
+        entry.y = y;
+        entry.z = z;
+        entry.radius = radius;
+        Cell<T> cell = get_cell(entry, false);
+        if(cell != entry.cell) {
+            remove_from_cell(entry);
+            add_to_cell(entry, cell != null ? cell : get_cell(entry, true));
+        } else {
+            cell.min_y = Math.min(cell.min_y, y-radius);
+            cell.max_y = Math.max(cell.max_y, y+radius);
+        }
+        return false;
+    }
+
+    /**
+     * Remove an item from the grid
+     *
+     * @param item The item to remove
+     * @return false on success, or true if the item is not in the grid
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if(entry == null) return true;
+        remove_from_cell(entry);
+        return false;
+    }
+
+    /**
+     * Remove all the items
+     */
+    public void clear() {
+        cells.clear();
+        Arrays.fill(cell_table, null);
+        entries.clear();
+        large_entries.entries.clear();
+    }
+
+    /**
+     * Find the items that touch a rectangle of the XZ plane
+     *
+     * @param min_x
+     * @param min_z
+     * @param max_x
+     * @param max_z
+     * @param out The list the items are added to
+     */
+    public void query_region(float min_x, float min_z, float max_x,
+            float max_z, ArrayList<T> out) {
+        for(int i=0;i<large_entries.entries.size();i++) {
+            Entry<T> entry = large_entries.entries.get(i);
+            if(touches_rectangle(entry, min_x, min_z, max_x, max_z)) {
+                out.add(entry.item);
+            }
+        }
+        int min_cell_x = cell_pos(min_x)-1, max_cell_x = cell_pos(max_x)+1;
+        int min_cell_z = cell_pos(min_z)-1, max_cell_z = cell_pos(max_z)+1;
+        for(int cell_z=min_cell_z;cell_z<=max_cell_z;cell_z++) {
+            for(int cell_x=min_cell_x;cell_x<=max_cell_x;cell_x++) {
+                Cell<T> cell = find_cell(key(cell_x, cell_z));
+                if(cell == null) continue;
+                for(int i=0;i<cell.entries.size();i++) {
+                    Entry<T> entry = cell.entries.get(i);
+                    if(touches_rectangle(entry, min_x, min_z, max_x, max_z)) {
+                        out.add(entry.item);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the items that touch a circle of the XZ plane
+     *
+     * @param x
+     * @param z
+     * @param radius The radius of the circle
+     * @param out The list the items are added to
+     */
+    public void query_radius(float x, float z, float radius, ArrayList<T> out) {
+        for(int i=0;i<large_entries.entries.size();i++) {
+            Entry<T> entry = large_entries.entries.get(i);
+            if(touches_circle(entry, x, z, radius)) {
+                out.add(entry.item);
+            }
+        }
+        int min_cell_x = cell_pos(x-radius)-1;
+        int max_cell_x = cell_pos(x+radius)+1;
+        int min_cell_z = cell_pos(z-radius)-1;
+        int max_cell_z = cell_pos(z+radius)+1;
+        for(int cell_z=min_cell_z;cell_z<=max_cell_z;cell_z++) {
+            for(int cell_x=min_cell_x;cell_x<=max_cell_x;cell_x++) {
+                Cell<T> cell = find_cell(key(cell_x, cell_z));
+                if(cell == null) continue;
+                for(int i=0;i<cell.entries.size();i++) {
+                    Entry<T> entry = cell.entries.get(i);
+                    if(touches_circle(entry, x, z, radius)) {
+                        out.add(entry.item);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the items that are inside of a view frustum
+     *
+     * @param frustum The frustum
+     * @param x The X position of the camera
+     * @param z The Z position of the camera
+     * @param distance The distance of the far plane
+     * @param out The list the items are added to
+     */
+    public void query_frustum(Frustum frustum, float x, float z,
+            float distance, ArrayList<T> out) {
+        for(int i=0;i<large_entries.entries.size();i++) {
+            Entry<T> entry = large_entries.entries.get(i);
+            if(frustum.test_sphere(entry.x, entry.y, entry.z, entry.radius)) {
+                out.add(entry.item);
+            }
+        }
+        int min_cell_x = cell_pos(x-distance)-1;
+        int max_cell_x = cell_pos(x+distance)+1;
+        int min_cell_z = cell_pos(z-distance)-1;
+        int max_cell_z = cell_pos(z+distance)+1;
+        // Only look at the cells that exist when there are less of them than
+        // cells in the region around the camera
+        long region_size = (long)(max_cell_x-min_cell_x+1)*
+                (max_cell_z-min_cell_z+1);
+        if(region_size > cells.size()) {
+            for(int i=0;i<cells.size();i++) {
+                Cell<T> cell = cells.get(i);
+                if(cell.cell_x < min_cell_x || cell.cell_x > max_cell_x ||
+                        cell.cell_z < min_cell_z || cell.cell_z > max_cell_z) {
+                    continue;
+                }
+                query_frustum_cell(frustum, cell, cell.cell_x, cell.cell_z,
+                        out);
+            }
+            return;
+        }
+        for(int cell_z=min_cell_z;cell_z<=max_cell_z;cell_z++) {
+            for(int cell_x=min_cell_x;cell_x<=max_cell_x;cell_x++) {
+                Cell<T> cell = find_cell(key(cell_x, cell_z));
+                if(cell == null) continue;
+                query_frustum_cell(frustum, cell, cell_x, cell_z, out);
+            }
+        }
+    }
+
+    /**
+     * Add the items of a cell that are inside of the frustum to a list
+     */
+    private void query_frustum_cell(Frustum frustum, Cell<T> cell,
+            int cell_x, int cell_z, ArrayList<T> out) {
+        // The items of a cell can go up to a cell outside of it
+        if(!frustum.test_aabb((cell_x-1)*cell_size, cell.min_y,
+                (cell_z-1)*cell_size, (cell_x+2)*cell_size, cell.max_y,
+                (cell_z+2)*cell_size)) {
+            return;
+        }
+        for(int i=0;i<cell.entries.size();i++) {
+            Entry<T> entry = cell.entries.get(i);
+            if(frustum.test_sphere(entry.x, entry.y, entry.z, entry.radius)) {
+                out.add(entry.item);
+            }
+        }
+    }
+
+    private boolean touches_rectangle(Entry<T> entry, float min_x,
+            float min_z, float max_x, float max_z) {
+        float dx = Math.max(Math.max(min_x-entry.x, entry.x-max_x), 0f);
+        float dz = Math.max(Math.max(min_z-entry.z, entry.z-max_z), 0f);
+        return dx*dx+dz*dz <= entry.radius*entry.radius;
+    }
+
+    private boolean touches_circle(Entry<T> entry, float x, float z,
+            float radius) {
+        float dx = entry.x-x, dz = entry.z-z;
+        float max_distance = entry.radius+radius;
+        return dx*dx+dz*dz <= max_distance*max_distance;
+    }
+
+    private int cell_pos(float pos) {
+        return (int)Math.floor(pos/cell_size);
+    }
+
+    private long key(int cell_x, int cell_z) {
+        return ((long)cell_x << 32) | (cell_z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the cell an entry belongs to
+     *
+     * @param entry The entry
+     * @param create If the cell should be created if it does not exist
+     * @return The cell, or null if it does not exist and create is false
+     */
+    private Cell<T> get_cell(Entry<T> entry, boolean create) {
+        if(entry.radius > cell_size) return large_entries;
+        int cell_x = cell_pos(entry.x), cell_z = cell_pos(entry.z);
+        long key = key(cell_x, cell_z);
+        Cell<T> cell = find_cell(key);
+        if(cell == null && create) {
+            cell = free_cells.isEmpty() ? new Cell<>() :
+                    free_cells.remove(free_cells.size()-1);
+            cell.cell_x = cell_x;
+            cell.cell_z = cell_z;
+            cell.key = key;
+            add_cell(cell);
+        }
+        return cell;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void allocate_table(int capacity) {
+        cell_keys = new long[capacity];
+        cell_table = (Cell<T>[])new Cell[capacity];
+    }
+
+    private int slot(long key) {
+        // Mix the bits of both coordinates, the table size is a power of two
+        long hash = key*0x9E3779B97F4A7C15L;
+        return (int)(hash >>> 32) & (cell_table.length-1);
+    }
+
+    private Cell<T> find_cell(long key) {
+        int mask = cell_table.length-1;
+        for(int i=slot(key);cell_table[i] != null;i=(i+1)&mask) {
+            if(cell_keys[i] == key) return cell_table[i];
+        }
+        return null;
+    }
+
+    private void put_cell(Cell<T> cell) {
+        int mask = cell_table.length-1;
+        int i = slot(cell.key);
+        while(cell_table[i] != null) i = (i+1)&mask;
+        cell_keys[i] = cell.key;
+        cell_table[i] = cell;
+    }
+
+    private void add_cell(Cell<T> cell) {
+        // Keep the table at most half full so that the probes stay short
+        if((cells.size()+1)*2 > cell_table.length) {
+            allocate_table(cell_table.length*2);
+            for(int i=0;i<cells.size();i++) {
+                put_cell(cells.get(i));
+            }
+        }
+        put_cell(cell);
+        cell.index = cells.size();
+        cells.add(cell);
+    }
+
+    private void remove_cell(Cell<T> cell) {
+        int mask = cell_table.length-1;
+        int i = slot(cell.key);
+        while(cell_table[i] != cell) i = (i+1)&mask;
+        cell_table[i] = null;
+        // Move back the cells that follow so that no probe sequence is broken
+        for(int n=(i+1)&mask;cell_table[n] != null;n=(n+1)&mask) {
+            Cell<T> moved = cell_table[n];
+            cell_table[n] = null;
+            put_cell(moved);
+        }
+        Cell<T> last = cells.remove(cells.size()-1);
+        if(last != cell) {
+            last.index = cell.index;
+            cells.set(cell.index, last);
+        }
+    }
+
+    private void add_to_cell(Entry<T> entry, Cell<T> cell) {
+        entry.cell = cell;
+        entry.index = cell.entries.size();
+        cell.entries.add(entry);
+        cell.min_y = Math.min(cell.min_y, entry.y-entry.radius);
+        cell.max_y = Math.max(cell.max_y, entry.y+entry.radius);
+    }
+
+    private void remove_from_cell(Entry<T> entry) {
+        Cell<T> cell = entry.cell;
+        // Swap with the last entry to remove in constant time
+        Entry<T> last = cell.entries.remove(cell.entries.size()-1);
+        if(last != entry) {
+            last.index = entry.index;
+            cell.entries.set(entry.index, last);
+        }
+        entry.cell = null;
+        if(cell.entries.isEmpty()) {
+            cell.min_y = Float.POSITIVE_INFINITY;
+            cell.max_y = Float.NEGATIVE_INFINITY;
+            if(cell != large_entries) {
+                remove_cell(cell);
+                free_cells.add(cell);
+            }
+        }
+    }
+}
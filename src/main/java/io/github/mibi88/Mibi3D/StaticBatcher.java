@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Groups the static entities by chunk of the XZ plane and by model. The
+ * entities of each group are baked into a single mesh, with their
+ * transformation and their texture atlas cell, so that a group is drawn as a
+ * single entity. When an entity is added or removed, only its group is marked
+ * to be rebuilt. The levels of detail of the model are baked in the same way,
+ * and are selected for the whole group from its closest side.
+ *
+ * @author mibi88
+ */
+public class StaticBatcher {
+    /**
+     * The static entities of a model in a chunk
+     */
+    public static class Batch {
+        public final TexturedModel source_model;
+        final long key;
+        final ArrayList<TexturedModelEntity> entities = new ArrayList<>();
+        boolean dirty = false;
+
+        /**
+         * The merged model and the entity that draws it, or null if it was
+         * not built yet
+         */
+        public TexturedModel model = null;
+        public TexturedModelEntity entity = null;
+
+        Batch(TexturedModel source_model, long key) {
+            this.source_model = source_model;
+            this.key = key;
+        }
+
+        /**
+         * Get the entities baked in this batch
+         *
+         * @return The list of entities, it should not be modified
+         */
+        public ArrayList<TexturedModelEntity> get_entities() {
+            return entities;
+        }
+    }
+
+    private final float chunk_size;
+
+    private final HashMap<Long, HashMap<TexturedModel, Batch>> chunks;
+    private final HashMap<TexturedModelEntity, Batch> entity_batches;
+    private final ArrayList<Batch> dirty_batches;
+    private final ArrayList<Batch> batches;
+
+    private final Matrix4f matrix;
+    private final Vector3f vector;
+
+    /**
+     * Create a new static batcher
+     *
+     * @param chunk_size The size of a chunk, in world units
+     */
+    public StaticBatcher(float chunk_size) {
+        this.chunk_size = chunk_size;
+        chunks = new HashMap<>();
+        entity_batches = new HashMap<>();
+        dirty_batches = new ArrayList<>();
+        batches = new ArrayList<>();
+        matrix = new Matrix4f();
+        vector = new Vector3f();
+    }
+
+    /**
+     * Add a static entity
+     *
+     * @param entity The entity to add
+     */
+    public void add(TexturedModelEntity entity) {
+        if(entity_batches.containsKey(entity)) return;
+        long key = ((long)(int)Math.floor(entity.x/chunk_size) << 32) |
+                ((int)Math.floor(entity.z/chunk_size) & 0xFFFFFFFFL);
+        HashMap<TexturedModel, Batch> chunk = chunks.get(key);
+        if(chunk == null) {
+            chunk = new HashMap<>();
+            chunks.put(key, chunk);
+        }
+        Batch batch = chunk.get(entity.model);
+        if(batch == null) {
+            batch = new Batch(entity.model, key);
+            chunk.put(entity.model, batch);
+            batches.add(batch);
+        }
+        batch.entities.add(entity);
+        entity_batches.put(entity, batch);
+        mark_dirty(batch);
+    }
+
+    /**
+     * Remove a static entity
+     *
+     * @param entity The entity to remove
+     * @return false on success, or true if the entity was not batched
+     */
+    public boolean remove(TexturedModelEntity entity) {
+        Batch batch = entity_batches.remove(entity);
+        if(batch == null) return true;
+        batch.entities.remove(entity);
+        mark_dirty(batch);
+        return false;
+    }
+
+    /**
+     * Delete a batch that has no entities left, and its chunk once it has no
+     * batches left. The model that was built for it still needs to be freed
+     * by the caller.
+     *
+     * @param batch The empty batch
+     */
+    public void delete(Batch batch) {
+        if(!batch.entities.isEmpty()) return;
+        HashMap<TexturedModel, Batch> chunk = chunks.get(batch.key);
+        if(chunk == null || chunk.get(batch.source_model) != batch) return;
+        chunk.remove(batch.source_model);
+        if(chunk.isEmpty()) chunks.remove(batch.key);
+        batches.remove(batch);
+    }
+
+    /**
+     * Check if an entity is baked in a batch
+     *
+     * @param entity The entity to look for
+     * @return true if the entity was added
+     */
+    public boolean contains(TexturedModelEntity entity) {
+        return entity_batches.containsKey(entity);
+    }
+
+    /**
+     * Get the batches that need to be built again since the last call of
+     * clear_dirty_batches
+     *
+     * @return The list of batches
+     */
+    public ArrayList<Batch> get_dirty_batches() {
+        return dirty_batches;
+    }
+
+    /**
+     * Get all the batches
+     *
+     * @return The list of batches
+     */
+    public ArrayList<Batch> get_batches() {
+        return batches;
+    }
+
+    /**
+     * Mark all the dirty batches as built
+     */
+    public void clear_dirty_batches() {
+        for(int i=0;i<dirty_batches.size();i++) {
+            dirty_batches.get(i).dirty = false;
+        }
+        dirty_batches.clear();
+    }
+
+    /**
+     * Remove all the entities. The batches that were built still need to be
+     * freed by the caller.
+     */
+    public void clear() {
+        chunks.clear();
+        entity_batches.clear();
+        dirty_batches.clear();
+        batches.clear();
+    }
+
+    private void mark_dirty(Batch batch) {
+        if(batch.dirty) return;
+        batch.dirty = true;
+        dirty_batches.add(batch);
+    }
+
+    /**
+     * Bake the entities of a batch in a single model. The positions and the
+     * normals are transformed to world space, and the texture coordinates
+     * are moved to the texture atlas cell of each entity.
+     *
+     * @param batch The batch to build
+     * @return The merged model, or null if the batch is empty
+     */
+    public TexturedModel build_model(Batch batch) {
+        ArrayList<TexturedModelEntity> entities = batch.entities;
+        if(entities.isEmpty()) return null;
+        TexturedModel source = batch.source_model;
+        float[] source_vertices = source.get_mesh_vertices();
+        float[] source_normals = source.get_mesh_normals();
+        float[] source_texture_coords = source.get_mesh_texture_coords();
+        int[] source_indices = source.get_mesh_indices();
+        int vertex_count = source_vertices.length/3;
+
+        int amount = entities.size();
+        float max_scale = 0f;
+        float[] vertices = new float[amount*vertex_count*3];
+        float[] normals = new float[amount*vertex_count*3];
+        float[] texture_coords = new float[amount*vertex_count*2];
+
+        for(int e=0;e<amount;e++) {
+            TexturedModelEntity entity = entities.get(e);
+            Maths.create_transformation_matrix(entity.x, entity.y, entity.z,
+                    entity.rx, entity.ry, entity.rz, entity.scale, matrix);
+            max_scale = Math.max(max_scale, Math.abs(entity.scale));
+            int base = e*vertex_count;
+            for(int i=0;i<vertex_count;i++) {
+                matrix.transformPosition(vector.set(source_vertices[i*3],
+                        source_vertices[i*3+1], source_vertices[i*3+2]));
+                vertices[(base+i)*3] = vector.x;
+                vertices[(base+i)*3+1] = vector.y;
+                vertices[(base+i)*3+2] = vector.z;
+                if(i*3+2 < source_normals.length) {
+                    matrix.transformDirection(vector.set(source_normals[i*3],
+                            source_normals[i*3+1], source_normals[i*3+2]))
+                            .normalize();
+                    normals[(base+i)*3] = vector.x;
+                    normals[(base+i)*3+1] = vector.y;
+                    normals[(base+i)*3+2] = vector.z;
+                }
+                if(i*2+1 < source_texture_coords.length) {
+                    texture_coords[(base+i)*2] = source_texture_coords[i*2]*
+                            entity.cell_size+entity.texture_x;
+                    texture_coords[(base+i)*2+1] =
+                            source_texture_coords[i*2+1]*entity.cell_size+
+                            entity.texture_y;
+                }
+            }
+        }
+        int[] indices = repeat_indices(source_indices, amount, vertex_count);
+        TexturedModel model = new TexturedModel(vertices, indices, normals,
+                texture_coords, source);
+        model.impostor = source.impostor;
+        int lods_amount = source.get_lods_amount();
+        if(lods_amount > 1) {
+            int[][] lods = new int[lods_amount-1][];
+            for(int l=1;l<lods_amount;l++) {
+                lods[l-1] = repeat_indices(source.get_lod_indices(l), amount,
+                        vertex_count);
+            }
+            model.load_lods(lods, source.get_lod_screen_sizes());
+            model.lod_radius = source.lod_radius*max_scale;
+        }
+        return model;
+    }
+
+    /**
+     * Repeat the indices of a mesh for each entity of a batch
+     *
+     * @param source_indices The indices of the mesh
+     * @param amount The amount of entities
+     * @param vertex_count The amount of vertices of the mesh
+     * @return The indices of the merged mesh
+     */
+    private int[] repeat_indices(int[] source_indices, int amount,
+            int vertex_count) {
+        int[] indices = new int[amount*source_indices.length];
+        for(int e=0;e<amount;e++) {
+            int base = e*vertex_count;
+            int index_base = e*source_indices.length;
+            for(int i=0;i<source_indices.length;i++) {
+                indices[index_base+i] = source_indices[i]+base;
+            }
+        }
+        return indices;
+    }
+}
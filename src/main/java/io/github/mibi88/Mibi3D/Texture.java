@@ -17,15 +17,10 @@
  */
 package io.github.mibi88.Mibi3D;
 
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.EXTTextureFilterAnisotropic;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL30;
-import org.lwjgl.stb.STBImage;
 
 /**
  *
@@ -68,15 +63,35 @@ public class Texture {
     public int load_texture(String file_name, int filter, int wrap,
             float anisotropy_amount, ArrayList<Integer> texture_list)
             throws Exception {
-        InputStream stream = getClass().getClassLoader().getResourceAsStream(
-                file_name
-        );
-        byte[] image_data_bytes = stream.readAllBytes();
-        ByteBuffer image_data = BufferUtils.createByteBuffer(
-                image_data_bytes.length
-        );
-        image_data.put(image_data_bytes);
-        image_data.flip();
+        ImageData image = ImageData.load(file_name);
+        try {
+            return load_texture(image, filter, wrap, anisotropy_amount,
+                    texture_list);
+        } finally {
+            image.free();
+        }
+    }
+    
+    /**
+     * Loads a texture from an image that was already decoded, that can be
+     * freed after
+     * 
+     * @param image The decoded image
+     * @param filter The filter of the texture (final integers that
+     * start with FILTER, in this class)
+     * @param wrap The way to wrap the texture (final integers that
+     * start with WRAP, in this class)
+     * @param anisotropy_amount The amount of anisotropy. 0 to disable it
+     * @param texture_list The ArrayList that contains all texture ids
+     * @return The id of the texture
+     * @throws Exception If the image was freed
+     */
+    public int load_texture(ImageData image, int filter, int wrap,
+            float anisotropy_amount, ArrayList<Integer> texture_list)
+            throws Exception {
+        if(image.get_pixels() == null) {
+            throw new Exception("Failed to load image!");
+        }
         
         int id = GL30.glGenTextures();
         
@@ -107,32 +122,19 @@ public class Texture {
             System.err.println("Anisotropic filtering is not supported!");
         }
         
-        IntBuffer width = BufferUtils.createIntBuffer(1);
-        IntBuffer height = BufferUtils.createIntBuffer(1);
-        IntBuffer channels = BufferUtils.createIntBuffer(1);
-        
-        ByteBuffer image = STBImage.stbi_load_from_memory(image_data,
-                width, height, channels, 4);
-        
         System.out.printf("Image properties: w=%d, h=%d, channels=%d\n",
-                width.get(0), height.get(0),
-                channels.get(0));
-        
-        size[0] = width.get(0);
-        size[1] = height.get(0);
+                image.get_width(), image.get_height(),
+                image.get_channels());
         
-        if(image == null) {
-            throw new Exception("Failed to load image!");
-        }
+        size[0] = image.get_width();
+        size[1] = image.get_height();
         
         GL30.glTexImage2D(GL30.GL_TEXTURE_2D, 0,
-                GL30.GL_RGBA, width.get(0),
-                height.get(0), 0, GL30.GL_RGBA,
-                GL30.GL_UNSIGNED_BYTE, image);
+                GL30.GL_RGBA, image.get_width(),
+                image.get_height(), 0, GL30.GL_RGBA,
+                GL30.GL_UNSIGNED_BYTE, image.get_pixels());
         GL30.glGenerateMipmap(GL30.GL_TEXTURE_2D);
         
-        STBImage.stbi_image_free(image);
-        
         texture_list.add(id);
         
         // Unbind the texture
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.ByteBuffer;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+
+/**
+ * A buffer that shaders read as a samplerBuffer (or an usamplerBuffer), with
+ * texelFetch. It is used for data that is too big for an uniform block. The
+ * data is uploaded again each time it changes.
+ *
+ * @author mibi88
+ */
+public class TextureBuffer {
+    private final int buffer;
+    private final int texture;
+    private final int internal_format;
+
+    private ByteBuffer data;
+
+    /**
+     * Create a new texture buffer
+     *
+     * @param internal_format The format of the texels, for example
+     * GL30.GL_RGBA32F or GL30.GL_R32UI
+     */
+    public TextureBuffer(int internal_format) {
+        this.internal_format = internal_format;
+        data = BufferUtils.createByteBuffer(1024);
+
+        buffer = GL30.glGenBuffers();
+        texture = GL30.glGenTextures();
+        upload_data(16);
+        GL30.glBindTexture(GL31.GL_TEXTURE_BUFFER, texture);
+        GL31.glTexBuffer(GL31.GL_TEXTURE_BUFFER, internal_format, buffer);
+        GL30.glBindTexture(GL31.GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Upload floats to the buffer
+     *
+     * @param values The values to upload
+     * @param amount The amount of values to upload
+     */
+    public void upload(float[] values, int amount) {
+        reserve(amount*4);
+        for(int i=0;i<amount;i++) {
+            data.putFloat(i*4, values[i]);
+        }
+        upload_data(amount*4);
+    }
+
+    /**
+     * Upload integers to the buffer
+     *
+     * @param values The values to upload
+     * @param amount The amount of values to upload
+     */
+    public void upload(int[] values, int amount) {
+        reserve(amount*4);
+        for(int i=0;i<amount;i++) {
+            data.putInt(i*4, values[i]);
+        }
+        upload_data(amount*4);
+    }
+
+    private void reserve(int size) {
+        if(data.capacity() < size) {
+            data = BufferUtils.createByteBuffer(size*2);
+        }
+    }
+
+    private void upload_data(int size) {
+        // Never leave the buffer empty, it would not be a valid texture
+        data.clear();
+        data.limit(Math.max(size, 16));
+        GL30.glBindBuffer(GL31.GL_TEXTURE_BUFFER, buffer);
+        GL30.glBufferData(GL31.GL_TEXTURE_BUFFER, data, GL30.GL_STREAM_DRAW);
+        GL30.glBindBuffer(GL31.GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Bind the buffer to a texture unit
+     *
+     * @param unit The texture unit, starting from 0
+     */
+    public void bind(int unit) {
+        GL30.glActiveTexture(GL30.GL_TEXTURE0+unit);
+        GL30.glBindTexture(GL31.GL_TEXTURE_BUFFER, texture);
+    }
+
+    /**
+     * Get the format of the texels
+     *
+     * @return The internal format
+     */
+    public int get_internal_format() {
+        return internal_format;
+    }
+
+    /**
+     * Delete the buffer and its texture
+     */
+    public void free() {
+        GL30.glDeleteTextures(texture);
+        GL30.glDeleteBuffers(buffer);
+    }
+}
@@ -37,6 +37,12 @@ public class TexturedModel extends Model {
     
     public final int texture_atlas_size;
     
+    /**
+     * The billboard that replaces the entities of this model when they are
+     * far away, or null
+     */
+    public Impostor impostor = null;
+    
     private final ArrayList<Integer> texture_list;
     
     /**
@@ -96,6 +102,54 @@ public class TexturedModel extends Model {
                 texture_list);
     }
     
+    /**
+     * Create a new model with a texture, from a mesh and an image that were
+     * loaded before, for example on another thread. The image can be freed
+     * after.
+     * 
+     * @param mesh The mesh of the model
+     * @param image The decoded texture
+     * @param texture_filter The filter of the texture (final integers that
+     * start with FILTER, in the Texture class)
+     * @param texture_wrap The way to wrap the texture (final integers that
+     * start with WRAP, in the Texture class)
+     * @param anisotropy_amount The amount of anisotropy. 0 to disable it
+     * @param texture_atlas_size The size of the texture atlas. Set it to 1 or
+     * smaller to disable it
+     * @throws Exception
+     */
+    public TexturedModel(Mesh mesh, ImageData image, int texture_filter,
+            int texture_wrap, float anisotropy_amount, int texture_atlas_size)
+            throws Exception {
+        super(mesh);
+        this.texture_atlas_size = texture_atlas_size;
+        texture_list = new ArrayList<>();
+        Texture texture = new Texture();
+        texture_id = texture.load_texture(image,
+                texture_filter, texture_wrap, anisotropy_amount,
+                texture_list);
+    }
+    
+    /**
+     * Create a new model that uses the texture and the material of another
+     * model. The texture is not deleted when this model is freed.
+     * 
+     * @param vertices The array of vertices of the model
+     * @param indices The position of the vertex to use in the array of vertices
+     * @param normals The normals for each vertex
+     * @param texture_coords The array texture coordinates
+     * @param texture_model The model to take the texture from
+     */
+    public TexturedModel(float[] vertices, int[] indices, float[] normals,
+            float[] texture_coords, TexturedModel texture_model) {
+        super(vertices, indices, normals, texture_coords);
+        texture_atlas_size = 1;
+        texture_list = new ArrayList<>();
+        texture_id = texture_model.texture_id;
+        shine_damper = texture_model.shine_damper;
+        reflectivity = texture_model.reflectivity;
+    }
+    
     /**
      * Start using the texture of this model
      */
@@ -17,6 +17,10 @@
  */
 package io.github.mibi88.Mibi3D;
 
+import java.util.ArrayList;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
 /**
  * An entity of a model
  * 
@@ -34,6 +38,24 @@ public class TexturedModelEntity extends ModelEntity {
     
     public final float cell_size;
     
+    /**
+     * The level of detail of the model the entity was drawn with on the last
+     * frame
+     */
+    public int lod = 0;
+    
+    /**
+     * The part of the pixels of the mesh that are left to the impostor of
+     * the model, between 0 and 1. It is set on each frame.
+     */
+    public float fade = 0f;
+    
+    /**
+     * The entities that were baked in the mesh of this entity, or null if it
+     * does not draw a static batch
+     */
+    public ArrayList<TexturedModelEntity> baked_entities = null;
+    
     /**
      * Create a new entity of a TexturedModel
      * 
@@ -77,4 +99,17 @@ public class TexturedModelEntity extends ModelEntity {
             this.cell_size = 1f;
         }
     }
+    
+    /**
+     * Get the bounding sphere of this entity in world space
+     * 
+     * @param matrix A matrix that will be overwritten
+     * @param center The vector the center of the sphere is stored in
+     * @return The radius of the sphere
+     */
+    public float get_bounding_sphere(Matrix4f matrix, Vector3f center) {
+        Maths.create_transformation_matrix(x, y, z, rx, ry, rz, scale, matrix);
+        matrix.transformPosition(center.set(model.bounding_center));
+        return model.bounding_radius*Math.abs(scale);
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.ArrayList;
+
+/**
+ * Records when the phases of a task, like the startup of the engine, start
+ * and end, and on which thread they run, to show how they overlap. It can be
+ * used from multiple threads.
+ *
+ * @author mibi88
+ */
+public class Timeline {
+    private final long start;
+
+    private final ArrayList<String> names;
+    private final ArrayList<String> threads;
+    private final ArrayList<long[]> times;
+
+    // The width of the bars of the report, in characters
+    private final int REPORT_WIDTH = 50;
+
+    /**
+     * Create a new timeline that starts now
+     */
+    public Timeline() {
+        start = System.nanoTime();
+        names = new ArrayList<>();
+        threads = new ArrayList<>();
+        times = new ArrayList<>();
+    }
+
+    /**
+     * Start a phase on the current thread
+     *
+     * @param name The name of the phase
+     * @return The number of the phase, to end it
+     */
+    public synchronized int begin(String name) {
+        names.add(name);
+        threads.add(Thread.currentThread().getName());
+        times.add(new long[]{System.nanoTime()-start, -1});
+        return names.size()-1;
+    }
+
+    /**
+     * End a phase
+     *
+     * @param phase The number returned by begin
+     */
+    public synchronized void end(int phase) {
+        times.get(phase)[1] = System.nanoTime()-start;
+    }
+
+    /**
+     * Get the amount of phases
+     *
+     * @return The amount of phases
+     */
+    public synchronized int get_phases_amount() {
+        return names.size();
+    }
+
+    /**
+     * Create a report with a line for each phase, with its thread, its
+     * start and end time and a bar that shows when it ran
+     *
+     * @return The report
+     */
+    public synchronized String get_report() {
+        long total = 1;
+        for(int i=0;i<times.size();i++) {
+            long[] time = times.get(i);
+            total = Math.max(total, Math.max(time[0], time[1]));
+        }
+        int name_width = 5, thread_width = 6;
+        for(int i=0;i<names.size();i++) {
+            name_width = Math.max(name_width, names.get(i).length());
+            thread_width = Math.max(thread_width, threads.get(i).length());
+        }
+        StringBuilder report = new StringBuilder();
+        String format = "%-" + name_width + "s  %-" + thread_width +
+                "s  %8.1f  %8.1f  |";
+        report.append(String.format("%-" + name_width + "s  %-" +
+                thread_width + "s  %8s  %8s\n", "Phase", "Thread",
+                "Start ms", "End ms"));
+        for(int i=0;i<names.size();i++) {
+            long[] time = times.get(i);
+            // The phases that did not end are shown until the end
+            long end = time[1] < 0 ? total : time[1];
+            report.append(String.format(format, names.get(i), threads.get(i),
+                    time[0]/1e6, end/1e6));
+            int first = (int)(time[0]*REPORT_WIDTH/total);
+            int last = Math.max((int)(end*REPORT_WIDTH/total), first+1);
+            for(int c=0;c<REPORT_WIDTH;c++) {
+                report.append(c >= first && c < last ? '#' : ' ');
+            }
+            report.append("|\n");
+        }
+        return report.toString();
+    }
+}
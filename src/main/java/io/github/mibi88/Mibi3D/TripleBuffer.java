@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes states from a thread that writes them to a thread that reads them,
+ * without locks and without allocating. One slot is owned by the writer, one
+ * by the reader, and the third one holds the newest complete state. Publishing
+ * and reading only swap the slots, so the reader never waits for the writer
+ * and always gets the newest state that was completely written.
+ *
+ * @author mibi88
+ */
+public class TripleBuffer<T> {
+    // Set in the shared index when it holds a state the reader did not get yet
+    private final int FRESH = 4;
+    private final int INDEX_MASK = 3;
+
+    private final T[] slots;
+    private final AtomicInteger shared;
+    private int back;
+    private int front;
+
+    /**
+     * Create a new triple buffer. The three slots are reused, the writer
+     * fills them again before each publication.
+     *
+     * @param initial The state the reader gets before the first publication
+     * @param second The second slot
+     * @param third The third slot
+     */
+    @SuppressWarnings("unchecked")
+    public TripleBuffer(T initial, T second, T third) {
+        slots = (T[])new Object[]{initial, second, third};
+        this.front = 0;
+        this.shared = new AtomicInteger(1);
+        this.back = 2;
+    }
+
+    /**
+     * Get the slot the writer fills. It is only used by the writer thread,
+     * and it holds an older state that should be entirely overwritten.
+     *
+     * @return The slot to write the next state to
+     */
+    public T get_back() {
+        return slots[back];
+    }
+
+    /**
+     * Make the back slot the newest state, and give the writer another slot.
+     * It is only called by the writer thread.
+     */
+    public void publish() {
+        back = shared.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Get the newest published state. It is only called by the reader
+     * thread, and the state stays unchanged until the next call.
+     *
+     * @return The newest complete state
+     */
+    public T get_front() {
+        if((shared.get() & FRESH) != 0) {
+            front = shared.getAndSet(front) & INDEX_MASK;
+        }
+        return slots[front];
+    }
+}
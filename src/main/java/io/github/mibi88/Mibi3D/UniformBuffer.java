@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.Mibi3D;
+
+import java.nio.ByteBuffer;
+import org.joml.Matrix4f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+
+/**
+ * A buffer that contains the data of multiple std140 uniform blocks. Each
+ * block is bound to the binding point that has the same number as the block,
+ * so all the shader programs that use Shaders.bind_uniform_block with the same
+ * number share the data. The whole buffer is uploaded with a single call.
+ *
+ * @author mibi88
+ */
+public class UniformBuffer {
+    protected final int ubo;
+
+    private final int[] offsets;
+    private final int size;
+
+    private final ByteBuffer data;
+
+    // The amount of values stored since the last upload, and in the last
+    // upload. Each of them would be a glUniform call without the buffer.
+    private int values_amount = 0;
+    private int uploaded_values_amount = 0;
+
+    /**
+     * Create a new uniform buffer
+     *
+     * @param block_sizes The size in bytes of each block, with the std140
+     * layout
+     */
+    public UniformBuffer(int[] block_sizes) {
+        int alignment = GL30.glGetInteger(
+                GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+        if(alignment < 1) alignment = 256;
+
+        offsets = new int[block_sizes.length];
+        int offset = 0;
+        for(int i=0;i<block_sizes.length;i++) {
+            offset = (offset+alignment-1)/alignment*alignment;
+            offsets[i] = offset;
+            offset += block_sizes[i];
+        }
+        size = offset;
+
+        data = BufferUtils.createByteBuffer(size);
+
+        ubo = GL30.glGenBuffers();
+        GL30.glBindBuffer(GL31.GL_UNIFORM_BUFFER, ubo);
+        GL30.glBufferData(GL31.GL_UNIFORM_BUFFER, size,
+                GL30.GL_DYNAMIC_DRAW);
+        GL30.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+
+        for(int i=0;i<block_sizes.length;i++) {
+            GL30.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, i, ubo,
+                    offsets[i], block_sizes[i]);
+        }
+    }
+
+    /**
+     * Get the position of a block in the buffer
+     *
+     * @param block The number of the block
+     * @return The offset of the block in bytes
+     */
+    public int get_offset(int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Store a float in the buffer
+     *
+     * @param offset The position in bytes
+     * @param value The value to store
+     */
+    public void put_float(int offset, float value) {
+        data.putFloat(offset, value);
+        values_amount++;
+    }
+
+    /**
+     * Store an integer in the buffer
+     *
+     * @param offset The position in bytes
+     * @param value The value to store
+     */
+    public void put_int(int offset, int value) {
+        data.putInt(offset, value);
+        values_amount++;
+    }
+
+    /**
+     * Store a vec4 in the buffer
+     *
+     * @param offset The position in bytes, a multiple of 16
+     * @param x
+     * @param y
+     * @param z
+     * @param w
+     */
+    public void put_vec4(int offset, float x, float y, float z, float w) {
+        data.putFloat(offset, x);
+        data.putFloat(offset+4, y);
+        data.putFloat(offset+8, z);
+        data.putFloat(offset+12, w);
+        values_amount++;
+    }
+
+    /**
+     * Store a mat4 in the buffer
+     *
+     * @param offset The position in bytes, a multiple of 16
+     * @param matrix The matrix to store
+     */
+    public void put_matrix(int offset, Matrix4f matrix) {
+        matrix.get(offset, data);
+        values_amount++;
+    }
+
+    /**
+     * Upload the content of the buffer to the GPU
+     */
+    public void upload() {
+        data.clear();
+        GL30.glBindBuffer(GL31.GL_UNIFORM_BUFFER, ubo);
+        GL30.glBufferSubData(GL31.GL_UNIFORM_BUFFER, 0, data);
+        GL30.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+        uploaded_values_amount = values_amount;
+        values_amount = 0;
+    }
+
+    /**
+     * Get the amount of values that were stored before the last upload
+     *
+     * @return The amount of floats, integers, vectors and matrices
+     */
+    public int get_uploaded_values_amount() {
+        return uploaded_values_amount;
+    }
+
+    /**
+     * Delete the buffer
+     */
+    public void free() {
+        GL30.glDeleteBuffers(ubo);
+    }
+}
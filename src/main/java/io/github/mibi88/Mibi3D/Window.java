@@ -40,6 +40,13 @@ public class Window {
     
     Framebuffer framebuffer = null;
     
+    private final int[] window_size = new int[2];
+    private final int[] framebuffer_size = new int[2];
+    
+    private String title;
+    private final IntBuffer width_buffer = BufferUtils.createIntBuffer(1);
+    private final IntBuffer height_buffer = BufferUtils.createIntBuffer(1);
+    
     /**
      * Create a new window
      * 
@@ -51,6 +58,22 @@ public class Window {
      */
     public Window(int width, int height, String title, int multisample)
             throws Exception {
+        this(width, height, title, multisample, true);
+    }
+    
+    /**
+     * Create a new window, that can be hidden to render offscreen, for
+     * example to run benchmarks on a machine without a screen
+     * 
+     * @param width The width of the window
+     * @param height The height of the window
+     * @param title The title of the window
+     * @param multisample The amount of multisampling. 0 to disable it
+     * @param visible false to never show the window
+     * @throws Exception
+     */
+    public Window(int width, int height, String title, int multisample,
+            boolean visible) throws Exception {
         
         if(!glfwInit()) {
             throw new Exception("Unable to initialize GLFW!");
@@ -61,8 +84,8 @@ public class Window {
         );
         
         glfwDefaultWindowHints();
-        glfwWindowHint(GLFW_VISIBLE, GLFW_TRUE);
-        glfwWindowHint(GLFW_RESIZABLE, GLFW_TRUE);
+        glfwWindowHint(GLFW_VISIBLE, visible ? GLFW_TRUE : GLFW_FALSE);
+        glfwWindowHint(GLFW_RESIZABLE, visible ? GLFW_TRUE : GLFW_FALSE);
         
         glfwWindowHint(GLFW_OPENGL_DEBUG_CONTEXT, GLFW_TRUE);
         
@@ -91,11 +114,12 @@ public class Window {
         String opengl_version = GL30.glGetString(GL30.GL_VERSION);
         String window_title = String.format("%s (OpenGL %s)", title,
                 opengl_version);
+        this.title = window_title;
         
         glfwSetWindowTitle(window_id , window_title);
         
         glfwSwapInterval(1); // V-sync enabled.
-        glfwShowWindow(window_id);
+        if(visible) glfwShowWindow(window_id);
         
         GL30.glEnable(GL30.GL_DEPTH_TEST);
         GL30.glEnable(GL30.GL_CULL_FACE);
@@ -103,6 +127,15 @@ public class Window {
         if(multisample > 1) GL30.glEnable(GL30.GL_MULTISAMPLE);
         
         GL30.glPolygonMode(GL30.GL_FRONT_AND_BACK, GL30.GL_FILL);
+        
+        // The viewport and the framebuffer textures only change when the
+        // size of the window changes
+        glfwGetFramebufferSize(window_id, width_buffer, height_buffer);
+        framebuffer_size[0] = width_buffer.get(0);
+        framebuffer_size[1] = height_buffer.get(0);
+        glfwSetFramebufferSizeCallback(window_id,
+                (id, new_width, new_height) -> resize(new_width,
+                        new_height));
         update_gl_viewport();
         
         wireframe = false;
@@ -119,15 +152,37 @@ public class Window {
         wireframe = !wireframe;
     }
     
+    /**
+     * Wait for the vertical blank before showing a frame, or show it as soon
+     * as it is ready to let the frame rate go above the refresh rate
+     * 
+     * @param vsync true to wait for the vertical blank
+     */
+    public void set_vsync(boolean vsync) {
+        glfwSwapInterval(vsync ? 1 : 0);
+    }
+    
     /**
      * Update the content of the window
      */
     public void update() {
-        // TODO: update GL viewport only after resize
-        update_gl_viewport();
         GLFW.glfwSwapBuffers(window_id);
     }
     
+    /**
+     * Called by GLFW when the size of the framebuffer of the window changed
+     * 
+     * @param width The new width in pixels
+     * @param height The new height in pixels
+     */
+    private void resize(int width, int height) {
+        // The window is minimized, keep the textures until it comes back
+        if(width <= 0 || height <= 0) return;
+        framebuffer_size[0] = width;
+        framebuffer_size[1] = height;
+        update_gl_viewport();
+    }
+    
     /**
      * Update the OpenGL viewport to fill the window
      */
@@ -138,7 +193,7 @@ public class Window {
         
         // I center the viewport and set it to the width or the height depending
         // on which one is the biggest
-        GL30.glViewport(0, 0, window_size[0], window_size[1]);
+        GL30.glViewport(0, 0, framebuffer_size[0], framebuffer_size[1]);
         
         max_width = (float)window_size[0]/(float)max_size;
         max_height = (float)window_size[1]/(float)max_size;
@@ -179,20 +234,41 @@ public class Window {
      * Get the size of the window
      * 
      * @return An array of integers that contains at an index of 0 the width and
-     * at an index of 1 the height of the window
+     * at an index of 1 the height of the window. The same array is returned
+     * on each call, copy the values to keep them.
      */
     public int[] get_window_size() {
-        int[] size = new int[2];
-        IntBuffer width_buffer = BufferUtils.createIntBuffer(1);
-        IntBuffer height_buffer = BufferUtils.createIntBuffer(1);
         glfwGetWindowSize(
                 window_id,
                 width_buffer,
                 height_buffer
         );
-        size[0] = width_buffer.get(0);
-        size[1] = height_buffer.get(0);
-        return size;
+        window_size[0] = width_buffer.get(0);
+        window_size[1] = height_buffer.get(0);
+        return window_size;
+    }
+    
+    /**
+     * Show some text after the title of the window, for example statistics
+     * that change while the game runs
+     * 
+     * @param status The text, or null to only show the title
+     */
+    public void set_status(String status) {
+        glfwSetWindowTitle(window_id, status == null ? title :
+                title + " - " + status);
+    }
+    
+    /**
+     * Get the size of the framebuffer of the window, in pixels. It can be
+     * bigger than the size of the window on high density screens.
+     * 
+     * @return An array of integers that contains at an index of 0 the width
+     * and at an index of 1 the height. The same array is returned on each
+     * call, copy the values to keep them.
+     */
+    public int[] get_framebuffer_size() {
+        return framebuffer_size;
     }
     
     public void set_framebuffer(Framebuffer framebuffer) {
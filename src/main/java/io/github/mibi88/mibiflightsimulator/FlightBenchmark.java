@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.mibiflightsimulator;
+
+import io.github.mibi88.Mibi3D.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.lwjgl.opengl.GL30;
+
+/**
+ * Flies the same scripted path over the default terrain on each run, with the
+ * real engine in a hidden window, and writes the frame times, the draw calls
+ * and the triangles as JSON, to compare builds. On a machine without a GPU,
+ * it runs with Mesa's llvmpipe, for example with xvfb-run.
+ *
+ * Usage: FlightBenchmark [preset] [output file], where the preset is flight,
+ * entities-10k, entities-100k or lights-64.
+ *
+ * @author mibi88
+ */
+public class FlightBenchmark {
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    static final int WARMUP_FRAMES = 120;
+    static final int FRAMES = 1200;
+
+    // The area the camera flies over on the scripted path, measured by
+    // running fly() and Plane.move() for all the frames
+    static final float PATH_MIN_X = -169f, PATH_MAX_X = 29f;
+    static final float PATH_MIN_Z = -988f, PATH_MAX_Z = 3f;
+    static final float PATH_CENTER_X = (PATH_MIN_X+PATH_MAX_X)/2f;
+    static final float PATH_CENTER_Z = (PATH_MIN_Z+PATH_MAX_Z)/2f;
+
+    // The stress presets spread their entities and lights over the path
+    // and a margin around it, that stays in the chunks loaded around its
+    // center
+    static final float STRESS_MARGIN = 512f;
+    static final float STRESS_MIN_X = PATH_MIN_X-STRESS_MARGIN;
+    static final float STRESS_MAX_X = PATH_MAX_X+STRESS_MARGIN;
+    static final float STRESS_MIN_Z = PATH_MIN_Z-STRESS_MARGIN;
+    static final float STRESS_MAX_Z = PATH_MAX_Z+STRESS_MARGIN;
+
+    static final String[] PRESETS = {
+        "flight", "entities-10k", "entities-100k", "lights-64"
+    };
+
+    public static void main(String[] args) {
+        String preset = args.length > 0 ? args[0] : PRESETS[0];
+        String output = args.length > 1 ? args[1] :
+                "benchmark-" + preset + ".json";
+        int extra_entities = 0;
+        int extra_lights = 0;
+        switch(preset) {
+            case "flight":
+                break;
+            case "entities-10k":
+                extra_entities = 10000;
+                break;
+            case "entities-100k":
+                extra_entities = 100000;
+                break;
+            case "lights-64":
+                extra_lights = 64;
+                break;
+            default:
+                System.err.println("Unknown preset " + preset + ", use one " +
+                        "of " + String.join(", ", PRESETS));
+                System.exit(1);
+        }
+        try {
+            run(preset, output, extra_entities, extra_lights);
+        } catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    static void run(String preset, String output, int extra_entities,
+            int extra_lights) throws Exception {
+        Timeline timeline = new Timeline();
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()-1));
+
+        Terrain terrain = new Terrain(MibiFlightSimulator.TERRAIN_SEED,
+                MibiFlightSimulator.TERRAIN_STEP,
+                MibiFlightSimulator.TERRAIN_CHUNK_QUADS, 32, 64, 6, 32);
+        TerrainStreamer streamer = new TerrainStreamer(terrain,
+                ForkJoinPool.commonPool(),
+                MibiFlightSimulator.TERRAIN_LOAD_RADIUS,
+                MibiFlightSimulator.TERRAIN_RETENTION_RADIUS);
+        streamer.prefetch(PATH_CENTER_X, PATH_CENTER_Z);
+        Future<MibiFlightSimulator.MeshData> street_lamp_mesh =
+                MibiFlightSimulator.load_mesh(workers, timeline,
+                        "models/street_lamp.obj", true);
+        Future<MibiFlightSimulator.MeshData> tree_mesh =
+                MibiFlightSimulator.load_mesh(workers, timeline,
+                        "models/tree.obj", true);
+        Future<ImageData> street_lamp_image = MibiFlightSimulator.submit(
+                workers, timeline, "decode street lamp",
+                () -> ImageData.load("models/street_lamp.png"));
+        Future<ImageData> tree_image = MibiFlightSimulator.submit(workers,
+                timeline, "decode tree",
+                () -> ImageData.load("models/tree.png"));
+        Future<ImageData> grass_image = MibiFlightSimulator.submit(workers,
+                timeline, "decode grass",
+                () -> ImageData.load("models/grass.png"));
+
+        Window window = new Window(WIDTH, HEIGHT, "FlightBenchmark", 0,
+                false);
+        window.set_vsync(false);
+        Engine engine = new Engine(0.8f, 1f, 1f, 0.7f, 1.5f, 0.0025f, true,
+                timeline, window);
+
+        TexturedModel street_lamp = MibiFlightSimulator.create_model(
+                street_lamp_mesh, street_lamp_image);
+        street_lamp.shine_damper = 10f;
+        street_lamp.reflectivity = 1f;
+        TexturedModel tree = MibiFlightSimulator.create_model(tree_mesh,
+                tree_image);
+        engine.create_impostor(tree);
+        engine.create_impostor(street_lamp);
+
+        ImageData grass = grass_image.get();
+        TexturedModel terrain_material = new TexturedModel(new Mesh(
+                new float[0], new int[0], new float[0], new float[0]), grass,
+                Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT, 4, 1);
+        grass.free();
+
+        // The same map as the game. All the chunks the path flies over are
+        // loaded before the first frame and none is streamed during the
+        // measure, so that each run draws the same scene.
+        streamer.set_scene(engine, terrain_material, street_lamp, tree);
+        streamer.set_lamp_light(MibiFlightSimulator.LAMP_COLOR[0],
+                MibiFlightSimulator.LAMP_COLOR[1],
+                MibiFlightSimulator.LAMP_COLOR[2],
+                MibiFlightSimulator.LAMP_ATTENUATION);
+        streamer.load_all(PATH_CENTER_X, PATH_CENTER_Z);
+        workers.shutdown();
+        engine.set_height_field(terrain, MibiFlightSimulator.TERRAIN_STEP);
+
+        Light sun_light = new Light(0f, 64f, 0f, 2f, 2f, 2f);
+        engine.add_light(sun_light);
+
+        // The stress presets always get the same entities and lights
+        Random random = new Random(MibiFlightSimulator.TERRAIN_SEED);
+        for(int i=0;i<extra_entities;i++) {
+            float[] position = random_position(random, terrain);
+            TexturedModelEntity entity = engine.create_entity(tree,
+                    position[0], position[1], position[2], 0f,
+                    random.nextFloat()*360f, 0f, 1f, 0);
+            entity.is_static = true;
+            engine.add_entity(entity);
+        }
+        if(extra_lights > 0) {
+            engine.set_sky_color(0.05f, 0.05f, 0.15f);
+            engine.set_ambient_lighting(0.1f);
+            sun_light.r = sun_light.g = sun_light.b = 0.1f;
+        }
+        for(int i=0;i<extra_lights;i++) {
+            float[] position = random_position(random, terrain);
+            Light light = new Light(position[0], position[1]+10f,
+                    position[2], 1f+random.nextFloat(),
+                    1f+random.nextFloat(), 1f+random.nextFloat());
+            light.exponential_attenuation =
+                    MibiFlightSimulator.LAMP_ATTENUATION;
+            engine.add_light(light);
+        }
+
+        // The plane is simulated once per frame, so that each run shows the
+        // same frames whatever their duration is
+        Camera camera = engine.get_camera();
+        engine.set_camera_pos(0f, 64f, 0f, 0f, 0f, 0f);
+        Plane plane = new Plane(camera, terrain);
+        plane.set_tick_time(1f/MibiFlightSimulator.TICK_RATE);
+
+        int frames = WARMUP_FRAMES+FRAMES;
+        float[] frame_times = new float[FRAMES];
+        long draw_calls = 0, max_draw_calls = 0;
+        long triangles = 0, max_triangles = 0;
+        for(int frame=0;frame<frames;frame++) {
+            long start = System.nanoTime();
+            fly(plane, frame);
+            plane.move();
+            sun_light.x = camera.x;
+            sun_light.z = camera.z;
+
+            engine.init();
+            engine.render_scene();
+            engine.show();
+            window.update();
+            // Wait for the GPU, so that each frame time includes its own
+            // rendering instead of the one of a previous frame
+            GL30.glFinish();
+            window.poll_events();
+
+            if(frame < WARMUP_FRAMES) continue;
+            int i = frame-WARMUP_FRAMES;
+            frame_times[i] = (System.nanoTime()-start)/1e6f;
+            draw_calls += engine.get_draw_calls();
+            max_draw_calls = Math.max(max_draw_calls,
+                    engine.get_draw_calls());
+            triangles += engine.get_triangles();
+            max_triangles = Math.max(max_triangles, engine.get_triangles());
+        }
+
+        float[] sorted = frame_times.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for(int i=0;i<FRAMES;i++) total += frame_times[i];
+
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"preset\": \"").append(preset).append("\",\n");
+        json.append("  \"renderer\": \"")
+                .append(GL30.glGetString(GL30.GL_RENDERER)).append("\",\n");
+        json.append("  \"width\": ").append(WIDTH).append(",\n");
+        json.append("  \"height\": ").append(HEIGHT).append(",\n");
+        json.append("  \"frames\": ").append(FRAMES).append(",\n");
+        json.append("  \"entities\": ").append(extra_entities+
+                streamer.get_entities_amount()).append(",\n");
+        json.append("  \"lights\": ").append(extra_lights+1).append(",\n");
+        json.append(String.format("  \"frame_ms\": {\"avg\": %.3f, " +
+                "\"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f, " +
+                "\"max\": %.3f},\n", total/FRAMES, percentile(sorted, 50),
+                percentile(sorted, 95), percentile(sorted, 99),
+                sorted[FRAMES-1]));
+        json.append(String.format("  \"draw_calls\": {\"avg\": %.1f, " +
+                "\"max\": %d},\n", draw_calls/(double)FRAMES,
+                max_draw_calls));
+        json.append(String.format("  \"triangles\": {\"avg\": %.1f, " +
+                "\"max\": %d}\n", triangles/(double)FRAMES, max_triangles));
+        json.append("}\n");
+        Files.write(Paths.get(output),
+                json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.print(json);
+
+        streamer.free();
+        tree.free();
+        street_lamp.free();
+        terrain_material.free();
+        engine.destroy();
+    }
+
+    /**
+     * Hold the controls of the scripted path for a frame: full throttle with
+     * short banks to the left and to the right, a climb and a dive
+     *
+     * @param plane The plane to control
+     * @param frame The number of the frame, from 0
+     */
+    static void fly(Plane plane, int frame) {
+        float time = frame/MibiFlightSimulator.TICK_RATE;
+        plane.speed_up();
+        if(time >= 4f && time < 4.5f) plane.rotate_left();
+        if(time >= 6f && time < 6.5f) plane.rotate_right();
+        if(time >= 8f && time < 8.5f) plane.rotate_up();
+        if(time >= 11f && time < 11.5f) plane.rotate_down();
+        if(time >= 14f && time < 16f) plane.rotate_fast_left();
+        if(time >= 18f && time < 19f) plane.rotate_fast_right();
+    }
+
+    /**
+     * Pick a position on the terrain in the area of the stress presets
+     *
+     * @param random The random number generator
+     * @param terrain The terrain
+     * @return The X, Y and Z coordinates
+     */
+    static float[] random_position(Random random, Terrain terrain) {
+        float x = STRESS_MIN_X+random.nextFloat()*(STRESS_MAX_X-STRESS_MIN_X);
+        float z = STRESS_MIN_Z+random.nextFloat()*(STRESS_MAX_Z-STRESS_MIN_Z);
+        return new float[]{x, terrain.get_height(x, z), z};
+    }
+
+    /**
+     * Get a percentile of sorted values, with the nearest rank method
+     *
+     * @param sorted The values, sorted in ascending order
+     * @param percent The percentile, between 0 and 100
+     * @return The value
+     */
+    static float percentile(float[] sorted, float percent) {
+        int rank = (int)Math.ceil(percent/100f*sorted.length);
+        return sorted[Math.min(Math.max(rank-1, 0), sorted.length-1)];
+    }
+}
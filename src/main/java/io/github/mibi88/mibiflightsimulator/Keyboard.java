@@ -17,6 +17,7 @@
  */
 package io.github.mibi88.mibiflightsimulator;
 
+import io.github.mibi88.Mibi3D.Bloom;
 import io.github.mibi88.Mibi3D.Window;
 import org.lwjgl.glfw.GLFW;
 import static org.lwjgl.glfw.GLFW.glfwSetKeyCallback;
@@ -28,6 +29,11 @@ import static org.lwjgl.glfw.GLFW.glfwSetKeyCallback;
 public class Keyboard {
     public boolean draw_plane = false;
     public boolean fog = true;
+    public boolean night = false;
+    public int bloom_quality = Bloom.QUALITY_MEDIUM;
+    public boolean dynamic_resolution = true;
+    public boolean dump_profile = false;
+    public boolean vsync = true;
     
     protected static boolean[] keys;
     
@@ -47,6 +53,21 @@ public class Keyboard {
             if(scancode == 52 && action == GLFW.GLFW_RELEASE) {
                 window.toggle_wireframe();
             }
+            if(scancode == 57 && action == GLFW.GLFW_RELEASE) {
+                night = !night;
+            }
+            if(scancode == 56 && action == GLFW.GLFW_RELEASE) {
+                bloom_quality = (bloom_quality+1)%(Bloom.QUALITY_HIGH+1);
+            }
+            if(scancode == 27 && action == GLFW.GLFW_RELEASE) {
+                dynamic_resolution = !dynamic_resolution;
+            }
+            if(scancode == 33 && action == GLFW.GLFW_RELEASE) {
+                dump_profile = true;
+            }
+            if(scancode == 55 && action == GLFW.GLFW_RELEASE) {
+                vsync = !vsync;
+            }
         });
     }
     
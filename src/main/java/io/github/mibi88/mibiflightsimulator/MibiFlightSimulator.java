@@ -18,6 +18,13 @@
 package io.github.mibi88.mibiflightsimulator;
 
 import io.github.mibi88.Mibi3D.*;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -26,86 +33,213 @@ import io.github.mibi88.Mibi3D.*;
 public class MibiFlightSimulator {
     static public Window window;
     
+    // The triangle ratio of the levels of detail of the map models, and the
+    // size on the screen below which they are used
+    public static final float[] LOD_RATIOS = {0.5f, 0.25f, 0.1f};
+    public static final float[] LOD_SCREEN_SIZES = {0.1f, 0.05f, 0.02f};
+    
+    // The street lamps light the ground around them at night
+    public static final float[] LAMP_COLOR = {2f, 1.6f, 1f};
+    public static final float LAMP_ATTENUATION = 0.2f;
+    
+    // Where the times of the frames are written when P is pressed
+    static final String PROFILE_FILE = "profile";
+    
+    // The seed of the terrain, the size of its quads and of its chunks
+    public static final int TERRAIN_SEED = -77;
+    public static final float TERRAIN_STEP = 8f;
+    public static final int TERRAIN_CHUNK_QUADS = 64;
+    
+    // The chunks are loaded up to this distance from the camera, in chunks,
+    // further than the fog, and removed past the retention distance
+    public static final int TERRAIN_LOAD_RADIUS = 3;
+    public static final int TERRAIN_RETENTION_RADIUS = 4;
+    
+    // The amount of times the flight is simulated per second, whatever the
+    // frame rate is
+    public static final float TICK_RATE = 60f;
+    
+    /**
+     * A mesh imported on a worker thread, with its levels of detail
+     */
+    static class MeshData {
+        Mesh mesh;
+        int[][] lods;
+    }
+    
+    /**
+     * Run a task on a worker thread, and record it in the timeline
+     * 
+     * @param <T> The type of the result of the task
+     * @param workers The worker threads
+     * @param timeline The timeline of the startup
+     * @param name The name of the phase
+     * @param task The task to run
+     * @return The result of the task, once it finished
+     */
+    static <T> Future<T> submit(ExecutorService workers, Timeline timeline,
+            String name, Callable<T> task) {
+        return workers.submit(() -> {
+            int phase = timeline.begin(name);
+            try {
+                return task.call();
+            } finally {
+                timeline.end(phase);
+            }
+        });
+    }
+    
+    /**
+     * Import a mesh on a worker thread, and generate its levels of detail if
+     * they are needed
+     * 
+     * @param workers The worker threads
+     * @param timeline The timeline of the startup
+     * @param obj_file The path to the OBJ file in the resources
+     * @param lods If the levels of detail should be generated
+     * @return The mesh, once it was imported
+     */
+    static Future<MeshData> load_mesh(ExecutorService workers,
+            Timeline timeline, String obj_file, boolean lods) {
+        return submit(workers, timeline, "import " + obj_file, () -> {
+            MeshData data = new MeshData();
+            data.mesh = Mesh.load(obj_file, 0);
+            if(lods) {
+                data.lods = MeshSimplifier.simplify(data.mesh.vertices,
+                        data.mesh.texture_coords, data.mesh.indices,
+                        LOD_RATIOS);
+            }
+            return data;
+        });
+    }
+    
+    /**
+     * Create a model on the thread of the window from a mesh and an image
+     * that were loaded by worker threads
+     * 
+     * @param mesh The mesh and its levels of detail
+     * @param image The texture
+     * @return The model
+     * @throws Exception If the mesh or the image could not be loaded
+     */
+    static TexturedModel create_model(Future<MeshData> mesh,
+            Future<ImageData> image) throws Exception {
+        MeshData data = mesh.get();
+        ImageData texture = image.get();
+        TexturedModel model = new TexturedModel(data.mesh, texture,
+                Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT, 4f, 1);
+        texture.free();
+        if(data.lods != null) model.set_lods(data.lods, LOD_SCREEN_SIZES);
+        return model;
+    }
+    
     public static void main(String[] args) {
         System.out.printf("Using LWJGL %s\n",
                 org.lwjgl.Version.getVersion());
         try {
+            // The files are decoded by worker threads and the terrain is
+            // generated on the common ForkJoinPool while the window is opened
+            // and the driver compiles the shaders, only the OpenGL objects
+            // are created on this thread
+            Timeline timeline = new Timeline();
+            AtomicInteger worker_number = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()-1),
+                    (task) -> {
+                        Thread thread = new Thread(task, "worker-" +
+                                worker_number.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            
+            Terrain terrain = new Terrain(TERRAIN_SEED, TERRAIN_STEP,
+                    TERRAIN_CHUNK_QUADS, 32, 64, 6, 32);
+            TerrainStreamer streamer = new TerrainStreamer(terrain,
+                    ForkJoinPool.commonPool(), TERRAIN_LOAD_RADIUS,
+                    TERRAIN_RETENTION_RADIUS);
+            streamer.prefetch(0f, 0f);
+            Future<MeshData> plane_mesh = load_mesh(workers, timeline,
+                    "models/plane.obj", false);
+            Future<MeshData> sun_mesh = load_mesh(workers, timeline,
+                    "models/sun.obj", true);
+            Future<MeshData> street_lamp_mesh = load_mesh(workers, timeline,
+                    "models/street_lamp.obj", true);
+            Future<MeshData> tree_mesh = load_mesh(workers, timeline,
+                    "models/tree.obj", true);
+            String[] image_files = {
+                "models/plane.png", "models/sun.png", "models/street_lamp.png",
+                "models/tree.png", "models/grass.png", "images/title.png"
+            };
+            ArrayList<Future<ImageData>> images = new ArrayList<>();
+            for(int i=0;i<image_files.length;i++) {
+                String file = image_files[i];
+                images.add(submit(workers, timeline, "decode " + file,
+                        () -> ImageData.load(file)));
+            }
+            
             Engine engine = new Engine(0.8f, 1f, 1f, 0.7f,
-                        1.5f, 0.0025f, true);
+                        1.5f, 0.0025f, true, timeline);
             window = engine.get_window();
             
-            TexturedModel plane = new TexturedModel(
-                    "models/plane.obj",
-                    0,
-                    "models/plane.png",
-                    Texture.FILTER_MIPMAP_LINEAR,
-                    Texture.WRAP_REPEAT,
-                    4f, 1
-            );
+            int phase = timeline.begin("create models");
+            TexturedModel plane = create_model(plane_mesh, images.get(0));
             plane.shine_damper = 5f;
             plane.reflectivity = 1f;
             
-            TexturedModel sun_model = new TexturedModel(
-                    "models/sun.obj",
-                    0,
-                    "models/sun.png",
-                    Texture.FILTER_MIPMAP_LINEAR,
-                    Texture.WRAP_REPEAT,
-                    4f, 1
-            );
+            TexturedModel sun_model = create_model(sun_mesh, images.get(1));
             sun_model.shine_damper = 10f;
             sun_model.reflectivity = 1f;
             
-            TexturedModel street_lamp = new TexturedModel(
-                    "models/street_lamp.obj",
-                    0,
-                    "models/street_lamp.png",
-                    Texture.FILTER_MIPMAP_LINEAR,
-                    Texture.WRAP_REPEAT,
-                    4f, 1
-            );
-            TexturedModel tree = new TexturedModel(
-                    "models/tree.obj",
-                    0,
-                    "models/tree.png",
-                    Texture.FILTER_MIPMAP_LINEAR,
-                    Texture.WRAP_REPEAT,
-                    4f, 1
-            );
+            TexturedModel street_lamp = create_model(street_lamp_mesh,
+                    images.get(2));
+            TexturedModel tree = create_model(tree_mesh, images.get(3));
             street_lamp.shine_damper = 10f;
             street_lamp.reflectivity = 1f;
+            timeline.end(phase);
+            
+            // The far trees and lamps are drawn as billboards
+            phase = timeline.begin("bake impostors");
+            engine.create_impostor(tree);
+            engine.create_impostor(street_lamp);
+            timeline.end(phase);
+            
+            phase = timeline.begin("load terrain");
+            // The chunks take their texture from this model, that has no
+            // geometry
+            ImageData grass = images.get(4).get();
+            TexturedModel terrain_material = new TexturedModel(new Mesh(
+                    new float[0], new int[0], new float[0], new float[0]),
+                    grass, Texture.FILTER_MIPMAP_LINEAR, Texture.WRAP_REPEAT,
+                    4, 1);
+            grass.free();
+            streamer.set_scene(engine, terrain_material, street_lamp, tree);
+            streamer.set_lamp_light(LAMP_COLOR[0], LAMP_COLOR[1],
+                    LAMP_COLOR[2], LAMP_ATTENUATION);
+            streamer.load_all(0f, 0f);
             
-            Terrain terrain_generator = new Terrain();
-            TexturedModel terrain_model = terrain_generator.generate_terrain(
-                    1024, 1024, 8f,
-                    "models/grass.png",
-                    -77,
-                    32, 64,
-                    6, 32,
-                    street_lamp, tree,
-                    engine
-            );
-            TexturedModelEntity terrain = engine.create_entity(
-                    terrain_model, 1024f*8f/2f, 0f, 0f,
-                    0f, 0f, 0f, 1f,
-                    0
-            );
+            // Skip the entities that are hidden behind the hills
+            engine.set_height_field(terrain, TERRAIN_STEP);
+            timeline.end(phase);
             
             TexturedModelEntity player = engine.create_entity(plane, 0f,
                     64f, 0f, 0f, 0f, 0f, 1f, 0);
             
             Camera camera = engine.get_camera();
             
-            Plane movement = new Plane(camera, terrain_generator,
-                    terrain.x, terrain.z);
+            // The plane is simulated at a fixed rate on its own thread, and
+            // the camera is placed between its last two states on each frame
+            Simulation simulation = new Simulation(terrain,
+                    new Camera(0f, 64f, 0f, 0f, 0f, 0f), TICK_RATE);
             
             TexturedModelEntity sun = engine.create_entity(sun_model,
                     0f, 70f, 0f, 0f, 0f, 0f, 1f,
                     0);
             
-            Image title_image = new Image("images/title.png",
+            ImageData title_data = images.get(5).get();
+            Image title_image = new Image(title_data,
                     Texture.FILTER_NEAREST,
                     Texture.WRAP_REPEAT, 1);
+            title_data.free();
             
             ImageEntity title = engine.create_entity(title_image,
                     -1f, 1f,
@@ -122,66 +256,36 @@ public class MibiFlightSimulator {
             
             //engine.add_entity(player);
             engine.add_entity(sun);
-            engine.add_entity(terrain);
-            
-            // Add the entities that are a part of the map
-            for(int i=0;i<terrain_generator.entities.length;i++) {
-                if(terrain_generator.entities[i] != null) {
-                    terrain_generator.entities[i].x -= terrain.x;
-                    terrain_generator.entities[i].z += terrain.z;
-                    terrain_generator.entities[i].y = terrain_generator
-                            .get_height_at_pos(
-                                    terrain_generator.entities[i].x,
-                                    terrain_generator.entities[i].z
-                            );
-
-                    engine.add_entity(terrain_generator.entities[i]);
-                } else {
-                    System.out.println("Entity is null");
-                }
-            }
+            
+            boolean night = false;
             
             //engine.add_entity(title);
             
+            System.out.print("Startup timeline:\n" + timeline.get_report());
+            
+            int frame = 0;
+            boolean vsync = true;
+            simulation.start();
             while(!window.quit_asked()) {
-                engine.init();
-                
-                engine.set_fog(keyboard.fog);
-                
-                if(keyboard.draw_plane) {
-                    // TODO : Display plane if needed
-                }
-                
-                engine.render_scene();
-                
                 window.poll_events();
                 
-                if(keyboard.keydown(113)) {
-                    movement.rotate_left();
-                }
-                if(keyboard.keydown(114)) {
-                    movement.rotate_right();
-                }
-                if(keyboard.keydown(111)) {
-                    movement.rotate_up();
-                }
-                if(keyboard.keydown(116)) {
-                    movement.rotate_down();
-                }
-                if(keyboard.keydown(112)) {
-                    movement.speed_up();
-                }
-                if(keyboard.keydown(117)) {
-                    movement.slow_down();
-                }
-                
+                int controls = 0;
+                if(keyboard.keydown(113)) controls |= Simulation.ROTATE_LEFT;
+                if(keyboard.keydown(114)) controls |= Simulation.ROTATE_RIGHT;
+                if(keyboard.keydown(111)) controls |= Simulation.ROTATE_UP;
+                if(keyboard.keydown(116)) controls |= Simulation.ROTATE_DOWN;
+                if(keyboard.keydown(112)) controls |= Simulation.SPEED_UP;
+                if(keyboard.keydown(117)) controls |= Simulation.SLOW_DOWN;
                 if(keyboard.keydown(38)) {
-                    movement.rotate_fast_left();
+                    controls |= Simulation.ROTATE_FAST_LEFT;
                 }
                 if(keyboard.keydown(39)) {
-                    movement.rotate_fast_right();
+                    controls |= Simulation.ROTATE_FAST_RIGHT;
                 }
-                movement.move();
+                simulation.set_controls(controls);
+                
+                simulation.interpolate(camera);
+                streamer.update(camera.x, camera.z);
                 
                 player.x = camera.x;
                 player.y = camera.y;
@@ -198,13 +302,86 @@ public class MibiFlightSimulator {
                 player.ry = -camera.ry;
                 player.rz = camera.rz;
                 
+                engine.init();
+                
+                if(keyboard.vsync != vsync) {
+                    vsync = keyboard.vsync;
+                    window.set_vsync(vsync);
+                }
+                
+                engine.set_fog(keyboard.fog);
+                
+                Bloom bloom = engine.get_bloom();
+                if(keyboard.bloom_quality != bloom.get_quality()) {
+                    bloom.set_quality(keyboard.bloom_quality);
+                }
+                
+                DynamicResolution resolution =
+                        engine.get_dynamic_resolution();
+                if(keyboard.dynamic_resolution != resolution.is_enabled()) {
+                    resolution.set_enabled(keyboard.dynamic_resolution);
+                    if(!keyboard.dynamic_resolution) resolution.set_scale(1f);
+                }
+                
+                if(keyboard.night != night) {
+                    night = keyboard.night;
+                    streamer.set_lamp_lights(night);
+                    if(night) {
+                        engine.set_sky_color(0.05f, 0.05f, 0.15f);
+                        engine.set_ambient_lighting(0.1f);
+                        sun_light.r = sun_light.g = sun_light.b = 0.1f;
+                    } else {
+                        engine.set_sky_color(0.8f, 1f, 1f);
+                        engine.set_ambient_lighting(0.7f);
+                        sun_light.r = sun_light.g = sun_light.b = 2f;
+                    }
+                }
+                
+                if(keyboard.draw_plane) {
+                    // TODO : Display plane if needed
+                }
+                
+                engine.render_scene();
+                
+                // Show where the time of a frame goes in the title bar
+                if(frame%30 == 0) {
+                    window.set_status(engine.get_profiler().get_summary());
+                }
+                if(keyboard.dump_profile) {
+                    keyboard.dump_profile = false;
+                    engine.get_profiler().write_csv(PROFILE_FILE + ".csv");
+                    engine.get_profiler().write_json(PROFILE_FILE + ".json");
+                    System.out.println("Profile written to " + PROFILE_FILE +
+                            ".csv and " + PROFILE_FILE + ".json");
+                }
+                
+                if(frame++%300 == 0) {
+                    System.out.printf("Triangles: %d (%d without LOD), " +
+                            "lights: %d, scene: %.3f ms at %dx%d, post " +
+                            "processing: %.3f ms (bloom quality %d), " +
+                            "uniforms: %d calls, %d saved\n",
+                            engine.get_triangles(),
+                            engine.get_full_detail_triangles(),
+                            engine.get_selected_lights_amount(),
+                            engine.get_scene_time(),
+                            engine.get_render_width(),
+                            engine.get_render_height(),
+                            engine.get_post_process_time(),
+                            engine.get_bloom().get_quality(),
+                            engine.get_uniform_calls(),
+                            engine.get_saved_uniform_calls());
+                }
+                
                 engine.show();
                 window.update();
             }
             
-            engine.destroy();
+            simulation.stop();
+            workers.shutdownNow();
+            streamer.free();
             plane.free();
-            terrain_model.free();
+            terrain_material.free();
+            engine.destroy();
         } catch (Exception exception) {
             exception.printStackTrace();
             System.out.println(exception.getMessage());
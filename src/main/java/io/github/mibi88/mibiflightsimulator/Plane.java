@@ -18,6 +18,7 @@
 package io.github.mibi88.mibiflightsimulator;
 
 import io.github.mibi88.Mibi3D.Camera;
+import io.github.mibi88.Mibi3D.HeightField;
 import org.joml.Vector3f;
 
 /**
@@ -26,9 +27,12 @@ import org.joml.Vector3f;
  */
 public class Plane {
     private Camera plane;
-    private Terrain terrain;
+    private HeightField ground;
     
-    private float terrain_x, terrain_z;
+    // The speeds and the accelerations below are per tick at this rate, they
+    // are scaled when the simulation ticks at another rate
+    public static final float REFERENCE_TICK_RATE = 60f;
+    private float step = 1f;
     
     float max_speed = 2f, max_speed_mph = 110f;
     float min_fly_speed_mph = 75f;
@@ -56,52 +60,61 @@ public class Plane {
     boolean rot_y = false;
     boolean rot_z = false;
     
-    public Plane(Camera plane, Terrain terrain, float terrain_x,
-            float terrain_z) {
+    private final Vector3f direction = new Vector3f();
+    
+    public Plane(Camera plane, HeightField ground) {
         this.plane = plane;
-        this.terrain = terrain;
-        this.terrain_x = terrain_x;
-        this.terrain_z = terrain_z;
+        this.ground = ground;
+    }
+    
+    /**
+     * Set the duration of a simulation tick. The input methods and move are
+     * called once per tick.
+     * 
+     * @param tick_time The duration of a tick in seconds
+     */
+    public void set_tick_time(float tick_time) {
+        step = tick_time*REFERENCE_TICK_RATE;
     }
     
     public void speed_up() {
-        if(speed < max_speed) speed += acceleration;
+        if(speed < max_speed) speed += acceleration*step;
         if(speed > max_speed) speed = max_speed;
         got_faster = true;
     }
     
     public void slow_down() {
-        if(speed > min_fly_speed) speed -= slow_down;
+        if(speed > min_fly_speed) speed -= slow_down*step;
         if(speed < min_fly_speed) speed = min_fly_speed;
     }
     
     public void rotate_left() {
-        rz -= rz_speed;
+        rz -= rz_speed*step;
         rot_z = true;
     }
     
     public void rotate_right() {
-        rz += rz_speed;
+        rz += rz_speed*step;
         rot_z = true;
     }
     
     public void rotate_fast_left() {
-        ry -= ry_speed;
+        ry -= ry_speed*step;
         rot_y = true;
     }
     
     public void rotate_fast_right() {
-        ry += ry_speed;
+        ry += ry_speed*step;
         rot_y = true;
     }
     
     public void rotate_up() {
-        rx += rx_speed;
+        rx += rx_speed*step;
         rot_x = true;
     }
     
     public void rotate_down() {
-        rx -= rx_speed;
+        rx -= rx_speed*step;
         rot_x = true;
     }
     
@@ -109,40 +122,37 @@ public class Plane {
         if(!got_faster) slow_down();
         
         if(!rot_x) {
-            if(rx < 0f) rx += rx_speed;
-            if(rx > 0f) rx -= rx_speed;
+            if(rx < 0f) rx += rx_speed*step;
+            if(rx > 0f) rx -= rx_speed*step;
             
-            if(rx > -rx_speed && rx < rx_speed) rx = 0f;
+            if(rx > -rx_speed*step && rx < rx_speed*step) rx = 0f;
         }
         if(!rot_y) {
-            if(ry < 0f) ry += ry_speed;
-            if(ry > 0f) ry -= ry_speed;
+            if(ry < 0f) ry += ry_speed*step;
+            if(ry > 0f) ry -= ry_speed*step;
             
-            if(rx > -rx_speed && rx < rx_speed) rx = 0f;
+            if(ry > -ry_speed*step && ry < ry_speed*step) ry = 0f;
         }
         if(!rot_z) {
-            if(rz < 0f) rz += rz_speed;
-            if(rz > 0f) rz -= rz_speed;
+            if(rz < 0f) rz += rz_speed*step;
+            if(rz > 0f) rz -= rz_speed*step;
             
-            if(rz > -rz_speed && rz < rx_speed) rz = 0f;
+            if(rz > -rz_speed*step && rz < rz_speed*step) rz = 0f;
         }
         
-        plane.rx -= rx;
-        plane.ry += rz*rz_mul;
-        plane.ry += ry;
-        plane.rz -= rz;
+        plane.rx -= rx*step;
+        plane.ry += rz*rz_mul*step;
+        plane.ry += ry*step;
+        plane.rz -= rz*step;
         
-        Vector3f direction = new Vector3f(0f, 0f, -speed);
+        direction.set(0f, 0f, -speed*step);
         direction.rotateX((float)Math.toRadians(-plane.rx));
         direction.rotateY((float)Math.toRadians(-plane.ry));
         direction.rotateY((float)Math.toRadians(plane.rz));
         plane.x += direction.x;
         plane.y += direction.y;
         plane.z += direction.z;
-        float terrain_height = terrain.get_height_at_pos(
-                plane.x-terrain_x,
-                -plane.z-terrain_z
-        );
+        float terrain_height = ground.get_height(plane.x, plane.z);
         if(plane.y < terrain_height+10) plane.y = terrain_height+10;
         
         got_faster = false;
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.mibiflightsimulator;
+
+import io.github.mibi88.Mibi3D.Camera;
+import io.github.mibi88.Mibi3D.FixedTimestep;
+import io.github.mibi88.Mibi3D.HeightField;
+import io.github.mibi88.Mibi3D.TripleBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the flight on its own thread at a fixed tick rate, so that a slow
+ * frame does not slow down the plane, and the physics do not take time from
+ * the rendering. After each batch of ticks, the last two states of the plane
+ * are published through a triple buffer, and the render thread places the
+ * camera between them.
+ *
+ * @author mibi88
+ */
+public class Simulation implements Runnable {
+    // The controls that are held, given by the render thread that polls the
+    // keyboard
+    public static final int ROTATE_LEFT = 1;
+    public static final int ROTATE_RIGHT = 2;
+    public static final int ROTATE_UP = 4;
+    public static final int ROTATE_DOWN = 8;
+    public static final int SPEED_UP = 16;
+    public static final int SLOW_DOWN = 32;
+    public static final int ROTATE_FAST_LEFT = 64;
+    public static final int ROTATE_FAST_RIGHT = 128;
+
+    /**
+     * The last two states of the plane. It is not modified while the render
+     * thread holds it.
+     */
+    public static class Snapshot {
+        public final Camera previous = new Camera(0f, 0f, 0f, 0f, 0f, 0f);
+        public final Camera current = new Camera(0f, 0f, 0f, 0f, 0f, 0f);
+
+        // When the current state should be reached, from System.nanoTime
+        public long time;
+
+        // The amount of ticks simulated since the start
+        public long tick;
+    }
+
+    private final Camera state;
+    private final Camera previous_state;
+    private final Plane plane;
+    private final FixedTimestep timestep;
+    private final TripleBuffer<Snapshot> snapshots;
+    private final long tick_nanos;
+
+    private volatile int controls = 0;
+    private volatile boolean running = false;
+    private Thread thread;
+    private long tick = 0;
+
+    /**
+     * Create a new simulation, it starts with start
+     *
+     * @param ground The terrain the plane flies over, it is read from the
+     * simulation thread
+     * @param start The initial position and rotation of the plane
+     * @param tick_rate The amount of ticks per second
+     */
+    public Simulation(HeightField ground, Camera start, float tick_rate) {
+        state = new Camera(0f, 0f, 0f, 0f, 0f, 0f);
+        state.set(start);
+        previous_state = new Camera(0f, 0f, 0f, 0f, 0f, 0f);
+        previous_state.set(start);
+        timestep = new FixedTimestep(tick_rate);
+        tick_nanos = (long)(timestep.get_tick_time()*1e9);
+        plane = new Plane(state, ground);
+        plane.set_tick_time(timestep.get_tick_time());
+
+        Snapshot[] slots = new Snapshot[3];
+        long time = System.nanoTime();
+        for(int i=0;i<slots.length;i++) {
+            slots[i] = new Snapshot();
+            slots[i].previous.set(start);
+            slots[i].current.set(start);
+            slots[i].time = time;
+        }
+        snapshots = new TripleBuffer<>(slots[0], slots[1], slots[2]);
+    }
+
+    /**
+     * Start simulating on a new thread
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop simulating, and wait for the thread to finish
+     *
+     * @throws InterruptedException If the wait was interrupted
+     */
+    public void stop() throws InterruptedException {
+        if(thread == null) return;
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        thread = null;
+    }
+
+    /**
+     * Set the controls that are held. It can be called from any thread.
+     *
+     * @param controls The controls, ROTATE_LEFT, SPEED_UP, etc. combined
+     * with a bitwise or
+     */
+    public void set_controls(int controls) {
+        this.controls = controls;
+    }
+
+    @Override
+    public void run() {
+        timestep.reset();
+        while(running) {
+            int ticks = timestep.advance();
+            for(int i=0;i<ticks;i++) {
+                previous_state.set(state);
+                step(controls);
+            }
+            if(ticks > 0) publish();
+            // Sleep until the next tick is due
+            long wait = (long)((1f-timestep.get_alpha())*tick_nanos);
+            if(wait > 0) LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Simulate a tick
+     *
+     * @param controls The controls that are held
+     */
+    private void step(int controls) {
+        if((controls & ROTATE_LEFT) != 0) plane.rotate_left();
+        if((controls & ROTATE_RIGHT) != 0) plane.rotate_right();
+        if((controls & ROTATE_UP) != 0) plane.rotate_up();
+        if((controls & ROTATE_DOWN) != 0) plane.rotate_down();
+        if((controls & SPEED_UP) != 0) plane.speed_up();
+        if((controls & SLOW_DOWN) != 0) plane.slow_down();
+        if((controls & ROTATE_FAST_LEFT) != 0) plane.rotate_fast_left();
+        if((controls & ROTATE_FAST_RIGHT) != 0) plane.rotate_fast_right();
+        plane.move();
+        tick++;
+    }
+
+    /**
+     * Write the last two states to the back slot and publish it
+     */
+    private void publish() {
+        Snapshot snapshot = snapshots.get_back();
+        snapshot.previous.set(previous_state);
+        snapshot.current.set(state);
+        // The current state is shown one tick after it was due, so that the
+        // render thread always has a state to move towards
+        snapshot.time = System.nanoTime()-
+                (long)(timestep.get_alpha()*tick_nanos)+tick_nanos;
+        snapshot.tick = tick;
+        snapshots.publish();
+    }
+
+    /**
+     * Get the newest complete snapshot. It is only called by the render
+     * thread, and the snapshot stays unchanged until the next call.
+     *
+     * @return The snapshot
+     */
+    public Snapshot get_snapshot() {
+        return snapshots.get_front();
+    }
+
+    /**
+     * Place a camera between the last two states of the plane, at the
+     * current time
+     *
+     * @param dest The camera to set
+     * @return The snapshot that was used
+     */
+    public Snapshot interpolate(Camera dest) {
+        Snapshot snapshot = snapshots.get_front();
+        float alpha = 1f-(snapshot.time-System.nanoTime())/(float)tick_nanos;
+        alpha = Math.min(Math.max(alpha, 0f), 1f);
+        FixedTimestep.lerp(snapshot.previous, snapshot.current, alpha, dest);
+        return snapshot;
+    }
+}
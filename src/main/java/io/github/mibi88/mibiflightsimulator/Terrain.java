@@ -17,41 +17,144 @@
  */
 package io.github.mibi88.mibiflightsimulator;
 
-import io.github.mibi88.Mibi3D.Engine;
-import io.github.mibi88.Mibi3D.Texture;
-import io.github.mibi88.Mibi3D.TexturedModel;
-import io.github.mibi88.Mibi3D.TexturedModelEntity;
+import io.github.mibi88.Mibi3D.HeightField;
+import io.github.mibi88.Mibi3D.Mesh;
 import java.util.Random;
-import org.joml.Interpolationf;
-import org.joml.Vector3f;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
 import org.lwjgl.stb.STBPerlin;
 
 /**
- *
+ * An infinite terrain, split in square chunks. A chunk does not need OpenGL
+ * to be generated, so it can be generated on a worker thread, and it only
+ * depends on the seed and on its position, so a chunk that is generated again
+ * is identical.
+ * 
  * @author mibi88
  */
-public class Terrain {
-    private float[] vertices;
-    private float[] heights;
-    public float step;
-    public int w, h;
+public class Terrain implements HeightField {
+    public final int seed;
+    public final float step;
+    public final int chunk_quads;
+    public final float chunk_size;
+    
+    private final int min_lamp_spacing, max_lamp_spacing;
+    private final int min_tree_spacing, max_tree_spacing;
+    
+    // The chunks that are generated, to read their heights, the heights of
+    // the other chunks are computed from the noise when they are needed. A
+    // chunk goes in the slot at its position modulo this size, so that the
+    // lookups do not allocate. Two chunks that share a slot are further apart
+    // than the streamer keeps them, the one that is replaced is then read
+    // from the noise again.
+    private final int CACHE_SIDE = 32;
+    private final AtomicReferenceArray<TerrainChunk> cached_chunks;
     
-    public TexturedModelEntity entities[];
+    // The rows of a chunk are generated by the threads of this pool, by
+    // groups of this amount of rows. When generate_chunk runs on a thread of
+    // the pool, the rows are forked on the same threads instead of blocking
+    // it while others work.
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final int ROWS_PER_TASK = 8;
     
-    public float[] generate_normals(float x, float y, float z,
-            int seed, int w, int h) {
-        float height_left = get_height(x-1, z, seed, w, h);
-        float height_right = get_height(x+1, z, seed, w, h);
-        float height_up = get_height(x, z-1, seed, w, h);
-        float height_down = get_height(x, z+1, seed, w, h);
-        Vector3f normal = new Vector3f(height_left-height_right, 64f,
-                height_down-height_up);
-        normal.normalize();
-        return new float[]{normal.x, normal.y, normal.z};
+    /**
+     * Runs a function on each row of a range, split in tasks that run on
+     * the threads of a ForkJoinPool
+     */
+    @SuppressWarnings("serial")
+    private class Rows extends RecursiveAction {
+        private final IntConsumer function;
+        private final int start, end;
+        
+        Rows(IntConsumer function, int start, int end) {
+            this.function = function;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected void compute() {
+            if(end-start <= ROWS_PER_TASK) {
+                for(int i=start;i<end;i++) function.accept(i);
+                return;
+            }
+            int middle = (start+end)/2;
+            invokeAll(new Rows(function, start, middle),
+                    new Rows(function, middle, end));
+        }
     }
-    public float get_height(float x, float y, int seed, int w, int h) {
+    
+    /**
+     * Create a new terrain
+     * 
+     * @param seed The seed of the noise and of the positions of the entities
+     * @param step The size of a quad
+     * @param chunk_quads The amount of quads on each side of a chunk
+     * @param min_lamp_spacing The minimum distance between two lamps
+     * @param max_lamp_spacing The maximum distance between two lamps
+     * @param min_tree_spacing The minimum distance between two trees
+     * @param max_tree_spacing The maximum distance between two trees
+     */
+    public Terrain(int seed, float step, int chunk_quads,
+            int min_lamp_spacing, int max_lamp_spacing, int min_tree_spacing,
+            int max_tree_spacing) {
+        this.seed = seed;
+        this.step = step;
+        this.chunk_quads = chunk_quads;
+        this.chunk_size = chunk_quads*step;
+        this.min_lamp_spacing = min_lamp_spacing;
+        this.max_lamp_spacing = max_lamp_spacing;
+        this.min_tree_spacing = min_tree_spacing;
+        this.max_tree_spacing = max_tree_spacing;
+        cached_chunks = new AtomicReferenceArray<>(CACHE_SIDE*CACHE_SIDE);
+    }
+    
+    /**
+     * Get the key of a chunk in a map
+     * 
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return The key
+     */
+    public static long get_key(int chunk_x, int chunk_z) {
+        return ((long)chunk_x << 32) | (chunk_z & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Get the slot of a chunk in the cache of the heights
+     * 
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return The slot
+     */
+    private int get_cache_slot(int chunk_x, int chunk_z) {
+        return Math.floorMod(chunk_z, CACHE_SIDE)*CACHE_SIDE+
+                Math.floorMod(chunk_x, CACHE_SIDE);
+    }
+    
+    /**
+     * Get the chunk a position is in, on one axis
+     * 
+     * @param pos The position in world space
+     * @return The position of the chunk, in chunks
+     */
+    public int get_chunk_coord(float pos) {
+        return (int)Math.floor(pos/chunk_size);
+    }
+    
+    /**
+     * Get the height of a vertex of the terrain from the noise
+     * 
+     * @param x The position of the vertex on the X axis, in quads
+     * @param z The position of the vertex on the Z axis, in quads
+     * @return The height
+     */
+    public float get_grid_height(int x, int z) {
         return STBPerlin.stb_perlin_noise3_seed(x*0.1f,
-                y*0.1f,
+                z*0.1f,
                 0,
                 0,
                 0,
@@ -59,151 +162,193 @@ public class Terrain {
                 seed)*64f;
     }
     
-    public void print_array(float[] array, String end) {
-        for(int i=0;i<array.length;i++) {
-            if(i == array.length-1) {
-                System.out.printf("%f", array[i]);
-            } else {
-                System.out.printf("%f, ", array[i]);
-            }
-        }
-        System.out.print(end);
+    /**
+     * Set the pool the rows of the chunks are generated on. The chunks should
+     * be generated on the same pool, or on a single thread: a thread of
+     * another executor would wait for the rows while the pool runs them.
+     * 
+     * @param pool The pool, or null to generate them on the calling thread
+     */
+    public void set_pool(ForkJoinPool pool) {
+        this.pool = pool;
     }
-    public void print_array(int[] array, String end) {
-        for(int i=0;i<array.length;i++) {
-            if(i == array.length-1) {
-                System.out.printf("%d", array[i]);
-            } else {
-                System.out.printf("%d, ", array[i]);
-            }
+    
+    /**
+     * Run a function on each row of a grid, on the threads of the pool
+     * 
+     * @param rows The amount of rows
+     * @param function The function, it gets the number of the row
+     */
+    private void for_each_row(int rows, IntConsumer function) {
+        if(pool == null) {
+            for(int i=0;i<rows;i++) function.accept(i);
+            return;
         }
-        System.out.print(end);
+        Rows task = new Rows(function, 0, rows);
+        // On a thread of the pool, the rows are forked on its own queue
+        if(ForkJoinTask.getPool() == pool) task.invoke();
+        else pool.invoke(task);
     }
     
-    public TexturedModel generate_terrain(int w, int h, float step,
-            String texture_file, int seed, int min_lamp_spacing,
-            int max_lamp_spacing, int min_tree_spacing, int max_tree_spacing,
-            TexturedModel street_lamp, TexturedModel tree, Engine engine)
-            throws Exception {
-        w++;
-        h++;
-        this.w = w;
-        this.h = h;
-        this.step = step;
-        vertices = new float[w*h*3];
-        heights = new float[w*h];
-        int lamp_x_amount = (w*(int)step/max_lamp_spacing);
-        int lamp_y_amount = (h*(int)step/max_lamp_spacing);
-        int tree_x_amount = (w*(int)step/max_tree_spacing);
-        int tree_y_amount = (h*(int)step/max_tree_spacing);
-        entities = new TexturedModelEntity[lamp_x_amount*lamp_y_amount +
-                tree_x_amount*tree_y_amount];
-        Random random = new Random(seed);
-        float[] texture_coords = new float[w*h*2];
-        float[] normals = new float[w*h*3];
-        int[] indices = new int[(w-1)*(h-1)*6];
-        for(int y=0;y<h;y++) {
+    /**
+     * Generate a chunk: its heights, its mesh, and the positions of its
+     * street lamps and trees. It does not use OpenGL.
+     * 
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return The chunk
+     */
+    public TerrainChunk generate_chunk(int chunk_x, int chunk_z) {
+        TerrainChunk chunk = new TerrainChunk(chunk_x, chunk_z,
+                chunk_x*chunk_size, chunk_z*chunk_size);
+        int w = chunk_quads+1;
+        int grid_x = chunk_x*chunk_quads, grid_z = chunk_z*chunk_quads;
+        float[] vertices = new float[w*w*3];
+        float[] heights = new float[w*w];
+        float[] texture_coords = new float[w*w*2];
+        float[] normals = new float[w*w*3];
+        int[] indices = new int[chunk_quads*chunk_quads*6];
+        
+        // The noise is sampled once per vertex, with a border of one vertex
+        // around the chunk for the normals of its edges
+        int border_w = w+2;
+        float[] grid = new float[border_w*border_w];
+        for_each_row(border_w, (z) -> {
+            for(int x=0;x<border_w;x++) {
+                grid[z*border_w+x] = get_grid_height(grid_x+x-1,
+                        grid_z+z-1);
+            }
+        });
+        
+        // The vertices are relative to the corner of the chunk
+        for_each_row(w, (z) -> {
             for(int x=0;x<w;x++) {
-                vertices[(y*w+x)*3] = -x*step;
-                vertices[(y*w+x)*3+1] = get_height(x, y, seed, w, h);
-                heights[y*w+x] = vertices[(y*w+x)*3+1];
-                vertices[(y*w+x)*3+2] = -y*step;
-                float[] normal = generate_normals(
-                        vertices[(y*w+x)*3],
-                        vertices[(y*w+x)*3+1],
-                        vertices[(y*w+x)*3+2],
-                        seed,
-                        w, h
-                );
-                normals[(y*w+x)*3] = normal[0];
-                normals[(y*w+x)*3+1] = normal[1];
-                normals[(y*w+x)*3+2] = normal[2];
-                texture_coords[(y*w+x)*2] = (float)x;
-                texture_coords[(y*w+x)*2+1] = (float)y;
+                int i = z*w+x;
+                int g = (z+1)*border_w+x+1;
+                heights[i] = grid[g];
+                vertices[i*3] = x*step;
+                vertices[i*3+1] = grid[g];
+                vertices[i*3+2] = z*step;
+                float normal_x = grid[g-1]-grid[g+1];
+                float normal_y = 2f*step;
+                float normal_z = grid[g-border_w]-grid[g+border_w];
+                float scale = 1f/(float)Math.sqrt(normal_x*normal_x+
+                        normal_y*normal_y+normal_z*normal_z);
+                normals[i*3] = normal_x*scale;
+                normals[i*3+1] = normal_y*scale;
+                normals[i*3+2] = normal_z*scale;
+                texture_coords[i*2] = (float)x;
+                texture_coords[i*2+1] = (float)z;
             }
-        }
+        });
         
-        int indices_pos = 0;
-        for(int y=1;y<h;y++) {
-            for(int x=1;x<w;x++) {
-                int indice = y*h+x;
-                indices[indices_pos++] = indice-h-1;
-                indices[indices_pos++] = indice-1;
-                indices[indices_pos++] = indice-h;
-                
-                indices[indices_pos++] = indice-h;
-                indices[indices_pos++] = indice-1;
+        for_each_row(chunk_quads, (z) -> {
+            int indices_pos = z*chunk_quads*6;
+            for(int x=0;x<chunk_quads;x++) {
+                int indice = z*w+x;
                 indices[indices_pos++] = indice;
+                indices[indices_pos++] = indice+w;
+                indices[indices_pos++] = indice+1;
+                
+                indices[indices_pos++] = indice+1;
+                indices[indices_pos++] = indice+w;
+                indices[indices_pos++] = indice+w+1;
             }
-        }
-        // print_array(vertices, "\n");
-        // print_array(texture_coords, "\n");
-        // print_array(normals, "\n");
-        // print_array(indices, "\n");
+        });
+        chunk.heights = heights;
+        chunk.mesh = new Mesh(vertices, indices, normals, texture_coords);
+        cached_chunks.set(get_cache_slot(chunk_x, chunk_z), chunk);
         
-        float x = 0f, y = 0f;
+        Random random = new Random(seed ^ get_key(chunk_x, chunk_z)*
+                0x9E3779B97F4A7C15L);
+        chunk.lamps = scatter(chunk, random, min_lamp_spacing,
+                max_lamp_spacing);
+        chunk.trees = scatter(chunk, random, min_tree_spacing,
+                max_tree_spacing);
+        return chunk;
+    }
+    
+    /**
+     * Place entities on a chunk, one in each cell of a grid
+     * 
+     * @param chunk The chunk, its heights are already generated
+     * @param random The random number generator of the chunk
+     * @param min_spacing The minimum distance between two entities
+     * @param max_spacing The maximum distance between two entities, and the
+     * size of the cells
+     * @return The positions of the entities, as X, Y and Z coordinates
+     */
+    private float[] scatter(TerrainChunk chunk, Random random,
+            int min_spacing, int max_spacing) {
+        int amount = (int)(chunk_size/max_spacing);
+        float[] positions = new float[amount*amount*3];
         int pointer = 0;
-        for(int int_y=0;int_y<lamp_y_amount;int_y++) {
-            for(int int_x=0;int_x<lamp_x_amount;int_x++) {
-                x = min_lamp_spacing + random.nextFloat() *
-                        (max_lamp_spacing-min_lamp_spacing) +
-                        int_x*max_lamp_spacing;
-                y = min_lamp_spacing + random.nextFloat() *
-                        (max_lamp_spacing-min_lamp_spacing) +
-                        int_y*max_lamp_spacing;
-                entities[pointer++] = engine.create_entity(street_lamp,
-                        x, get_height_at_pos(x, y), -y,
-                        0f, 0f, 0f, 1f, 0);
-            }
-        }
-        for(int int_y=0;int_y<tree_y_amount;int_y++) {
-            for(int int_x=0;int_x<tree_x_amount;int_x++) {
-                x = min_tree_spacing + random.nextFloat() *
-                        (max_tree_spacing-min_tree_spacing) +
-                        int_x*max_tree_spacing;
-                y = min_tree_spacing + random.nextFloat() *
-                        (max_tree_spacing-min_tree_spacing) +
-                        int_y*max_tree_spacing;
-                //
-                entities[pointer++] = engine.create_entity(tree,
-                        x, get_height_at_pos(x, y), -y,
-                        0f, 0f, 0f, 1f, 0);
+        for(int int_z=0;int_z<amount;int_z++) {
+            for(int int_x=0;int_x<amount;int_x++) {
+                float x = chunk.world_x + min_spacing + random.nextFloat()*
+                        (max_spacing-min_spacing) + int_x*max_spacing;
+                float z = chunk.world_z + min_spacing + random.nextFloat()*
+                        (max_spacing-min_spacing) + int_z*max_spacing;
+                positions[pointer++] = x;
+                positions[pointer++] = get_height(x, z);
+                positions[pointer++] = z;
             }
         }
-        
-        return new TexturedModel(vertices, indices, normals, texture_coords,
-                texture_file, Texture.FILTER_MIPMAP_LINEAR,
-                Texture.WRAP_REPEAT, 4,
-                1);
+        return positions;
     }
     
-    public float get_height_at_pos(float x, float y) {
-        x = (w*step)-x;
-        int int_x = (int)(x/step), int_y = (int)(y/step);
-        int max_pos = (int_y+1)*w+(int_x+1);
-        int min_pos = (int_y-1)*w+(int_x-1);
-        if(min_pos < 0 || max_pos >= heights.length) {
-            System.out.println("[TERRAIN] Position out of bounds!");
-            return 0f;
+    /**
+     * Drop the heights of a chunk that is not used anymore, they will be
+     * computed from the noise again if they are needed
+     * 
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     */
+    public void forget_chunk(int chunk_x, int chunk_z) {
+        int slot = get_cache_slot(chunk_x, chunk_z);
+        TerrainChunk chunk = cached_chunks.get(slot);
+        // The slot may already hold another chunk
+        if(chunk != null && chunk.x == chunk_x && chunk.z == chunk_z) {
+            cached_chunks.compareAndSet(slot, chunk, null);
         }
-        float x_pos = (x%step)/step;
-        float y_pos = (y%step)/step;
-        float height;
-        if(x_pos <= 1f-y_pos) {
-            height = Interpolationf.interpolateTriangle(
-                    0f, 0f, heights[int_y*w+int_x],
-                    1f, 0f, heights[int_y*w+int_x+1],
-                    0f, 1f, heights[(int_y+1)*w+int_x],
-                    x_pos, y_pos
-            );
+    }
+    
+    /**
+     * Get the height of the terrain at a position in world space, with the
+     * same triangles as the meshes of the chunks. It can be called from any
+     * thread, and the terrain has no end.
+     * 
+     * @param x
+     * @param z
+     * @return The height
+     */
+    @Override
+    public float get_height(float x, float z) {
+        float grid_x = x/step, grid_z = z/step;
+        int int_x = (int)Math.floor(grid_x), int_z = (int)Math.floor(grid_z);
+        float x_pos = grid_x-int_x, z_pos = grid_z-int_z;
+        int chunk_x = Math.floorDiv(int_x, chunk_quads);
+        int chunk_z = Math.floorDiv(int_z, chunk_quads);
+        TerrainChunk chunk = cached_chunks.get(get_cache_slot(chunk_x,
+                chunk_z));
+        float h00, h10, h01, h11;
+        if(chunk != null && chunk.x == chunk_x && chunk.z == chunk_z) {
+            float[] heights = chunk.heights;
+            int w = chunk_quads+1;
+            int i = (int_z-chunk_z*chunk_quads)*w+int_x-chunk_x*chunk_quads;
+            h00 = heights[i];
+            h10 = heights[i+1];
+            h01 = heights[i+w];
+            h11 = heights[i+w+1];
         } else {
-            height = Interpolationf.interpolateTriangle(
-                    1f, 0f, heights[int_y*w+int_x+1],
-                    1f, 1f, heights[(int_y+1)*w+int_x+1],
-                    0f, 1f, heights[(int_y+1)*w+int_x],
-                    x_pos, y_pos
-            );
+            h00 = get_grid_height(int_x, int_z);
+            h10 = get_grid_height(int_x+1, int_z);
+            h01 = get_grid_height(int_x, int_z+1);
+            h11 = get_grid_height(int_x+1, int_z+1);
+        }
+        if(x_pos+z_pos <= 1f) {
+            return h00+(h10-h00)*x_pos+(h01-h00)*z_pos;
         }
-        return height;
+        return h11+(h01-h11)*(1f-x_pos)+(h10-h11)*(1f-z_pos);
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.mibiflightsimulator;
+
+import io.github.mibi88.Mibi3D.Light;
+import io.github.mibi88.Mibi3D.Mesh;
+import io.github.mibi88.Mibi3D.TexturedModel;
+import io.github.mibi88.Mibi3D.TexturedModelEntity;
+import java.util.ArrayList;
+
+/**
+ * A square part of the terrain. Its data is generated by Terrain on a worker
+ * thread, and its OpenGL objects and its entities are created by
+ * TerrainStreamer on the thread of the window.
+ *
+ * @author mibi88
+ */
+public class TerrainChunk {
+    // The position of the chunk, in chunks
+    public final int x, z;
+    // The position of the corner of the chunk in world space
+    public final float world_x, world_z;
+
+    public float[] heights;
+    public Mesh mesh;
+
+    // The positions of the street lamps and of the trees, as X, Y and Z
+    // coordinates in world space
+    public float[] lamps;
+    public float[] trees;
+
+    // Created when the chunk is uploaded
+    TexturedModel model = null;
+    TexturedModelEntity entity = null;
+    final ArrayList<TexturedModelEntity> entities = new ArrayList<>();
+    final ArrayList<Light> lights = new ArrayList<>();
+
+    TerrainChunk(int x, int z, float world_x, float world_z) {
+        this.x = x;
+        this.z = z;
+        this.world_x = world_x;
+        this.world_z = world_z;
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package io.github.mibi88.mibiflightsimulator;
+
+import io.github.mibi88.Mibi3D.Engine;
+import io.github.mibi88.Mibi3D.Light;
+import io.github.mibi88.Mibi3D.TexturedModel;
+import io.github.mibi88.Mibi3D.TexturedModelEntity;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps the chunks of the terrain around the camera in the scene. The
+ * missing chunks are generated on worker threads, from the closest to the
+ * farthest, and the generated chunks are uploaded on the thread of the window
+ * for a limited time per frame. The chunks that are farther than the
+ * retention radius are removed from the scene and freed. Once the chunks
+ * around the camera are loaded, an update does not allocate anything.
+ *
+ * @author mibi88
+ */
+public class TerrainStreamer {
+    /**
+     * A chunk that could not be generated, given back to the thread of the
+     * window by a worker
+     */
+    private static class Failure {
+        final int x, z;
+        final Exception exception;
+
+        Failure(int x, int z, Exception exception) {
+            this.x = x;
+            this.z = z;
+            this.exception = exception;
+        }
+    }
+
+    // The amount of chunks that can be generated at the same time, so that
+    // the closest chunks are not queued behind the farthest ones when the
+    // camera moves
+    private final int MAX_PENDING = 8;
+
+    private final Terrain terrain;
+    private final ExecutorService workers;
+    private final int load_radius;
+    private final int retention_radius;
+    private float upload_budget = 2f;
+
+    private Engine engine = null;
+    private TexturedModel material, street_lamp, tree;
+    private float[] lamp_color = {1f, 1f, 1f};
+    private float lamp_attenuation = 0f;
+    private boolean lamp_lights = false;
+
+    // The chunks in the scene. A chunk goes in the slot at its position
+    // modulo the size of the retention area, so two chunks that share a slot
+    // are never kept at the same time.
+    private final int side;
+    private final TerrainChunk[] chunks;
+    private int chunks_amount = 0;
+    // The keys of the chunks that are being generated
+    private final long[] pending;
+    private int pending_amount = 0;
+    private final ConcurrentLinkedQueue<TerrainChunk> generated;
+    private final ConcurrentLinkedQueue<Failure> failures;
+    private int failures_amount = 0;
+    // The keys of the chunks that could not be generated, they are requested
+    // again when the camera enters another chunk
+    private final long[] failed;
+    private int failed_amount = 0;
+    private int center_x = 0, center_z = 0;
+    // If all the chunks in the load radius around the center are loaded or
+    // pending, so that they are not looked for again on each frame
+    private boolean requested = false;
+    private int entities_amount = 0;
+
+    /**
+     * Create a new terrain streamer. The chunks can be requested before the
+     * engine is ready, they are only uploaded once set_scene was called.
+     *
+     * @param terrain The terrain to generate the chunks of
+     * @param workers The threads the chunks are generated on. It should be
+     * the ForkJoinPool of the terrain, that also generates the rows of the
+     * chunks, so that there is one generation thread per core.
+     * @param load_radius The distance up to which the chunks are loaded, in
+     * chunks
+     * @param retention_radius The distance from which the chunks are
+     * removed, in chunks. It is bigger than the load radius, so that the
+     * chunks are not loaded and removed again when the camera goes back and
+     * forth over the edge of a chunk.
+     */
+    public TerrainStreamer(Terrain terrain, ExecutorService workers,
+            int load_radius, int retention_radius) {
+        this.terrain = terrain;
+        this.workers = workers;
+        this.load_radius = load_radius;
+        this.retention_radius = Math.max(retention_radius, load_radius);
+        side = this.retention_radius*2+1;
+        chunks = new TerrainChunk[side*side];
+        pending = new long[MAX_PENDING];
+        failed = new long[(load_radius*2+1)*(load_radius*2+1)];
+        generated = new ConcurrentLinkedQueue<>();
+        failures = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Set the engine the chunks are added to and the models they use
+     *
+     * @param engine The engine
+     * @param material The model the chunks take their texture and their
+     * material from
+     * @param street_lamp The model of the street lamps
+     * @param tree The model of the trees
+     */
+    public void set_scene(Engine engine, TexturedModel material,
+            TexturedModel street_lamp, TexturedModel tree) {
+        this.engine = engine;
+        this.material = material;
+        this.street_lamp = street_lamp;
+        this.tree = tree;
+    }
+
+    /**
+     * Set the light of the street lamps
+     *
+     * @param r The red component of the light
+     * @param g The green component of the light
+     * @param b The blue component of the light
+     * @param attenuation The exponential attenuation of the light
+     */
+    public void set_lamp_light(float r, float g, float b, float attenuation) {
+        lamp_color = new float[]{r, g, b};
+        lamp_attenuation = attenuation;
+    }
+
+    /**
+     * Turn the street lamps on or off. The lights of the chunks that are
+     * loaded later follow this setting.
+     *
+     * @param lamp_lights true to add the lights of the lamps to the scene
+     */
+    public void set_lamp_lights(boolean lamp_lights) {
+        if(lamp_lights == this.lamp_lights) return;
+        this.lamp_lights = lamp_lights;
+        for(int n=0;n<chunks.length;n++) {
+            TerrainChunk chunk = chunks[n];
+            if(chunk == null) continue;
+            for(int i=0;i<chunk.lights.size();i++) {
+                if(lamp_lights) engine.add_light(chunk.lights.get(i));
+                else engine.remove_light(chunk.lights.get(i));
+            }
+        }
+    }
+
+    /**
+     * Set the time spent uploading chunks on each frame. At least one chunk
+     * is uploaded per frame when a chunk is ready.
+     *
+     * @param upload_budget The time in milliseconds
+     */
+    public void set_upload_budget(float upload_budget) {
+        this.upload_budget = upload_budget;
+    }
+
+    /**
+     * Remove the chunks that are too far, generate the missing chunks and
+     * upload the chunks that were generated. It is called once per frame on
+     * the thread of the window.
+     *
+     * @param x The position of the camera on the X axis
+     * @param z The position of the camera on the Z axis
+     */
+    public void update(float x, float z) {
+        if(set_center(x, z)) evict();
+        if(!requested) request();
+        upload(upload_budget);
+    }
+
+    /**
+     * Start generating the chunks around a position, for example while the
+     * engine starts
+     *
+     * @param x The position on the X axis
+     * @param z The position on the Z axis
+     */
+    public void prefetch(float x, float z) {
+        set_center(x, z);
+        request();
+    }
+
+    /**
+     * Load all the chunks around a position, and wait until they are
+     * uploaded, for example before the first frame
+     *
+     * @param x The position on the X axis
+     * @param z The position on the Z axis
+     * @throws Exception If a chunk could not be generated, or if the wait
+     * was interrupted
+     */
+    public void load_all(float x, float z) throws Exception {
+        set_center(x, z);
+        evict();
+        int failures_before = failures_amount;
+        while(true) {
+            request();
+            upload(Float.POSITIVE_INFINITY);
+            if(failures_amount != failures_before) {
+                throw new Exception("Could not generate the terrain " +
+                        "around " + x + ", " + z + "!");
+            }
+            if(requested && pending_amount == 0) break;
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Set the chunk the camera is in
+     *
+     * @param x The position of the camera on the X axis
+     * @param z The position of the camera on the Z axis
+     * @return true if the camera entered another chunk
+     */
+    private boolean set_center(float x, float z) {
+        int chunk_x = terrain.get_chunk_coord(x);
+        int chunk_z = terrain.get_chunk_coord(z);
+        if(chunk_x == center_x && chunk_z == center_z) return false;
+        center_x = chunk_x;
+        center_z = chunk_z;
+        requested = false;
+        failed_amount = 0;
+        return true;
+    }
+
+    /**
+     * Get the slot of a chunk in the array of the chunks
+     *
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return The slot
+     */
+    private int get_slot(int chunk_x, int chunk_z) {
+        return Math.floorMod(chunk_z, side)*side+Math.floorMod(chunk_x, side);
+    }
+
+    /**
+     * Check if a chunk is in the scene
+     *
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return true if the chunk is loaded
+     */
+    private boolean is_loaded(int chunk_x, int chunk_z) {
+        TerrainChunk chunk = chunks[get_slot(chunk_x, chunk_z)];
+        return chunk != null && chunk.x == chunk_x && chunk.z == chunk_z;
+    }
+
+    /**
+     * Find a chunk in the list of the chunks that are being generated
+     *
+     * @param key The key of the chunk, from Terrain.get_key
+     * @return The position of the chunk in the list, or -1 if it is not
+     * pending
+     */
+    private int find_pending(long key) {
+        for(int i=0;i<pending_amount;i++) {
+            if(pending[i] == key) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a chunk could not be generated since the camera entered the
+     * chunk it is in
+     *
+     * @param key The key of the chunk, from Terrain.get_key
+     * @return true if the chunk failed
+     */
+    private boolean has_failed(long key) {
+        for(int i=0;i<failed_amount;i++) {
+            if(failed[i] == key) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove a chunk from the list of the chunks that are being generated
+     *
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     */
+    private void remove_pending(int chunk_x, int chunk_z) {
+        int i = find_pending(Terrain.get_key(chunk_x, chunk_z));
+        if(i < 0) return;
+        pending[i] = pending[--pending_amount];
+    }
+
+    /**
+     * Get the distance from the camera to a chunk
+     *
+     * @param chunk_x The position of the chunk on the X axis, in chunks
+     * @param chunk_z The position of the chunk on the Z axis, in chunks
+     * @return The distance, in chunks
+     */
+    private int get_distance(int chunk_x, int chunk_z) {
+        return Math.max(Math.abs(chunk_x-center_x),
+                Math.abs(chunk_z-center_z));
+    }
+
+    /**
+     * Remove the chunks that are outside of the retention radius
+     */
+    private void evict() {
+        for(int i=0;i<chunks.length;i++) {
+            TerrainChunk chunk = chunks[i];
+            if(chunk != null && get_distance(chunk.x, chunk.z) >
+                    retention_radius) {
+                unload(chunk);
+            }
+        }
+    }
+
+    /**
+     * Start generating the missing chunks, by rings around the camera. When
+     * a chunk is generated, the worker gives it or its failure back to the
+     * thread of the window.
+     */
+    private void request() {
+        for(int ring=0;ring<=load_radius;ring++) {
+            for(int chunk_z=center_z-ring;chunk_z<=center_z+ring;chunk_z++) {
+                for(int chunk_x=center_x-ring;chunk_x<=center_x+ring;
+                        chunk_x++) {
+                    if(get_distance(chunk_x, chunk_z) != ring) continue;
+                    if(is_loaded(chunk_x, chunk_z)) continue;
+                    long key = Terrain.get_key(chunk_x, chunk_z);
+                    if(find_pending(key) >= 0 || has_failed(key)) continue;
+                    if(pending_amount >= MAX_PENDING) return;
+                    pending[pending_amount++] = key;
+                    int generated_x = chunk_x, generated_z = chunk_z;
+                    workers.submit(() -> {
+                        try {
+                            generated.add(terrain.generate_chunk(generated_x,
+                                    generated_z));
+                        } catch(Exception e) {
+                            failures.add(new Failure(generated_x,
+                                    generated_z, e));
+                        }
+                    });
+                }
+            }
+        }
+        requested = true;
+    }
+
+    /**
+     * Upload the chunks that were generated
+     *
+     * @param budget The time after which no other chunk is uploaded, in
+     * milliseconds
+     */
+    private void upload(float budget) {
+        Failure failure;
+        while((failure = failures.poll()) != null) {
+            remove_pending(failure.x, failure.z);
+            if(failed_amount < failed.length) {
+                failed[failed_amount++] = Terrain.get_key(failure.x,
+                        failure.z);
+            }
+            failures_amount++;
+            System.err.println("Could not generate the chunk " + failure.x +
+                    ", " + failure.z + " of the terrain: " +
+                    failure.exception);
+        }
+        if(engine == null) return;
+        long start = System.nanoTime();
+        TerrainChunk chunk;
+        while((chunk = generated.poll()) != null) {
+            remove_pending(chunk.x, chunk.z);
+            // The camera went away while the chunk was generated
+            if(get_distance(chunk.x, chunk.z) > retention_radius) {
+                terrain.forget_chunk(chunk.x, chunk.z);
+                continue;
+            }
+            load(chunk);
+            if((System.nanoTime()-start)/1e6f >= budget) break;
+        }
+    }
+
+    /**
+     * Create the model, the entities and the lights of a chunk, and add them
+     * to the scene
+     *
+     * @param chunk The generated chunk
+     */
+    private void load(TerrainChunk chunk) {
+        int slot = get_slot(chunk.x, chunk.z);
+        // Only after a jump of the camera that was not followed by an update
+        if(chunks[slot] != null) unload(chunks[slot]);
+        chunk.model = new TexturedModel(chunk.mesh.vertices,
+                chunk.mesh.indices, chunk.mesh.normals,
+                chunk.mesh.texture_coords, material);
+        chunk.entity = engine.create_entity(chunk.model, chunk.world_x, 0f,
+                chunk.world_z, 0f, 0f, 0f, 1f, 0);
+        // The terrain never moves, but its mesh is only drawn once
+        engine.add_unbatched_entity(chunk.entity);
+
+        for(int i=0;i<chunk.lamps.length;i+=3) {
+            add_static_entity(chunk, street_lamp, chunk.lamps, i);
+            Light light = new Light(chunk.lamps[i], chunk.lamps[i+1]+
+                    street_lamp.aabb_max.y, chunk.lamps[i+2], lamp_color[0],
+                    lamp_color[1], lamp_color[2]);
+            light.exponential_attenuation = lamp_attenuation;
+            chunk.lights.add(light);
+            if(lamp_lights) engine.add_light(light);
+        }
+        for(int i=0;i<chunk.trees.length;i+=3) {
+            add_static_entity(chunk, tree, chunk.trees, i);
+        }
+        entities_amount += chunk.entities.size()+1;
+        chunks[slot] = chunk;
+        chunks_amount++;
+    }
+
+    private void add_static_entity(TerrainChunk chunk, TexturedModel model,
+            float[] positions, int i) {
+        TexturedModelEntity entity = engine.create_entity(model,
+                positions[i], positions[i+1], positions[i+2], 0f, 0f, 0f, 1f,
+                0);
+        entity.is_static = true;
+        engine.add_entity(entity);
+        chunk.entities.add(entity);
+    }
+
+    /**
+     * Remove a chunk from the scene and free its model
+     *
+     * @param chunk The chunk to remove
+     */
+    private void unload(TerrainChunk chunk) {
+        engine.remove_entity(chunk.entity);
+        chunk.model.free();
+        for(int i=0;i<chunk.entities.size();i++) {
+            engine.remove_entity(chunk.entities.get(i));
+        }
+        if(lamp_lights) {
+            for(int i=0;i<chunk.lights.size();i++) {
+                engine.remove_light(chunk.lights.get(i));
+            }
+        }
+        entities_amount -= chunk.entities.size()+1;
+        chunks[get_slot(chunk.x, chunk.z)] = null;
+        chunks_amount--;
+        terrain.forget_chunk(chunk.x, chunk.z);
+    }
+
+    /**
+     * Get the amount of chunks in the scene
+     *
+     * @return The amount of chunks
+     */
+    public int get_chunks_amount() {
+        return chunks_amount;
+    }
+
+    /**
+     * Get the amount of chunks that are being generated
+     *
+     * @return The amount of chunks
+     */
+    public int get_pending_amount() {
+        return pending_amount;
+    }
+
+    /**
+     * Get the amount of entities the chunks added to the scene, with the
+     * terrain itself
+     *
+     * @return The amount of entities
+     */
+    public int get_entities_amount() {
+        return entities_amount;
+    }
+
+    /**
+     * Remove all the chunks from the scene and free them
+     */
+    public void free() {
+        for(int i=0;i<chunks.length;i++) {
+            if(chunks[i] != null) unload(chunks[i]);
+        }
+    }
+}
@@ -16,32 +16,67 @@
  * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
  */
 #version 400 core
-#define MAX_LIGHTS 16
 
 in vec2 pass_texture_coords;
+flat in float pass_fade;
 
 in vec3 normal_vector;
-in vec3 to_light_vector[MAX_LIGHTS];
+in vec3 pass_world_position;
+in float pass_view_depth;
 in vec3 to_camera_vector;
 
+#ifdef FOG
 in float visibility;
+#endif
 
 out vec4 out_color;
 
+layout(std140) uniform Camera {
+    mat4 projection_matrix;
+    mat4 view_matrix;
+    vec4 camera_position;
+};
+
+layout(std140) uniform Scene {
+    vec3 sky_color;
+    float ambient_lighting;
+    float fog_gradient;
+    float fog_density;
+    int fog;
+    // The amount of clusters along each axis
+    ivec4 cluster_size;
+    // The near plane, log(far/near) and the size of the framebuffer
+    vec4 cluster_settings;
+};
+
 uniform sampler2D texture_sampler;
-uniform vec3 light_color[MAX_LIGHTS];
 
-uniform vec3 attenuation[MAX_LIGHTS];
+#ifdef LIGHTS
+// Three texels per light: the position, the color and the attenuation
+uniform samplerBuffer light_data;
+// The first index and the amount of lights of each cluster
+uniform usamplerBuffer light_clusters;
+// The lights of all the clusters
+uniform usamplerBuffer light_indices;
+#endif
 
 uniform float shine_damper;
 uniform float reflectivity;
-uniform float ambient_lighting;
-
-uniform vec3 sky_color;
 
-uniform int fog;
+const float bayer[16] = float[16](
+    0.0, 8.0, 2.0, 10.0,
+    12.0, 4.0, 14.0, 6.0,
+    3.0, 11.0, 1.0, 9.0,
+    15.0, 7.0, 13.0, 5.0
+);
 
 void main(void) {
+    // Leave the pixels to the impostor while they fade from one to the other
+    if(pass_fade > 0.0) {
+        ivec2 pixel = ivec2(gl_FragCoord.xy) % 4;
+        if(pass_fade > (bayer[pixel.y*4+pixel.x]+0.5)/16.0) discard;
+    }
+    
     // Diffuse lighting
     vec3 unit_normal = normalize(normal_vector);
     vec3 unit_to_camera = normalize(to_camera_vector);
@@ -49,20 +84,39 @@ void main(void) {
     vec3 total_diffuse_lighting = vec3(0.0);
     vec3 total_specular_lighting = vec3(0.0);
     
-    for(int i=0;i<MAX_LIGHTS;i++) {
-        float distance_to_light = length(to_light_vector[i]);
+#ifdef LIGHTS
+    // Find the cluster of the fragment, the depth slices get exponentially
+    // thicker with the distance
+    float slice = log(max(pass_view_depth, cluster_settings.x)/
+            cluster_settings.x)/cluster_settings.y*float(cluster_size.z);
+    ivec3 cluster_position = clamp(ivec3(
+            ivec2(gl_FragCoord.xy/cluster_settings.zw*vec2(cluster_size.xy)),
+            int(slice)), ivec3(0), cluster_size.xyz-1);
+    int cluster = (cluster_position.z*cluster_size.y+cluster_position.y)*
+            cluster_size.x+cluster_position.x;
+    uvec2 cluster_lights = texelFetch(light_clusters, cluster).xy;
+    
+    for(uint i=0u;i<cluster_lights.y;i++) {
+        int light = int(texelFetch(light_indices,
+                int(cluster_lights.x+i)).x)*3;
+        vec3 to_light_vector = texelFetch(light_data, light).xyz -
+                pass_world_position;
+        vec3 light_color = texelFetch(light_data, light+1).xyz;
+        vec3 attenuation = texelFetch(light_data, light+2).xyz;
+        
+        float distance_to_light = length(to_light_vector);
         
-        float attenuation_factor = attenuation[i].x +
-                attenuation[i].y * distance_to_light +
-                attenuation[i].z * distance_to_light * distance_to_light;
+        float attenuation_factor = attenuation.x +
+                attenuation.y * distance_to_light +
+                attenuation.z * distance_to_light * distance_to_light;
         
-        vec3 unit_to_light = normalize(to_light_vector[i]);
+        vec3 unit_to_light = normalize(to_light_vector);
 
         float normal_dot_to_light = dot(unit_normal, unit_to_light);
 
         float brightness = max(normal_dot_to_light, 0.0);
 
-        total_diffuse_lighting += (brightness * light_color[i]) /
+        total_diffuse_lighting += (brightness * light_color) /
                 attenuation_factor;
 
         // Specular lighting
@@ -75,14 +129,15 @@ void main(void) {
         float damped_factor = pow(specular_factor, shine_damper);
 
         total_specular_lighting += (damped_factor * reflectivity *
-                light_color[i]) / attenuation_factor;
+                light_color) / attenuation_factor;
     }
+#endif
     total_diffuse_lighting = max(total_diffuse_lighting, ambient_lighting);
     
     out_color = vec4(total_diffuse_lighting, 1.0) *
             texture(texture_sampler, pass_texture_coords) +
             vec4(total_specular_lighting, 1.0);
-    if(fog == 1) {
-        out_color = mix(out_color, vec4(sky_color, 1.0), 1-visibility);
-    }
+#ifdef FOG
+    out_color = mix(out_color, vec4(sky_color, 1.0), 1-visibility);
+#endif
 }
@@ -16,62 +16,93 @@
  * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
  */
 #version 400 core
-#define MAX_LIGHTS 16
+// The features of a variant are defined by Shaders before compiling it:
+// FOG, ATLAS (the model uses a texture atlas), INSTANCED (the model matrix
+// and the atlas cell come from the instance data) and LIGHTS
 
 in vec3 position;
 in vec2 texture_coords;
 in vec3 normal;
 
+#ifdef INSTANCED
+// Per instance data
+in mat4 instance_matrix;
+in vec4 instance_atlas;
+#endif
+
 out vec2 pass_texture_coords;
+flat out float pass_fade;
 
 out vec3 normal_vector;
-out vec3 to_light_vector[MAX_LIGHTS];
+out vec3 pass_world_position;
+out float pass_view_depth;
 out vec3 to_camera_vector;
 
+#ifdef FOG
 out float visibility;
+#endif
 
-uniform mat4 transformation_matrix;
-uniform mat4 projection_matrix;
-uniform mat4 view_matrix;
-
-uniform vec3 light_position[MAX_LIGHTS];
+layout(std140) uniform Camera {
+    mat4 projection_matrix;
+    mat4 view_matrix;
+    vec4 camera_position;
+};
 
-uniform float fog_gradient;
-uniform float fog_density;
+layout(std140) uniform Scene {
+    vec3 sky_color;
+    float ambient_lighting;
+    float fog_gradient;
+    float fog_density;
+    int fog;
+    // The amount of clusters along each axis
+    ivec4 cluster_size;
+    // The near plane, log(far/near) and the size of the framebuffer
+    vec4 cluster_settings;
+};
 
-uniform int fog;
+#ifndef INSTANCED
+uniform mat4 transformation_matrix;
 
 uniform float texture_x;
 uniform float texture_y;
 
 uniform float cell_size;
 
+// The part of the pixels that are left to the impostor of the model
+uniform float fade;
+#endif
+
 void main(void) {
-    vec4 world_position = transformation_matrix * vec4(position, 1.0);
+#ifdef INSTANCED
+    mat4 model_matrix = instance_matrix;
+    vec4 atlas = instance_atlas;
+#else
+    mat4 model_matrix = transformation_matrix;
+    vec4 atlas = vec4(texture_x, texture_y, cell_size, fade);
+#endif
+    
+    vec4 world_position = model_matrix * vec4(position, 1.0);
     
     vec4 position_relative_to_camera = view_matrix * world_position;
     gl_Position = projection_matrix * position_relative_to_camera;
     pass_texture_coords = texture_coords;
+    pass_fade = atlas.w;
     
-    if(cell_size < 1.0) {
-        pass_texture_coords *= cell_size;
-        pass_texture_coords.x += texture_x;
-        pass_texture_coords.y += texture_y;
-    }
+#ifdef ATLAS
+    pass_texture_coords = pass_texture_coords*atlas.z + atlas.xy;
+#endif
     
-    normal_vector = (transformation_matrix * vec4(normal, 0.0)).xyz;
+    normal_vector = (model_matrix * vec4(normal, 0.0)).xyz;
     
-    for(int i=0;i<MAX_LIGHTS;i++) {
-        to_light_vector[i] = light_position[i] - world_position.xyz;
-    }
+    pass_world_position = world_position.xyz;
+    pass_view_depth = -position_relative_to_camera.z;
     
-    to_camera_vector = (inverse(view_matrix) * vec4(0.0, 0.0, 0.0, 1.0)).xyz -
-            world_position.xyz;
+    to_camera_vector = camera_position.xyz - world_position.xyz;
     
-    if(fog == 1) {
-        float distance_from_camera = length(position_relative_to_camera.xyz);
-        visibility = clamp(
-                exp(-pow(distance_from_camera*fog_density, fog_gradient)),
-                0.0, 1.0);
-    }
+#ifdef FOG
+    float distance_from_camera = length(position_relative_to_camera.xyz);
+    visibility = clamp(
+            exp(-pow(distance_from_camera*fog_density, fog_gradient)),
+            0.0, 1.0);
+#endif
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+// The downsample pass of the dual filter blur: each pixel of the smaller
+// target averages the source around it with 5 bilinear taps. The first pass
+// also keeps only the part of the colors that is brighter than the threshold.
+
+in vec2 pass_texture_coords;
+
+out vec4 out_color;
+
+uniform sampler2D texture_sampler;
+
+// The size of a pixel of the source texture, in texture coordinates
+uniform vec2 texel_size;
+
+uniform float threshold;
+
+// The first pass reads the part of the scene texture the scene was rendered
+// to, like the framebuffer shader
+uniform vec2 uv_scale;
+uniform vec2 uv_max;
+
+vec3 sample_source(vec2 coords) {
+#ifdef THRESHOLD
+    coords = min(coords, uv_max);
+#endif
+    vec3 color = texture(texture_sampler, coords).rgb;
+#ifdef THRESHOLD
+    color = max(color-threshold, 0.0);
+#endif
+    return color;
+}
+
+void main(void) {
+    vec2 offset = texel_size;
+    vec2 coords = pass_texture_coords;
+#ifdef THRESHOLD
+    coords *= uv_scale;
+#endif
+    vec3 color = sample_source(coords)*4.0;
+    color += sample_source(coords+vec2(-offset.x, -offset.y));
+    color += sample_source(coords+vec2(offset.x, -offset.y));
+    color += sample_source(coords+vec2(-offset.x, offset.y));
+    color += sample_source(coords+vec2(offset.x, offset.y));
+    out_color = vec4(color/8.0, 1.0);
+}
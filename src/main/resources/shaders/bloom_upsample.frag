@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+// The upsample pass of the dual filter blur: each pixel of the bigger target
+// takes 8 bilinear taps of the smaller one around it. The result is added to
+// what the downsample pass wrote in the bigger target.
+
+in vec2 pass_texture_coords;
+
+out vec4 out_color;
+
+uniform sampler2D texture_sampler;
+
+// The size of a pixel of the source texture, in texture coordinates
+uniform vec2 texel_size;
+
+void main(void) {
+    // Half a pixel of the source, the taps on the sides are one pixel away
+    vec2 offset = texel_size*0.5;
+    vec3 color = texture(texture_sampler,
+            pass_texture_coords+vec2(-offset.x*2.0, 0.0)).rgb;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(offset.x*2.0, 0.0)).rgb;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(0.0, -offset.y*2.0)).rgb;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(0.0, offset.y*2.0)).rgb;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(-offset.x, -offset.y)).rgb*2.0;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(offset.x, -offset.y)).rgb*2.0;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(-offset.x, offset.y)).rgb*2.0;
+    color += texture(texture_sampler,
+            pass_texture_coords+vec2(offset.x, offset.y)).rgb*2.0;
+    out_color = vec4(color/12.0, 1.0);
+}
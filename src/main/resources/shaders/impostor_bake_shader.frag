@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+in vec2 pass_texture_coords;
+in vec3 normal_vector;
+
+out vec4 out_color;
+
+uniform sampler2D texture_sampler;
+
+// The billboards are not lit when they are drawn, so the light of the sun
+// coming from above is baked in the texture
+const vec3 to_light = normalize(vec3(0.3, 1.0, 0.4));
+
+void main(void) {
+    float brightness = max(dot(normalize(normal_vector), to_light), 0.7);
+    vec4 color = texture(texture_sampler, pass_texture_coords);
+    out_color = vec4(color.rgb*brightness, 1.0);
+}
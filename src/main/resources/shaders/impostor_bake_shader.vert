@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+in vec3 position;
+in vec2 texture_coords;
+in vec3 normal;
+
+out vec2 pass_texture_coords;
+out vec3 normal_vector;
+
+uniform mat4 projection_matrix;
+uniform mat4 view_matrix;
+
+uniform float cell_size;
+
+void main(void) {
+    gl_Position = projection_matrix * view_matrix * vec4(position, 1.0);
+    pass_texture_coords = texture_coords*cell_size;
+    normal_vector = normal;
+}
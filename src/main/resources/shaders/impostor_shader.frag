@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+in vec2 pass_texture_coords;
+flat in float pass_fade;
+
+in float visibility;
+
+out vec4 out_color;
+
+layout(std140) uniform Scene {
+    vec3 sky_color;
+    float ambient_lighting;
+    float fog_gradient;
+    float fog_density;
+    int fog;
+    // The amount of clusters along each axis
+    ivec4 cluster_size;
+    // The near plane, log(far/near) and the size of the framebuffer
+    vec4 cluster_settings;
+};
+
+uniform sampler2D texture_sampler;
+
+const float bayer[16] = float[16](
+    0.0, 8.0, 2.0, 10.0,
+    12.0, 4.0, 14.0, 6.0,
+    3.0, 11.0, 1.0, 9.0,
+    15.0, 7.0, 13.0, 5.0
+);
+
+void main(void) {
+    // The billboard is drawn on the pixels where the mesh is not, while
+    // they fade from one to the other
+    ivec2 pixel = ivec2(gl_FragCoord.xy) % 4;
+    if(pass_fade <= (bayer[pixel.y*4+pixel.x]+0.5)/16.0) discard;
+    
+    vec4 color = texture(texture_sampler, pass_texture_coords);
+    if(color.a < 0.5) discard;
+    
+    out_color = vec4(color.rgb, 1.0);
+    if(fog == 1) {
+        out_color = mix(out_color, vec4(sky_color, 1.0), 1-visibility);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 mibi88
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+#version 400 core
+
+#define PI 3.14159265
+
+in vec2 position;
+
+// Per instance data: the center and the radius, the rotation on the Y axis
+// and how much of the billboard is drawn
+in vec4 instance_center;
+in vec2 instance_params;
+
+out vec2 pass_texture_coords;
+flat out float pass_fade;
+
+out float visibility;
+
+layout(std140) uniform Camera {
+    mat4 projection_matrix;
+    mat4 view_matrix;
+    vec4 camera_position;
+};
+
+layout(std140) uniform Scene {
+    vec3 sky_color;
+    float ambient_lighting;
+    float fog_gradient;
+    float fog_density;
+    int fog;
+    // The amount of clusters along each axis
+    ivec4 cluster_size;
+    // The near plane, log(far/near) and the size of the framebuffer
+    vec4 cluster_settings;
+};
+
+uniform float views;
+
+void main(void) {
+    vec3 to_camera = camera_position.xyz - instance_center.xyz;
+    // The billboards only turn around the Y axis, like the renders of the
+    // model they show
+    vec2 direction = to_camera.xz;
+    if(dot(direction, direction) < 0.0001) direction = vec2(0.0, 1.0);
+    direction = normalize(direction);
+    vec3 right = vec3(direction.y, 0.0, -direction.x);
+    
+    vec3 world_position = instance_center.xyz +
+            (right*position.x + vec3(0.0, position.y, 0.0)) *
+            instance_center.w;
+    vec4 position_relative_to_camera = view_matrix *
+            vec4(world_position, 1.0);
+    gl_Position = projection_matrix * position_relative_to_camera;
+    
+    // Use the render that was made from the closest angle
+    float angle = atan(direction.x, direction.y) - instance_params.x;
+    float view = mod(floor(angle/(2.0*PI)*views + 0.5), views);
+    pass_texture_coords = vec2((view + position.x*0.5 + 0.5)/views,
+            position.y*0.5 + 0.5);
+    pass_fade = instance_params.y;
+    
+    visibility = 1.0;
+    if(fog == 1) {
+        float distance_from_camera = length(position_relative_to_camera.xyz);
+        visibility = clamp(
+                exp(-pow(distance_from_camera*fog_density, fog_gradient)),
+                0.0, 1.0);
+    }
+}